@@ -7,6 +7,10 @@ exit
 set -e
 
 
+# Use JDK 11 or later so that the jar is a multi-release jar.
+# Builds with -DperformRelease=true fail on older JDKs.
+java -version
+
 # Make sure the build is ok via
 mvn -Dguava.version=27.0-jre -f aggregate clean verify                    javadoc:jar source:jar
 mvn                          -f aggregate clean verify jacoco:report site javadoc:jar source:jar
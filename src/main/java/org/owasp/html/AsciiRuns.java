@@ -0,0 +1,65 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+/**
+ * Copies runs of ASCII text in bulk where the JDK allows.
+ * <p>
+ * This is the Java 8 version which copies a char at a time.
+ * When built on JDK 11 or later, the jar is a multi-release jar which also
+ * contains the version of this class in {@code src/main/java11}, and JDK 11
+ * and later load that version instead.
+ * The two must have the same API and behave the same.
+ */
+final class AsciiRuns {
+
+  private AsciiRuns() {
+    // Static API.
+  }
+
+  /**
+   * Copies chars from src to dst as bytes until a char is not ASCII.
+   *
+   * @param start the index in src of the first char to copy.
+   * @param off the index in dst of the first byte to write.
+   * @param len the most chars to copy.
+   * @return the number of chars copied, which is less than len only if
+   *     {@code src.charAt(start + result) >= 0x80}.
+   */
+  static int copyAscii(
+      CharSequence src, int start, byte[] dst, int off, int len) {
+    int i = 0;
+    for (; i < len; ++i) {
+      char c = src.charAt(start + i);
+      if (c >= 0x80) { break; }
+      dst[off + i] = (byte) c;
+    }
+    return i;
+  }
+}
@@ -0,0 +1,330 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * An array-backed list of alternating attribute names and values that can be
+ * reused from one tag to the next.
+ * <p>
+ * Elements are stored in a gap buffer: the unused capacity is a gap that sits
+ * wherever the last insertion or removal happened.  Policies remove rejected
+ * attributes with {@link java.util.ListIterator#remove} as they walk the list,
+ * and each removal just moves the gap up to the iterator's position and
+ * widens it, so filtering the whole list in one pass takes linear time while
+ * {@link #get} stays constant time.
+ * <p>
+ * Values may be added in their encoded form, as they appear in the input, and
+ * are only decoded when first read, so values of attributes that a policy
+ * drops without looking at them are never decoded.
+ * {@link #remove(int)} must return the decoded value, so to drop an attribute
+ * unread, remove its name and value with {@code subList(i, i + 2).clear()}.
+ * The list's iterators never decode a value just to remove or replace it.
+ */
+@NotThreadSafe
+final class AttributeList extends AbstractList<String>
+    implements RandomAccess {
+  private String[] elements = new String[16];
+  /**
+   * True for elements that are raw attribute values that still need to be
+   * unquoted and decoded.
+   */
+  private boolean[] raw = new boolean[elements.length];
+  /** The index of the first unused slot in elements. */
+  private int gapStart;
+  /** The index past the last unused slot in elements. */
+  private int gapEnd = elements.length;
+
+  /** The number of attributes, which is half the number of elements. */
+  int getAttributeCount() {
+    return size() >> 1;
+  }
+
+  /** The name of the i-th attribute. */
+  String getName(int i) {
+    return get(2 * i);
+  }
+
+  /** The value of the i-th attribute. */
+  String getValue(int i) {
+    return get(2 * i + 1);
+  }
+
+  /** Appends an attribute. */
+  void addAttribute(String name, String value) {
+    add(name);
+    add(value);
+  }
+
+  /**
+   * Appends an attribute value as it appears in HTML, possibly quoted and
+   * with entities, which is decoded when first read.
+   */
+  void addRawValue(String encodedValue) {
+    add(encodedValue);
+    raw[gapStart - 1] = true;
+  }
+
+  @Override
+  public int size() {
+    return elements.length - (gapEnd - gapStart);
+  }
+
+  @Override
+  public String get(int index) {
+    return decoded(physicalIndex(index));
+  }
+
+  @Override
+  public String set(int index, String element) {
+    int i = physicalIndex(index);
+    String old = decoded(i);
+    elements[i] = element;
+    return old;
+  }
+
+  @Override
+  public void add(int index, String element) {
+    if (index < 0 || index > size()) {
+      throw new IndexOutOfBoundsException(String.valueOf(index));
+    }
+    if (gapStart == gapEnd) { grow(); }
+    moveGap(index);
+    elements[gapStart++] = element;
+    ++modCount;
+  }
+
+  @Override
+  public String remove(int index) {
+    String old = decoded(physicalIndex(index));
+    removeRange(index, index + 1);
+    return old;
+  }
+
+  @Override
+  protected void removeRange(int fromIndex, int toIndex) {
+    if (fromIndex >= toIndex) { return; }
+    moveGap(fromIndex);
+    int newGapEnd = gapEnd + (toIndex - fromIndex);
+    Arrays.fill(elements, gapEnd, newGapEnd, null);
+    Arrays.fill(raw, gapEnd, newGapEnd, false);
+    gapEnd = newGapEnd;
+    ++modCount;
+  }
+
+  @Override
+  public Iterator<String> iterator() {
+    return new Itr(0);
+  }
+
+  @Override
+  public ListIterator<String> listIterator(int index) {
+    if (index < 0 || index > size()) {
+      throw new IndexOutOfBoundsException(String.valueOf(index));
+    }
+    return new Itr(index);
+  }
+
+  @Override
+  public void clear() {
+    Arrays.fill(elements, 0, gapStart, null);
+    Arrays.fill(elements, gapEnd, elements.length, null);
+    Arrays.fill(raw, 0, gapStart, false);
+    Arrays.fill(raw, gapEnd, raw.length, false);
+    gapStart = 0;
+    gapEnd = elements.length;
+    ++modCount;
+  }
+
+  /** Replaces an element without decoding the element it replaces. */
+  private void replace(int index, String element) {
+    int i = physicalIndex(index);
+    elements[i] = element;
+    raw[i] = false;
+  }
+
+  private String decoded(int i) {
+    String element = elements[i];
+    if (raw[i]) {
+      element = Encoding.decodeHtml(stripQuotes(element), true);
+      elements[i] = element;
+      raw[i] = false;
+    }
+    return element;
+  }
+
+  private static String stripQuotes(String encodedAttributeValue) {
+    int n = encodedAttributeValue.length();
+    if (n > 0) {
+      char last = encodedAttributeValue.charAt(n - 1);
+      if (last == '"' || last == '\'') {
+        int start = 0;
+        if (n != 1 && last == encodedAttributeValue.charAt(0)) {
+          start = 1;
+        } else {
+          // Browsers deal with missing left quotes : <img src=foo.png">
+          // but generally do not deal with missing right : <img src="foo.png>
+        }
+        return encodedAttributeValue.substring(start, n - 1);
+      }
+    }
+    return encodedAttributeValue;
+  }
+
+  private int physicalIndex(int index) {
+    if (index < 0 || index >= size()) {
+      throw new IndexOutOfBoundsException(String.valueOf(index));
+    }
+    return index < gapStart ? index : index + (gapEnd - gapStart);
+  }
+
+  /** Moves the gap so that it starts at the given logical index. */
+  private void moveGap(int index) {
+    if (index < gapStart) {
+      int n = gapStart - index;
+      System.arraycopy(elements, index, elements, gapEnd - n, n);
+      System.arraycopy(raw, index, raw, gapEnd - n, n);
+      int vacatedEnd = Math.min(gapStart, gapEnd - n);
+      Arrays.fill(elements, index, vacatedEnd, null);
+      Arrays.fill(raw, index, vacatedEnd, false);
+      gapStart = index;
+      gapEnd -= n;
+    } else if (index > gapStart) {
+      int n = index - gapStart;
+      System.arraycopy(elements, gapEnd, elements, gapStart, n);
+      System.arraycopy(raw, gapEnd, raw, gapStart, n);
+      int vacatedStart = Math.max(gapEnd, index);
+      Arrays.fill(elements, vacatedStart, gapEnd + n, null);
+      Arrays.fill(raw, vacatedStart, gapEnd + n, false);
+      gapStart = index;
+      gapEnd += n;
+    }
+  }
+
+  private void grow() {
+    int n = elements.length;
+    int nAfterGap = n - gapEnd;
+    String[] newElements = new String[2 * n];
+    boolean[] newRaw = new boolean[2 * n];
+    System.arraycopy(elements, 0, newElements, 0, gapStart);
+    System.arraycopy(raw, 0, newRaw, 0, gapStart);
+    System.arraycopy(
+        elements, gapEnd, newElements, newElements.length - nAfterGap,
+        nAfterGap);
+    System.arraycopy(
+        raw, gapEnd, newRaw, newRaw.length - nAfterGap, nAfterGap);
+    elements = newElements;
+    raw = newRaw;
+    gapEnd = newElements.length - nAfterGap;
+  }
+
+  /**
+   * Like {@code AbstractList}'s iterator, except that {@link #remove} and
+   * {@link #set} do not decode the element they discard since they do not
+   * return it.
+   */
+  private final class Itr implements ListIterator<String> {
+    /** The index of the element that {@link #next} returns. */
+    private int cursor;
+    /** The index of the element last returned or -1 if none. */
+    private int lastRet = -1;
+    private int expectedModCount = modCount;
+
+    Itr(int cursor) {
+      this.cursor = cursor;
+    }
+
+    public boolean hasNext() {
+      return cursor < size();
+    }
+
+    public String next() {
+      checkForComodification();
+      if (cursor >= size()) { throw new NoSuchElementException(); }
+      lastRet = cursor++;
+      return get(lastRet);
+    }
+
+    public boolean hasPrevious() {
+      return cursor > 0;
+    }
+
+    public String previous() {
+      checkForComodification();
+      if (cursor <= 0) { throw new NoSuchElementException(); }
+      lastRet = --cursor;
+      return get(lastRet);
+    }
+
+    public int nextIndex() {
+      return cursor;
+    }
+
+    public int previousIndex() {
+      return cursor - 1;
+    }
+
+    public void remove() {
+      if (lastRet < 0) { throw new IllegalStateException(); }
+      checkForComodification();
+      removeRange(lastRet, lastRet + 1);
+      cursor = lastRet;
+      lastRet = -1;
+      expectedModCount = modCount;
+    }
+
+    public void set(String element) {
+      if (lastRet < 0) { throw new IllegalStateException(); }
+      checkForComodification();
+      replace(lastRet, element);
+    }
+
+    public void add(String element) {
+      checkForComodification();
+      AttributeList.this.add(cursor++, element);
+      lastRet = -1;
+      expectedModCount = modCount;
+    }
+
+    private void checkForComodification() {
+      if (modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+    }
+  }
+}
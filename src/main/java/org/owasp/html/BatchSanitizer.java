@@ -0,0 +1,266 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Sanitizes a batch of documents in parallel.
+ * <p>
+ * The batch is split into runs of adjacent documents with roughly equal
+ * numbers of input chars rather than equal numbers of documents, so that one
+ * huge document ends up in a run of its own instead of holding up the
+ * documents that happen to share its run.
+ * Each run is sanitized by one {@link SanitizerSession}.
+ */
+final class BatchSanitizer<CTX> {
+  /**
+   * The number of runs to aim for per worker so that workers that finish
+   * early can pick up slack from workers that got unlucky.
+   */
+  private static final int RUNS_PER_WORKER = 4;
+  /**
+   * Runs with fewer input chars than this are not worth splitting further
+   * since the cost of scheduling the split would dominate.
+   */
+  static final int MIN_CHARS_PER_RUN = 1 << 14;
+
+  private final PolicyFactory factory;
+  private final List<String> htmls;
+  private final @Nullable HtmlChangeListener<CTX> listener;
+  private final @Nullable List<? extends CTX> contexts;
+  /** charsBefore[i] is the count of input chars in htmls[0:i]. */
+  private final long[] charsBefore;
+  private final String[] results;
+  private final long charsPerRun;
+
+  BatchSanitizer(
+      PolicyFactory factory, List<String> htmls,
+      @Nullable HtmlChangeListener<CTX> listener,
+      @Nullable List<? extends CTX> contexts,
+      int parallelism) {
+    Preconditions.checkArgument(
+        contexts == null || contexts.size() == htmls.size(),
+        "contexts must correspond to htmls");
+    this.factory = factory;
+    this.htmls = htmls;
+    this.listener = listener;
+    this.contexts = contexts;
+    int n = htmls.size();
+    this.charsBefore = new long[n + 1];
+    for (int i = 0; i < n; ++i) {
+      String html = htmls.get(i);
+      charsBefore[i + 1] = charsBefore[i] + (html != null ? html.length() : 0);
+    }
+    this.results = new String[n];
+    this.charsPerRun = Math.max(
+        MIN_CHARS_PER_RUN,
+        charsBefore[n] / Math.max(1, parallelism * RUNS_PER_WORKER));
+  }
+
+  /** Sanitizes the batch using executor and blocks until done. */
+  List<String> run(Executor executor) {
+    if (executor instanceof ForkJoinPool) {
+      ((ForkJoinPool) executor).invoke(new Run(0, results.length));
+    } else {
+      List<Run> runs = new ArrayList<Run>();
+      split(0, results.length, runs);
+      final CountDownLatch done = new CountDownLatch(runs.size());
+      final AtomicReference<Throwable> failure =
+          new AtomicReference<Throwable>();
+      for (final Run r : runs) {
+        executor.execute(new Runnable() {
+          public void run() {
+            try {
+              r.sanitizeRun();
+            } catch (Throwable th) {
+              failure.compareAndSet(null, th);
+            } finally {
+              done.countDown();
+            }
+          }
+        });
+      }
+      boolean interrupted = false;
+      while (true) {
+        try {
+          done.await();
+          break;
+        } catch (InterruptedException ex) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) { Thread.currentThread().interrupt(); }
+      Throwable th = failure.get();
+      if (th instanceof RuntimeException) { throw (RuntimeException) th; }
+      if (th instanceof Error) { throw (Error) th; }
+      if (th != null) { throw new IllegalStateException(th); }
+    }
+    return ImmutableList.copyOf(results);
+  }
+
+  /** Splits [start, end) into runs of about {@link #charsPerRun} chars. */
+  private void split(int start, int end, List<Run> out) {
+    int mid = splitPoint(start, end);
+    if (mid < 0) {
+      out.add(new Run(start, end));
+    } else {
+      split(start, mid, out);
+      split(mid, end, out);
+    }
+  }
+
+  /**
+   * The index that divides [start, end) into two ranges with about the same
+   * number of chars, or -1 if the range should not be split.
+   */
+  private int splitPoint(int start, int end) {
+    if (end - start < 2
+        || charsBefore[end] - charsBefore[start] <= charsPerRun) {
+      return -1;
+    }
+    long half = (charsBefore[start] + charsBefore[end]) >>> 1;
+    // Find the first index whose prefix reaches the halfway mark.
+    int lo = start + 1, hi = end - 1;
+    while (lo < hi) {
+      int m = (lo + hi) >>> 1;
+      if (charsBefore[m] < half) {
+        lo = m + 1;
+      } else {
+        hi = m;
+      }
+    }
+    return lo;
+  }
+
+  /** A run of adjacent documents sanitized by one session. */
+  private final class Run extends RecursiveAction {
+    private static final long serialVersionUID = 0L;
+
+    private final int start;
+    private final int end;
+
+    Run(int start, int end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      int mid = splitPoint(start, end);
+      if (mid < 0) {
+        sanitizeRun();
+      } else {
+        invokeAll(new Run(start, mid), new Run(mid, end));
+      }
+    }
+
+    void sanitizeRun() {
+      SanitizerSession session = factory.newSession();
+      for (int i = start; i < end; ++i) {
+        results[i] = session.sanitize(
+            htmls.get(i), listener,
+            contexts != null ? contexts.get(i) : null);
+      }
+    }
+  }
+
+  /**
+   * Lazily sanitizes the documents from an underlying spliterator.
+   * Each spliterator split off owns its own session, so a parallel stream
+   * reuses one sanitizer pipeline per split rather than one per document.
+   * <p>
+   * Splits follow the underlying spliterator's, so unlike the list-based
+   * batch, this does not weigh documents by their length; doing so would
+   * mean reading documents ahead of their turn.
+   */
+  static final class SanitizingSpliterator implements Spliterator<String> {
+    private final PolicyFactory factory;
+    private final Spliterator<String> htmls;
+    private @Nullable SanitizerSession session;
+
+    SanitizingSpliterator(PolicyFactory factory, Spliterator<String> htmls) {
+      this.factory = factory;
+      this.htmls = htmls;
+    }
+
+    public boolean tryAdvance(final Consumer<? super String> action) {
+      return htmls.tryAdvance(new Consumer<String>() {
+        public void accept(String html) {
+          action.accept(session().sanitize(html));
+        }
+      });
+    }
+
+    public void forEachRemaining(final Consumer<? super String> action) {
+      final SanitizerSession s = session();
+      htmls.forEachRemaining(new Consumer<String>() {
+        public void accept(String html) {
+          action.accept(s.sanitize(html));
+        }
+      });
+    }
+
+    public @Nullable Spliterator<String> trySplit() {
+      Spliterator<String> prefix = htmls.trySplit();
+      return prefix != null
+          ? new SanitizingSpliterator(factory, prefix) : null;
+    }
+
+    public long estimateSize() {
+      return htmls.estimateSize();
+    }
+
+    public int characteristics() {
+      // Sanitized output is never null, but may contain duplicates and may
+      // not be sorted even if the input is.
+      return (htmls.characteristics()
+              & (ORDERED | SIZED | SUBSIZED | IMMUTABLE | CONCURRENT))
+          | NONNULL;
+    }
+
+    private SanitizerSession session() {
+      if (session == null) { session = factory.newSession(); }
+      return session;
+    }
+  }
+}
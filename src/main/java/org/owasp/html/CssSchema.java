@@ -37,6 +37,7 @@ import javax.annotation.Nullable;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
@@ -227,6 +228,24 @@ public final class CssSchema {
     return DISALLOWED;
   }
 
+  /** Digests every property definition, in a canonical order. */
+  void fingerprint(PolicyFingerprint fp) {
+    fp.putInt(properties.size());
+    for (Map.Entry<String, Property> e
+         : ImmutableSortedMap.copyOf(properties).entrySet()) {
+      Property property = e.getValue();
+      fp.putString(e.getKey());
+      fp.putInt(property.bits);
+      fp.putStrings(property.literals);
+      fp.putInt(property.fnKeys.size());
+      for (Map.Entry<String, String> fnKey
+           : ImmutableSortedMap.copyOf(property.fnKeys).entrySet()) {
+        fp.putString(fnKey.getKey());
+        fp.putString(fnKey.getValue());
+      }
+    }
+  }
+
   /** {@code "-moz-foo"} &rarr; {@code "foo"}. */
   private static @Nullable String stripVendorPrefix(String cssKeyword) {
     int prefixLen = 0;
@@ -0,0 +1,243 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+
+/**
+ * A trie over ASCII strings packed into two int arrays, so that following an
+ * edge is a table lookup and two array loads instead of a binary search over
+ * a node's children followed by a pointer to a node elsewhere in the heap.
+ * <p>
+ * States are ints.  State {@code s} has an edge on char {@code c} to state
+ * {@code base[s] + code(c)} if {@code check[base[s] + code(c)] == s}, where
+ * codes number the chars that appear in keys.
+ * Bases are chosen when the trie is built so that the children of different
+ * states never collide.
+ */
+@Immutable
+final class DoubleArrayTrie<T> {
+  /** The state for the empty prefix. */
+  static final int ROOT = 0;
+
+  /** Codes of chars that appear in keys by char, or 0 for other chars. */
+  private final byte[] codes;
+  private final int nCodes;
+  private final int[] base;
+  /** The parent of each state, or -1 for unused slots and the root. */
+  private final int[] check;
+  /** The values of states that complete a key by state. */
+  private final Object[] values;
+
+  /**
+   * @param elements non null, with values that are not null and keys that
+   *    are ASCII.
+   */
+  DoubleArrayTrie(Map<String, T> elements) {
+    ImmutableSortedMap<String, T> sorted = ImmutableSortedMap.copyOf(elements);
+    String[] keys = sorted.keySet().toArray(new String[sorted.size()]);
+    Object[] keyValues = sorted.values().toArray();
+
+    this.codes = new byte[128];
+    int nCodes = 0;
+    for (String key : keys) {
+      for (int i = 0, n = key.length(); i < n; ++i) {
+        char ch = key.charAt(i);
+        Preconditions.checkArgument(ch < 128, key);
+        if (codes[ch] == 0) {
+          Preconditions.checkState(nCodes < Byte.MAX_VALUE);
+          codes[ch] = (byte) ++nCodes;
+        }
+      }
+    }
+
+    this.nCodes = nCodes;
+
+    Builder b = new Builder(keys);
+    b.build();
+    // Any base plus any code is in bounds, so lookups need not check.
+    int size = b.maxBase + nCodes + 1;
+    this.base = Arrays.copyOf(b.base, size);
+    this.check = Arrays.copyOf(b.check, size);
+    this.values = new Object[size];
+    for (int i = 0; i < keys.length; ++i) {
+      values[b.keyStates[i]] = keyValues[i];
+    }
+  }
+
+  /** The child of state on ch or -1 if there is none. */
+  int next(int state, char ch) {
+    if (ch >= 128) { return -1; }
+    int code = codes[ch];
+    if (code == 0) { return -1; }
+    int child = base[state] + code;
+    return check[child] == state ? child : -1;
+  }
+
+  /** True if state corresponds to a complete key. */
+  boolean isTerminal(int state) {
+    return values[state] != null;
+  }
+
+  /** The value for the key that state completes or null. */
+  @SuppressWarnings("unchecked")
+  @Nullable T getValue(int state) {
+    return (T) values[state];
+  }
+
+  /** The keys and values in the trie. */
+  Map<String, T> toMap() {
+    char[] chars = new char[nCodes + 1];
+    for (char ch = 0; ch < 128; ++ch) {
+      if (codes[ch] != 0) { chars[codes[ch]] = ch; }
+    }
+    Map<String, T> out = Maps.newTreeMap();
+    toMap(ROOT, new StringBuilder(), chars, out);
+    return out;
+  }
+
+  private void toMap(
+      int state, StringBuilder prefix, char[] chars, Map<String, T> out) {
+    T value = getValue(state);
+    if (value != null) { out.put(prefix.toString(), value); }
+    int n = prefix.length();
+    for (int code = 1; code <= nCodes; ++code) {
+      int child = next(state, chars[code]);
+      if (child >= 0) {
+        toMap(child, prefix.append(chars[code]), chars, out);
+        prefix.setLength(n);
+      }
+    }
+  }
+
+  /**
+   * Lays out states breadth first, giving each state the least base at which
+   * its children fit in unused slots.
+   */
+  private final class Builder {
+    final String[] keys;
+    int[] base = new int[256];
+    int[] check = new int[256];
+    /** The state that completes each key. */
+    final int[] keyStates;
+    int maxBase;
+    /**
+     * All slots before this are used, except for slot 1 which no base and
+     * code sum to.
+     */
+    int firstFree = 2;
+
+    Builder(String[] keys) {
+      this.keys = keys;
+      this.keyStates = new int[keys.length];
+      Arrays.fill(check, -1);
+    }
+
+    void build() {
+      if (keys.length == 0) { return; }
+      // Each pending state is the state, and the range of sorted keys that
+      // share its prefix, whose length is the depth.
+      int[] pending = new int[] { ROOT, 0, keys.length, 0 };
+      int nPending = 4;
+      int[] codesOfChildren = new int[nCodes];
+      int[] startsOfChildren = new int[nCodes + 1];
+      for (int p = 0; p < nPending; p += 4) {
+        int state = pending[p];
+        int start = pending[p + 1];
+        int end = pending[p + 2];
+        int depth = pending[p + 3];
+        if (keys[start].length() == depth) {
+          // Sorting puts a key before keys it is a prefix of.
+          keyStates[start] = state;
+          ++start;
+        }
+        int nChildren = 0;
+        for (int i = start; i < end; ++i) {
+          int code = codes[keys[i].charAt(depth)];
+          if (nChildren == 0 || codesOfChildren[nChildren - 1] != code) {
+            codesOfChildren[nChildren] = code;
+            startsOfChildren[nChildren] = i;
+            ++nChildren;
+          }
+        }
+        if (nChildren == 0) { continue; }
+        startsOfChildren[nChildren] = end;
+
+        int b = findBase(codesOfChildren, nChildren);
+        base[state] = b;
+        maxBase = Math.max(maxBase, b);
+        if (pending.length < nPending + 4 * nChildren) {
+          pending = Arrays.copyOf(
+              pending, Math.max(pending.length * 2, nPending + 4 * nChildren));
+        }
+        for (int c = 0; c < nChildren; ++c) {
+          int child = b + codesOfChildren[c];
+          check[child] = state;
+          pending[nPending++] = child;
+          pending[nPending++] = startsOfChildren[c];
+          pending[nPending++] = startsOfChildren[c + 1];
+          pending[nPending++] = depth + 1;
+        }
+      }
+    }
+
+    private int findBase(int[] childCodes, int nChildren) {
+      while (firstFree < check.length && check[firstFree] >= 0) {
+        ++firstFree;
+      }
+      // Bases are positive so no state is a child in the root's slot.
+      search:
+      for (int b = Math.max(1, firstFree - childCodes[0]); ; ++b) {
+        ensureCapacity(b + nCodes + 1);
+        for (int c = 0; c < nChildren; ++c) {
+          if (check[b + childCodes[c]] >= 0) { continue search; }
+        }
+        return b;
+      }
+    }
+
+    private void ensureCapacity(int size) {
+      if (size > check.length) {
+        int oldLength = check.length;
+        int newLength = Math.max(oldLength * 2, size);
+        base = Arrays.copyOf(base, newLength);
+        check = Arrays.copyOf(check, newLength);
+        Arrays.fill(check, oldLength, newLength, -1);
+      }
+    }
+  }
+}
@@ -28,25 +28,25 @@
 
 package org.owasp.html;
 
+import java.util.Collections;
 import java.util.List;
-import java.util.ListIterator;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 
+import org.owasp.html.ElementAndAttributePolicyTable.CompiledElement;
+
 /**
  * A sanitizer policy that applies element and attribute policies to tags.
  */
 @TCB
 @NotThreadSafe
 class ElementAndAttributePolicyBasedSanitizerPolicy
-    implements HtmlSanitizer.Policy {
-  final ImmutableMap<String, ElementAndAttributePolicies> elAndAttrPolicies;
-  final ImmutableSet<String> allowedTextContainers;
+    implements HtmlSanitizer.Policy, TextSkippingReceiver {
+  final ElementAndAttributePolicyTable policyTable;
   private final HtmlStreamEventReceiver out;
   /**
    * True to skip textual content.  Used to ignore the content of embedded CDATA
@@ -58,14 +58,15 @@ class ElementAndAttributePolicyBasedSanitizerPolicy
    * caller.
    */
   private final List<String> openElementStack = Lists.newArrayList();
+  /** Styles sanitized so far in the current document. */
+  private final StylingPolicy.StyleMemo styleMemo =
+      new StylingPolicy.StyleMemo();
 
   ElementAndAttributePolicyBasedSanitizerPolicy(
       HtmlStreamEventReceiver out,
-      ImmutableMap<String, ElementAndAttributePolicies> elAndAttrPolicies,
-      ImmutableSet<String> allowedTextContainers) {
+      ElementAndAttributePolicyTable policyTable) {
     this.out = out;
-    this.elAndAttrPolicies = elAndAttrPolicies;
-    this.allowedTextContainers = allowedTextContainers;
+    this.policyTable = policyTable;
   }
 
   static final ImmutableSet<String> SKIPPABLE_ELEMENT_CONTENT
@@ -73,9 +74,22 @@ class ElementAndAttributePolicyBasedSanitizerPolicy
           "script", "style", "noscript", "nostyle", "noembed", "noframes",
           "iframe", "object", "frame", "frameset", "title");
 
+  void saveState(SanitizerCheckpoint checkpoint) {
+    checkpoint.skipText = skipText;
+    checkpoint.openElementStack = openElementStack.toArray(
+        new String[openElementStack.size()]);
+  }
+
+  void restoreState(SanitizerCheckpoint checkpoint) {
+    skipText = checkpoint.skipText;
+    openElementStack.clear();
+    Collections.addAll(openElementStack, checkpoint.openElementStack);
+  }
+
   public void openDocument() {
     skipText = false;
     openElementStack.clear();
+    styleMemo.clear();
     out.openDocument();
   }
 
@@ -97,44 +111,61 @@ class ElementAndAttributePolicyBasedSanitizerPolicy
     }
   }
 
+  /**
+   * Like {@code text(Encoding.decodeHtml(html.substring(start, end), false))}
+   * but lets a renderer decode and encode the text in one pass.
+   */
+  void encodedText(String html, int start, int end) {
+    if (!skipText) {
+      if (out instanceof HtmlStreamRenderer) {
+        ((HtmlStreamRenderer) out).encodedText(html, start, end);
+      } else {
+        out.text(Encoding.decodeHtml(html.substring(start, end), false));
+      }
+    }
+  }
+
+  public boolean isSkippingText() {
+    return skipText;
+  }
+
   public void openTag(String elementName, List<String> attrs) {
-    // StylingPolicy repeats some of this code because it is more complicated
-    // to refactor it into multiple method bodies, so if you change this,
-    // check the override of it in that class.
-    ElementAndAttributePolicies policies = elAndAttrPolicies.get(elementName);
-    String adjustedElementName = applyPolicies(elementName, attrs, policies);
+    int elIndex = ElementAndAttributePolicyTable.elementIndex(elementName);
+    CompiledElement element = policyTable.elementPolicies(
+        elIndex, elementName);
+    String adjustedElementName = applyPolicies(elementName, attrs, element);
     if (adjustedElementName != null
-        && !(attrs.isEmpty() && policies.htmlTagSkipType.skipAvailability())) {
-      writeOpenTag(policies, adjustedElementName, attrs);
+        && !(attrs.isEmpty()
+             && element.policies.htmlTagSkipType.skipAvailability())) {
+      writeOpenTag(element.policies, adjustedElementName, attrs);
       return;
     }
-    deferOpenTag(elementName);
+    deferOpenTag(elIndex, elementName);
   }
 
-  static final @Nullable String applyPolicies(
+  private @Nullable String applyPolicies(
       String elementName, List<String> attrs,
-      ElementAndAttributePolicies policies) {
+      @Nullable CompiledElement element) {
     String adjustedElementName;
-    if (policies != null) {
-      for (ListIterator<String> attrsIt = attrs.listIterator();
-           attrsIt.hasNext();) {
-        String name = attrsIt.next();
-        AttributePolicy attrPolicy
-            = policies.attrPolicies.get(name);
-        if (attrPolicy == null) {
-          attrsIt.remove();
-          attrsIt.next();
-          attrsIt.remove();
+    if (element != null) {
+      for (int i = 0; i < attrs.size();) {
+        String name = attrs.get(i);
+        AttributePolicy attrPolicy = policyTable.attributePolicy(
+            element, name);
+        String adjustedValue = null;
+        if (attrPolicy instanceof StylingPolicy) {
+          adjustedValue = ((StylingPolicy) attrPolicy).apply(
+              attrs.get(i + 1), styleMemo);
+        } else if (attrPolicy != null) {
+          // Only read values that a policy looks at since reading a value may
+          // require decoding it.
+          adjustedValue = attrPolicy.apply(elementName, name, attrs.get(i + 1));
+        }
+        if (adjustedValue == null) {
+          attrs.subList(i, i + 2).clear();
         } else {
-          String value = attrsIt.next();
-          String adjustedValue = attrPolicy.apply(elementName, name, value);
-          if (adjustedValue == null) {
-            attrsIt.remove();
-            attrsIt.previous();
-            attrsIt.remove();
-          } else {
-            attrsIt.set(adjustedValue);
-          }
+          attrs.set(i + 1, adjustedValue);
+          i += 2;
         }
       }
 
@@ -142,7 +173,7 @@ class ElementAndAttributePolicyBasedSanitizerPolicy
       // are unique.
       removeDuplicateAttributes(attrs);
 
-      adjustedElementName = policies.elPolicy.apply(elementName, attrs);
+      adjustedElementName = element.elPolicy.apply(elementName, attrs);
       if (adjustedElementName != null) {
         adjustedElementName = HtmlLexer.canonicalElementName(adjustedElementName);
       }
@@ -172,7 +203,9 @@ class ElementAndAttributePolicyBasedSanitizerPolicy
     for (int i = openElementStack.size() - 1; i >= 0; i -= 2) {
       String adjustedName = openElementStack.get(i);
       if (adjustedName != null) {
-        skipText = !(allowedTextContainers.contains(adjustedName));
+        skipText = !policyTable.isTextContainer(
+            ElementAndAttributePolicyTable.elementIndex(adjustedName),
+            adjustedName);
         break;
       }
     }
@@ -181,20 +214,24 @@ class ElementAndAttributePolicyBasedSanitizerPolicy
   void writeOpenTag(
       ElementAndAttributePolicies policies, String adjustedElementName,
       List<String> attrs) {
-    if (!HtmlTextEscapingMode.isVoidElement(adjustedElementName)) {
+    int elIndex = ElementAndAttributePolicyTable.elementIndex(
+        adjustedElementName);
+    if (!ElementAndAttributePolicyTable.isVoidElement(
+            elIndex, adjustedElementName)) {
       openElementStack.add(policies.elementName);
       openElementStack.add(adjustedElementName);
-      skipText = !allowedTextContainers.contains(adjustedElementName);
+      skipText = !policyTable.isTextContainer(elIndex, adjustedElementName);
     }
     out.openTag(adjustedElementName, attrs);
   }
 
-  void deferOpenTag(String elementName) {
-    if (!HtmlTextEscapingMode.isVoidElement(elementName)) {
+  void deferOpenTag(int elIndex, String elementName) {
+    if (!ElementAndAttributePolicyTable.isVoidElement(elIndex, elementName)) {
       openElementStack.add(elementName);
       openElementStack.add(null);
     }
-    skipText = SKIPPABLE_ELEMENT_CONTENT.contains(elementName);
+    skipText = ElementAndAttributePolicyTable.isContentSkippable(
+        elIndex, elementName);
   }
 
   /**
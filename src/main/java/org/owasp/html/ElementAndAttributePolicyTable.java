@@ -0,0 +1,271 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+/**
+ * The element and attribute policies of a {@link PolicyFactory} compiled into
+ * arrays, so that dispatching on a tag takes one probe per name followed by
+ * array loads, instead of a lookup in each of several maps and sets.
+ * <p>
+ * Elements are indexed as in {@link HtmlElementTables}, and attribute names
+ * by ids that the table assigns to every attribute name that some policy
+ * mentions.
+ * Custom elements all share one element index, so their policies are looked
+ * up by name.
+ * <p>
+ * Each probe is still a hash lookup, not an array load keyed by an id from
+ * the lexer.
+ * Names reach the policy as strings through {@link HtmlStreamEventReceiver},
+ * and preprocessors may rename or add tags, so a {@link NameTable} id would
+ * need a side channel through that public interface.
+ * Probes are cheap regardless since names are usually the lexer's interned
+ * strings, whose hash codes are cached and which compare by identity.
+ * <p>
+ * When compiled, the table also flattens each element and attribute policy
+ * using {@link PolicyCompiler}, except for a lone {@link StylingPolicy}.
+ */
+@Immutable
+final class ElementAndAttributePolicyTable {
+  private static final HtmlElementTables METADATA = HtmlElementTables.get();
+
+  /**
+   * Element indices for known elements.  The shared custom element index is
+   * not included, so custom elements have no index.
+   */
+  private static final NameIndex ELEMENT_INDICES;
+  private static final boolean[] VOID_ELEMENTS;
+  private static final boolean[] SKIPPABLE_CONTENT;
+  static {
+    int n = METADATA.nElementTypes();
+    String[] names = new String[n];
+    VOID_ELEMENTS = new boolean[n];
+    SKIPPABLE_CONTENT = new boolean[n];
+    for (int i = 0; i < n; ++i) {
+      String name = METADATA.canonNameForIndex(i);
+      if (!HtmlElementTables.HtmlElementNames.CUSTOM_ELEMENT_NAME.equals(
+              name)) {
+        names[i] = name;
+      }
+      VOID_ELEMENTS[i] = HtmlTextEscapingMode.isVoidElement(name);
+      SKIPPABLE_CONTENT[i] = ElementAndAttributePolicyBasedSanitizerPolicy
+          .SKIPPABLE_ELEMENT_CONTENT.contains(name);
+    }
+    ELEMENT_INDICES = new NameIndex(names);
+  }
+
+  /** Compiled policies by element index. */
+  private final CompiledElement[] elements;
+  private final boolean[] textContainers;
+  private final ImmutableMap<String, CompiledElement> customElements;
+  private final ImmutableSet<String> customTextContainers;
+  /** Ids of attribute names that some policy mentions. */
+  private final NameIndex attributeIds;
+
+  ElementAndAttributePolicyTable(
+      ImmutableMap<String, ElementAndAttributePolicies> policies,
+      ImmutableSet<String> textContainers, boolean compiled) {
+    Map<String, Integer> ids = Maps.newLinkedHashMap();
+    for (ElementAndAttributePolicies p : policies.values()) {
+      for (String attrName : p.attrPolicies.keySet()) {
+        if (!ids.containsKey(attrName)) {
+          ids.put(attrName, ids.size());
+        }
+      }
+    }
+    this.attributeIds = new NameIndex(
+        ids.keySet().toArray(new String[ids.size()]));
+
+    int nElementTypes = METADATA.nElementTypes();
+    this.elements = new CompiledElement[nElementTypes];
+    ImmutableMap.Builder<String, CompiledElement> custom =
+        ImmutableMap.builder();
+    for (ElementAndAttributePolicies p : policies.values()) {
+      AttributePolicy[] attrPolicies = new AttributePolicy[ids.size()];
+      for (Map.Entry<String, AttributePolicy> e
+           : p.attrPolicies.entrySet()) {
+        AttributePolicy attrPolicy = e.getValue();
+        // Styling policies stay bare so that the sanitizer policy can
+        // recognize them and memoize styles.
+        attrPolicies[ids.get(e.getKey())] =
+            compiled && !(attrPolicy instanceof StylingPolicy)
+            ? PolicyCompiler.compile(attrPolicy) : attrPolicy;
+      }
+      CompiledElement element = new CompiledElement(
+          p, compiled ? PolicyCompiler.compile(p.elPolicy) : p.elPolicy,
+          attrPolicies);
+      int elIndex = ELEMENT_INDICES.indexOf(p.elementName);
+      if (elIndex >= 0) {
+        elements[elIndex] = element;
+      } else {
+        custom.put(p.elementName, element);
+      }
+    }
+    this.customElements = custom.build();
+
+    this.textContainers = new boolean[nElementTypes];
+    ImmutableSet.Builder<String> customTextContainerNames =
+        ImmutableSet.builder();
+    for (String name : textContainers) {
+      int elIndex = ELEMENT_INDICES.indexOf(name);
+      if (elIndex >= 0) {
+        this.textContainers[elIndex] = true;
+      } else {
+        customTextContainerNames.add(name);
+      }
+    }
+    this.customTextContainers = customTextContainerNames.build();
+  }
+
+  /**
+   * The {@link HtmlElementTables} index of the named element or -1 if it is a
+   * custom element.
+   */
+  static int elementIndex(String canonElementName) {
+    return ELEMENT_INDICES.indexOf(canonElementName);
+  }
+
+  /**
+   * The policies for the named element or null if it is disallowed.
+   * @param elIndex the result of {@link #elementIndex} for the name.
+   */
+  @Nullable CompiledElement elementPolicies(
+      int elIndex, String canonElementName) {
+    return elIndex >= 0
+        ? elements[elIndex] : customElements.get(canonElementName);
+  }
+
+  /** The policy for the named attribute on element or null if disallowed. */
+  @Nullable AttributePolicy attributePolicy(
+      CompiledElement element, String canonAttributeName) {
+    int id = attributeIds.indexOf(canonAttributeName);
+    return id >= 0 ? element.attrPolicies[id] : null;
+  }
+
+  /** True if text is allowed directly inside the named element. */
+  boolean isTextContainer(int elIndex, String canonElementName) {
+    return elIndex >= 0
+        ? textContainers[elIndex]
+        : customTextContainers.contains(canonElementName);
+  }
+
+  /** True if the named element has no content or end tag. */
+  static boolean isVoidElement(int elIndex, String canonElementName) {
+    return elIndex >= 0
+        ? VOID_ELEMENTS[elIndex]
+        : HtmlTextEscapingMode.isVoidElement(canonElementName);
+  }
+
+  /**
+   * True if the named element's content is not human-readable, so should be
+   * dropped when the element is.
+   */
+  static boolean isContentSkippable(int elIndex, String canonElementName) {
+    return elIndex >= 0
+        ? SKIPPABLE_CONTENT[elIndex]
+        : ElementAndAttributePolicyBasedSanitizerPolicy
+            .SKIPPABLE_ELEMENT_CONTENT.contains(canonElementName);
+  }
+
+  /** The policies for one element, with attribute policies by id. */
+  static final class CompiledElement {
+    final ElementAndAttributePolicies policies;
+    /** Equivalent to policies.elPolicy. */
+    final ElementPolicy elPolicy;
+    private final AttributePolicy[] attrPolicies;
+
+    CompiledElement(
+        ElementAndAttributePolicies policies, ElementPolicy elPolicy,
+        AttributePolicy[] attrPolicies) {
+      this.policies = policies;
+      this.elPolicy = elPolicy;
+      this.attrPolicies = attrPolicies;
+    }
+  }
+
+  /**
+   * Maps names to their positions in a list without boxing.
+   * Probes compare by identity before equality, and the names that reach a
+   * policy are usually the very strings from {@link NameTable}, so a probe
+   * rarely needs to compare chars.
+   */
+  @Immutable
+  static final class NameIndex {
+    private final String[] names;
+    private final int[] hashes;
+    private final int[] indices;
+
+    /** @param names names by index.  Null elements are skipped. */
+    NameIndex(String[] names) {
+      int capacity = 16;
+      while (capacity < 2 * names.length) { capacity <<= 1; }
+      this.names = new String[capacity];
+      this.hashes = new int[capacity];
+      this.indices = new int[capacity];
+      int mask = capacity - 1;
+      for (int index = 0; index < names.length; ++index) {
+        String name = names[index];
+        if (name == null) { continue; }
+        int hash = name.hashCode();
+        int i = mix(hash) & mask;
+        while (this.names[i] != null) { i = (i + 1) & mask; }
+        this.names[i] = name;
+        this.hashes[i] = hash;
+        this.indices[i] = index;
+      }
+    }
+
+    /** The index of name or -1 if it is not in the index. */
+    int indexOf(String name) {
+      // String caches its hash code so this does not look at name's chars.
+      int hash = name.hashCode();
+      int mask = names.length - 1;
+      for (int i = mix(hash) & mask; ; i = (i + 1) & mask) {
+        String candidate = names[i];
+        if (candidate == null) { return -1; }
+        if (candidate == name
+            || (hashes[i] == hash && candidate.equals(name))) {
+          return indices[i];
+        }
+      }
+    }
+
+    private static int mix(int hash) {
+      return hash ^ (hash >>> 16);
+    }
+  }
+}
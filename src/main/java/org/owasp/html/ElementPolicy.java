@@ -32,7 +32,6 @@ import java.util.List;
 import java.util.Set;
 
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.Immutable;
 
 import org.owasp.html.Joinable.JoinHelper;
 
@@ -126,21 +125,3 @@ import com.google.common.collect.ImmutableList;
     // Parameterized appropriately.
   }
 }
-
-@Immutable
-final class JoinedElementPolicy implements ElementPolicy {
-  final ImmutableList<ElementPolicy> policies;
-
-  JoinedElementPolicy(Iterable<? extends ElementPolicy> policies) {
-    this.policies = ImmutableList.copyOf(policies);
-  }
-
-  public @Nullable String apply(String elementName, List<String> attrs) {
-    String filteredElementName = elementName;
-    for (ElementPolicy part : policies) {
-      filteredElementName = part.apply(filteredElementName, attrs);
-      if (filteredElementName == null) { break; }
-    }
-    return filteredElementName;
-  }
-}
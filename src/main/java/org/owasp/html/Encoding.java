@@ -29,6 +29,7 @@
 package org.owasp.html;
 
 import java.io.IOException;
+import java.io.Writer;
 
 import javax.annotation.Nullable;
 
@@ -234,6 +235,106 @@ public final class Encoding {
     encodeHtmlOnto(plainText, output, "{\u200B");
   }
 
+  /**
+   * Equivalent to
+   * {@code encodePcdataOnto(decodeHtml(html.substring(start, end), false), output)}
+   * but copies runs of chars that need no encoding straight from html, so
+   * does not create the intermediate strings.
+   *
+   * @param html text/html
+   * @param scratch a buffer that may be used to hold decoded entities.
+   */
+  @TCB
+  static void transcodePcdataOnto(
+      String html, int start, int end, StringBuilder scratch,
+      Appendable output)
+      throws IOException {
+    transcodeHtmlOnto(html, start, end, scratch, output, "{<!-- -->");
+  }
+
+  /**
+   * Equivalent to
+   * {@code encodeRcdataOnto(decodeHtml(html.substring(start, end), false), output)}
+   * but copies runs of chars that need no encoding straight from html, so
+   * does not create the intermediate strings.
+   *
+   * @param html text/html
+   * @param scratch a buffer that may be used to hold decoded entities.
+   */
+  @TCB
+  static void transcodeRcdataOnto(
+      String html, int start, int end, StringBuilder scratch,
+      Appendable output)
+      throws IOException {
+    transcodeHtmlOnto(html, start, end, scratch, output, "{\u200B");
+  }
+
+  /**
+   * Decodes and encodes html in one pass for as long as each char encodes the
+   * same way regardless of its neighbours, then leaves the rest to
+   * {@link #decodeHtml} and {@link #encodeHtmlOnto}.
+   * The chars before that point cannot affect how the rest encodes, so this
+   * gives the same output as decoding and encoding the whole range.
+   */
+  @TCB
+  private static void transcodeHtmlOnto(
+      String html, int start, int end, StringBuilder scratch,
+      Appendable output, String braceReplacement)
+      throws IOException {
+    int pos = start;
+    int i = start;
+    transcode:
+    while (i < end) {
+      char ch = html.charAt(i);
+      if (ch == '&') {
+        scratch.setLength(0);
+        int refEnd = HtmlEntities.appendDecodedEntity(
+            html, i, end, false, scratch);
+        for (int j = 0, n = scratch.length(); j < n; ++j) {
+          if (!encodesIndependently(scratch.charAt(j))) {
+            break transcode;
+          }
+        }
+        appendRun(html, pos, i, output);
+        for (int j = 0, n = scratch.length(); j < n; ++j) {
+          char decoded = scratch.charAt(j);
+          if (charClass(decoded) == REPLACED) {
+            output.append(REPLACEMENTS[decoded]);
+          } else {
+            output.append(decoded);
+          }
+        }
+        pos = i = refEnd;
+      } else {
+        int cls = charClass(ch);
+        if (cls == REPLACED) {
+          appendRun(html, pos, i, output);
+          output.append(REPLACEMENTS[ch]);
+          pos = i + 1;
+        } else if (!encodesIndependently(ch)) {
+          break;
+        }
+        ++i;
+      }
+    }
+    appendRun(html, pos, i, output);
+    if (i < end) {
+      encodeHtmlOnto(
+          decodeHtml(html.substring(i, end), false), output,
+          braceReplacement);
+    }
+  }
+
+  /**
+   * True if {@link #encodeHtmlOnto} encodes ch without looking at the chars
+   * around it: that is, ch is not a brace, a ZWNJ or an Indic vowel that
+   * might follow one, a surrogate, or a char that needs a numeric entity.
+   */
+  private static boolean encodesIndependently(char ch) {
+    int cls = charClass(ch);
+    return cls == SAFE ? ch != 0x200C /* ZWNJ */ : cls == REPLACED;
+  }
+
   /**
    * Writes the HTML equivalent of the given plain text to output.
    * For example, {@code escapeHtmlOnto("1 < 2", w)},
@@ -250,55 +351,56 @@ public final class Encoding {
     int pos = 0;
     for (int i = 0; i < n; ++i) {
       char ch = plainText.charAt(i);
-      if (ch < REPLACEMENTS.length) {  // Handles all ASCII.
-        String repl = REPLACEMENTS[ch];
-        if (ch == '{' && repl == null) {
-          if (i + 1 == n || plainText.charAt(i + 1) == '{') {
-            repl = braceReplacement;
-          }
-        }
-        if (repl != null) {
-          output.append(plainText, pos, i).append(repl);
+      int cls = charClass(ch);
+      if (cls == SAFE) {
+        // Most chars are safe, so scan on and copy the whole run at once.
+        continue;
+      }
+      switch (cls) {
+        case REPLACED:
+          appendRun(plainText, pos, i, output);
+          output.append(REPLACEMENTS[ch]);
           pos = i + 1;
-        }
-      } else if ((0x93A <= ch && ch <= 0xC4C)
-          && (
-              // Devanagari vowel
-              ch <= 0x94F
-              // Benagli vowels
-              || 0x985 <= ch && ch <= 0x994
-              || 0x9BE <= ch && ch < 0x9CC  // 0x9CC (Bengali AU) is ok
-              || 0x9E0 <= ch && ch <= 0x9E3
-              // Telugu vowels
-              || 0xC05 <= ch && ch <= 0xC14
-              || 0xC3E <= ch && ch != 0xC48 /* 0xC48 (Telugu AI) is ok */)) {
-        // https://manishearth.github.io/blog/2018/02/15/picking-apart-the-crashing-ios-string/
-        // > So, ultimately, the full set of cases that cause the crash are:
-        // >   Any sequence <consonant1, virama, consonant2, ZWNJ, vowel>
-        // > in Devanagari, Bengali, and Telugu, where: ...
-
-        // TODO: This is needed as of February 2018, but hopefully not long after that.
-        // We eliminate the ZWNJ which seems the minimally damaging thing to do to
-        // Telugu rendering per the article above:
-        // > a ZWNJ before a vowel doesn’t really do anything for most Indic scripts.
-
-        if (pos < i) {
-          if (plainText.charAt(i - 1) == 0x200C /* ZWNJ */) {
-            output.append(plainText, pos, i - 1);
-            // Drop the ZWNJ on the floor.
-            pos = i;
+          break;
+        case BRACE:
+          if (braceReplacement != null
+              && (i + 1 == n || plainText.charAt(i + 1) == '{')) {
+            appendRun(plainText, pos, i, output);
+            output.append(braceReplacement);
+            pos = i + 1;
           }
-        } else if (output instanceof StringBuilder) {
-          StringBuilder sb = (StringBuilder) output;
-          int len = sb.length();
-          if (len != 0) {
-            if (sb.charAt(len - 1) == 0x200C /* ZWNJ */) {
-              sb.setLength(len - 1);
+          break;
+        case INDIC_VOWEL:
+          // https://manishearth.github.io/blog/2018/02/15/picking-apart-the-crashing-ios-string/
+          // > So, ultimately, the full set of cases that cause the crash are:
+          // >   Any sequence <consonant1, virama, consonant2, ZWNJ, vowel>
+          // > in Devanagari, Bengali, and Telugu, where: ...
+
+          // TODO: This is needed as of February 2018, but hopefully not long
+          // after that.
+          // We eliminate the ZWNJ which seems the minimally damaging thing to
+          // do to Telugu rendering per the article above:
+          // > a ZWNJ before a vowel doesn't really do anything for most Indic
+          // > scripts.
+
+          if (pos < i) {
+            if (plainText.charAt(i - 1) == 0x200C /* ZWNJ */) {
+              appendRun(plainText, pos, i - 1, output);
+              // Drop the ZWNJ on the floor.
+              pos = i;
+            }
+          } else if (output instanceof StringBuilder) {
+            StringBuilder sb = (StringBuilder) output;
+            int len = sb.length();
+            if (len != 0) {
+              if (sb.charAt(len - 1) == 0x200C /* ZWNJ */) {
+                sb.setLength(len - 1);
+              }
             }
           }
-        }
-      } else if (((char) 0xd800) <= ch) {
-        if (ch <= ((char) 0xdfff)) {
+          break;
+        case SURROGATE:
+          appendRun(plainText, pos, i, output);
           char next;
           if (i + 1 < n
               && Character.isSurrogatePair(
@@ -306,17 +408,13 @@ public final class Encoding {
             // Emit supplemental codepoints as entity so that they cannot
             // be mis-encoded as UTF-8 of surrogates instead of UTF-8 proper
             // and get involved in UTF-16/UCS-2 confusion.
-            int codepoint = Character.toCodePoint(ch, next);
-            output.append(plainText, pos, i);
-            appendNumericEntity(codepoint, output);
+            appendNumericEntity(Character.toCodePoint(ch, next), output);
             ++i;
-            pos = i + 1;
-          } else {
-            output.append(plainText, pos, i);
-            // Elide the orphaned surrogate.
-            pos = i + 1;
           }
-        } else if (0xfe60 <= ch) {
+          // Else elide the orphaned surrogate.
+          pos = i + 1;
+          break;
+        case NUMERIC:
           // Is a control character or possible full-width version of a
           // special character, a BOM, or one of the FE60 block that might
           // be elided or normalized to an HTML special character.
@@ -326,20 +424,51 @@ public final class Encoding {
           //     | egrep '(;003C(;|$)|003E|0026|0022|0027|0060)'
           // dumps a list of code-points that can normalize to HTML special
           // characters.
-          output.append(plainText, pos, i);
+          appendRun(plainText, pos, i, output);
+          appendNumericEntity(ch, output);
           pos = i + 1;
-          if ((ch & 0xfffe) == 0xfffe) {
-            // Elide since not an the XML Character.
-          } else {
-            appendNumericEntity(ch, output);
-          }
-        }
-      } else if (ch == '\u1FEF') {  // Normalizes to backtick.
-        output.append(plainText, pos, i).append("&#8175;");
-        pos = i + 1;
+          break;
+        case BACKTICK_LOOKALIKE:  // Normalizes to backtick.
+          appendRun(plainText, pos, i, output);
+          output.append("&#8175;");
+          pos = i + 1;
+          break;
+        case ELIDED:
+          // Not an XML Character.
+          appendRun(plainText, pos, i, output);
+          pos = i + 1;
+          break;
+        default:
+          throw new AssertionError(cls);
       }
     }
-    output.append(plainText, pos, n);
+    appendRun(plainText, pos, n, output);
+  }
+
+  /**
+   * Appends s[start:end] to output, using the bulk copies that
+   * {@link StringBuilder} and {@link Writer} provide instead of
+   * {@link Appendable#append(CharSequence, int, int)} which some
+   * implementations do a char at a time or by copying to a new string.
+   */
+  private static void appendRun(
+      String s, int start, int end, Appendable output)
+      throws IOException {
+    if (start == end) {
+      return;
+    }
+    if (output instanceof StringBuilder) {
+      StringBuilder sb = (StringBuilder) output;
+      if (start == 0 && end == s.length()) {
+        sb.append(s);
+      } else {
+        sb.append(s, start, end);
+      }
+    } else if (output instanceof Writer) {
+      ((Writer) output).write(s, start, end - start);
+    } else {
+      output.append(s, start, end);
+    }
   }
 
   @TCB
@@ -399,6 +528,79 @@ public final class Encoding {
     REPLACEMENTS['`']  = "&#" + ((int) '`')  + ";";  // Attribute delimiter.
   }
 
+  /** Chars that {@link #encodeHtmlOnto} copies to the output as is. */
+  private static final int SAFE = 0;
+  /** ASCII chars that are encoded using {@link #REPLACEMENTS}. */
+  private static final int REPLACED = 1;
+  /** Left brace, which is replaced when it might start a template. */
+  private static final int BRACE = 2;
+  /** Indic vowels before which a ZWNJ is dropped. */
+  private static final int INDIC_VOWEL = 3;
+  /** Surrogates, which are encoded in pairs or elided. */
+  private static final int SURROGATE = 4;
+  /** Chars that are encoded as numeric entities. */
+  private static final int NUMERIC = 5;
+  /** Chars that are not XML Characters so are elided. */
+  private static final int ELIDED = 6;
+  /** U+1FEF which is encoded as a decimal entity. */
+  private static final int BACKTICK_LOOKALIKE = 7;
+
+  /**
+   * The class of each UTF-16 code-unit ch is
+   * {@code CHAR_CLASSES[ch >>> 8][ch & 0xff]}.
+   * Blocks of 256 code-units that are all {@link #SAFE} share one array.
+   */
+  private static final byte[][] CHAR_CLASSES = new byte[0x100][];
+  static {
+    byte[] allSafe = new byte[0x100];
+    for (int i = 0; i < CHAR_CLASSES.length; ++i) {
+      CHAR_CLASSES[i] = allSafe;
+    }
+    for (int ch = 0; ch <= 0xffff; ++ch) {
+      int cls = classify((char) ch);
+      if (cls != SAFE) {
+        byte[] block = CHAR_CLASSES[ch >>> 8];
+        if (block == allSafe) {
+          block = CHAR_CLASSES[ch >>> 8] = new byte[0x100];
+        }
+        block[ch & 0xff] = (byte) cls;
+      }
+    }
+  }
+
+  private static int charClass(char ch) {
+    return CHAR_CLASSES[ch >>> 8][ch & 0xff];
+  }
+
+  /** Used to build {@link #CHAR_CLASSES}. */
+  private static int classify(char ch) {
+    if (ch < REPLACEMENTS.length) {  // Handles all ASCII.
+      if (REPLACEMENTS[ch] != null) {
+        return REPLACED;
+      }
+      return ch == '{' ? BRACE : SAFE;
+    } else if ((0x93A <= ch && ch <= 0xC4C)
+        && (
+            // Devanagari vowel
+            ch <= 0x94F
+            // Benagli vowels
+            || 0x985 <= ch && ch <= 0x994
+            || 0x9BE <= ch && ch < 0x9CC  // 0x9CC (Bengali AU) is ok
+            || 0x9E0 <= ch && ch <= 0x9E3
+            // Telugu vowels
+            || 0xC05 <= ch && ch <= 0xC14
+            || 0xC3E <= ch && ch != 0xC48 /* 0xC48 (Telugu AI) is ok */)) {
+      return INDIC_VOWEL;
+    } else if (0xd800 <= ch && ch <= 0xdfff) {
+      return SURROGATE;
+    } else if (0xfe60 <= ch) {
+      return (ch & 0xfffe) == 0xfffe ? ELIDED : NUMERIC;
+    } else if (ch == '\u1FEF') {
+      return BACKTICK_LOOKALIKE;
+    }
+    return SAFE;
+  }
+
   /**
    * IS_BANNED_ASCII[i] where is an ASCII control character codepoint (&lt; 0x20)
    * is true for control characters that are not allowed in an XML source text.
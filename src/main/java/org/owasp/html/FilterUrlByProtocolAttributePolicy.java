@@ -69,24 +69,62 @@ public class FilterUrlByProtocolAttributePolicy implements AttributePolicy {
   public @Nullable String apply(
       String elementName, String attributeName, String value) {
     String url = Strings.stripHtmlSpaces(value);
-    protocol_loop:
+    switch (checkProtocol(url)) {
+      case DISALLOWED:
+        return null;
+      case PROTOCOL_RELATIVE:
+        // Check for domain relative URLs like //www.evil.org/
+        // unless the protocols by which HTML is normally served are OK.
+        if (!allowProtocolRelativeUrls()) { return null; }
+        break;
+      default:
+        break;
+    }
+    return normalizeUri(url);
+  }
+
+  /**
+   * Like {@link #apply} but with the result of
+   * {@link #allowProtocolRelativeUrls} given, so that compiled policies can
+   * compute it once.
+   */
+  final @Nullable String filter(
+      String value, boolean allowProtocolRelativeUrls) {
+    String url = Strings.stripHtmlSpaces(value);
+    switch (checkProtocol(url)) {
+      case DISALLOWED:
+        return null;
+      case PROTOCOL_RELATIVE:
+        if (!allowProtocolRelativeUrls) { return null; }
+        break;
+      default:
+        break;
+    }
+    return normalizeUri(url);
+  }
+
+  private static final int ALLOWED = 0;
+  private static final int DISALLOWED = 1;
+  private static final int PROTOCOL_RELATIVE = 2;
+
+  private int checkProtocol(String url) {
     for (int i = 0, n = url.length(); i < n; ++i) {
       switch (url.charAt(i)) {
         case '/': case '#': case '?':  // No protocol.
-          // Check for domain relative URLs like //www.evil.org/
-          if (url.startsWith("//")
-              // or the protocols by which HTML is normally served are OK.
-              && !allowProtocolRelativeUrls()) {
-            return null;
-          }
-          break protocol_loop;
+          return url.startsWith("//") ? PROTOCOL_RELATIVE : ALLOWED;
         case ':':
           String protocol = Strings.toLowerCase(url.substring(0, i));
-          if (!protocols.contains(protocol)) { return null; }
-          break protocol_loop;
+          return protocols.contains(protocol) ? ALLOWED : DISALLOWED;
+        default:
+          break;
       }
     }
-    return normalizeUri(url);
+    return ALLOWED;
+  }
+
+  /** The lower-case names of the allowed protocols. */
+  final ImmutableSet<String> getProtocols() {
+    return protocols;
   }
 
   protected boolean allowProtocolRelativeUrls() {
@@ -55,4 +55,15 @@ public interface HtmlChangeListener<T> {
    */
   public void discardedAttributes(
       @Nullable T context, String tagName, String... attributeNames);
+
+  /**
+   * Called when sanitization stopped early because a
+   * {@linkplain SanitizerBudget budget} limit was exceeded.
+   * The output is well-formed but lacks content from the input after the
+   * point where the limit was exceeded.
+   */
+  default void budgetExceeded(
+      @Nullable T context, SanitizerBudget.Limit limit) {
+    // Most listeners only care about dropped content.
+  }
 }
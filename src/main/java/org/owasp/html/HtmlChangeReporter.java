@@ -83,7 +83,8 @@ public final class HtmlChangeReporter<T> {
    */
   public HtmlSanitizer.Policy getWrappedPolicy() { return input; }
 
-  private static final class InputChannel<T> implements HtmlSanitizer.Policy {
+  private static final class InputChannel<T>
+      implements HtmlSanitizer.Policy, TextSkippingReceiver {
     HtmlStreamEventReceiver policy;
     final OutputChannel output;
     final T context;
@@ -143,6 +144,13 @@ public final class HtmlChangeReporter<T> {
       policy.text(textChunk);
     }
 
+    public boolean isSkippingText() {
+      // Dropped text is not reported so it is safe to skip it if the policy
+      // would.
+      return policy instanceof TextSkippingReceiver
+          && ((TextSkippingReceiver) policy).isSkippingText();
+    }
+
     private static final String[] ZERO_STRINGS = new String[0];
   }
 
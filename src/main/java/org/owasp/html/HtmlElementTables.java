@@ -215,6 +215,11 @@ public final class HtmlElementTables {
     return elementNames.canonNames.get(index);
   }
 
+  /** Canonical element names by element index. */
+  ImmutableList<String> canonNames() {
+    return elementNames.canonNames;
+  }
+
   /** The elements that can be resumed after misnested inline tags. */
   public boolean resumable(int index) {
     return resumable.get(index);
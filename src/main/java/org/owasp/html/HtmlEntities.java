@@ -38,7 +38,31 @@ import com.google.common.collect.ImmutableMap;
 final class HtmlEntities {
 
   /** A trie that maps entity names to strings of referenced code points. */
-  public static final Trie<String> ENTITY_TRIE;
+  public static final DoubleArrayTrie<String> ENTITY_TRIE;
+
+  /**
+   * Values of digits by ASCII code, {@link #NOT_A_DIGIT} for other chars
+   * that may appear in a character reference, and {@link #END_OF_DIGITS} for
+   * the rest.
+   */
+  private static final byte[] DIGIT_VALUES = new byte[128];
+  private static final byte NOT_A_DIGIT = 16;
+  private static final byte END_OF_DIGITS = -1;
+  static {
+    for (char ch = 0; ch < 128; ++ch) {
+      byte value;
+      if ('0' <= ch && ch <= '9') {
+        value = (byte) (ch - '0');
+      } else if ('a' <= (ch | 32) && (ch | 32) <= 'f') {
+        value = (byte) ((ch | 32) - 'a' + 10);
+      } else if (isHtmlIdContinueChar(ch)) {
+        value = NOT_A_DIGIT;
+      } else {
+        value = END_OF_DIGITS;
+      }
+      DIGIT_VALUES[ch] = value;
+    }
+  }
 
   private static final int LONGEST_ENTITY_NAME;
 
@@ -2293,7 +2317,7 @@ final class HtmlEntities {
 
     final Map<String, String> entityNameToCodePointMap = builder.build();
 
-    ENTITY_TRIE = new Trie<String>(entityNameToCodePointMap);
+    ENTITY_TRIE = new DoubleArrayTrie<String>(entityNameToCodePointMap);
     LONGEST_ENTITY_NAME = longestEntityName;
   }
 
@@ -2343,131 +2367,84 @@ final class HtmlEntities {
     // Now we know where the entity ends, and that there is at least one
     // character in the entity name
     char ch1 = html.charAt(offset + 1);
-    char ch2 = html.charAt(offset + 2);
-    int codepoint = -1;
-    int tail = limit;
     if ('#' == ch1) {
-      // numeric entity
-      if ('x' == ch2 || 'X' == ch2) {
-        if (limit == offset + 3) {  // No digits
-          sb.append('&');
-          return offset + 1;
-        }
-        codepoint = 0;
-        // hex literal
-        digloop:
-        for (int i = offset + 3; i < limit; ++i) {
-          char digit = html.charAt(i);
-          if (!isHtmlIdContinueChar(digit)) {
-            if (i == offset + 3) {
-              codepoint = -1;
-            }
-            if (digit == ';') {
-              i += 1;
-            }
-            tail = i;
-            break;
-          }
-          switch (digit & 0xfff8) {
-            case 0x30: case 0x38: // ASCII 48-57 are '0'-'9'
-              int decDig = digit & 0xf;
-              if (decDig < 10) {
-                codepoint = (codepoint << 4) | decDig;
-              } else {
-                codepoint = -1;
-                break digloop;
-              }
-              break;
-            // ASCII 65-70 and 97-102 are 'A'-'Z' && 'a'-'z'
-            case 0x40: case 0x60:
-              int hexDig = (digit & 0x7);
-              if (hexDig != 0 && hexDig < 7) {
-                codepoint = (codepoint << 4) | (hexDig + 9);
-              } else {
-                codepoint = -1;
-                break digloop;
-              }
-              break;
-            default:
-              codepoint = -1;
-              break digloop;
-          }
-        }
-        if (codepoint > Character.MAX_CODE_POINT) {
-          codepoint = 0xfffd;  // Unknown.
-        }
-      } else {
-        codepoint = 0;
-        // decimal literal
-        digloop:
-        for (int i = offset + 2; i < limit; ++i) {
-          char digit = html.charAt(i);
-          if (!isHtmlIdContinueChar(digit)) {
-            if (i == offset + 2) {
-              codepoint = -1;
-            }
-            if (digit == ';') {
-              i += 1;
-            }
-            tail = i;
-            break;
-          }
-          switch (digit & 0xfff8) {
-            case 0x30: case 0x38: // ASCII 48-57 are '0'-'9'
-              int decDig = digit - '0';
-              if (decDig < 10) {
-                codepoint = (codepoint * 10) + decDig;
-              } else {
-                codepoint = -1;
-                break digloop;
-              }
-              break;
-            default:
-              codepoint = -1;
-              break digloop;
-          }
-        }
-        if (codepoint > Character.MAX_CODE_POINT) {
-          codepoint = 0xfffd;  // Unknown.
-        }
+      return appendDecodedNumericReference(html, offset, limit, sb);
+    }
+
+    int longestDecode = -1;
+    int tail = limit;
+    int state = DoubleArrayTrie.ROOT;
+    for (int i = offset + 1; i < limit; ++i) {
+      state = ENTITY_TRIE.next(state, html.charAt(i));
+      if (state < 0) { break; }
+      if (ENTITY_TRIE.isTerminal(state)
+          && mayComplete(inAttribute, html, i, limit)) {
+        longestDecode = state;
+        tail = i + 1;
       }
-    } else {
-      Trie<String> longestDecode = null;
-      Trie<String> t = ENTITY_TRIE;
+    }
+    if (longestDecode < 0) {
+      state = DoubleArrayTrie.ROOT;
       for (int i = offset + 1; i < limit; ++i) {
         char nameChar = html.charAt(i);
-        t = t.lookup(nameChar);
-        if (t == null) { break; }
-        if (t.isTerminal() && mayComplete(inAttribute, html, i, limit)) {
-          longestDecode = t;
+        if ('Z' >= nameChar && nameChar >= 'A') { nameChar |= 32; }
+        state = ENTITY_TRIE.next(state, nameChar);
+        if (state < 0) { break; }
+        if (ENTITY_TRIE.isTerminal(state)
+            && mayComplete(inAttribute, html, i, limit)) {
+          longestDecode = state;
           tail = i + 1;
         }
       }
-      if (longestDecode == null) {
-        t = ENTITY_TRIE;
-        for (int i = offset + 1; i < limit; ++i) {
-          char nameChar = html.charAt(i);
-          if ('Z' >= nameChar && nameChar >= 'A') { nameChar |= 32; }
-          t = t.lookup(nameChar);
-          if (t == null) { break; }
-          if (t.isTerminal() && mayComplete(inAttribute, html, i, limit)) {
-            longestDecode = t;
-            tail = i + 1;
-          }
-        }
+    }
+    if (longestDecode >= 0) {
+      sb.append(ENTITY_TRIE.getValue(longestDecode));
+      return tail;
+    }
+    sb.append('&');
+    return offset + 1;
+  }
+
+  /**
+   * Decodes a decimal or hex character reference like {@code &#123;} or
+   * {@code &#x1F600;} at offset.
+   * Code points too large to be Unicode, however many digits they have,
+   * decode to U+FFFD.
+   */
+  private static int appendDecodedNumericReference(
+      String html, int offset, int limit, StringBuilder sb) {
+    int radix = 10;
+    int digitsStart = offset + 2;
+    char ch2 = html.charAt(digitsStart);
+    if ('x' == ch2 || 'X' == ch2) {
+      radix = 16;
+      ++digitsStart;
+    }
+    int codepoint = 0;
+    int i = digitsStart;
+    for (; i < limit; ++i) {
+      char ch = html.charAt(i);
+      int value = ch < 128 ? DIGIT_VALUES[ch] : END_OF_DIGITS;
+      if (value < 0) { break; }
+      if (value >= radix) {
+        // Like "&#12a;" or "&#xfg;".
+        sb.append('&');
+        return offset + 1;
       }
-      if (longestDecode != null) {
-        sb.append(longestDecode.getValue());
-        return tail;
+      if (codepoint <= Character.MAX_CODE_POINT) {
+        codepoint = codepoint * radix + value;
       }
     }
-    if (codepoint < 0) {
+    if (i == digitsStart) {  // No digits
       sb.append('&');
       return offset + 1;
-    } else {
-      sb.appendCodePoint(codepoint);
-      return tail;
     }
+    if (i < limit && html.charAt(i) == ';') { ++i; }
+    if (codepoint > Character.MAX_CODE_POINT) {
+      codepoint = 0xfffd;  // Unknown.
+    }
+    sb.appendCodePoint(codepoint);
+    return i;
   }
 
   private static boolean isHtmlIdContinueChar(char ch) {
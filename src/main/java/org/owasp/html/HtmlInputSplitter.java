@@ -0,0 +1,755 @@
+// Copyright (c) 2011, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+/**
+ * A token stream that breaks a character stream into <tt>
+ * HtmlTokenType.{TEXT,TAGBEGIN,TAGEND,DIRECTIVE,COMMENT,CDATA,DIRECTIVE}</tt>
+ * tokens.  The matching of attribute names and values is done in a later step.
+ */
+final class HtmlInputSplitter {
+  /**
+   * The number of chars requested from {@link #source} each time the window
+   * needs to be extended.
+   */
+  static final int WINDOW_CHUNK_SIZE = 8192;
+
+  /**
+   * The portion of the HTML character data that is currently in memory.
+   * All offsets, including token boundaries, are absolute so
+   * {@code input.charAt(i)} is the character at offset {@code base + i}.
+   */
+  private String input;
+  /** The absolute offset of the first char in input. */
+  private int base;
+  /** Null or the source of any HTML character data not yet in input. */
+  private Reader source;
+  /** True when source has been exhausted. */
+  private boolean eof;
+  /** The absolute offset before which input is no longer needed. */
+  private int releasedBefore;
+  private char[] readBuffer;
+  private StringBuilder windowBuffer;
+  /** An absolute offset into the HTML character data. */
+  private int offset;
+  /** True iff the current character is inside a tag. */
+  private boolean inTag;
+  /**
+   * True if inside a script, xmp, listing, or similar tag whose content does
+   * not follow the normal escaping rules.
+   */
+  private boolean inEscapeExemptBlock;
+
+  /**
+   * Null or the name of the close tag required to end the current escape exempt
+   * block.
+   * Preformatted tags include &lt;script&gt;, &lt;xmp&gt;, etc. that may
+   * contain unescaped HTML input.
+   */
+  private String escapeExemptTagName = null;
+
+  private HtmlTextEscapingMode textEscapingMode;
+  /** Canonicalizes element names. */
+  private final NameTable elementNames;
+
+  public HtmlInputSplitter(String input, NameTable elementNames) {
+    this.elementNames = elementNames;
+    reset(input, null);
+  }
+
+  /**
+   * A splitter that reads its input from source on demand, and which only
+   * keeps in memory the input after the last offset passed to
+   * {@link #releaseBefore}.
+   */
+  public HtmlInputSplitter(Reader source, NameTable elementNames) {
+    this.elementNames = elementNames;
+    reset("", source);
+  }
+
+  /**
+   * Starts splitting new input, which is input followed by anything read
+   * from source, keeping any buffers allocated for earlier input.
+   */
+  void reset(String newInput, @Nullable Reader newSource) {
+    this.input = newInput;
+    this.source = newSource;
+    this.eof = newSource == null;
+    this.base = 0;
+    this.releasedBefore = 0;
+    this.offset = 0;
+    this.inTag = false;
+    this.inEscapeExemptBlock = false;
+    this.escapeExemptTagName = null;
+    this.textEscapingMode = null;
+    this.lastNonIgnorableIsEq = false;
+  }
+
+  /** The absolute offset of the start of the next token. */
+  int getOffset() {
+    return offset;
+  }
+
+  /** Saves the state needed to resume splitting at {@link #getOffset}. */
+  void saveState(SanitizerCheckpoint checkpoint) {
+    checkpoint.inEscapeExemptBlock = inEscapeExemptBlock;
+    checkpoint.escapeExemptTagName = escapeExemptTagName;
+    checkpoint.textEscapingMode = textEscapingMode;
+    checkpoint.lastNonIgnorableIsEq = lastNonIgnorableIsEq;
+  }
+
+  /** Starts splitting newInput from the checkpoint's offset. */
+  void restoreState(String newInput, SanitizerCheckpoint checkpoint) {
+    reset(newInput, null);
+    offset = releasedBefore = checkpoint.inputOffset;
+    inEscapeExemptBlock = checkpoint.inEscapeExemptBlock;
+    escapeExemptTagName = checkpoint.escapeExemptTagName;
+    textEscapingMode = checkpoint.textEscapingMode;
+    lastNonIgnorableIsEq = checkpoint.lastNonIgnorableIsEq;
+  }
+
+  /**
+   * Signals that the caller no longer needs input before the given absolute
+   * offset so that it need not be kept in memory.
+   */
+  void releaseBefore(int releaseOffset) {
+    if (releaseOffset > releasedBefore) {
+      releasedBefore = releaseOffset;
+    }
+  }
+
+  char charAt(int i) {
+    return input.charAt(i - base);
+  }
+
+  String substring(int start, int end) {
+    return input.substring(start - base, end - base);
+  }
+
+  String bufferedInput() {
+    return input;
+  }
+
+  int bufferIndex(int i) {
+    return i - base;
+  }
+
+  /**
+   * The canonical form of the name between the given absolute offsets
+   * according to names.
+   */
+  String canonicalName(NameTable names, int start, int end) {
+    return names.canonicalize(input, start - base, end - base);
+  }
+
+  /**
+   * True if the input between the given absolute offsets is the given string
+   * ignoring ASCII case.
+   */
+  boolean regionMatchesIgnoreCase(int start, int end, String match) {
+    int n = end - start;
+    return n == match.length()
+        && input.regionMatches(true, start - base, match, 0, n);
+  }
+
+  /** The absolute end offset of a token packed by {@link #nextToken}. */
+  static int packedEnd(long packed) {
+    return (int) (packed >>> 32);
+  }
+
+  /** The ordinal of the type of a token packed by {@link #nextToken}. */
+  static int packedTypeOrdinal(long packed) {
+    return (int) packed;
+  }
+
+  private static long pack(int end, HtmlTokenType type) {
+    return (((long) end) << 32) | type.ordinal();
+  }
+
+  /**
+   * If at the start of the content of an escape-exempt block, advances to the
+   * end tag that closes the block, or to the end of input, without producing
+   * any of the tokens in between.
+   */
+  void skipEscapeExemptBlockContent() {
+    if (!inEscapeExemptBlock || inTag) { return; }
+    int pos = offset;
+    while (true) {
+      int limit = limit();
+      int lt = pos < limit ? input.indexOf('<', pos - base) : -1;
+      if (lt >= 0) {
+        lt += base;
+        int next = skipEscapeExemptConstruct(lt);
+        if (next == lt) {
+          // Found the end tag.
+          offset = lt;
+          lastNonIgnorableIsEq = false;
+          return;
+        } else if (next >= 0) {
+          pos = next;
+          continue;
+        }
+        // The construct starting at lt might continue past the window.
+        pos = lt;
+      } else {
+        pos = limit;
+      }
+      // Everything before pos is content, so it need not be kept in memory.
+      offset = pos;
+      releaseBefore(pos);
+      if (!extendWindow()) {
+        // The block runs to the end of input.
+        offset = limit();
+        lastNonIgnorableIsEq = false;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Given the position of a {@code '<'} in an escape-exempt block, finds where
+   * to continue scanning for the end of the block, following the same rules
+   * as {@link #parseTokenInWindow}.
+   * @return lt if lt starts the end tag that closes the block, -1 if more
+   *     input is needed, or otherwise the position after any construct, like
+   *     server code, that could hide an end tag.
+   */
+  private int skipEscapeExemptConstruct(int lt) {
+    int limit = limit();
+    if (lt + 1 == limit) { return -1; }
+    char ch = charAt(lt + 1);
+    if (ch == '%') {
+      int close = input.indexOf("%>", lt + 2 - base);
+      return close >= 0 ? close + base + 2 : -1;
+    }
+    if (ch != '/' || textEscapingMode == HtmlTextEscapingMode.PLAIN_TEXT) {
+      return lt + 1;
+    }
+    if (lt + 2 == limit) { return -1; }
+    if (!Character.isLetter(charAt(lt + 2))) { return lt + 2; }
+    int end = lt + 3;
+    for (; end < limit; ++end) {
+      ch = charAt(end);
+      if (Character.isWhitespace(ch) || '>' == ch || '/' == ch || '<' == ch) {
+        break;
+      }
+    }
+    if (end == limit) { return -1; }
+    return canonicalElementName(lt + 2, end).equals(escapeExemptTagName)
+        ? lt : end;
+  }
+
+  /** The absolute offset past the end of the input currently in memory. */
+  private int limit() {
+    return base + input.length();
+  }
+
+  /**
+   * Reads more input from source into the window, discarding any input that
+   * has been released.
+   * @return false if there is no more input.
+   */
+  private boolean extendWindow() {
+    if (eof) { return false; }
+    int keepFrom = Math.min(releasedBefore, offset) - base;
+    int nKept = input.length() - keepFrom;
+    // Read at least as much as we keep so that re-lexing a long token as the
+    // window grows takes amortized linear time.
+    int nToRead = Math.max(WINDOW_CHUNK_SIZE, nKept);
+    if (readBuffer == null || readBuffer.length < nToRead
+        || readBuffer.length > 2 * nToRead) {
+      readBuffer = new char[nToRead];
+    }
+    // Fill the read buffer so that readers that yield a few chars at a time
+    // do not cause the window to be copied over and over.
+    int nRead = 0;
+    try {
+      while (nRead < nToRead) {
+        int n = source.read(readBuffer, nRead, nToRead - nRead);
+        if (n < 0) {
+          eof = true;
+          break;
+        }
+        nRead += n;
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+    if (nRead == 0) {
+      return false;
+    }
+    if (windowBuffer == null) {
+      windowBuffer = new StringBuilder(nKept + nRead);
+    }
+    windowBuffer.setLength(0);
+    windowBuffer.append(input, keepFrom, input.length())
+        .append(readBuffer, 0, nRead);
+    input = windowBuffer.toString();
+    base += keepFrom;
+    if (windowBuffer.capacity() > 2 * (nToRead + WINDOW_CHUNK_SIZE)) {
+      // Don't hold onto the space needed for an unusually long token.
+      windowBuffer = null;
+    }
+    return true;
+  }
+
+  /**
+   * Lexes the token that starts at {@link #getOffset}.
+   * Tokens are packed into a long so that no object need be allocated per
+   * token; use {@link #packedEnd} and {@link #packedTypeOrdinal} to unpack.
+   *
+   * @return -1 if there are no more tokens.
+   */
+  long nextToken() {
+    int start = offset;
+    long token = parseToken();
+    if (token < 0) { return -1L; }
+
+    // Handle escape-exempt blocks.
+    // The parse() method is only dimly aware of escape-excempt blocks, so
+    // here we detect the beginning and ends of escape exempt blocks, and
+    // reclassify as UNESCAPED, any tokens that appear in the middle.
+    if (inEscapeExemptBlock) {
+      if (packedTypeOrdinal(token) != HtmlTokenType.SERVERCODE.ordinal()) {
+        // classify RCDATA as text since it can contain entities
+        token = pack(
+            packedEnd(token),
+            (this.textEscapingMode == HtmlTextEscapingMode.RCDATA
+             ? HtmlTokenType.TEXT
+             : HtmlTokenType.UNESCAPED));
+      }
+    } else {
+      switch (TOKEN_TYPES[packedTypeOrdinal(token)]) {
+        case TAGBEGIN:
+          {
+            String canonTagName = canonicalElementName(
+                start + 1, packedEnd(token));
+            if (HtmlTextEscapingMode.isTagFollowedByLiteralContent(
+                    canonTagName)) {
+              this.escapeExemptTagName = canonTagName;
+              this.textEscapingMode = HtmlTextEscapingMode.getModeForTag(
+                  canonTagName);
+            }
+            break;
+          }
+        case TAGEND:
+          this.inEscapeExemptBlock = null != this.escapeExemptTagName;
+          break;
+        default:
+          break;
+      }
+    }
+    return token;
+  }
+
+  private static final HtmlTokenType[] TOKEN_TYPES = HtmlTokenType.values();
+
+  /*
+   * Character classes.  Every char belongs to exactly one class, so the
+   * transitions below need only consider this small alphabet.  ASCII chars
+   * are classified by table lookup.
+   */
+  /** A char not in any other class. */
+  private static final int C_OTHER = 0;
+  /** A char that {@link Character#isWhitespace} accepts. */
+  private static final int C_SPACE = 1;
+  private static final int C_LT = 2;
+  private static final int C_GT = 3;
+  private static final int C_SLASH = 4;
+  private static final int C_EQ = 5;
+  /** {@code '"'} or {@code '\''}. */
+  private static final int C_QUOTE = 6;
+  private static final int C_BANG = 7;
+  private static final int C_QMARK = 8;
+  private static final int C_PCT = 9;
+  private static final int C_DASH = 10;
+  /** An ASCII letter.  Only these may start a tag name. */
+  private static final int C_LETTER = 11;
+  /** A letter outside ASCII. */
+  private static final int C_NON_ASCII_LETTER = 12;
+  /** A char outside ASCII that is neither a letter nor whitespace. */
+  private static final int C_NON_ASCII = 13;
+  private static final int N_CLASSES = 14;
+
+  private static final byte[] ASCII_CLASSES = new byte[0x80];
+  static {
+    for (char ch = 0; ch < 0x80; ++ch) {
+      int cls = C_OTHER;
+      if (Character.isWhitespace(ch)) {
+        cls = C_SPACE;
+      } else if (isIdentStart(ch)) {
+        cls = C_LETTER;
+      }
+      ASCII_CLASSES[ch] = (byte) cls;
+    }
+    ASCII_CLASSES['<'] = C_LT;
+    ASCII_CLASSES['>'] = C_GT;
+    ASCII_CLASSES['/'] = C_SLASH;
+    ASCII_CLASSES['='] = C_EQ;
+    ASCII_CLASSES['"'] = C_QUOTE;
+    ASCII_CLASSES['\''] = C_QUOTE;
+    ASCII_CLASSES['!'] = C_BANG;
+    ASCII_CLASSES['?'] = C_QMARK;
+    ASCII_CLASSES['%'] = C_PCT;
+    ASCII_CLASSES['-'] = C_DASH;
+  }
+
+  private static int classOf(char ch) {
+    if (ch < 0x80) { return ASCII_CLASSES[ch]; }
+    if (Character.isWhitespace(ch)) { return C_SPACE; }
+    return Character.isLetter(ch) ? C_NON_ASCII_LETTER : C_NON_ASCII;
+  }
+
+  /*
+   * States of a DFA for optimistically identifying tags and other
+   * html/xml/phpish structures that start with '<'.
+   */
+  /** After a {@code '<'} outside an escape exempt block. */
+  private static final int S_START = 0;
+  /** After a {@code '<'} inside an escape exempt block. */
+  private static final int S_START_EXEMPT = 1;
+  private static final int S_TAGNAME = 2;
+  /** After {@code "</"}. */
+  private static final int S_SLASH = 3;
+  /** After {@code "<!"}. */
+  private static final int S_BANG = 4;
+  /** After {@code "<!-"}. */
+  private static final int S_BANG_DASH = 5;
+  private static final int S_DIRECTIVE = 6;
+  /** After {@code "<?"}. */
+  private static final int S_BOGUS_COMMENT = 7;
+  private static final int S_SERVER_CODE = 8;
+  /** After a {@code '%'} inside server code. */
+  private static final int S_SERVER_CODE_PCT = 9;
+  private static final int N_STATES = 10;
+
+  /*
+   * Actions that end the DFA's run.  These share the transition table with
+   * the states so each take a value of at least N_STATES.
+   */
+  /** The token is text that runs from the current char to the next '<'. */
+  private static final int A_TEXT = N_STATES;
+  /** The current char ends a tag name. */
+  private static final int A_END_TAGNAME = N_STATES + 1;
+  /** The current char completes {@code "<!--"}. */
+  private static final int A_COMMENT = N_STATES + 2;
+  /** The current char ends a directive. */
+  private static final int A_DIRECTIVE = N_STATES + 3;
+  /** The current char ends a {@code <?...>} construct. */
+  private static final int A_QMARKMETA = N_STATES + 4;
+  /** The current char ends server code. */
+  private static final int A_SERVERCODE = N_STATES + 5;
+
+  /**
+   * The state or action that follows each (state, char class) pair, at index
+   * {@code state * N_CLASSES + charClass}.
+   */
+  private static final byte[] TRANSITIONS = new byte[N_STATES * N_CLASSES];
+  /** The type of the token for input that ends in each state. */
+  private static final HtmlTokenType[] TYPE_AT_END =
+      new HtmlTokenType[N_STATES];
+  static {
+    transitions(S_START, A_TEXT);
+    transition(S_START, C_SLASH, S_SLASH);
+    transition(S_START, C_BANG, S_BANG);
+    transition(S_START, C_QMARK, S_BOGUS_COMMENT);
+    transition(S_START, C_PCT, S_SERVER_CODE);
+    transition(S_START, C_LETTER, S_TAGNAME);
+
+    // Inside an escape exempt block, only end tags and server code count.
+    transitions(S_START_EXEMPT, A_TEXT);
+    transition(S_START_EXEMPT, C_SLASH, S_SLASH);
+    transition(S_START_EXEMPT, C_PCT, S_SERVER_CODE);
+
+    transitions(S_TAGNAME, S_TAGNAME);
+    transition(S_TAGNAME, C_SPACE, A_END_TAGNAME);
+    transition(S_TAGNAME, C_GT, A_END_TAGNAME);
+    transition(S_TAGNAME, C_SLASH, A_END_TAGNAME);
+    transition(S_TAGNAME, C_LT, A_END_TAGNAME);
+
+    transitions(S_SLASH, A_TEXT);
+    transition(S_SLASH, C_LETTER, S_TAGNAME);
+    transition(S_SLASH, C_NON_ASCII_LETTER, S_TAGNAME);
+
+    transitions(S_BANG, S_DIRECTIVE);
+    transition(S_BANG, C_DASH, S_BANG_DASH);
+
+    transitions(S_BANG_DASH, S_DIRECTIVE);
+    transition(S_BANG_DASH, C_DASH, A_COMMENT);
+
+    transitions(S_DIRECTIVE, S_DIRECTIVE);
+    transition(S_DIRECTIVE, C_GT, A_DIRECTIVE);
+
+    transitions(S_BOGUS_COMMENT, S_BOGUS_COMMENT);
+    transition(S_BOGUS_COMMENT, C_GT, A_QMARKMETA);
+
+    transitions(S_SERVER_CODE, S_SERVER_CODE);
+    transition(S_SERVER_CODE, C_PCT, S_SERVER_CODE_PCT);
+
+    transitions(S_SERVER_CODE_PCT, S_SERVER_CODE);
+    transition(S_SERVER_CODE_PCT, C_PCT, S_SERVER_CODE_PCT);
+    transition(S_SERVER_CODE_PCT, C_GT, A_SERVERCODE);
+
+    Arrays.fill(TYPE_AT_END, HtmlTokenType.TEXT);
+    TYPE_AT_END[S_TAGNAME] = HtmlTokenType.TAGBEGIN;
+    TYPE_AT_END[S_DIRECTIVE] = HtmlTokenType.SERVERCODE;
+    TYPE_AT_END[S_BOGUS_COMMENT] = HtmlTokenType.QMARKMETA;
+    TYPE_AT_END[S_SERVER_CODE] = HtmlTokenType.SERVERCODE;
+    TYPE_AT_END[S_SERVER_CODE_PCT] = HtmlTokenType.SERVERCODE;
+  }
+
+  private static void transitions(int state, int next) {
+    Arrays.fill(
+        TRANSITIONS, state * N_CLASSES, (state + 1) * N_CLASSES, (byte) next);
+  }
+
+  private static void transition(int state, int charClass, int next) {
+    TRANSITIONS[state * N_CLASSES + charClass] = (byte) next;
+  }
+
+  /** True if the last non-ignorable token was the text {@code "="}. */
+  private boolean lastNonIgnorableIsEq;
+
+  /**
+   * Breaks the character stream into tokens.
+   * This method returns a stream of tokens such that each token starts where
+   * the last token ended.
+   *
+   * <p>This property is useful as it allows fetch to collapse and reclassify
+   * ranges of tokens based on state that is easy to maintain there.
+   *
+   * <p>Later passes are responsible for throwing away useless tokens.
+   *
+   * @return the packed token or -1 if there are no more tokens.
+   */
+  private long parseToken() {
+    while (true) {
+      if (offset == limit() && !extendWindow()) { return -1L; }
+      int start = offset;
+      boolean wasInTag = inTag;
+      boolean wasInEscapeExemptBlock = inEscapeExemptBlock;
+      String oldEscapeExemptTagName = escapeExemptTagName;
+      HtmlTextEscapingMode oldTextEscapingMode = textEscapingMode;
+      boolean oldLastNonIgnorableIsEq = lastNonIgnorableIsEq;
+
+      long token = parseTokenInWindow();
+      // A token that runs up to the end of the window might continue past it,
+      // so roll back and re-lex once more input is available.
+      if (packedEnd(token) != limit() || eof) { return token; }
+      offset = start;
+      inTag = wasInTag;
+      inEscapeExemptBlock = wasInEscapeExemptBlock;
+      escapeExemptTagName = oldEscapeExemptTagName;
+      textEscapingMode = oldTextEscapingMode;
+      lastNonIgnorableIsEq = oldLastNonIgnorableIsEq;
+      extendWindow();
+    }
+  }
+
+  private long parseTokenInWindow() {
+    int start = offset;
+    int limit = limit();
+
+    int end = start + 1;
+    HtmlTokenType type;
+
+    char ch = charAt(start);
+    if (inTag) {
+      switch (classOf(ch)) {
+        case C_GT:
+          type = HtmlTokenType.TAGEND;
+          inTag = false;
+          break;
+        case C_SLASH:
+          if (end != limit && '>' == charAt(end)) {
+            type = HtmlTokenType.TAGEND;
+            inTag = false;
+            ++end;
+          } else {
+            type = HtmlTokenType.TEXT;
+          }
+          break;
+        case C_EQ:
+          type = HtmlTokenType.TEXT;
+          break;
+        case C_QUOTE:
+          type = HtmlTokenType.QSTRING;
+          end = endOfQuotedString(ch, end, limit);
+          break;
+        case C_SPACE:
+          // We skip whitespace tokens inside tag bodies.
+          type = HtmlTokenType.IGNORABLE;
+          while (end < limit && classOf(charAt(end)) == C_SPACE) {
+            ++end;
+          }
+          break;
+        default:
+          type = HtmlTokenType.TEXT;
+          end = endOfUnquotedText(end, limit);
+          break;
+      }
+    } else if (ch == '<') {
+      int state = inEscapeExemptBlock ? S_START_EXEMPT : S_START;
+      int next = state;
+      // Step through the DFA until it reaches an action or runs out of input.
+      while (end < limit) {
+        next = TRANSITIONS[state * N_CLASSES + classOf(charAt(end))];
+        if (next >= N_STATES) { break; }
+        state = next;
+        ++end;
+      }
+      if (end == limit) {
+        type = TYPE_AT_END[state];
+      } else {
+        switch (next) {
+          case A_END_TAGNAME:
+            // End processing of an escape exempt block when we see
+            // a corresponding end tag.
+            if (this.inEscapeExemptBlock
+                && '/' == charAt(start + 1)
+                && textEscapingMode != HtmlTextEscapingMode.PLAIN_TEXT
+                && canonicalElementName(start + 2, end)
+                    .equals(escapeExemptTagName)) {
+              this.inEscapeExemptBlock = false;
+              this.escapeExemptTagName = null;
+              this.textEscapingMode = null;
+            }
+            type = HtmlTokenType.TAGBEGIN;
+            // Don't process content as attributes if we're inside
+            // an escape exempt block.
+            inTag = !this.inEscapeExemptBlock;
+            break;
+          case A_COMMENT:
+            // Once a '-' follows "<!--", the comment ends at the first "->"
+            // after that dash, so find both with bulk scans instead of char
+            // by char.
+            int dash = input.indexOf('-', end + 1 - base);
+            int close = dash >= 0 ? input.indexOf("->", dash + 1) : -1;
+            end = close >= 0 ? close + base + 2 : limit;
+            type = HtmlTokenType.COMMENT;
+            break;
+          case A_DIRECTIVE:
+            ++end;
+            type = HtmlTokenType.DIRECTIVE;
+            break;
+          case A_QMARKMETA:
+            ++end;
+            type = HtmlTokenType.QMARKMETA;
+            break;
+          case A_SERVERCODE:
+            ++end;
+            type = HtmlTokenType.SERVERCODE;
+            break;
+          default:
+            type = null;
+            break;
+        }
+      }
+    } else {
+      type = null;
+    }
+    if (null == type) {
+      int lt = end < limit ? input.indexOf('<', end - base) : -1;
+      end = lt >= 0 ? lt + base : limit;
+      type = HtmlTokenType.TEXT;
+    }
+
+    offset = end;
+    if (type != HtmlTokenType.IGNORABLE) {
+      lastNonIgnorableIsEq = end - start == 1 && '=' == charAt(start);
+    }
+    return pack(end, type);
+  }
+
+  /**
+   * The end of a quoted attribute value inside a tag.
+   * @param delim the quote char that starts the value.
+   * @param pos the position just after the opening quote.
+   */
+  private int endOfQuotedString(char delim, int pos, int limit) {
+    int end = pos;
+    // A '>' ends the tag when only whitespace precedes it in the value.
+    while (end < limit && classOf(charAt(end)) == C_SPACE) { ++end; }
+    if (end == limit) { return end; }
+    char ch = charAt(end);
+    if (ch == delim) { return end + 1; }
+    if (ch == '>') { return end; }
+    int close = input.indexOf(delim, end + 1 - base);
+    return close >= 0 ? close + base + 1 : limit;
+  }
+
+  /**
+   * The end of a run of attribute name or unquoted value text inside a tag.
+   * @param pos the position just after the first char of the run.
+   */
+  private int endOfUnquotedText(int pos, int limit) {
+    int end = pos;
+    for (; end < limit; ++end) {
+      switch (classOf(charAt(end))) {
+        case C_GT: case C_EQ: case C_SPACE:
+          return end;
+        case C_SLASH:
+          // End a text chunk before />
+          if (!lastNonIgnorableIsEq
+              && end + 1 < limit && '>' == charAt(end + 1)) {
+            return end;
+          }
+          break;
+        case C_QUOTE:
+          if (end + 1 < limit) {
+            switch (classOf(charAt(end + 1))) {
+              case C_SPACE: case C_GT: case C_SLASH:
+                return end + 1;
+              default:
+                break;
+            }
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return end;
+  }
+
+  private String canonicalElementName(int start, int end) {
+    return canonicalName(elementNames, start, end);
+  }
+
+  private static boolean isIdentStart(char ch) {
+    return ch >= 'A' && ch <= 'z' && (ch <= 'Z' || ch >= 'a');
+  }
+}
@@ -29,10 +29,8 @@
 package org.owasp.html;
 
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Lists;
-import java.util.LinkedList;
-import java.util.NoSuchElementException;
-import java.util.Set;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 
 import javax.annotation.concurrent.NotThreadSafe;
 
@@ -43,14 +41,178 @@ import javax.annotation.concurrent.NotThreadSafe;
  * @author Mike Samuel (mikesamuel@gmail.com)
  */
 @NotThreadSafe
-final class HtmlLexer extends AbstractTokenStream {
-  private final String input;
+final class HtmlLexer {
   private final HtmlInputSplitter splitter;
   private State state = State.OUTSIDE_TAG;
 
+  /** The start of the current token. */
+  private int tokenStart;
+  /** The end of the current token. */
+  private int tokenEnd;
+  /** The type of the current token or null if there is none. */
+  private HtmlTokenType tokenType;
+
+  /**
+   * Tokens fetched from the splitter but not yet consumed, stored as a ring
+   * buffer of parallel arrays so that buffering a token does not allocate.
+   * The capacity is always a power of two.
+   */
+  private int[] lookaheadStarts = new int[INITIAL_LOOKAHEAD_CAPACITY];
+  private int[] lookaheadEnds = new int[INITIAL_LOOKAHEAD_CAPACITY];
+  /** Ordinals of the lookahead token types. */
+  private int[] lookaheadTypes = new int[INITIAL_LOOKAHEAD_CAPACITY];
+  /** The index of the first lookahead token in the ring buffer. */
+  private int lookaheadHead;
+  /** The number of tokens in the ring buffer. */
+  private int lookaheadSize;
+
+  static final int INITIAL_LOOKAHEAD_CAPACITY = 8;
+  private static final HtmlTokenType[] TOKEN_TYPES = HtmlTokenType.values();
+
+  /** Canonicalizes element names. */
+  private final NameTable elementNames;
+  /** Canonicalizes attribute names. */
+  private final NameTable attributeNames;
+
   public HtmlLexer(String input) {
-    this.input = input;
-    this.splitter = new HtmlInputSplitter(input);
+    this(input, NameTable.ELEMENTS, NameTable.ATTRIBUTES);
+  }
+
+  /**
+   * A lexer that uses the given tables to canonicalize names, so that names
+   * known to a policy can be canonicalized without allocating.
+   */
+  HtmlLexer(String input, NameTable elementNames, NameTable attributeNames) {
+    this.splitter = new HtmlInputSplitter(input, elementNames);
+    this.elementNames = elementNames;
+    this.attributeNames = attributeNames;
+  }
+
+  /**
+   * A lexer that pulls input from source as needed.
+   * Only the input from the start of the current token is kept in memory, so
+   * callers must extract any text they need from a token via
+   * {@link #substring} or {@link #charAt} before advancing.
+   *
+   * @throws UncheckedIOException wrapping any exception raised by source.
+   */
+  public HtmlLexer(Reader source) {
+    this(source, NameTable.ELEMENTS, NameTable.ATTRIBUTES);
+  }
+
+  /**
+   * A lexer that pulls input from source as needed and uses the given tables
+   * to canonicalize names.
+   *
+   * @throws UncheckedIOException wrapping any exception raised by source.
+   */
+  HtmlLexer(
+      Reader source, NameTable elementNames, NameTable attributeNames) {
+    this.splitter = new HtmlInputSplitter(source, elementNames);
+    this.elementNames = elementNames;
+    this.attributeNames = attributeNames;
+  }
+
+  /**
+   * Starts lexing new input, reusing the buffers allocated for earlier
+   * input.
+   */
+  void reset(String input) {
+    splitter.reset(input, null);
+    resetState();
+  }
+
+  /**
+   * Starts lexing input pulled from source, reusing the buffers allocated for
+   * earlier input.
+   */
+  void reset(Reader source) {
+    splitter.reset("", source);
+    resetState();
+  }
+
+  private void resetState() {
+    state = State.OUTSIDE_TAG;
+    tokenStart = tokenEnd = 0;
+    tokenType = null;
+    lookaheadHead = lookaheadSize = 0;
+  }
+
+  /**
+   * True if the current token ends a tag and nothing after it has been
+   * examined, so lexing any input that shares the input up to here can
+   * resume from a checkpoint.
+   */
+  boolean isAtCheckpointableBoundary() {
+    return tokenType == HtmlTokenType.TAGEND && lookaheadSize == 0
+        && state == State.OUTSIDE_TAG && splitter.getOffset() == tokenEnd;
+  }
+
+  /** Saves the state needed to resume lexing after the current token. */
+  void saveState(SanitizerCheckpoint checkpoint) {
+    checkpoint.inputOffset = tokenEnd;
+    splitter.saveState(checkpoint);
+  }
+
+  /**
+   * Starts lexing input from a checkpoint taken while lexing other input
+   * that has the same chars before the checkpoint's offset.
+   */
+  void restoreState(String input, SanitizerCheckpoint checkpoint) {
+    resetState();
+    splitter.restoreState(input, checkpoint);
+    tokenStart = tokenEnd = checkpoint.inputOffset;
+  }
+
+  /**
+   * The input between the given absolute offsets which must lie within the
+   * current token.
+   */
+  String substring(int start, int end) {
+    return splitter.substring(start, end);
+  }
+
+  /**
+   * The input character at the given absolute offset which must lie within
+   * the current token.
+   */
+  char charAt(int offset) {
+    return splitter.charAt(offset);
+  }
+
+  /**
+   * The input currently in memory, which includes the current token.
+   * The char at absolute offset {@code i} in the current token is
+   * {@code bufferedInput().charAt(bufferIndex(i))}.
+   */
+  String bufferedInput() {
+    return splitter.bufferedInput();
+  }
+
+  /**
+   * The index in {@link #bufferedInput} of the given absolute offset which
+   * must lie within the current token.
+   */
+  int bufferIndex(int offset) {
+    return splitter.bufferIndex(offset);
+  }
+
+  /**
+   * The canonical element name for the input between the given absolute
+   * offsets which must lie within the current token.
+   * This does not allocate if the name is known.
+   */
+  String canonicalElementName(int start, int end) {
+    return splitter.canonicalName(elementNames, start, end);
+  }
+
+  /**
+   * The canonical attribute name for the input between the given absolute
+   * offsets which must lie within the current token.
+   * This does not allocate if the name is known.
+   */
+  String canonicalAttributeName(int start, int end) {
+    return splitter.canonicalName(attributeNames, start, end);
   }
 
   /**
@@ -58,8 +220,7 @@ final class HtmlLexer extends AbstractTokenStream {
    * element names, but not ones for embedded SVG or MathML.
    */
   static String canonicalElementName(String elementName) {
-    return elementName.indexOf(':') >= 0 || mixedCaseForeignElementNames.contains(elementName)
-            ? elementName : Strings.toLowerCase(elementName);
+    return NameTable.ELEMENTS.canonicalize(elementName);
   }
 
   /**
@@ -67,8 +228,7 @@ final class HtmlLexer extends AbstractTokenStream {
    * attribute names, but not ones for embedded SVG or MathML.
    */
   static String canonicalAttributeName(String attribName) {
-    return attribName.indexOf(':') >= 0 || mixedCaseForeignAttributeNames.contains(attribName)
-            ? attribName : Strings.toLowerCase(attribName);
+    return NameTable.ATTRIBUTES.canonicalize(attribName);
   }
 
   /**
@@ -91,108 +251,140 @@ final class HtmlLexer extends AbstractTokenStream {
   }
 
   /**
-   * Makes sure that this.token contains a token if one is available.
-   * This may require fetching and combining multiple tokens from the underlying
-   * splitter.
+   * Advances to the next token, which may require fetching and combining
+   * multiple tokens from the underlying splitter.
+   *
+   * @return false if there are no more tokens.
    */
-  @Override
-  protected HtmlToken produce() {
-    HtmlToken token = readToken();
-    if (token == null) { return null; }
+  boolean advance() {
+    // The current token has been consumed, so let the splitter discard input
+    // before the first token we still need.
+    splitter.releaseBefore(
+        lookaheadSize == 0
+        ? splitter.getOffset()
+        : lookaheadStarts[lookaheadHead]);
 
-    switch (token.type) {
+    while (true) {
+      if (!readToken()) { return false; }
 
-      // Keep track of whether we're inside a tag or not.
-      case TAGBEGIN:
-        state = State.IN_TAG;
-        break;
-      case TAGEND:
-        if (state == State.SAW_EQ && HtmlTokenType.TAGEND == token.type) {
-          // Distinguish <input type=checkbox checked=> from
-          // <input type=checkbox checked>
-          pushbackToken(token);
+      switch (tokenType) {
+
+        // Keep track of whether we're inside a tag or not.
+        case TAGBEGIN:
           state = State.IN_TAG;
-          return HtmlToken.instance(
-              token.start, token.start, HtmlTokenType.ATTRVALUE);
-        }
+          break;
+        case TAGEND:
+          if (state == State.SAW_EQ) {
+            // Distinguish <input type=checkbox checked=> from
+            // <input type=checkbox checked>
+            pushbackToken();
+            state = State.IN_TAG;
+            tokenEnd = tokenStart;
+            tokenType = HtmlTokenType.ATTRVALUE;
+            return true;
+          }
 
-        state = State.OUTSIDE_TAG;
-        break;
+          state = State.OUTSIDE_TAG;
+          break;
 
-      // Drop ignorable tokens by zeroing out the one received and recursing
-      case IGNORABLE:
-        return produce();
-
-      // collapse adjacent text nodes if we're outside a tag, or otherwise,
-      // Recognize attribute names and values.
-      default:
-        switch (state) {
-          case OUTSIDE_TAG:
-            if (HtmlTokenType.TEXT == token.type
-                || HtmlTokenType.UNESCAPED == token.type) {
-              token = collapseSubsequent(token);
-            }
-            break;
-          case IN_TAG:
-            if (HtmlTokenType.TEXT == token.type
-                && !token.tokenInContextMatches(input, "=")) {
-              // Reclassify as attribute name
-              token = HtmlInputSplitter.reclassify(
-                  token, HtmlTokenType.ATTRNAME);
-              state = State.SAW_NAME;
-            }
-            break;
-          case SAW_NAME:
-            if (HtmlTokenType.TEXT == token.type) {
-              if (token.tokenInContextMatches(input, "=")) {
-                state = State.SAW_EQ;
-                // Skip the '=' token
-                return produce();
-              } else {
+        // Drop ignorable tokens by reading the next one.
+        case IGNORABLE:
+          continue;
+
+        // collapse adjacent text nodes if we're outside a tag, or otherwise,
+        // Recognize attribute names and values.
+        default:
+          switch (state) {
+            case OUTSIDE_TAG:
+              if (HtmlTokenType.TEXT == tokenType
+                  || HtmlTokenType.UNESCAPED == tokenType) {
+                collapseSubsequent();
+              }
+              break;
+            case IN_TAG:
+              if (HtmlTokenType.TEXT == tokenType
+                  && !isEq(tokenStart, tokenEnd)) {
                 // Reclassify as attribute name
-                token = HtmlInputSplitter.reclassify(
-                    token, HtmlTokenType.ATTRNAME);
+                tokenType = HtmlTokenType.ATTRNAME;
+                state = State.SAW_NAME;
               }
-            } else {
-              state = State.IN_TAG;
-            }
-            break;
-          case SAW_EQ:
-            if (HtmlTokenType.TEXT == token.type
-                || HtmlTokenType.QSTRING == token.type) {
-              if (HtmlTokenType.TEXT == token.type) {
-                // Collapse adjacent text nodes to properly handle
-                //   <a onclick=this.clicked=true>
-                //   <a title=foo bar>
-                token = collapseAttributeName(token);
+              break;
+            case SAW_NAME:
+              if (HtmlTokenType.TEXT == tokenType) {
+                if (isEq(tokenStart, tokenEnd)) {
+                  state = State.SAW_EQ;
+                  // Skip the '=' token
+                  continue;
+                } else {
+                  // Reclassify as attribute name
+                  tokenType = HtmlTokenType.ATTRNAME;
+                }
+              } else {
+                state = State.IN_TAG;
               }
-              // Reclassify as value
-              token = HtmlInputSplitter.reclassify(
-                  token, HtmlTokenType.ATTRVALUE);
-              state = State.IN_TAG;
-            }
-            break;
-        }
-        break;
+              break;
+            case SAW_EQ:
+              if (HtmlTokenType.TEXT == tokenType
+                  || HtmlTokenType.QSTRING == tokenType) {
+                if (HtmlTokenType.TEXT == tokenType) {
+                  // Collapse adjacent text nodes to properly handle
+                  //   <a onclick=this.clicked=true>
+                  //   <a title=foo bar>
+                  collapseAttributeName();
+                }
+                // Reclassify as value
+                tokenType = HtmlTokenType.ATTRVALUE;
+                state = State.IN_TAG;
+              }
+              break;
+          }
+          break;
+      }
+
+      return true;
     }
+  }
 
-    return token;
+  /**
+   * Skips the content of the script, style, or other escape-exempt block that
+   * starts at the current position so that the next token is the end tag
+   * that closes the block, if any.
+   * The content is found by scanning for the end tag instead of lexing it,
+   * so this should only be called when the content will be ignored.
+   */
+  void skipEscapeExemptBlockContent() {
+    if (lookaheadSize == 0 && state == State.OUTSIDE_TAG) {
+      splitter.skipEscapeExemptBlockContent();
+    }
+  }
+
+  /** The type of the current token. */
+  HtmlTokenType getTokenType() {
+    return tokenType;
+  }
+
+  /** The absolute offset of the start of the current token. */
+  int getTokenStart() {
+    return tokenStart;
+  }
+
+  /** The absolute offset past the end of the current token. */
+  int getTokenEnd() {
+    return tokenEnd;
   }
 
   /**
-   * Collapses all the following tokens of the same type into this.token.
+   * Collapses all the following tokens of the same type into the current
+   * token.
    */
-  private HtmlToken collapseSubsequent(HtmlToken token) {
-    HtmlToken collapsed = token;
-    for (HtmlToken next;
-         (next= peekToken(0)) != null && next.type == token.type;
-         readToken()) {
-      collapsed = join(collapsed, next);
+  private void collapseSubsequent() {
+    while (peekToken(0) && peekType(0) == tokenType) {
+      tokenEnd = peekEnd(0);
+      dropLookahead(1);
     }
-    return collapsed;
   }
 
-  private HtmlToken collapseAttributeName(HtmlToken token) {
+  private void collapseAttributeName() {
     // We want to collapse tokens into the value that are not parts of an
     // attribute value.  We should include any space or text adjacent to the
     // value, but should stop at any of the following constructions:
@@ -200,75 +392,151 @@ final class HtmlLexer extends AbstractTokenStream {
     //   space valueless-attrib-name    e.g. name=foo checked
     //   space tag-end                  e.g. name=foo />
     //   space text space? '='          e.g. name=foo bar=
-    int nToMerge = 0;
-    for (HtmlToken t; (t = peekToken(nToMerge)) != null;) {
-      if (t.type == HtmlTokenType.IGNORABLE) {
-        HtmlToken tok = peekToken(nToMerge + 1);
-        if (tok == null) { break; }
-        if (tok.type != HtmlTokenType.TEXT) { break; }
-        if (isValuelessAttribute(input.substring(tok.start, tok.end))) {
-          break;
-        }
-        HtmlToken eq = peekToken(nToMerge + 2);
-        if (eq != null && eq.type == HtmlTokenType.IGNORABLE) {
-          eq = peekToken(nToMerge + 3);
+    // Tokens are merged into the value as soon as they are known to be part of
+    // it so that the lookahead never holds more than the few tokens needed to
+    // recognize the constructions above, and a value with many words takes
+    // time linear in its length.
+    while (peekToken(0)) {
+      HtmlTokenType t = peekType(0);
+      if (t == HtmlTokenType.IGNORABLE) {
+        if (!peekToken(1)) { break; }
+        if (peekType(1) != HtmlTokenType.TEXT) { break; }
+        if (isValuelessAttribute(peekStart(1), peekEnd(1))) { break; }
+        int eq = 2;
+        if (peekToken(eq) && peekType(eq) == HtmlTokenType.IGNORABLE) {
+          ++eq;
         }
-        if (eq == null || eq.tokenInContextMatches(input, "=")) {
+        if (!peekToken(eq) || isEq(peekStart(eq), peekEnd(eq))) {
           break;
         }
-      } else if (t.type != HtmlTokenType.TEXT) {
+      } else if (t != HtmlTokenType.TEXT) {
         break;
       }
-      ++nToMerge;
+      tokenEnd = peekEnd(0);
+      dropLookahead(1);
     }
-    if (nToMerge == 0) { return token; }
+  }
 
-    int end = token.end;
-    do {
-      end = readToken().end;
-    } while (--nToMerge > 0);
+  /**
+   * Makes the next token from the lookahead or the splitter the current
+   * token.
+   * @return false if there is no next token.
+   */
+  private boolean readToken() {
+    if (lookaheadSize != 0) {
+      int i = lookaheadHead;
+      tokenStart = lookaheadStarts[i];
+      tokenEnd = lookaheadEnds[i];
+      tokenType = TOKEN_TYPES[lookaheadTypes[i]];
+      dropLookahead(1);
+      return true;
+    }
+    int start = splitter.getOffset();
+    long packed = splitter.nextToken();
+    if (packed < 0) {
+      tokenType = null;
+      return false;
+    }
+    tokenStart = start;
+    tokenEnd = HtmlInputSplitter.packedEnd(packed);
+    tokenType = TOKEN_TYPES[HtmlInputSplitter.packedTypeOrdinal(packed)];
+    return true;
+  }
 
-    return HtmlToken.instance(token.start, end, HtmlTokenType.TEXT);
+  /**
+   * Makes sure the i-th token after the current token is in the lookahead.
+   * @return false if there is no such token.
+   */
+  private boolean peekToken(int i) {
+    while (lookaheadSize <= i) {
+      int start = splitter.getOffset();
+      long packed = splitter.nextToken();
+      if (packed < 0) { return false; }
+      if (lookaheadSize == lookaheadStarts.length) { growLookahead(); }
+      int k = (lookaheadHead + lookaheadSize) & (lookaheadStarts.length - 1);
+      lookaheadStarts[k] = start;
+      lookaheadEnds[k] = HtmlInputSplitter.packedEnd(packed);
+      lookaheadTypes[k] = HtmlInputSplitter.packedTypeOrdinal(packed);
+      ++lookaheadSize;
+    }
+    return true;
   }
 
-  private static HtmlToken join(HtmlToken a, HtmlToken b) {
-    return HtmlToken.instance(a.start, b.end, a.type);
+  private HtmlTokenType peekType(int i) {
+    return TOKEN_TYPES[
+        lookaheadTypes[(lookaheadHead + i) & (lookaheadTypes.length - 1)]];
   }
 
-  private final LinkedList<HtmlToken> lookahead = Lists.newLinkedList();
-  private HtmlToken readToken() {
-    if (!lookahead.isEmpty()) {
-      return lookahead.remove();
-    } else if (splitter.hasNext()) {
-      return splitter.next();
-    } else {
-      return null;
-    }
+  private int peekStart(int i) {
+    return lookaheadStarts[(lookaheadHead + i) & (lookaheadStarts.length - 1)];
   }
 
-  private HtmlToken peekToken(int i) {
-    while (lookahead.size() <= i && splitter.hasNext()) {
-      lookahead.add(splitter.next());
-    }
-    return lookahead.size() > i ? lookahead.get(i) : null;
+  private int peekEnd(int i) {
+    return lookaheadEnds[(lookaheadHead + i) & (lookaheadEnds.length - 1)];
+  }
+
+  private void dropLookahead(int n) {
+    lookaheadHead = (lookaheadHead + n) & (lookaheadStarts.length - 1);
+    lookaheadSize -= n;
+  }
+
+  /** Puts the current token back on the front of the lookahead. */
+  private void pushbackToken() {
+    if (lookaheadSize == lookaheadStarts.length) { growLookahead(); }
+    int k = (lookaheadHead - 1) & (lookaheadStarts.length - 1);
+    lookaheadStarts[k] = tokenStart;
+    lookaheadEnds[k] = tokenEnd;
+    lookaheadTypes[k] = tokenType.ordinal();
+    lookaheadHead = k;
+    ++lookaheadSize;
+  }
+
+  /** The number of tokens the lookahead can hold without growing. */
+  int lookaheadCapacity() {
+    return lookaheadStarts.length;
+  }
+
+  private void growLookahead() {
+    int n = lookaheadStarts.length;
+    lookaheadStarts = unwrapRing(lookaheadStarts, 2 * n);
+    lookaheadEnds = unwrapRing(lookaheadEnds, 2 * n);
+    lookaheadTypes = unwrapRing(lookaheadTypes, 2 * n);
+    lookaheadHead = 0;
   }
 
-  private void pushbackToken(HtmlToken token) {
-    lookahead.addFirst(token);
+  private int[] unwrapRing(int[] ring, int newCapacity) {
+    int[] unwrapped = new int[newCapacity];
+    int n = ring.length;
+    int nBeforeWrap = Math.min(lookaheadSize, n - lookaheadHead);
+    System.arraycopy(ring, lookaheadHead, unwrapped, 0, nBeforeWrap);
+    System.arraycopy(
+        ring, 0, unwrapped, nBeforeWrap, lookaheadSize - nBeforeWrap);
+    return unwrapped;
+  }
+
+  private boolean isEq(int start, int end) {
+    return end - start == 1 && splitter.charAt(start) == '=';
   }
 
   /** Can the attribute appear in HTML without a value. */
-  private static boolean isValuelessAttribute(String attribName) {
-    return VALUELESS_ATTRIB_NAMES.contains(canonicalAttributeName(attribName));
+  private boolean isValuelessAttribute(int start, int end) {
+    // None of these are mixed case foreign names, so canonicalizing the name
+    // is equivalent to a case-insensitive comparison.
+    for (String valuelessName : VALUELESS_ATTRIB_NAMES) {
+      if (splitter.regionMatchesIgnoreCase(start, end, valuelessName)) {
+        return true;
+      }
+    }
+    return false;
   }
 
   // From http://issues.apache.org/jira/browse/XALANC-519
-  private static final Set<String> VALUELESS_ATTRIB_NAMES = ImmutableSet.of(
+  private static final ImmutableSet<String> VALUELESS_ATTRIB_NAMES = ImmutableSet.of(
       "checked", "compact", "declare", "defer", "disabled",
       "ismap", "multiple", "nohref", "noresize", "noshade",
       "nowrap", "readonly", "selected");
 
-  private static final ImmutableSet<String> mixedCaseForeignAttributeNames = ImmutableSet.of(
+  static final ImmutableSet<String> mixedCaseForeignAttributeNames = ImmutableSet.of(
           "attributeName",
           "attributeType",
           "baseFrequency",
@@ -349,7 +617,7 @@ final class HtmlLexer extends AbstractTokenStream {
           "zoomAndPan"
   );
 
-  private static final ImmutableSet<String> mixedCaseForeignElementNames = ImmutableSet.of(
+  static final ImmutableSet<String> mixedCaseForeignElementNames = ImmutableSet.of(
           "animateColor",
           "animateMotion",
           "animateTransform",
@@ -387,406 +655,3 @@ final class HtmlLexer extends AbstractTokenStream {
           "textPath"
   );
 }
-
-/**
- * A token stream that breaks a character stream into <tt>
- * HtmlTokenType.{TEXT,TAGBEGIN,TAGEND,DIRECTIVE,COMMENT,CDATA,DIRECTIVE}</tt>
- * tokens.  The matching of attribute names and values is done in a later step.
- */
-final class HtmlInputSplitter extends AbstractTokenStream {
-  /** The source of HTML character data. */
-  private final String input;
-  /** An offset into input. */
-  private int offset;
-  /** True iff the current character is inside a tag. */
-  private boolean inTag;
-  /**
-   * True if inside a script, xmp, listing, or similar tag whose content does
-   * not follow the normal escaping rules.
-   */
-  private boolean inEscapeExemptBlock;
-
-  /**
-   * Null or the name of the close tag required to end the current escape exempt
-   * block.
-   * Preformatted tags include &lt;script&gt;, &lt;xmp&gt;, etc. that may
-   * contain unescaped HTML input.
-   */
-  private String escapeExemptTagName = null;
-
-  private HtmlTextEscapingMode textEscapingMode;
-
-  public HtmlInputSplitter(String input) {
-    this.input = input;
-  }
-
-  /**
-   * Make sure that there is a token ready to yield in this.token.
-   */
-  @Override
-  protected HtmlToken produce() {
-    HtmlToken token = parseToken();
-    if (null == token) { return null; }
-
-    // Handle escape-exempt blocks.
-    // The parse() method is only dimly aware of escape-excempt blocks, so
-    // here we detect the beginning and ends of escape exempt blocks, and
-    // reclassify as UNESCAPED, any tokens that appear in the middle.
-    if (inEscapeExemptBlock) {
-      if (token.type != HtmlTokenType.SERVERCODE) {
-        // classify RCDATA as text since it can contain entities
-        token = reclassify(
-            token, (this.textEscapingMode == HtmlTextEscapingMode.RCDATA
-                    ? HtmlTokenType.TEXT
-                    : HtmlTokenType.UNESCAPED));
-      }
-    } else {
-      switch (token.type) {
-        case TAGBEGIN:
-          {
-            String canonTagName = canonicalElementName(
-                token.start + 1, token.end);
-            if (HtmlTextEscapingMode.isTagFollowedByLiteralContent(
-                    canonTagName)) {
-              this.escapeExemptTagName = canonTagName;
-              this.textEscapingMode = HtmlTextEscapingMode.getModeForTag(
-                  canonTagName);
-            }
-            break;
-          }
-        case TAGEND:
-          this.inEscapeExemptBlock = null != this.escapeExemptTagName;
-          break;
-        default:
-          break;
-      }
-    }
-    return token;
-  }
-
-  /**
-   * States for a state machine for optimistically identifying tags and other
-   * html/xml/phpish structures.
-   */
-  private static enum State {
-    TAGNAME,
-    SLASH,
-    BANG,
-    BANG_DASH,
-    COMMENT,
-    COMMENT_DASH,
-    COMMENT_DASH_DASH,
-    DIRECTIVE,
-    DONE,
-    BOGUS_COMMENT,
-    SERVER_CODE,
-    SERVER_CODE_PCT,
-    ;
-  }
-
-  private HtmlToken lastNonIgnorable = null;
-  /**
-   * Breaks the character stream into tokens.
-   * This method returns a stream of tokens such that each token starts where
-   * the last token ended.
-   *
-   * <p>This property is useful as it allows fetch to collapse and reclassify
-   * ranges of tokens based on state that is easy to maintain there.
-   *
-   * <p>Later passes are responsible for throwing away useless tokens.
-   */
-  private HtmlToken parseToken() {
-    int start = offset;
-    int limit = input.length();
-    if (start == limit) { return null; }
-
-    int end = start + 1;
-    HtmlTokenType type;
-
-    char ch = input.charAt(start);
-    if (inTag) {
-      if ('>' == ch) {
-        type = HtmlTokenType.TAGEND;
-        inTag = false;
-      } else if ('/' == ch) {
-        if (end != limit && '>' == input.charAt(end)) {
-          type = HtmlTokenType.TAGEND;
-          inTag = false;
-          ++end;
-        } else {
-          type = HtmlTokenType.TEXT;
-        }
-      } else if ('=' == ch) {
-        type = HtmlTokenType.TEXT;
-      } else if ('"' == ch || '\'' == ch) {
-        type = HtmlTokenType.QSTRING;
-        int delim = ch;
-        boolean space = true;
-        for (; end < limit; ++end) {
-          if (input.charAt(end) == delim) {
-            ++end;
-            break;
-          } else {
-            int nextChar = input.charAt(end);
-            if (nextChar == '>' && space) {
-              break;
-            } else if (!Character.isWhitespace(nextChar)) {
-              space = false;
-            }
-          }
-        }
-      } else if (!Character.isWhitespace(ch)) {
-        type = HtmlTokenType.TEXT;
-        for (; end < limit; ++end) {
-          ch = input.charAt(end);
-          // End a text chunk before />
-          if ((lastNonIgnorable == null
-               || !lastNonIgnorable.tokenInContextMatches(input, "="))
-              && '/' == ch && end + 1 < limit
-              && '>' == input.charAt(end + 1)) {
-            break;
-          } else if ('>' == ch || '=' == ch
-                     || Character.isWhitespace(ch)) {
-            break;
-          } else if ('"' == ch || '\'' == ch) {
-            if (end + 1 < limit) {
-              char ch2 = input.charAt(end + 1);
-              if (Character.isWhitespace(ch2)
-                  || ch2 == '>' || ch2 == '/') {
-                ++end;
-                break;
-              }
-            }
-          }
-        }
-      } else {
-        // We skip whitespace tokens inside tag bodies.
-        type = HtmlTokenType.IGNORABLE;
-        while (end < limit && Character.isWhitespace(input.charAt(end))) {
-          ++end;
-        }
-      }
-    } else {
-      if (ch == '<') {
-        if (end == limit) {
-          type = HtmlTokenType.TEXT;
-        } else {
-          ch = input.charAt(end);
-          type = null;
-          State state = null;
-          switch (ch) {
-            case '/':  // close tag?
-              state = State.SLASH;
-              ++end;
-              break;
-            case '!':  // Comment or declaration
-              if (!this.inEscapeExemptBlock) {
-                state = State.BANG;
-              }
-              ++end;
-              break;
-            case '?':
-              if (!this.inEscapeExemptBlock) {
-                state = State.BOGUS_COMMENT;
-              }
-              ++end;
-              break;
-            case '%':
-              state = State.SERVER_CODE;
-              ++end;
-              break;
-            default:
-              if (isIdentStart(ch) && !this.inEscapeExemptBlock) {
-                state = State.TAGNAME;
-                ++end;
-              } else if ('<' == ch) {
-                type = HtmlTokenType.TEXT;
-              } else {
-                ++end;
-              }
-              break;
-          }
-          if (null != state) {
-            charloop:
-            while (end < limit) {
-              ch = input.charAt(end);
-              switch (state) {
-                case TAGNAME:
-                  if (Character.isWhitespace(ch)
-                      || '>' == ch || '/' == ch || '<' == ch) {
-                    // End processing of an escape exempt block when we see
-                    // a corresponding end tag.
-                    if (this.inEscapeExemptBlock
-                        && '/' == input.charAt(start + 1)
-                        && textEscapingMode != HtmlTextEscapingMode.PLAIN_TEXT
-                        && canonicalElementName(start + 2, end)
-                            .equals(escapeExemptTagName)) {
-                      this.inEscapeExemptBlock = false;
-                      this.escapeExemptTagName = null;
-                      this.textEscapingMode = null;
-                    }
-                    type = HtmlTokenType.TAGBEGIN;
-                    // Don't process content as attributes if we're inside
-                    // an escape exempt block.
-                    inTag = !this.inEscapeExemptBlock;
-                    state = State.DONE;
-                    break charloop;
-                  }
-                  break;
-                case SLASH:
-                  if (Character.isLetter(ch)) {
-                    state = State.TAGNAME;
-                  } else {
-                    if ('<' == ch) {
-                      type = HtmlTokenType.TEXT;
-                    } else {
-                      ++end;
-                    }
-                    break charloop;
-                  }
-                  break;
-                case BANG:
-                  if ('-' == ch) {
-                    state = State.BANG_DASH;
-                  } else {
-                    state = State.DIRECTIVE;
-                  }
-                  break;
-                case BANG_DASH:
-                  if ('-' == ch) {
-                    state = State.COMMENT;
-                  } else {
-                    state = State.DIRECTIVE;
-                  }
-                  break;
-                case COMMENT:
-                  if ('-' == ch) {
-                    state = State.COMMENT_DASH;
-                  }
-                  break;
-                case COMMENT_DASH:
-                  state = ('-' == ch)
-                      ? State.COMMENT_DASH_DASH
-                      : State.COMMENT_DASH;
-                  break;
-                case COMMENT_DASH_DASH:
-                  if ('>' == ch) {
-                    state = State.DONE;
-                    type = HtmlTokenType.COMMENT;
-                  } else if ('-' == ch) {
-                    state = State.COMMENT_DASH_DASH;
-                  } else {
-                    state = State.COMMENT_DASH;
-                  }
-                  break;
-                case DIRECTIVE:
-                  if ('>' == ch) {
-                    type = HtmlTokenType.DIRECTIVE;
-                    state = State.DONE;
-                  }
-                  break;
-                case BOGUS_COMMENT:
-                  if ('>' == ch) {
-                    type = HtmlTokenType.QMARKMETA;
-                    state = State.DONE;
-                  }
-                  break;
-                case SERVER_CODE:
-                  if ('%' == ch) {
-                    state = State.SERVER_CODE_PCT;
-                  }
-                  break;
-                case SERVER_CODE_PCT:
-                  if ('>' == ch) {
-                    type = HtmlTokenType.SERVERCODE;
-                    state = State.DONE;
-                  } else if ('%' != ch) {
-                    state = State.SERVER_CODE;
-                  }
-                  break;
-                case DONE:
-                  throw new AssertionError(
-                      "Unexpectedly DONE while lexing HTML token stream");
-              }
-              ++end;
-              if (State.DONE == state) { break; }
-            }
-            if (end == limit) {
-              switch (state) {
-                case DONE:
-                  break;
-                case BOGUS_COMMENT:
-                  type = HtmlTokenType.QMARKMETA;
-                  break;
-                case COMMENT:
-                case COMMENT_DASH:
-                case COMMENT_DASH_DASH:
-                  type = HtmlTokenType.COMMENT;
-                  break;
-                case DIRECTIVE:
-                case SERVER_CODE:
-                case SERVER_CODE_PCT:
-                  type = HtmlTokenType.SERVERCODE;
-                  break;
-                case TAGNAME:
-                  type = HtmlTokenType.TAGBEGIN;
-                  break;
-                default:
-                  type = HtmlTokenType.TEXT;
-                  break;
-              }
-            }
-          }
-        }
-      } else {
-        type = null;
-      }
-    }
-    if (null == type) {
-      while (end < limit && '<' != input.charAt(end)) { ++end; }
-      type = HtmlTokenType.TEXT;
-    }
-
-    offset = end;
-    HtmlToken result = HtmlToken.instance(start, end, type);
-    if (type != HtmlTokenType.IGNORABLE) { lastNonIgnorable = result; }
-    return result;
-  }
-
-  private String canonicalElementName(int start, int end) {
-    return HtmlLexer.canonicalElementName(input.substring(start, end));
-  }
-
-  private static boolean isIdentStart(char ch) {
-    return ch >= 'A' && ch <= 'z' && (ch <= 'Z' || ch >= 'a');
-  }
-
-  static HtmlToken reclassify(HtmlToken token, HtmlTokenType type) {
-    return HtmlToken.instance(token.start, token.end, type);
-  }
-}
-
-
-/**
- * A TokenStream that lazily fetches one token at a time.
- *
- * @author Mike Samuel (mikesamuel@gmail.com)
- */
-abstract class AbstractTokenStream implements TokenStream {
-  private HtmlToken tok;
-
-  public final boolean hasNext() {
-    if (tok == null) { tok = produce(); }
-    return tok != null;
-  }
-
-  public HtmlToken next() {
-    if (this.tok == null) { this.tok = produce(); }
-    HtmlToken t = this.tok;
-    if (t == null) { throw new NoSuchElementException(); }
-    this.tok = null;
-    return t;
-  }
-
-  protected abstract HtmlToken produce();
-}
@@ -38,7 +38,6 @@ import javax.annotation.concurrent.NotThreadSafe;
 
 import org.owasp.html.ElementPolicy.JoinableElementPolicy;
 
-import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
@@ -205,7 +204,9 @@ public class HtmlPolicyBuilder {
       HtmlStreamEventProcessor.Processors.IDENTITY;
   private HtmlStreamEventProcessor preprocessor =
       HtmlStreamEventProcessor.Processors.IDENTITY;
+  private SanitizerBudget budget = SanitizerBudget.UNLIMITED;
   private CssSchema stylingPolicySchema = null;
+  private long styleCacheBytes = 0;
   private AttributePolicy styleUrlPolicy =
       AttributePolicy.REJECT_ALL_ATTRIBUTE_POLICY;
   private Set<String> extraRelsForLinks;
@@ -566,6 +567,27 @@ public class HtmlPolicyBuilder {
     return this;
   }
 
+  /**
+   * Caches sanitized styles across documents.
+   * Each document's styles are memoized regardless, so a style repeated on
+   * many elements is sanitized once per document; this shares those results
+   * between documents sanitized by the policies built, which helps when many
+   * documents come from the same templates, as HTML email often does.
+   * <p>
+   * Like {@link SanitizerCache}, this assumes that any URL policy passed to
+   * {@link #allowUrlsInStyles} returns the same result for the same URL.
+   *
+   * @param maxRetainedBytes a bound on the memory retained by cached styles,
+   *     estimated at two bytes per char plus some per-entry overhead,
+   *     or 0 to not share styles between documents.
+   */
+  public HtmlPolicyBuilder withStyleCache(long maxRetainedBytes) {
+    Preconditions.checkArgument(maxRetainedBytes >= 0);
+    this.invalidateCompiledState();
+    this.styleCacheBytes = maxRetainedBytes;
+    return this;
+  }
+
   /**
    * Inserts a pre-processor into the pipeline between the lexer and the policy.
    * Pre-processors receive HTML events before the policy, so the policy will
@@ -594,6 +616,16 @@ public class HtmlPolicyBuilder {
     return this;
   }
 
+  /**
+   * Limits the work done to sanitize any one document.
+   * If called more than once, sanitization stops when any of the budgets is
+   * exceeded.
+   */
+  public HtmlPolicyBuilder withBudget(SanitizerBudget newBudget) {
+    this.budget = this.budget.and(newBudget);
+    return this;
+  }
+
   /**
    * Maps attribute names that need extra handling to producers of those
    * extra guards.
@@ -629,17 +661,17 @@ public class HtmlPolicyBuilder {
         if (intermediates.cssSchema == null) {
           return null;
         }
-        final AttributePolicy styleUrlPolicyFinal = AttributePolicy.Util.join(
-            intermediates.styleUrlPolicy, intermediates.urlAttributePolicy);
-        return new StylingPolicy(
-            intermediates.cssSchema,
-            new Function<String, String>() {
-              public String apply(String url) {
-                return styleUrlPolicyFinal.apply(
-                    "img", "src",
-                    url != null ? url : "about:invalid");
-              }
-            });
+        // Share one policy between elements so that they share memoized
+        // styles.
+        if (intermediates.stylingPolicy == null) {
+          AttributePolicy styleUrlPolicy = AttributePolicy.Util.join(
+              intermediates.styleUrlPolicy, intermediates.urlAttributePolicy);
+          intermediates.stylingPolicy = new StylingPolicy(
+              intermediates.cssSchema,
+              new StylingPolicy.UrlPolicyRewriter(styleUrlPolicy),
+              intermediates.styleCacheBytes);
+        }
+        return intermediates.stylingPolicy;
       }
 
     });
@@ -702,7 +734,7 @@ public class HtmlPolicyBuilder {
     return new PolicyFactory(
         compiled.compiledPolicies, textContainerSet.build(),
         ImmutableMap.copyOf(compiled.globalAttrPolicies),
-        preprocessor, postprocessor);
+        preprocessor, postprocessor, budget);
   }
 
   // Speed up subsequent builds by caching the compiled policies.
@@ -775,7 +807,8 @@ public class HtmlPolicyBuilder {
 
       Set<String> toGuard = Sets.newLinkedHashSet(ATTRIBUTE_GUARDS.keySet());
       AttributeGuardIntermediates intermediates = new AttributeGuardIntermediates(
-          urlAttributePolicy, this.styleUrlPolicy, this.stylingPolicySchema);
+          urlAttributePolicy, this.styleUrlPolicy, this.stylingPolicySchema,
+          this.styleCacheBytes);
       for (Map.Entry<String, AttributeGuardMaker> e : ATTRIBUTE_GUARDS.entrySet()) {
         String attributeName = e.getKey();
         if (globalAttrPolicies.containsKey(attributeName)) {
@@ -898,13 +931,8 @@ public class HtmlPolicyBuilder {
      * Multiple calls to {@code matching} are combined to restrict to the
      * intersection of possible matched values.
      */
-    public AttributeBuilder matching(final Pattern pattern) {
-      return matching(new AttributePolicy() {
-        public @Nullable String apply(
-            String elementName, String attributeName, String value) {
-          return pattern.matcher(value).matches() ? value : null;
-        }
-      });
+    public AttributeBuilder matching(Pattern pattern) {
+      return matching(new PatternAttributePolicy(pattern));
     }
 
     /**
@@ -941,17 +969,9 @@ public class HtmlPolicyBuilder {
      * intersection of possible matched values.
      */
     public AttributeBuilder matching(
-        final boolean ignoreCase, Set<? extends String> allowedValues) {
-      final ImmutableSet<String> allowed = ImmutableSet.copyOf(allowedValues);
-      return matching(new AttributePolicy() {
-        public @Nullable String apply(
-            String elementName, String attributeName, String uncanonValue) {
-          String value = ignoreCase
-              ? Strings.toLowerCase(uncanonValue)
-              : uncanonValue;
-          return allowed.contains(value) ? value : null;
-        }
-      });
+        boolean ignoreCase, Set<? extends String> allowedValues) {
+      return matching(new ValueSetAttributePolicy(
+          ignoreCase, ImmutableSet.copyOf(allowedValues)));
     }
 
     /**
@@ -991,9 +1011,56 @@ public class HtmlPolicyBuilder {
     }
   }
 
+  /** Allows values that match a pattern. */
+  private static final class PatternAttributePolicy
+      implements AttributePolicy, PolicyFingerprint.Fingerprintable {
+    final Pattern pattern;
+
+    PatternAttributePolicy(Pattern pattern) {
+      this.pattern = pattern;
+    }
+
+    public @Nullable String apply(
+        String elementName, String attributeName, String value) {
+      return pattern.matcher(value).matches() ? value : null;
+    }
+
+    public void fingerprint(PolicyFingerprint fp) {
+      fp.putString("pattern");
+      fp.putString(pattern.pattern());
+      fp.putInt(pattern.flags());
+    }
+  }
+
+  /** Allows values from a set, optionally lower-casing them first. */
+  private static final class ValueSetAttributePolicy
+      implements AttributePolicy, PolicyFingerprint.Fingerprintable {
+    final boolean ignoreCase;
+    final ImmutableSet<String> allowed;
+
+    ValueSetAttributePolicy(boolean ignoreCase, ImmutableSet<String> allowed) {
+      this.ignoreCase = ignoreCase;
+      this.allowed = allowed;
+    }
+
+    public @Nullable String apply(
+        String elementName, String attributeName, String uncanonValue) {
+      String value = ignoreCase
+          ? Strings.toLowerCase(uncanonValue)
+          : uncanonValue;
+      return allowed.contains(value) ? value : null;
+    }
+
+    public void fingerprint(PolicyFingerprint fp) {
+      fp.putString("values");
+      fp.putBoolean(ignoreCase);
+      fp.putStrings(allowed);
+    }
+  }
 
   private static final class RelsOnLinksPolicy
-      implements ElementPolicy.JoinableElementPolicy {
+      implements ElementPolicy.JoinableElementPolicy,
+          PolicyFingerprint.Fingerprintable {
     final ImmutableSet<String> extra;
     final ImmutableSet<String> skip;
     final ImmutableSet<String> whenTargetPresent;
@@ -1095,6 +1162,16 @@ public class HtmlPolicyBuilder {
     getJoinStrategy() {
       return JoinRelsOnLinksPolicies.INSTANCE;
     }
+
+    public void fingerprint(PolicyFingerprint fp) {
+      fp.putString("rels");
+      // Extra rels are added in order.
+      fp.putInt(extra.size());
+      for (String rel : extra) {
+        fp.putString(rel);
+      }
+      fp.putStrings(skip);
+    }
   }
 
   static final class JoinRelsOnLinksPolicies
@@ -1137,13 +1214,18 @@ final class AttributeGuardIntermediates {
   final AttributePolicy urlAttributePolicy;
   final AttributePolicy styleUrlPolicy;
   final CssSchema cssSchema;
+  final long styleCacheBytes;
+  /** The style guard, once made. */
+  StylingPolicy stylingPolicy;
 
   AttributeGuardIntermediates(
       AttributePolicy urlAttributePolicy,
       AttributePolicy styleUrlPolicy,
-      CssSchema cssSchema) {
+      CssSchema cssSchema,
+      long styleCacheBytes) {
     this.urlAttributePolicy = urlAttributePolicy;
     this.styleUrlPolicy = styleUrlPolicy;
     this.cssSchema = cssSchema;
+    this.styleCacheBytes = styleCacheBytes;
   }
 }
\ No newline at end of file
@@ -28,11 +28,12 @@
 
 package org.owasp.html;
 
-import java.util.LinkedList;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.util.List;
 import javax.annotation.Nullable;
 
-import com.google.common.collect.Lists;
 
 /**
  * Consumes an HTML stream, and dispatches events to a policy object which
@@ -130,56 +131,201 @@ public final class HtmlSanitizer {
       @Nullable String html, final Policy policy,
       HtmlStreamEventProcessor preprocessor) {
     String htmlContent = html != null ? html : "";
+    sanitize(
+        new HtmlLexer(htmlContent), policy, preprocessor,
+        new SanitizerBudget.Meter());
+  }
 
-    HtmlStreamEventReceiver receiver = initializePolicy(policy, preprocessor);
+  /**
+   * Sanitizes the HTML read from the given source by applying the given policy
+   * to it.
+   *
+   * <p>
+   * Unlike {@link #sanitize(String, Policy)}, this does not require the whole
+   * document to be in memory.  Only a window of the input that contains the
+   * tokens being processed is kept, so memory use is bounded by the size of the
+   * largest token and the depth of the element stack instead of by the size of
+   * the document.
+   *
+   * @param html A source of HTML to sanitize.  It is read until exhausted but
+   *     not closed.
+   * @param policy The Policy that will receive events based on the tokens in
+   *     HTML.
+   * @throws IOException if html raises an IOException.
+   */
+  public static void sanitize(Reader html, final Policy policy)
+      throws IOException {
+    sanitize(html, policy, HtmlStreamEventProcessor.Processors.IDENTITY);
+  }
 
-    receiver.openDocument();
+  /**
+   * Sanitizes the HTML read from the given source by applying the given policy
+   * to it.
+   *
+   * @param html A source of HTML to sanitize.  It is read until exhausted but
+   *     not closed.
+   * @param policy The Policy that will receive events based on the tokens in
+   *     HTML.
+   * @param preprocessor A processor that may wrap the policy to reinterpret
+   *     parse events.
+   * @throws IOException if html raises an IOException.
+   * @see #sanitize(Reader, Policy)
+   */
+  public static void sanitize(
+      Reader html, final Policy policy,
+      HtmlStreamEventProcessor preprocessor)
+      throws IOException {
+    try {
+      sanitize(
+          new HtmlLexer(html), policy, preprocessor,
+          new SanitizerBudget.Meter());
+    } catch (UncheckedIOException ex) {
+      throw ex.getCause();
+    }
+  }
+
+  /**
+   * Sanitizes the tokens produced by lexer, which lets callers choose how
+   * the lexer canonicalizes names.
+   *
+   * @param meter started for the budget that applies to this document.
+   * @return the limit that stopped sanitization early, or null if the whole
+   *    input was sanitized.
+   */
+  static @Nullable SanitizerBudget.Limit sanitize(
+      HtmlLexer lexer, final Policy policy,
+      HtmlStreamEventProcessor preprocessor, SanitizerBudget.Meter meter) {
+    TagBalancingHtmlStreamEventReceiver balancer = initializeBalancer(policy);
+    return sanitize(
+        lexer, balancer, preprocessor.wrap(balancer), new AttributeList(),
+        meter);
+  }
 
-    HtmlLexer lexer = new HtmlLexer(htmlContent);
-    // Use a linked list so that policies can use Iterator.remove() in an O(1)
-    // way.
-    LinkedList<String> attrs = Lists.newLinkedList();
-    while (lexer.hasNext()) {
-      HtmlToken token = lexer.next();
-      switch (token.type) {
+  /**
+   * Sanitizes the tokens produced by lexer by sending events to receiver,
+   * which is either balancer or a preprocessor's wrapper around it.
+   * Callers that sanitize many documents can reuse all the arguments.
+   *
+   * @param attrs a list that is reused for the attributes of each tag.
+   *    It is array-backed but lets policies use Iterator.remove() in an O(1)
+   *    way.
+   * @param meter started for the budget that applies to this document.
+   * @return the limit that stopped sanitization early, or null if the whole
+   *    input was sanitized.
+   */
+  static @Nullable SanitizerBudget.Limit sanitize(
+      HtmlLexer lexer, TagBalancingHtmlStreamEventReceiver balancer,
+      HtmlStreamEventReceiver receiver, AttributeList attrs,
+      SanitizerBudget.Meter meter) {
+    return sanitize(lexer, balancer, receiver, attrs, meter, null, false);
+  }
+
+  /**
+   * Saves the state of a sanitizer pipeline so that sanitization of similar
+   * input can resume part way through.
+   */
+  interface Checkpointer {
+    /**
+     * Called between tokens whenever the lexer
+     * {@linkplain HtmlLexer#isAtCheckpointableBoundary is at a boundary}
+     * where its state can be saved.
+     */
+    void checkpoint();
+  }
+
+  /**
+   * Like {@link #sanitize(HtmlLexer, TagBalancingHtmlStreamEventReceiver,
+   * HtmlStreamEventReceiver, AttributeList, SanitizerBudget.Meter)} but
+   * supports checkpoints.
+   *
+   * @param checkpointer null or notified of chances to save state.
+   * @param resume true if the pipeline was restored from a checkpoint, so
+   *    the document is already open.
+   */
+  static @Nullable SanitizerBudget.Limit sanitize(
+      HtmlLexer lexer, TagBalancingHtmlStreamEventReceiver balancer,
+      HtmlStreamEventReceiver receiver, AttributeList attrs,
+      SanitizerBudget.Meter meter, @Nullable Checkpointer checkpointer,
+      boolean resume) {
+    // Text that the policy ignores can be skipped unlexed, and text can be
+    // passed on undecoded, unless a preprocessor might see it.
+    boolean canSkipText = receiver == balancer;
+
+    // When a limit is exceeded, we stop without sending events for the
+    // current token, and closing the document closes any open elements.
+    SanitizerBudget.Limit exceeded = null;
+
+    if (!resume) {
+      receiver.openDocument();
+    }
+    // The lexer only guarantees that the text of the current token is
+    // available, so we pull out all the text we need from a token before
+    // advancing.
+    document:
+    while (true) {
+      if (checkpointer != null && lexer.isAtCheckpointableBoundary()) {
+        checkpointer.checkpoint();
+      }
+      if (!lexer.advance()) { break; }
+      int start = lexer.getTokenStart();
+      int end = lexer.getTokenEnd();
+      exceeded = meter.checkToken(end);
+      if (exceeded != null) { break; }
+      switch (lexer.getTokenType()) {
         case TEXT:
-          receiver.text(
-              Encoding.decodeHtml(htmlContent.substring(token.start, token.end), false));
+          if (canSkipText) {
+            balancer.encodedText(
+                lexer.bufferedInput(), lexer.bufferIndex(start),
+                lexer.bufferIndex(end));
+          } else {
+            receiver.text(
+                Encoding.decodeHtml(lexer.substring(start, end), false));
+          }
           break;
         case UNESCAPED:
           receiver.text(Encoding.stripBannedCodeunits(
-              htmlContent.substring(token.start, token.end)));
+              lexer.substring(start, end)));
           break;
         case TAGBEGIN:
-          if (htmlContent.charAt(token.start + 1) == '/') {  // A close tag.
-            receiver.closeTag(HtmlLexer.canonicalElementName(
-                htmlContent.substring(token.start + 2, token.end)));
-            while (lexer.hasNext()
-                   && lexer.next().type != HtmlTokenType.TAGEND) {
+          if (lexer.charAt(start + 1) == '/') {  // A close tag.
+            receiver.closeTag(lexer.canonicalElementName(start + 2, end));
+            while (lexer.advance()
+                   && lexer.getTokenType() != HtmlTokenType.TAGEND) {
               // skip tokens until we see a ">"
+              exceeded = meter.checkToken(lexer.getTokenEnd());
+              if (exceeded != null) { break document; }
             }
           } else {
+            String elementName = lexer.canonicalElementName(start + 1, end);
             attrs.clear();
 
             boolean attrsReadyForName = true;
             tagBody:
-            while (lexer.hasNext()) {
-              HtmlToken tagBodyToken = lexer.next();
-              switch (tagBodyToken.type) {
+            while (lexer.advance()) {
+              exceeded = meter.checkToken(lexer.getTokenEnd());
+              if (exceeded != null) { break document; }
+              switch (lexer.getTokenType()) {
                 case ATTRNAME:
                   if (!attrsReadyForName) {
                     // Last attribute added was valueless.
-                    attrs.add(attrs.getLast());
+                    attrs.add(attrs.get(attrs.size() - 1));
                   } else {
                     attrsReadyForName = false;
                   }
-                  attrs.add(HtmlLexer.canonicalAttributeName(
-                      htmlContent.substring(tagBodyToken.start, tagBodyToken.end)));
+                  exceeded = meter.checkAttributeCount(
+                      attrs.getAttributeCount() + 1);
+                  if (exceeded != null) { break document; }
+                  attrs.add(lexer.canonicalAttributeName(
+                      lexer.getTokenStart(), lexer.getTokenEnd()));
                   break;
                 case ATTRVALUE:
-                  String attributeContentRaw =
-                          stripQuotes(htmlContent.substring(tagBodyToken.start, tagBodyToken.end));
-                  attrs.add(Encoding.decodeHtml(attributeContentRaw, true));
+                  exceeded = meter.checkAttributeValue(
+                      lexer.getTokenStart(), lexer.getTokenEnd());
+                  if (exceeded != null) { break document; }
+                  // Policies drop most attributes without reading their
+                  // values, so leave decoding until the value is read.
+                  attrs.addRawValue(lexer.substring(
+                      lexer.getTokenStart(), lexer.getTokenEnd()));
                   attrsReadyForName = true;
                   break;
                 case TAGEND:
@@ -189,12 +335,14 @@ public final class HtmlSanitizer {
               }
             }
             if (!attrsReadyForName) {
-              attrs.add(attrs.getLast());
+              attrs.add(attrs.get(attrs.size() - 1));
+            }
+            receiver.openTag(elementName, attrs);
+            if (canSkipText && balancer.isSkippingText()) {
+              // Scan past the body of a <script>, <style>, or similar
+              // element that the policy is dropping.
+              lexer.skipEscapeExemptBlockContent();
             }
-            receiver.openTag(
-                HtmlLexer.canonicalElementName(
-                    htmlContent.substring(token.start + 1, token.end)),
-                attrs);
           }
           break;
         default:
@@ -204,30 +352,16 @@ public final class HtmlSanitizer {
       }
     }
 
-    receiver.closeDocument();
-  }
-
-  private static String stripQuotes(String encodedAttributeValue) {
-    int n = encodedAttributeValue.length();
-    if (n > 0) {
-      char last = encodedAttributeValue.charAt(n - 1);
-      if (last == '"' || last == '\'') {
-        int start = 0;
-        if (n != 1 && last == encodedAttributeValue.charAt(0)) {
-          start = 1;
-        } else {
-          // Browsers deal with missing left quotes : <img src=foo.png">
-          // but generally do not deal with missing right : <img src="foo.png>
-        }
-        return encodedAttributeValue.substring(start, n - 1);
-      }
+    if (exceeded == null) {
+      exceeded = meter.checkEnd();
     }
-    return encodedAttributeValue;
+    receiver.closeDocument();
+    return exceeded;
   }
 
 
-  private static HtmlStreamEventReceiver initializePolicy(
-      Policy policy, HtmlStreamEventProcessor preprocessor) {
+  static TagBalancingHtmlStreamEventReceiver initializeBalancer(
+      Policy policy) {
     TagBalancingHtmlStreamEventReceiver balancer
         = new TagBalancingHtmlStreamEventReceiver(policy);
 
@@ -250,6 +384,6 @@ public final class HtmlSanitizer {
     // 256 is substantially larger than the lower bound and well clear of the
     // upper bound.
     balancer.setNestingLimit(512);
-    return preprocessor.wrap(balancer);
+    return balancer;
   }
 }
@@ -61,6 +61,8 @@ public class HtmlStreamRenderer implements HtmlStreamEventReceiver {
   private StringBuilder pendingUnescaped;
   private HtmlTextEscapingMode escapingMode = HtmlTextEscapingMode.PCDATA;
   private boolean open;
+  /** Holds decoded entities for {@link #encodedText}. */
+  private final StringBuilder decodeBuffer = new StringBuilder();
 
   /**
    * Factory.
@@ -142,6 +144,41 @@ public class HtmlStreamRenderer implements HtmlStreamEventReceiver {
     }
   }
 
+  /**
+   * Closes any document without writing anything more so that this can be
+   * reused for another document.
+   */
+  final void reset() {
+    open = false;
+    lastTagOpened = null;
+    pendingUnescaped = null;
+    escapingMode = HtmlTextEscapingMode.PCDATA;
+  }
+
+  /**
+   * True if everything rendered so far has been written to the output, so
+   * that the output so far and {@link #saveState} capture all the state.
+   */
+  final boolean isCheckpointable() {
+    return open && pendingUnescaped == null;
+  }
+
+  final void saveState(SanitizerCheckpoint checkpoint) {
+    checkpoint.lastTagOpened = lastTagOpened;
+    checkpoint.escapingMode = escapingMode;
+  }
+
+  /**
+   * Resumes rendering an open document from a checkpoint after the output
+   * has been truncated to the length it had when the checkpoint was taken.
+   */
+  final void restoreState(SanitizerCheckpoint checkpoint) {
+    open = true;
+    lastTagOpened = checkpoint.lastTagOpened;
+    pendingUnescaped = null;
+    escapingMode = checkpoint.escapingMode;
+  }
+
   /**
    * True if {@link #openDocument()} has been called and
    * {@link #closeDocument()} has not subsequently been called.
@@ -279,6 +316,28 @@ public class HtmlStreamRenderer implements HtmlStreamEventReceiver {
     }
   }
 
+  /**
+   * Like {@code text(Encoding.decodeHtml(html.substring(start, end), false))}
+   * but decodes and encodes in one pass where possible.
+   *
+   * @param html text/html that contains the text to decode at [start, end).
+   */
+  final void encodedText(String html, int start, int end) {
+    try {
+      if (!open) { throw new IllegalStateException(); }
+      if (pendingUnescaped != null) {
+        pendingUnescaped.append(
+            Encoding.decodeHtml(html.substring(start, end), false));
+      } else if (this.escapingMode == HtmlTextEscapingMode.RCDATA) {
+        Encoding.transcodeRcdataOnto(html, start, end, decodeBuffer, output);
+      } else {
+        Encoding.transcodePcdataOnto(html, start, end, decodeBuffer, output);
+      }
+    } catch (IOException ex) {
+      ioExHandler.handle(ex);
+    }
+  }
+
   private final void writeText(String text) throws IOException {
     if (!open) { throw new IllegalStateException(); }
     if (pendingUnescaped != null) {
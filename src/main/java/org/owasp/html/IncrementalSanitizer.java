@@ -0,0 +1,223 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Sanitizes successive versions of a document, such as a draft being edited,
+ * by resuming from the last point before the first change instead of
+ * starting over.
+ * <p>
+ * While sanitizing, the state of the whole pipeline is saved at tag
+ * boundaries every so often.
+ * When the next version comes in, sanitization resumes from the last such
+ * checkpoint before the first char that differs from the previous version,
+ * keeping the output produced before the checkpoint.
+ * The output is always the same as {@link PolicyFactory#sanitize(String)}
+ * would produce.
+ * <p>
+ * Factories with pre- or post-processors, whose state cannot be saved, or
+ * with a {@link SanitizerBudget}, which applies to whole documents, always
+ * sanitize from the start.
+ * As with {@code PolicyFactory.sanitize}, processors wrap each version
+ * afresh so that they do not carry state from one version to the next.
+ */
+@NotThreadSafe
+public final class IncrementalSanitizer {
+  /**
+   * The minimum number of input chars between checkpoints, which trades the
+   * memory used by checkpoints against the amount of input re-sanitized.
+   */
+  static final int DEFAULT_CHECKPOINT_INTERVAL = 1024;
+
+  private final StringBuilder out = new StringBuilder();
+  private final HtmlStreamRenderer renderer;
+  /** The renderer, possibly wrapped to count text for the budget. */
+  private final HtmlStreamEventReceiver output;
+  /** Null if the pipeline state cannot be checkpointed. */
+  private final @Nullable ElementAndAttributePolicyBasedSanitizerPolicy policy;
+  private final PolicyFactory factory;
+  private final HtmlStreamEventProcessor preprocessor;
+  /**
+   * False if the policy has a post-processor, so the policy and balancer
+   * must be created afresh for each version.
+   */
+  private final boolean canReusePolicy;
+  private TagBalancingHtmlStreamEventReceiver balancer;
+  private final HtmlLexer lexer;
+  private final AttributeList attrs = new AttributeList();
+  private final SanitizerBudget budget;
+  private final SanitizerBudget.Meter meter = new SanitizerBudget.Meter();
+  private final int checkpointInterval;
+  /** Checkpoints in increasing order of input offset. */
+  private final List<SanitizerCheckpoint> checkpoints =
+      new ArrayList<SanitizerCheckpoint>();
+  private final HtmlSanitizer.Checkpointer checkpointer =
+      new HtmlSanitizer.Checkpointer() {
+        public void checkpoint() {
+          saveCheckpoint();
+        }
+      };
+  private @Nullable String lastInput;
+  private String lastOutput = "";
+
+  IncrementalSanitizer(
+      PolicyFactory factory, HtmlStreamEventProcessor preprocessor,
+      boolean canCheckpoint, boolean canReusePolicy, SanitizerBudget budget,
+      NameTable elementNames, NameTable attributeNames,
+      int checkpointInterval) {
+    // Budgets apply to whole documents, so the meter's counters need only be
+    // right when sanitizing from the start.
+    meter.start(budget);
+    this.renderer = HtmlStreamRenderer.create(
+        meter.countOutput(out), Handler.PROPAGATE, Handler.DO_NOTHING);
+    this.output = meter.countText(renderer);
+    HtmlSanitizer.Policy p = factory.apply(output);
+    this.policy = canCheckpoint
+        && p instanceof ElementAndAttributePolicyBasedSanitizerPolicy
+        ? (ElementAndAttributePolicyBasedSanitizerPolicy) p : null;
+    this.balancer = HtmlSanitizer.initializeBalancer(p);
+    this.factory = factory;
+    this.preprocessor = preprocessor;
+    this.canReusePolicy = canReusePolicy;
+    this.budget = budget;
+    this.lexer = new HtmlLexer("", elementNames, attributeNames);
+    this.checkpointInterval = checkpointInterval;
+  }
+
+  /**
+   * Sanitizes a string of HTML, reusing work done on the previous string
+   * passed to this method where they start with the same chars.
+   * @return the same as {@link PolicyFactory#sanitize(String)}.
+   */
+  public String sanitize(@Nullable String html) {
+    if (html == null) { html = ""; }
+    if (html.equals(lastInput)) { return lastOutput; }
+
+    SanitizerCheckpoint checkpoint = null;
+    if (policy != null && lastInput != null) {
+      int i = lastCheckpointAtOrBefore(commonPrefixLength(lastInput, html));
+      if (i >= 0) {
+        checkpoint = checkpoints.get(i);
+        checkpoints.subList(i + 1, checkpoints.size()).clear();
+      }
+    }
+    // Forget the previous input until this one is done in case of an
+    // exception.
+    lastInput = null;
+    lastOutput = "";
+    if (checkpoint != null) {
+      out.setLength(checkpoint.outputLength);
+      renderer.restoreState(checkpoint);
+      policy.restoreState(checkpoint);
+      balancer.restoreState(checkpoint);
+      lexer.restoreState(html, checkpoint);
+    } else {
+      checkpoints.clear();
+      out.setLength(0);
+      renderer.reset();
+      if (canReusePolicy) {
+        balancer.reset();
+      } else {
+        balancer = HtmlSanitizer.initializeBalancer(factory.apply(output));
+      }
+      lexer.reset(html);
+    }
+    attrs.clear();
+    meter.start(budget);
+    // Checkpoints are only taken without a preprocessor, so this only
+    // creates a new wrapper when sanitizing from the start.
+    HtmlSanitizer.sanitize(
+        lexer, balancer, preprocessor.wrap(balancer), attrs, meter,
+        policy != null ? checkpointer : null, checkpoint != null);
+    lastInput = html;
+    lastOutput = out.toString();
+    return lastOutput;
+  }
+
+  /** Discards the previous input, output, and checkpoints. */
+  public void reset() {
+    lastInput = null;
+    lastOutput = "";
+    checkpoints.clear();
+    out.setLength(0);
+    out.trimToSize();
+  }
+
+  /** The number of checkpoints saved, for testing. */
+  int getCheckpointCount() {
+    return checkpoints.size();
+  }
+
+  private void saveCheckpoint() {
+    int inputOffset = lexer.getTokenEnd();
+    int lastOffset = checkpoints.isEmpty()
+        ? 0 : checkpoints.get(checkpoints.size() - 1).inputOffset;
+    if (inputOffset - lastOffset < checkpointInterval
+        || !renderer.isCheckpointable()) {
+      return;
+    }
+    SanitizerCheckpoint checkpoint = new SanitizerCheckpoint();
+    checkpoint.outputLength = out.length();
+    lexer.saveState(checkpoint);
+    balancer.saveState(checkpoint);
+    policy.saveState(checkpoint);
+    renderer.saveState(checkpoint);
+    checkpoints.add(checkpoint);
+  }
+
+  /**
+   * The index of the last checkpoint whose input offset is at most offset
+   * or -1 if none.
+   */
+  private int lastCheckpointAtOrBefore(int offset) {
+    int lo = 0, hi = checkpoints.size();
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (checkpoints.get(mid).inputOffset <= offset) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo - 1;
+  }
+
+  private static int commonPrefixLength(String a, String b) {
+    int n = Math.min(a.length(), b.length());
+    int i = 0;
+    while (i < n && a.charAt(i) == b.charAt(i)) { ++i; }
+    return i;
+  }
+}
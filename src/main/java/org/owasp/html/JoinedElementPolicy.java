@@ -28,27 +28,28 @@
 
 package org.owasp.html;
 
+import java.util.List;
+
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 
-@Immutable
-final class HtmlToken {
-  final int start;
-  final int end;
-  final HtmlTokenType type;
+import com.google.common.collect.ImmutableList;
 
-  static HtmlToken instance(int start, int end, HtmlTokenType type) {
-    return new HtmlToken(start, end, type);
-  }
+/** An element policy that applies several in order, failing early. */
+@Immutable
+final class JoinedElementPolicy implements ElementPolicy {
+  final ImmutableList<ElementPolicy> policies;
 
-  boolean tokenInContextMatches(String context, String match) {
-    int n = end - start;
-    if (n != match.length()) { return false; }
-    return context.regionMatches(start, match, 0, n);
+  JoinedElementPolicy(Iterable<? extends ElementPolicy> policies) {
+    this.policies = ImmutableList.copyOf(policies);
   }
 
-  private HtmlToken(int start, int end, HtmlTokenType type) {
-    this.start = start;
-    this.end = end;
-    this.type = type;
+  public @Nullable String apply(String elementName, List<String> attrs) {
+    String filteredElementName = elementName;
+    for (ElementPolicy part : policies) {
+      filteredElementName = part.apply(filteredElementName, attrs);
+      if (filteredElementName == null) { break; }
+    }
+    return filteredElementName;
   }
 }
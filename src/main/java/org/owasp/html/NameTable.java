@@ -0,0 +1,228 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import javax.annotation.concurrent.Immutable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Maps element or attribute names to canonical strings, so that a name that
+ * appears in the input can be canonicalized without allocating when it is one
+ * that the sanitizer already knows about.
+ * <p>
+ * Names containing a colon and mixed-case SVG and MathML names are canonical
+ * as-is and all other names canonicalize to their lower-case form.
+ * Names in the table are string constants shared by the lexer, the tag
+ * balancer, and the renderer.
+ */
+@Immutable
+final class NameTable {
+  /** The canonical names from which the table was built. */
+  private final ImmutableList<String> canonNames;
+  /** Names that are canonical as-is despite containing upper-case letters. */
+  private final ImmutableSet<String> mixedCaseNames;
+  /** Names in an open-addressing hash table. */
+  private final String[] names;
+  /** The case-insensitive hash of each name in names. */
+  private final int[] hashes;
+  /**
+   * True for names that only match input with the same case:
+   * names with a colon and mixed-case foreign names.
+   */
+  private final boolean[] exact;
+
+  private NameTable(
+      ImmutableSet<String> mixedCaseNames, ImmutableList<String> canonNames) {
+    this.canonNames = canonNames;
+    this.mixedCaseNames = mixedCaseNames;
+    // Each name may need a slot for its lower-case variant, and we want a load
+    // factor of no more than one half.
+    int capacity = 16;
+    while (capacity < 4 * canonNames.size()) { capacity <<= 1; }
+    this.names = new String[capacity];
+    this.hashes = new int[capacity];
+    this.exact = new boolean[capacity];
+    for (String canonName : canonNames) {
+      boolean isExact = canonName.indexOf(':') >= 0
+          || mixedCaseNames.contains(canonName);
+      if (isExact && canonName.indexOf(':') < 0) {
+        // Input with any other case canonicalizes to the lower-case name.
+        put(Strings.toLowerCase(canonName), false);
+      }
+      put(canonName, isExact);
+    }
+  }
+
+  /** HTML, SVG, and MathML element names. */
+  static final NameTable ELEMENTS = new NameTable(
+      HtmlLexer.mixedCaseForeignElementNames,
+      ImmutableList.<String>builder()
+          .addAll(HtmlElementTables.get().canonNames())
+          .addAll(HtmlLexer.mixedCaseForeignElementNames)
+          .build());
+
+  /**
+   * Attribute names from HTML 4 and HTML 5 including presentational
+   * attributes that are still common in mail.
+   */
+  private static final ImmutableList<String> COMMON_ATTRIBUTE_NAMES =
+      ImmutableList.of(
+          "abbr", "accept", "accept-charset", "accesskey", "action", "align",
+          "alink", "allowfullscreen", "alt", "async", "autocomplete",
+          "autofocus", "autoplay", "axis", "background", "bgcolor", "border",
+          "cellpadding", "cellspacing", "char", "charoff", "charset",
+          "checked", "cite", "class", "classid", "clear", "codebase",
+          "codetype", "color", "cols", "colspan", "compact", "content",
+          "contenteditable", "controls", "coords", "crossorigin", "data",
+          "datetime", "declare", "default", "defer", "dir", "dirname",
+          "disabled", "download", "draggable", "enctype", "face", "for",
+          "form", "formaction", "frame", "frameborder", "headers", "height",
+          "hidden", "high", "href", "hreflang", "hspace", "http-equiv", "id",
+          "integrity", "ismap", "kind", "label", "lang", "language", "link",
+          "list", "longdesc", "loop", "low", "marginheight", "marginwidth",
+          "max", "maxlength", "media", "method", "min", "multiple", "muted",
+          "name", "nohref", "noresize", "noshade", "novalidate", "nowrap",
+          "onabort", "onblur", "onchange", "onclick", "ondblclick", "onerror",
+          "onfocus", "oninput", "onkeydown", "onkeypress", "onkeyup", "onload",
+          "onmousedown", "onmousemove", "onmouseout", "onmouseover",
+          "onmouseup", "onreset", "onresize", "onscroll", "onselect",
+          "onsubmit", "onunload", "open", "optimum", "pattern", "placeholder",
+          "poster", "preload", "profile", "readonly", "rel", "required", "rev",
+          "reversed", "role", "rows", "rowspan", "rules", "sandbox", "scope",
+          "scrolling", "selected", "shape", "size", "sizes", "span",
+          "spellcheck", "src", "srcdoc", "srclang", "srcset", "start", "step",
+          "style", "summary", "tabindex", "target", "text", "title",
+          "translate", "type", "usemap", "valign", "value", "valuetype",
+          "version", "vlink", "vspace", "width", "wrap", "xmlns");
+
+  /** Commonly used HTML, SVG, and MathML attribute names. */
+  static final NameTable ATTRIBUTES = new NameTable(
+      HtmlLexer.mixedCaseForeignAttributeNames,
+      ImmutableList.<String>builder()
+          .addAll(COMMON_ATTRIBUTE_NAMES)
+          .addAll(HtmlLexer.mixedCaseForeignAttributeNames)
+          .build());
+
+  /**
+   * A table that knows the names in this table and the given names, so that
+   * names used by a policy can be canonicalized without allocating.
+   */
+  NameTable withNames(Iterable<String> moreNames) {
+    ImmutableList.Builder<String> b = ImmutableList.builder();
+    b.addAll(canonNames);
+    boolean sawNewName = false;
+    for (String name : moreNames) {
+      String canonName = canonicalize(name);
+      if (lookup(canonName, 0, canonName.length()) == null) {
+        b.add(canonName);
+        sawNewName = true;
+      }
+    }
+    return sawNewName ? new NameTable(mixedCaseNames, b.build()) : this;
+  }
+
+  /** The canonical form of name. */
+  String canonicalize(String name) {
+    String canonName = lookup(name, 0, name.length());
+    if (canonName != null) { return canonName; }
+    return name.indexOf(':') >= 0 || mixedCaseNames.contains(name)
+        ? name : Strings.toLowerCase(name);
+  }
+
+  /**
+   * The canonical form of the name {@code s.subSequence(start, end)}.
+   * This only allocates when the name is not in the table.
+   */
+  String canonicalize(CharSequence s, int start, int end) {
+    String canonName = lookup(s, start, end);
+    if (canonName != null) { return canonName; }
+    return canonicalize(s.subSequence(start, end).toString());
+  }
+
+  /** Null or the canonical name for the given range of characters. */
+  private String lookup(CharSequence s, int start, int end) {
+    int n = end - start;
+    int hash = 0;
+    boolean hasColon = false;
+    for (int i = start; i < end; ++i) {
+      char ch = s.charAt(i);
+      if (ch <= 'Z' && ch >= 'A') {
+        ch |= 0x20;
+      } else if (ch == ':') {
+        hasColon = true;
+      }
+      hash = 31 * hash + ch;
+    }
+    int mask = names.length - 1;
+    String caseInsensitiveMatch = null;
+    for (int i = mix(hash) & mask; names[i] != null; i = (i + 1) & mask) {
+      String name = names[i];
+      if (hashes[i] != hash || name.length() != n) { continue; }
+      if (exact[i]) {
+        if (regionMatches(s, start, name)) { return name; }
+      } else if (!hasColon
+                 && Strings.regionMatchesIgnoreCase(s, start, name, 0, n)) {
+        // Keep looking in case there is an exact mixed-case match.
+        caseInsensitiveMatch = name;
+      }
+    }
+    return caseInsensitiveMatch;
+  }
+
+  private void put(String name, boolean isExact) {
+    int hash = 0;
+    for (int i = 0, n = name.length(); i < n; ++i) {
+      char ch = name.charAt(i);
+      if (ch <= 'Z' && ch >= 'A') { ch |= 0x20; }
+      hash = 31 * hash + ch;
+    }
+    int mask = names.length - 1;
+    int i = mix(hash) & mask;
+    for (; names[i] != null; i = (i + 1) & mask) {
+      if (exact[i] == isExact && names[i].equals(name)) { return; }
+    }
+    names[i] = name;
+    hashes[i] = hash;
+    exact[i] = isExact;
+  }
+
+  private static int mix(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private static boolean regionMatches(CharSequence s, int start, String name) {
+    for (int i = name.length(); --i >= 0;) {
+      if (s.charAt(start + i) != name.charAt(i)) { return false; }
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,189 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Flattens element and attribute policies for
+ * {@link PolicyFactory#compile compiled} policy factories.
+ * <p>
+ * Joined policies are unrolled into arrays of steps, identity steps are
+ * dropped, and standard guards are applied inline, so that the sanitizer
+ * calls the same two classes for every tag and attribute, and the only
+ * remaining interface calls are to custom policies.
+ */
+final class PolicyCompiler {
+  private PolicyCompiler() { /* uninstantiable */ }
+
+  /** An attribute policy equivalent to p. */
+  static AttributePolicy compile(AttributePolicy p) {
+    List<AttributePolicy> parts = Lists.newArrayList();
+    unroll(p, parts);
+    int n = parts.size();
+    byte[] ops = new byte[n];
+    AttributePolicy[] operands = new AttributePolicy[n];
+    int nSteps = 0;
+    for (AttributePolicy part : parts) {
+      if (part == AttributePolicy.IDENTITY_ATTRIBUTE_POLICY) {
+        continue;
+      }
+      if (part == AttributePolicy.REJECT_ALL_ATTRIBUTE_POLICY) {
+        return FlatAttributePolicy.REJECT_ALL;
+      }
+      byte op = FlatAttributePolicy.CALL;
+      if (part.getClass() == FilterUrlByProtocolAttributePolicy.class) {
+        // Only the exact class is inlined since subclasses may override
+        // allowProtocolRelativeUrls.
+        op = ((FilterUrlByProtocolAttributePolicy) part)
+            .allowProtocolRelativeUrls()
+            ? FlatAttributePolicy.FILTER_URL_ALLOWING_PROTOCOL_RELATIVE
+            : FlatAttributePolicy.FILTER_URL;
+      }
+      ops[nSteps] = op;
+      operands[nSteps] = part;
+      ++nSteps;
+    }
+    return new FlatAttributePolicy(
+        Arrays.copyOf(ops, nSteps), Arrays.copyOf(operands, nSteps));
+  }
+
+  /** An element policy equivalent to p. */
+  static ElementPolicy compile(ElementPolicy p) {
+    List<ElementPolicy> parts = Lists.newArrayList();
+    unroll(p, parts);
+    List<ElementPolicy> steps = Lists.newArrayListWithCapacity(parts.size());
+    for (ElementPolicy part : parts) {
+      if (part == ElementPolicy.REJECT_ALL_ELEMENT_POLICY) {
+        return FlatElementPolicy.REJECT_ALL;
+      }
+      if (part != ElementPolicy.IDENTITY_ELEMENT_POLICY) {
+        steps.add(part);
+      }
+    }
+    return new FlatElementPolicy(
+        steps.toArray(new ElementPolicy[steps.size()]));
+  }
+
+  private static void unroll(AttributePolicy p, List<AttributePolicy> out) {
+    if (p instanceof JoinedAttributePolicy) {
+      for (AttributePolicy part : ((JoinedAttributePolicy) p).policies) {
+        unroll(part, out);
+      }
+    } else {
+      out.add(p);
+    }
+  }
+
+  private static void unroll(ElementPolicy p, List<ElementPolicy> out) {
+    if (p instanceof JoinedElementPolicy) {
+      for (ElementPolicy part : ((JoinedElementPolicy) p).policies) {
+        unroll(part, out);
+      }
+    } else {
+      out.add(p);
+    }
+  }
+
+  /** An attribute policy that applies a sequence of steps. */
+  @Immutable
+  static final class FlatAttributePolicy implements AttributePolicy {
+    /** Calls the operand. */
+    static final byte CALL = 0;
+    /** Filters by the operand's protocols disallowing URLs like //foo. */
+    static final byte FILTER_URL = 1;
+    /** Filters by the operand's protocols allowing URLs like //foo. */
+    static final byte FILTER_URL_ALLOWING_PROTOCOL_RELATIVE = 2;
+    /** Rejects the value. */
+    static final byte REJECT = 3;
+
+    static final FlatAttributePolicy REJECT_ALL = new FlatAttributePolicy(
+        new byte[] { REJECT }, new AttributePolicy[1]);
+
+    private final byte[] ops;
+    private final AttributePolicy[] operands;
+
+    FlatAttributePolicy(byte[] ops, AttributePolicy[] operands) {
+      this.ops = ops;
+      this.operands = operands;
+    }
+
+    public @Nullable String apply(
+        String elementName, String attributeName, String value) {
+      String adjusted = value;
+      for (int i = 0, n = ops.length; i < n; ++i) {
+        switch (ops[i]) {
+          case CALL:
+            adjusted = operands[i].apply(elementName, attributeName, adjusted);
+            break;
+          case FILTER_URL:
+            adjusted = ((FilterUrlByProtocolAttributePolicy) operands[i])
+                .filter(adjusted, false);
+            break;
+          case FILTER_URL_ALLOWING_PROTOCOL_RELATIVE:
+            adjusted = ((FilterUrlByProtocolAttributePolicy) operands[i])
+                .filter(adjusted, true);
+            break;
+          default:
+            return null;
+        }
+        if (adjusted == null) { return null; }
+      }
+      return adjusted;
+    }
+  }
+
+  /** An element policy that applies a sequence of policies. */
+  @Immutable
+  static final class FlatElementPolicy implements ElementPolicy {
+    static final FlatElementPolicy REJECT_ALL = new FlatElementPolicy(
+        new ElementPolicy[] { ElementPolicy.REJECT_ALL_ELEMENT_POLICY });
+
+    private final ElementPolicy[] steps;
+
+    FlatElementPolicy(ElementPolicy[] steps) {
+      this.steps = steps;
+    }
+
+    public @Nullable String apply(String elementName, List<String> attrs) {
+      String adjusted = elementName;
+      for (ElementPolicy step : steps) {
+        adjusted = step.apply(adjusted, attrs);
+        if (adjusted == null) { return null; }
+      }
+      return adjusted;
+    }
+  }
+}
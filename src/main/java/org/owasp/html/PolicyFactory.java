@@ -28,7 +28,19 @@
 
 package org.owasp.html;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -38,6 +50,7 @@ import javax.annotation.concurrent.ThreadSafe;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
 
 /**
  * A factory that can be used to link a sanitizer to an output receiver and that
@@ -58,24 +71,60 @@ public final class PolicyFactory
   private final ImmutableSet<String> textContainers;
   private final HtmlStreamEventProcessor preprocessor;
   private final HtmlStreamEventProcessor postprocessor;
+  private final SanitizerBudget budget;
+  /** True if policies are flattened as described at {@link #compile}. */
+  private final boolean compiled;
+  /** Lazily computed by {@link #fingerprint}. */
+  private transient HashCode fingerprint;
+  /** policies and textContainers compiled for dispatch by element index. */
+  private final ElementAndAttributePolicyTable policyTable;
+  /** Canonicalizes element names including those named by policies. */
+  private final NameTable elementNames;
+  /** Canonicalizes attribute names including those named by policies. */
+  private final NameTable attributeNames;
 
   PolicyFactory(
       ImmutableMap<String, ElementAndAttributePolicies> policies,
       ImmutableSet<String> textContainers,
       ImmutableMap<String, AttributePolicy> globalAttrPolicies,
       HtmlStreamEventProcessor preprocessor,
-      HtmlStreamEventProcessor postprocessor) {
+      HtmlStreamEventProcessor postprocessor,
+      SanitizerBudget budget) {
+    this(
+        policies, textContainers, globalAttrPolicies, preprocessor,
+        postprocessor, budget, false);
+  }
+
+  private PolicyFactory(
+      ImmutableMap<String, ElementAndAttributePolicies> policies,
+      ImmutableSet<String> textContainers,
+      ImmutableMap<String, AttributePolicy> globalAttrPolicies,
+      HtmlStreamEventProcessor preprocessor,
+      HtmlStreamEventProcessor postprocessor,
+      SanitizerBudget budget, boolean compiled) {
     this.policies = policies;
     this.textContainers = textContainers;
     this.globalAttrPolicies = globalAttrPolicies;
     this.preprocessor = preprocessor;
     this.postprocessor = postprocessor;
+    this.budget = budget;
+    this.compiled = compiled;
+    this.policyTable = new ElementAndAttributePolicyTable(
+        policies, textContainers, compiled);
+    this.elementNames = NameTable.ELEMENTS.withNames(policies.keySet());
+    ImmutableSet.Builder<String> policyAttributeNames = ImmutableSet.builder();
+    policyAttributeNames.addAll(globalAttrPolicies.keySet());
+    for (ElementAndAttributePolicies p : policies.values()) {
+      policyAttributeNames.addAll(p.attrPolicies.keySet());
+    }
+    this.attributeNames = NameTable.ATTRIBUTES.withNames(
+        policyAttributeNames.build());
   }
 
   /** Produces a sanitizer that emits tokens to {@code out}. */
   public HtmlSanitizer.Policy apply(@Nonnull HtmlStreamEventReceiver out) {
     return new ElementAndAttributePolicyBasedSanitizerPolicy(
-        postprocessor.wrap(out), policies, textContainers);
+        postprocessor.wrap(out), policyTable);
   }
 
   /**
@@ -124,16 +173,312 @@ public final class PolicyFactory
       @Nullable HtmlChangeListener<CTX> listener, @Nullable CTX context) {
     if (html == null) { return ""; }
     StringBuilder out = new StringBuilder(html.length());
-    HtmlSanitizer.sanitize(
-        html,
+    SanitizerBudget.Meter meter = new SanitizerBudget.Meter();
+    meter.start(budget);
+    SanitizerBudget.Limit exceeded = HtmlSanitizer.sanitize(
+        new HtmlLexer(html, elementNames, attributeNames),
         apply(
-            HtmlStreamRenderer.create(out, Handler.DO_NOTHING),
+            meter.countText(HtmlStreamRenderer.create(
+                meter.countOutput(out),
+                Handler.PROPAGATE, Handler.DO_NOTHING)),
             listener,
             context),
-        preprocessor);
+        preprocessor, meter);
+    if (exceeded != null && listener != null) {
+      listener.budgetExceeded(context, exceeded);
+    }
+    return out.toString();
+  }
+
+  /**
+   * A digest of everything that affects this factory's output, so factories
+   * with the same fingerprint produce the same output from the same input.
+   * See {@link PolicyFingerprint} for when equivalent factories may
+   * nevertheless have different fingerprints.
+   */
+  HashCode fingerprint() {
+    HashCode fp = fingerprint;
+    if (fp == null) {
+      // Racing threads compute the same immutable value.
+      fingerprint = fp = PolicyFingerprint.of(
+          policies, textContainers, globalAttrPolicies,
+          preprocessor, postprocessor, budget);
+    }
+    return fp;
+  }
+
+  /**
+   * True if sanitizing the same input always produces the same output, so
+   * that results may be cached.
+   */
+  boolean isDeterministic() {
+    return budget.isDeterministic();
+  }
+
+  /**
+   * A session that sanitizes successive documents with this policy on one
+   * thread, reusing its internal state to avoid allocating a new sanitizer
+   * pipeline for each document.
+   */
+  public SanitizerSession newSession() {
+    boolean canReusePolicy =
+        postprocessor == HtmlStreamEventProcessor.Processors.IDENTITY;
+    return new SanitizerSession(
+        this, preprocessor, canReusePolicy, budget,
+        elementNames, attributeNames);
+  }
+
+  /**
+   * A sanitizer for successive versions of a document, such as a draft being
+   * edited, that only re-sanitizes from around the first change.
+   */
+  public IncrementalSanitizer newIncrementalSanitizer() {
+    boolean canCheckpoint =
+        preprocessor == HtmlStreamEventProcessor.Processors.IDENTITY
+        && postprocessor == HtmlStreamEventProcessor.Processors.IDENTITY
+        && budget == SanitizerBudget.UNLIMITED;
+    boolean canReusePolicy =
+        postprocessor == HtmlStreamEventProcessor.Processors.IDENTITY;
+    return new IncrementalSanitizer(
+        this, preprocessor, canCheckpoint, canReusePolicy, budget,
+        elementNames, attributeNames,
+        IncrementalSanitizer.DEFAULT_CHECKPOINT_INTERVAL);
+  }
+
+  /**
+   * Sanitizes a batch of documents in parallel on the
+   * {@linkplain ForkJoinPool#commonPool common pool}.
+   * @param htmls strings of HTML to sanitize.  Null elements are treated as
+   *     empty.  The list must not be modified until this method returns.
+   * @return the sanitized documents in the same order as htmls.
+   */
+  public List<String> sanitizeAll(List<String> htmls) {
+    return sanitizeAll(htmls, null, null, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Sanitizes a batch of documents in parallel using the given executor.
+   * @param htmls strings of HTML to sanitize.  Null elements are treated as
+   *     empty.  The list must not be modified until this method returns.
+   * @param executor runs the work.  The calling thread blocks until all the
+   *     work is done, so executor must not be a single thread that is
+   *     currently running the caller.
+   * @return the sanitized documents in the same order as htmls.
+   */
+  public List<String> sanitizeAll(List<String> htmls, Executor executor) {
+    return sanitizeAll(htmls, null, null, executor);
+  }
+
+  /**
+   * Sanitizes a batch of documents in parallel using the given executor,
+   * reporting the names of rejected elements and attributes to listener.
+   * @param htmls strings of HTML to sanitize.  Null elements are treated as
+   *     empty.  The list must not be modified until this method returns.
+   * @param listener if non-null, receives notifications of tags and attributes
+   *     that were rejected by the policy.  It may be called concurrently from
+   *     multiple threads.
+   * @param contexts if non-null, the context values passed with notifications
+   *     about the document at the same index in htmls.
+   * @param executor runs the work.  The calling thread blocks until all the
+   *     work is done, so executor must not be a single thread that is
+   *     currently running the caller.
+   * @return the sanitized documents in the same order as htmls.
+   */
+  public <CTX> List<String> sanitizeAll(
+      List<String> htmls,
+      @Nullable HtmlChangeListener<CTX> listener,
+      @Nullable List<? extends CTX> contexts,
+      Executor executor) {
+    int parallelism = executor instanceof ForkJoinPool
+        ? ((ForkJoinPool) executor).getParallelism()
+        : Runtime.getRuntime().availableProcessors();
+    return new BatchSanitizer<CTX>(
+        this, htmls, listener, contexts, parallelism)
+        .run(executor);
+  }
+
+  /**
+   * Lazily sanitizes documents from htmls.
+   * The result splits wherever htmls does, and each split reuses one
+   * {@linkplain #newSession session} for all its documents, so
+   * {@code StreamSupport.stream(f.sanitizeAll(docs.spliterator()), true)}
+   * sanitizes docs in parallel and, if htmls is ordered, in order.
+   * <p>
+   * Unlike {@link #sanitizeAll(List)}, this is not size-aware.
+   * It cannot see how long documents are before it reaches them, so it
+   * splits by document count, and a huge document may hold up the documents
+   * that share its split.
+   * When the documents are in memory anyway, prefer the {@code List}
+   * variant, which balances splits by input chars.
+   */
+  public Spliterator<String> sanitizeAll(Spliterator<String> htmls) {
+    return new BatchSanitizer.SanitizingSpliterator(this, htmls);
+  }
+
+  /**
+   * Sanitizes HTML read from html and writes the result to out without ever
+   * holding the whole input or output in memory.
+   * @param html the source of HTML to sanitize.  It is read until exhausted
+   *     but not closed.
+   * @param out receives HTML that complies with this factory's policy.
+   *     It is flushed, if {@link java.io.Flushable}, but not closed.
+   * @throws IOException if reading from html or writing to out fails.
+   */
+  public void sanitize(Reader html, Appendable out) throws IOException {
+    sanitize(html, out, null, null);
+  }
+
+  /**
+   * Sanitizes HTML read from html and writes the result to out without ever
+   * holding the whole input or output in memory, reporting the names of
+   * rejected element and attributes to listener.
+   * @param html the source of HTML to sanitize.  It is read until exhausted
+   *     but not closed.
+   * @param out receives HTML that complies with this factory's policy.
+   *     It is flushed, if {@link java.io.Flushable}, but not closed.
+   * @param listener if non-null, receives notifications of tags and attributes
+   *     that were rejected by the policy.  This may tie into intrusion
+   *     detection systems.
+   * @param context if {@code (listener != null)} then the context value passed
+   *     with notifications.  This can be used to let the listener know from
+   *     which connection or request the questionable HTML was received.
+   * @throws IOException if reading from html or writing to out fails.
+   */
+  public <CTX> void sanitize(
+      Reader html, Appendable out,
+      @Nullable HtmlChangeListener<CTX> listener, @Nullable CTX context)
+      throws IOException {
+    SanitizerBudget.Meter meter = new SanitizerBudget.Meter();
+    meter.start(budget);
+    SanitizerBudget.Limit exceeded;
+    try {
+      exceeded = HtmlSanitizer.sanitize(
+          new HtmlLexer(html, elementNames, attributeNames),
+          apply(
+              meter.countText(new HtmlStreamRenderer(
+                  meter.countOutput(out), RETHROW_UNCHECKED,
+                  Handler.DO_NOTHING)),
+              listener,
+              context),
+          preprocessor, meter);
+    } catch (UncheckedIOException ex) {
+      throw ex.getCause();
+    }
+    if (exceeded != null && listener != null) {
+      listener.budgetExceeded(context, exceeded);
+    }
+  }
+
+  /**
+   * Sanitizes UTF-8 encoded HTML without first decoding it to a string.
+   * @param utf8 the bytes between its position and limit are sanitized.
+   *     Its position is not changed.
+   * @return a string of HTML that complies with this factory's policy.
+   */
+  public String sanitizeUtf8(ByteBuffer utf8) {
+    StringBuilder out = new StringBuilder(utf8.remaining());
+    try {
+      sanitizeUtf8(utf8, out, null, null);
+    } catch (IOException ex) {
+      throw new AssertionError("StringBuilder does not throw", ex);
+    }
     return out.toString();
   }
 
+  /**
+   * Sanitizes UTF-8 encoded HTML, decoding it a window at a time as it is
+   * lexed, and writes the result to out.
+   * @param utf8 the bytes between its position and limit are sanitized.
+   *     Its position is not changed.
+   * @param out receives HTML that complies with this factory's policy.
+   *     It is flushed, if {@link java.io.Flushable}, but not closed.
+   * @throws IOException if writing to out fails.
+   */
+  public void sanitizeUtf8(ByteBuffer utf8, Appendable out)
+      throws IOException {
+    sanitizeUtf8(utf8, out, null, null);
+  }
+
+  /**
+   * Sanitizes UTF-8 encoded HTML, decoding it a window at a time as it is
+   * lexed, and writes the result to out, reporting the names of rejected
+   * element and attributes to listener.
+   * Malformed byte sequences are treated as U+FFFD.
+   * @param utf8 the bytes between its position and limit are sanitized.
+   *     Its position is not changed.
+   * @param out receives HTML that complies with this factory's policy.
+   *     It is flushed, if {@link java.io.Flushable}, but not closed.
+   * @param listener if non-null, receives notifications of tags and attributes
+   *     that were rejected by the policy.  This may tie into intrusion
+   *     detection systems.
+   * @param context if {@code (listener != null)} then the context value passed
+   *     with notifications.  This can be used to let the listener know from
+   *     which connection or request the questionable HTML was received.
+   * @throws IOException if writing to out fails.
+   */
+  public <CTX> void sanitizeUtf8(
+      ByteBuffer utf8, Appendable out,
+      @Nullable HtmlChangeListener<CTX> listener, @Nullable CTX context)
+      throws IOException {
+    sanitize(new Utf8Reader(utf8), out, listener, context);
+  }
+
+  /**
+   * Sanitizes a UTF-8 encoded file and writes the result, UTF-8 encoded, to
+   * out.
+   * The file is mapped into memory a region at a time and decoded as it is
+   * lexed, so large files can be sanitized without holding them on the heap.
+   * @param html the file to sanitize.
+   * @param out receives HTML that complies with this factory's policy.
+   *     It is not closed.
+   * @throws IOException if reading html or writing to out fails.
+   */
+  public void sanitizeFile(Path html, WritableByteChannel out)
+      throws IOException {
+    sanitizeFile(html, out, null, null);
+  }
+
+  /**
+   * Sanitizes a UTF-8 encoded file and writes the result, UTF-8 encoded, to
+   * out, reporting the names of rejected element and attributes to listener.
+   * The file is mapped into memory a region at a time and decoded as it is
+   * lexed, so large files can be sanitized without holding them on the heap.
+   * Malformed byte sequences are treated as U+FFFD.
+   * @param html the file to sanitize.
+   * @param out receives HTML that complies with this factory's policy.
+   *     It is not closed.
+   * @param listener if non-null, receives notifications of tags and attributes
+   *     that were rejected by the policy.  This may tie into intrusion
+   *     detection systems.
+   * @param context if {@code (listener != null)} then the context value passed
+   *     with notifications.  This can be used to let the listener know from
+   *     which connection or request the questionable HTML was received.
+   * @throws IOException if reading html or writing to out fails.
+   */
+  public <CTX> void sanitizeFile(
+      Path html, WritableByteChannel out,
+      @Nullable HtmlChangeListener<CTX> listener, @Nullable CTX context)
+      throws IOException {
+    try (FileChannel file = FileChannel.open(html, StandardOpenOption.READ)) {
+      Utf8Sink sink = new Utf8Sink(out);
+      sanitize(
+          new Utf8Reader(file, Utf8Reader.DEFAULT_MAP_SIZE), sink,
+          listener, context);
+      sink.flush();
+    }
+  }
+
+  /**
+   * Wraps exceptions from an output buffer so they can unwind to a caller
+   * that declares {@code throws IOException}.
+   */
+  private static final Handler<IOException> RETHROW_UNCHECKED =
+      new Handler<IOException>() {
+        public void handle(IOException ex) {
+          throw new UncheckedIOException(ex);
+        }
+      };
+
   /**
    * Produces a factory that allows the union of the grants, and intersects
    * policies where they overlap on a particular granted attribute or element
@@ -210,6 +555,37 @@ public final class PolicyFactory
             this.postprocessor, f.postprocessor);
     return new PolicyFactory(
         b.build(), allTextContainers, allGlobalAttrPolicies,
-        compositionOfPreprocessors, compositionOfPostprocessors);
+        compositionOfPreprocessors, compositionOfPostprocessors,
+        budget.and(f.budget), compiled && f.compiled);
+  }
+
+  /**
+   * Produces a factory like this one, but whose {@code sanitize} methods and
+   * sessions stop early when either this factory's budget or the given budget
+   * is exceeded.
+   */
+  public PolicyFactory withBudget(SanitizerBudget newBudget) {
+    return new PolicyFactory(
+        policies, textContainers, globalAttrPolicies,
+        preprocessor, postprocessor, budget.and(newBudget), compiled);
+  }
+
+  /**
+   * Produces a factory that sanitizes exactly as this one does, but whose
+   * policies are flattened ahead of time.
+   * Chains of joined policies become arrays of steps, steps that do nothing
+   * are dropped, and standard URL protocol checks are done inline, so the
+   * sanitizer dispatches through the same few classes for every tag and
+   * attribute, leaving calls to custom policies as the only interface calls
+   * that vary with the policy.
+   * <p>
+   * Compiling costs a little time up front, so is worthwhile for a policy
+   * that is used to sanitize many documents.
+   */
+  public PolicyFactory compile() {
+    if (compiled) { return this; }
+    return new PolicyFactory(
+        policies, textContainers, globalAttrPolicies,
+        preprocessor, postprocessor, budget, true);
   }
 }
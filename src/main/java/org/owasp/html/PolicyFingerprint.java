@@ -0,0 +1,203 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.MapMaker;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Computes a digest of everything about a {@link PolicyFactory} that affects
+ * its output, so that cached results can be shared between factories that
+ * sanitize identically.
+ * <p>
+ * Policies whose structure is known, like joined policies, URL protocol
+ * filters, and {@link Fingerprintable} policies, are digested by content, so
+ * equivalent factories built separately, even by different processes, have
+ * the same fingerprint.
+ * Other policies and processors are opaque, so are digested by class and by an
+ * id unique to the instance.  Factories that use different instances of such
+ * a policy never share a fingerprint, even if the instances behave the same.
+ * Those ids are only meaningful within one process, so fingerprints of
+ * factories with opaque parts also differ between processes.
+ */
+final class PolicyFingerprint {
+  /**
+   * Implemented by policies and parts of policies that can be digested by
+   * content.
+   */
+  interface Fingerprintable {
+    /**
+     * Adds to fp everything that affects this object's behavior.
+     * The first thing added should distinguish this kind of object from
+     * others.
+     */
+    void fingerprint(PolicyFingerprint fp);
+  }
+
+  /** Ids of opaque objects by identity. */
+  private static final ConcurrentMap<Object, Long> OPAQUE_IDS =
+      new MapMaker().weakKeys().makeMap();
+  private static final AtomicLong NEXT_OPAQUE_ID = new AtomicLong();
+  /** Distinguishes opaque ids from those assigned by other processes. */
+  private static final long PROCESS_NONCE = new SecureRandom().nextLong();
+
+  private final Hasher h = Hashing.sha256().newHasher();
+
+  private PolicyFingerprint() {
+    // Use of.
+  }
+
+  static HashCode of(
+      ImmutableMap<String, ElementAndAttributePolicies> policies,
+      ImmutableSet<String> textContainers,
+      ImmutableMap<String, AttributePolicy> globalAttrPolicies,
+      HtmlStreamEventProcessor preprocessor,
+      HtmlStreamEventProcessor postprocessor,
+      SanitizerBudget budget) {
+    PolicyFingerprint fp = new PolicyFingerprint();
+    fp.putInt(policies.size());
+    for (ElementAndAttributePolicies p
+         : ImmutableSortedMap.copyOf(policies).values()) {
+      fp.putString(p.elementName);
+      fp.putString(p.htmlTagSkipType.name());
+      fp.putElementPolicy(p.elPolicy);
+      fp.putAttributePolicies(p.attrPolicies);
+    }
+    fp.putStrings(textContainers);
+    fp.putAttributePolicies(globalAttrPolicies);
+    fp.putObject(preprocessor);
+    fp.putObject(postprocessor);
+    fp.h.putLong(budget.maxInputChars)
+        .putLong(budget.maxTokens)
+        .putInt(budget.maxAttributesPerElement)
+        .putInt(budget.maxAttributeValueLength)
+        .putLong(budget.timeoutNanos)
+        .putBoolean(budget.cancelOnInterrupt)
+        .putLong(budget.maxTextChars)
+        .putLong(budget.maxOutputChars);
+    return fp.h.hash();
+  }
+
+  private void putAttributePolicies(Map<String, AttributePolicy> attrPolicies) {
+    putInt(attrPolicies.size());
+    for (Map.Entry<String, AttributePolicy> e
+         : ImmutableSortedMap.copyOf(attrPolicies).entrySet()) {
+      putString(e.getKey());
+      putAttributePolicy(e.getValue());
+    }
+  }
+
+  void putAttributePolicy(AttributePolicy p) {
+    if (p == AttributePolicy.IDENTITY_ATTRIBUTE_POLICY) {
+      putString("identity");
+    } else if (p == AttributePolicy.REJECT_ALL_ATTRIBUTE_POLICY) {
+      putString("reject");
+    } else if (p instanceof JoinedAttributePolicy) {
+      putString("join");
+      putInt(((JoinedAttributePolicy) p).policies.size());
+      for (AttributePolicy part : ((JoinedAttributePolicy) p).policies) {
+        putAttributePolicy(part);
+      }
+    } else if (p.getClass() == FilterUrlByProtocolAttributePolicy.class) {
+      putString("urls");
+      putStrings(((FilterUrlByProtocolAttributePolicy) p).getProtocols());
+    } else {
+      putObject(p);
+    }
+  }
+
+  void putElementPolicy(ElementPolicy p) {
+    if (p == ElementPolicy.IDENTITY_ELEMENT_POLICY) {
+      putString("identity");
+    } else if (p == ElementPolicy.REJECT_ALL_ELEMENT_POLICY) {
+      putString("reject");
+    } else if (p instanceof JoinedElementPolicy) {
+      putString("join");
+      putInt(((JoinedElementPolicy) p).policies.size());
+      for (ElementPolicy part : ((JoinedElementPolicy) p).policies) {
+        putElementPolicy(part);
+      }
+    } else {
+      putObject(p);
+    }
+  }
+
+  /** Digests o by content if it is fingerprintable or otherwise opaquely. */
+  void putObject(Object o) {
+    if (o == HtmlStreamEventProcessor.Processors.IDENTITY
+        || o == Functions.identity()) {
+      putString("identity");
+    } else if (o instanceof Fingerprintable) {
+      ((Fingerprintable) o).fingerprint(this);
+    } else {
+      Long id = OPAQUE_IDS.get(o);
+      if (id == null) {
+        Long newId = NEXT_OPAQUE_ID.getAndIncrement();
+        id = OPAQUE_IDS.putIfAbsent(o, newId);
+        if (id == null) { id = newId; }
+      }
+      putString(o.getClass().getName());
+      h.putLong(PROCESS_NONCE).putLong(id);
+    }
+  }
+
+  void putBoolean(boolean b) {
+    h.putBoolean(b);
+  }
+
+  void putInt(int i) {
+    h.putInt(i);
+  }
+
+  /** Digests s so that no two sequences of strings digest the same. */
+  void putString(String s) {
+    h.putInt(s.length()).putUnencodedChars(s);
+  }
+
+  /** Digests the strings in a canonical order. */
+  void putStrings(Set<String> strings) {
+    putInt(strings.size());
+    for (String s : ImmutableSortedSet.copyOf(strings)) {
+      putString(s);
+    }
+  }
+}
@@ -0,0 +1,400 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Limits on the work done to sanitize one document so that a single crafted
+ * input cannot monopolize a sanitizer thread.
+ * <p>
+ * When a limit is exceeded, sanitization stops at a token boundary, any open
+ * elements are closed, and the well-formed output produced so far is the
+ * result.
+ * {@link HtmlChangeListener#budgetExceeded} reports which limit fired.
+ * <p>
+ * Budgets apply to the {@code sanitize} methods of a {@link PolicyFactory}
+ * and its {@linkplain PolicyFactory#newSession sessions}, not to policies
+ * produced by {@link PolicyFactory#apply} which are driven by their caller.
+ */
+@Immutable
+public final class SanitizerBudget {
+
+  /** A limit that can stop sanitization early. */
+  public enum Limit {
+    /** The document is longer than the maximum number of input chars. */
+    INPUT_CHARS,
+    /** The document has more than the maximum number of tokens. */
+    TOKENS,
+    /** An element has more than the maximum number of attributes. */
+    ATTRIBUTES_PER_ELEMENT,
+    /** An attribute value is longer than the maximum length. */
+    ATTRIBUTE_VALUE_LENGTH,
+    /** Sanitization took longer than the timeout. */
+    DEADLINE,
+    /** The sanitizing thread was interrupted. */
+    CANCELLED,
+    /** The output reached the maximum number of text chars. */
+    TEXT_CHARS,
+    /** The output reached the maximum number of chars. */
+    OUTPUT_CHARS,
+  }
+
+  /** A budget that imposes no limits. */
+  public static final SanitizerBudget UNLIMITED = new SanitizerBudget(
+      Long.MAX_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE,
+      Long.MAX_VALUE, false, Long.MAX_VALUE, Long.MAX_VALUE);
+
+  /**
+   * The number of tokens between checks of the clock and interrupt status,
+   * minus one.
+   */
+  private static final int CLOCK_CHECK_MASK = 63;
+
+  final long maxInputChars;
+  final long maxTokens;
+  final int maxAttributesPerElement;
+  final int maxAttributeValueLength;
+  final long timeoutNanos;
+  final boolean cancelOnInterrupt;
+  final long maxTextChars;
+  final long maxOutputChars;
+
+  private SanitizerBudget(
+      long maxInputChars, long maxTokens, int maxAttributesPerElement,
+      int maxAttributeValueLength, long timeoutNanos,
+      boolean cancelOnInterrupt, long maxTextChars, long maxOutputChars) {
+    this.maxInputChars = maxInputChars;
+    this.maxTokens = maxTokens;
+    this.maxAttributesPerElement = maxAttributesPerElement;
+    this.maxAttributeValueLength = maxAttributeValueLength;
+    this.timeoutNanos = timeoutNanos;
+    this.cancelOnInterrupt = cancelOnInterrupt;
+    this.maxTextChars = maxTextChars;
+    this.maxOutputChars = maxOutputChars;
+  }
+
+  /** Stops before any token that ends past the given number of chars. */
+  public SanitizerBudget withMaxInputChars(long n) {
+    Preconditions.checkArgument(n >= 0);
+    return new SanitizerBudget(
+        n, maxTokens, maxAttributesPerElement, maxAttributeValueLength,
+        timeoutNanos, cancelOnInterrupt, maxTextChars, maxOutputChars);
+  }
+
+  /** Stops before the token after the given number of tokens. */
+  public SanitizerBudget withMaxTokens(long n) {
+    Preconditions.checkArgument(n >= 0);
+    return new SanitizerBudget(
+        maxInputChars, n, maxAttributesPerElement, maxAttributeValueLength,
+        timeoutNanos, cancelOnInterrupt, maxTextChars, maxOutputChars);
+  }
+
+  /**
+   * Stops before any tag with more than the given number of attributes.
+   * The tag is dropped.
+   */
+  public SanitizerBudget withMaxAttributesPerElement(int n) {
+    Preconditions.checkArgument(n >= 0);
+    return new SanitizerBudget(
+        maxInputChars, maxTokens, n, maxAttributeValueLength,
+        timeoutNanos, cancelOnInterrupt, maxTextChars, maxOutputChars);
+  }
+
+  /**
+   * Stops before any tag with an attribute value, including any quotes, longer
+   * than the given number of chars.
+   * The tag is dropped.
+   */
+  public SanitizerBudget withMaxAttributeValueLength(int n) {
+    Preconditions.checkArgument(n >= 0);
+    return new SanitizerBudget(
+        maxInputChars, maxTokens, maxAttributesPerElement, n,
+        timeoutNanos, cancelOnInterrupt, maxTextChars, maxOutputChars);
+  }
+
+  /**
+   * Stops once the given time has passed since sanitization of a document
+   * began.
+   * The clock is checked every few tokens, so a document may run over by
+   * the time it takes to process those tokens.
+   */
+  public SanitizerBudget withTimeout(long duration, TimeUnit unit) {
+    Preconditions.checkArgument(duration >= 0);
+    return new SanitizerBudget(
+        maxInputChars, maxTokens, maxAttributesPerElement,
+        maxAttributeValueLength, unit.toNanos(duration), cancelOnInterrupt,
+        maxTextChars, maxOutputChars);
+  }
+
+  /**
+   * If true, stops when the sanitizing thread is
+   * {@linkplain Thread#interrupt interrupted}, e.g. by
+   * {@link java.util.concurrent.Future#cancel}.
+   * The interrupt status is left set so that the caller can see it.
+   */
+  public SanitizerBudget withCancelOnInterrupt(boolean cancel) {
+    return new SanitizerBudget(
+        maxInputChars, maxTokens, maxAttributesPerElement,
+        maxAttributeValueLength, timeoutNanos, cancel,
+        maxTextChars, maxOutputChars);
+  }
+
+  /**
+   * Outputs at most the given number of chars of text, cutting short the
+   * text that crosses the limit and stopping there, which is useful for
+   * producing previews of long documents.
+   * Text chars are counted before HTML escaping, so they approximate the
+   * visible length of the output.
+   */
+  public SanitizerBudget withMaxTextChars(long n) {
+    Preconditions.checkArgument(n >= 0);
+    return new SanitizerBudget(
+        maxInputChars, maxTokens, maxAttributesPerElement,
+        maxAttributeValueLength, timeoutNanos, cancelOnInterrupt,
+        n, maxOutputChars);
+  }
+
+  /**
+   * Stops once the given number of chars have been output.
+   * Tags are not cut short, and the tags that close open elements are output
+   * after the limit is reached, so the output may be somewhat longer.
+   */
+  public SanitizerBudget withMaxOutputChars(long n) {
+    Preconditions.checkArgument(n >= 0);
+    return new SanitizerBudget(
+        maxInputChars, maxTokens, maxAttributesPerElement,
+        maxAttributeValueLength, timeoutNanos, cancelOnInterrupt,
+        maxTextChars, n);
+  }
+
+  /**
+   * True if sanitizing the same input within this budget always produces the
+   * same output, which is not the case when a timeout or interrupt can stop
+   * sanitization at an arbitrary point.
+   */
+  boolean isDeterministic() {
+    return timeoutNanos == Long.MAX_VALUE && !cancelOnInterrupt;
+  }
+
+  /** A budget that is exceeded when either this or other is exceeded. */
+  public SanitizerBudget and(SanitizerBudget other) {
+    if (this == UNLIMITED) { return other; }
+    if (other == UNLIMITED) { return this; }
+    return new SanitizerBudget(
+        Math.min(maxInputChars, other.maxInputChars),
+        Math.min(maxTokens, other.maxTokens),
+        Math.min(maxAttributesPerElement, other.maxAttributesPerElement),
+        Math.min(maxAttributeValueLength, other.maxAttributeValueLength),
+        Math.min(timeoutNanos, other.timeoutNanos),
+        cancelOnInterrupt || other.cancelOnInterrupt,
+        Math.min(maxTextChars, other.maxTextChars),
+        Math.min(maxOutputChars, other.maxOutputChars));
+  }
+
+  /**
+   * Tracks the work done on one document against a budget.
+   * Meters may be reused for successive documents via {@link #start}.
+   */
+  static final class Meter {
+    private SanitizerBudget budget = UNLIMITED;
+    private long tokens;
+    private long startNanos;
+    private long textChars;
+    private long outputChars;
+    /**
+     * The output limit that was reached, if any.  Sanitization stops before
+     * the next token.
+     */
+    private @Nullable Limit outputFull;
+    /**
+     * True if output was cut short because of {@link #outputFull}, so the
+     * limit must be reported even if the input ends.
+     */
+    private boolean outputLost;
+
+    /** Starts metering a new document. */
+    void start(SanitizerBudget newBudget) {
+      this.budget = newBudget;
+      this.tokens = 0;
+      if (newBudget.timeoutNanos != Long.MAX_VALUE) {
+        this.startNanos = System.nanoTime();
+      }
+      this.textChars = 0;
+      this.outputChars = 0;
+      this.outputFull =
+          newBudget.maxOutputChars == 0 ? Limit.OUTPUT_CHARS : null;
+      this.outputLost = false;
+    }
+
+    /**
+     * Wraps the receiver that renders output so that it counts text chars
+     * if the budget limits them.
+     * Must be called after {@link #start}.
+     */
+    HtmlStreamEventReceiver countText(HtmlStreamEventReceiver renderer) {
+      return budget.maxTextChars != Long.MAX_VALUE
+          ? new TextCounter(renderer) : renderer;
+    }
+
+    /**
+     * Wraps the output buffer so that it counts chars if the budget limits
+     * them.
+     * Must be called after {@link #start}.
+     */
+    Appendable countOutput(Appendable out) {
+      return budget.maxOutputChars != Long.MAX_VALUE
+          ? new OutputCounter(out) : out;
+    }
+
+    /** Called for each token lexed, which ends at tokenEnd. */
+    @Nullable Limit checkToken(int tokenEnd) {
+      if (outputFull != null) {
+        return outputFull;
+      }
+      if (++tokens > budget.maxTokens) {
+        return Limit.TOKENS;
+      }
+      if (tokenEnd > budget.maxInputChars) {
+        return Limit.INPUT_CHARS;
+      }
+      if ((tokens & CLOCK_CHECK_MASK) == 0) {
+        if (budget.timeoutNanos != Long.MAX_VALUE
+            && System.nanoTime() - startNanos > budget.timeoutNanos) {
+          return Limit.DEADLINE;
+        }
+        if (budget.cancelOnInterrupt
+            && Thread.currentThread().isInterrupted()) {
+          return Limit.CANCELLED;
+        }
+      }
+      return null;
+    }
+
+    /** Called for each attribute name in a tag. */
+    @Nullable Limit checkAttributeCount(int nAttributes) {
+      return nAttributes > budget.maxAttributesPerElement
+          ? Limit.ATTRIBUTES_PER_ELEMENT : null;
+    }
+
+    /** Called for each attribute value in a tag. */
+    @Nullable Limit checkAttributeValue(int valueStart, int valueEnd) {
+      return valueEnd - valueStart > budget.maxAttributeValueLength
+          ? Limit.ATTRIBUTE_VALUE_LENGTH : null;
+    }
+
+    /** Called after the last token to check whether any output was lost. */
+    @Nullable Limit checkEnd() {
+      return outputLost ? outputFull : null;
+    }
+
+    /** Cuts short text once the text limit is reached. */
+    private final class TextCounter extends HtmlStreamEventReceiverWrapper {
+      TextCounter(HtmlStreamEventReceiver underlying) {
+        super(underlying);
+      }
+
+      @Override
+      public void text(String text) {
+        int n = text.length();
+        if (outputFull != null) {
+          outputLost |= n != 0;
+          return;
+        }
+        long remaining = budget.maxTextChars - textChars;
+        if (n <= remaining) {
+          textChars += n;
+          underlying.text(text);
+          return;
+        }
+        int keep = (int) remaining;
+        if (keep < n) {
+          outputLost = true;
+          // Do not split a surrogate pair.
+          if (keep != 0 && Character.isHighSurrogate(text.charAt(keep - 1))) {
+            --keep;
+          }
+        }
+        textChars += keep;
+        outputFull = Limit.TEXT_CHARS;
+        if (keep != 0) {
+          underlying.text(keep == n ? text : text.substring(0, keep));
+        }
+      }
+    }
+
+    /** Notes when the output limit is reached. */
+    private final class OutputCounter implements Appendable, Flushable {
+      private final Appendable out;
+
+      OutputCounter(Appendable out) {
+        this.out = out;
+      }
+
+      public Appendable append(CharSequence csq) throws IOException {
+        out.append(csq);
+        count(csq != null ? csq.length() : 4 /* "null" */);
+        return this;
+      }
+
+      public Appendable append(CharSequence csq, int start, int end)
+          throws IOException {
+        out.append(csq, start, end);
+        count(end - start);
+        return this;
+      }
+
+      public Appendable append(char c) throws IOException {
+        out.append(c);
+        count(1);
+        return this;
+      }
+
+      public void flush() throws IOException {
+        if (out instanceof Flushable) {
+          ((Flushable) out).flush();
+        }
+      }
+
+      private void count(int n) {
+        outputChars += n;
+        if (outputChars >= budget.maxOutputChars && outputFull == null) {
+          outputFull = Limit.OUTPUT_CHARS;
+        }
+      }
+    }
+  }
+}
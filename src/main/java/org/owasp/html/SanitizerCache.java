@@ -0,0 +1,149 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * A cache of sanitized HTML, for applications that sanitize the same HTML
+ * over and over, like a mailing list message delivered to many recipients.
+ * <p>
+ * Results are keyed by a SHA-256 digest of the policy's fingerprint and the
+ * input, so neither inputs nor policies are retained.
+ * Policy factories that sanitize identically may share results; see
+ * {@link PolicyFactory#fingerprint}.
+ * <p>
+ * The cache evicts least recently used results to keep an estimate of the
+ * memory retained by results under a bound.
+ * Concurrent requests to sanitize the same input with the same policy are
+ * coalesced so that only one thread sanitizes it while the others wait for
+ * the result.
+ */
+@ThreadSafe
+public final class SanitizerCache {
+  /**
+   * An estimate of the bytes retained by a cache entry aside from the chars
+   * of the result: the key, the string, and the cache's own entry.
+   */
+  static final int ENTRY_OVERHEAD_BYTES = 160;
+
+  private final Cache<HashCode, String> cache;
+
+  /**
+   * @param maxRetainedBytes a bound on the memory retained by cached results,
+   *     estimated at two bytes per char plus some per-entry overhead.
+   */
+  public SanitizerCache(long maxRetainedBytes) {
+    Preconditions.checkArgument(maxRetainedBytes >= 0);
+    this.cache = CacheBuilder.newBuilder()
+        .maximumWeight(maxRetainedBytes)
+        .weigher(new Weigher<HashCode, String>() {
+          public int weigh(HashCode key, String value) {
+            return Ints.saturatedCast(
+                ENTRY_OVERHEAD_BYTES + 2L * value.length());
+          }
+        })
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Equivalent to {@code policy.sanitize(html)} but reuses the result of an
+   * earlier call with an equivalent policy and the same input if it is still
+   * cached.
+   * Results are not cached for policies whose budgets have a timeout or are
+   * cancelled by interrupts since their output can vary from one call to the
+   * next.
+   */
+  public String sanitize(
+      final PolicyFactory policy, @Nullable final String html) {
+    if (html == null) { return ""; }
+    if (!policy.isDeterministic()) { return policy.sanitize(html); }
+    HashCode key = resultKey(policy, html);
+    try {
+      return cache.get(key, new Callable<String>() {
+        public String call() {
+          return policy.sanitize(html);
+        }
+      });
+    } catch (ExecutionException ex) {
+      // sanitize throws no checked exceptions.
+      throw new AssertionError(null, ex.getCause());
+    } catch (UncheckedExecutionException ex) {
+      Throwables.throwIfUnchecked(ex.getCause());
+      throw ex;
+    } catch (ExecutionError err) {
+      Throwables.throwIfUnchecked(err.getCause());
+      throw err;
+    }
+  }
+
+  /** Identifies the result of sanitizing html with policy. */
+  static HashCode resultKey(PolicyFactory policy, String html) {
+    return Hashing.sha256().newHasher()
+        .putBytes(policy.fingerprint().asBytes())
+        .putUnencodedChars(html)
+        .hash();
+  }
+
+  /**
+   * Counts of hits and misses, and of the time spent sanitizing on misses.
+   * Calls that bypass the cache because the policy is not deterministic
+   * are not counted.
+   */
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  /** The number of cached results. */
+  public long size() {
+    return cache.size();
+  }
+
+  /** Discards all cached results. */
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+}
@@ -0,0 +1,59 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+/**
+ * The state of a sanitizer pipeline at a token boundary, from which
+ * sanitization of any input that starts with the same chars can resume.
+ * Each stage of the pipeline saves and restores its own fields.
+ */
+final class SanitizerCheckpoint {
+  /** The offset of the token boundary in the input. */
+  int inputOffset;
+  /** The length of the output produced before the token boundary. */
+  int outputLength;
+
+  // HtmlInputSplitter
+  boolean inEscapeExemptBlock;
+  String escapeExemptTagName;
+  HtmlTextEscapingMode textEscapingMode;
+  boolean lastNonIgnorableIsEq;
+
+  // TagBalancingHtmlStreamEventReceiver
+  int[] openElements;
+  int[] toResumeInReverse;
+
+  // ElementAndAttributePolicyBasedSanitizerPolicy
+  boolean skipText;
+  String[] openElementStack;
+
+  // HtmlStreamRenderer
+  String lastTagOpened;
+  HtmlTextEscapingMode escapingMode;
+}
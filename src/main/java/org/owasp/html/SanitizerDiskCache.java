@@ -0,0 +1,701 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.base.Utf8;
+import com.google.common.hash.HashCode;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * A cache of sanitized HTML kept in a directory, so that results sanitized
+ * before a restart are served without sanitizing again.
+ * <p>
+ * Results are appended to a segment file and found via a hash index keyed,
+ * like {@link SanitizerCache}, by a SHA-256 digest of the policy fingerprint
+ * and the input.
+ * A store belongs to one policy: the segment records the policy's
+ * {@link PolicyFactory#fingerprint fingerprint}, and opening the store with a
+ * policy with a different fingerprint discards all results.
+ * Policies with parts that cannot be fingerprinted by content, like custom
+ * attribute policies, get a new fingerprint in each process, so their results
+ * only survive for as long as the process.
+ * <p>
+ * When the segment would grow past its size bound, it is compacted: the most
+ * recently added half of the results are copied to a new segment, and the
+ * rest are dropped.
+ * <p>
+ * Every record carries its key and a checksum, and is checked on every read,
+ * so a record that is torn by a crash is a miss, not a wrong result.
+ * Compaction writes new files alongside the old and renames them into
+ * place, and the segment and index share a randomly chosen generation so an
+ * index that does not describe the segment is rebuilt by scanning the
+ * segment.
+ * Results written shortly before a crash may be lost since writes are not
+ * individually synced.
+ * <p>
+ * Only one store at a time may use a directory.
+ */
+@ThreadSafe
+public final class SanitizerDiskCache implements Closeable {
+  static final String SEGMENT_FILE_NAME = "sanitized.seg";
+  static final String INDEX_FILE_NAME = "sanitized.idx";
+  static final String LOCK_FILE_NAME = "sanitized.lock";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private static final int SEGMENT_MAGIC = 0x48534731;  // "HSG1"
+  private static final int INDEX_MAGIC = 0x48495831;  // "HIX1"
+  private static final int RECORD_MAGIC = 0x48524331;  // "HRC1"
+
+  private static final int KEY_BYTES = 32;
+  /** Magic, generation, and policy fingerprint. */
+  static final int SEGMENT_HEADER_BYTES = 4 + 8 + KEY_BYTES;
+  /** Magic, generation, capacity, and count. */
+  static final int INDEX_HEADER_BYTES = 4 + 8 + 4 + 4;
+  /** A key prefix and the offset of the record in the segment. */
+  static final int SLOT_BYTES = 8 + 8;
+  /** Magic, key, and payload length. */
+  static final int RECORD_HEADER_BYTES = 4 + KEY_BYTES + 4;
+  /** A CRC-32 of the key, payload length, and payload. */
+  static final int RECORD_TRAILER_BYTES = 4;
+  static final int MIN_INDEX_CAPACITY = 1 << 10;
+
+  private static final int INDEX_GENERATION_POS = 4;
+  private static final int INDEX_CAPACITY_POS = 12;
+  private static final int INDEX_COUNT_POS = 16;
+
+  private final Path segmentPath;
+  private final Path indexPath;
+  private final PolicyFactory policy;
+  private final byte[] fingerprint;
+  private final long maxSegmentBytes;
+  private final FileChannel lockChannel;
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  /** Sanitizations in progress so that concurrent misses share one. */
+  private final ConcurrentMap<HashCode, FutureTask<String>> inFlight =
+      new ConcurrentHashMap<HashCode, FutureTask<String>>();
+
+  @GuardedBy("this") private FileChannel segment;
+  /** The offset past the last record in the segment. */
+  @GuardedBy("this") private long segmentEnd;
+  @GuardedBy("this") private long generation;
+  @GuardedBy("this") private @Nullable FileChannel indexChannel;
+  /**
+   * A power-of-two number of slots, probed linearly.
+   * This is a copy of the index file, and changes are written through to
+   * it.
+   * The file is not memory-mapped since a mapping cannot be released before
+   * the file is replaced, and Windows does not allow replacing a mapped
+   * file.
+   */
+  @GuardedBy("this") private ByteBuffer index;
+  @GuardedBy("this") private int capacity;
+  @GuardedBy("this") private int count;
+  @GuardedBy("this") private boolean closed;
+
+  /**
+   * Opens the store in dir, creating it if it does not exist.
+   *
+   * @param policy the policy whose results are stored.
+   * @param maxSegmentBytes a bound on the size of the segment file.
+   *     The index file is not included and needs about 32 bytes per result,
+   *     which are also held in memory.
+   * @throws IOException if the store cannot be read or created or is in use
+   *     by another store.
+   */
+  public static SanitizerDiskCache open(
+      Path dir, PolicyFactory policy, long maxSegmentBytes)
+      throws IOException {
+    Preconditions.checkArgument(maxSegmentBytes >= SEGMENT_HEADER_BYTES);
+    Files.createDirectories(dir);
+    FileChannel lockChannel = FileChannel.open(
+        dir.resolve(LOCK_FILE_NAME),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    SanitizerDiskCache store = null;
+    try {
+      FileLock lock;
+      try {
+        lock = lockChannel.tryLock();
+      } catch (OverlappingFileLockException ex) {
+        lock = null;
+      }
+      if (lock == null) {
+        throw new IOException(dir + " is in use by another store");
+      }
+      store = new SanitizerDiskCache(dir, policy, maxSegmentBytes, lockChannel);
+      synchronized (store) {
+        store.load();
+      }
+      return store;
+    } finally {
+      if (store == null) {
+        lockChannel.close();
+      } else if (store.segment == null || store.index == null) {
+        store.close();
+      }
+    }
+  }
+
+  private SanitizerDiskCache(
+      Path dir, PolicyFactory policy, long maxSegmentBytes,
+      FileChannel lockChannel) {
+    this.segmentPath = dir.resolve(SEGMENT_FILE_NAME);
+    this.indexPath = dir.resolve(INDEX_FILE_NAME);
+    this.policy = policy;
+    this.fingerprint = policy.fingerprint().asBytes();
+    this.maxSegmentBytes = maxSegmentBytes;
+    this.lockChannel = lockChannel;
+  }
+
+  /**
+   * Equivalent to {@code policy.sanitize(html)} but reuses a stored result
+   * for the same input if there is one.
+   * Concurrent calls with the same input sanitize it once, and the calls
+   * that wait for that result count as hits.
+   * Results are not stored if the policy's budget has a timeout or is
+   * cancelled by interrupts since its output can vary from one call to the
+   * next.
+   *
+   * @throws UncheckedIOException if the store cannot be read or written.
+   */
+  public String sanitize(@Nullable final String html) {
+    if (html == null) { return ""; }
+    if (!policy.isDeterministic()) { return policy.sanitize(html); }
+    final HashCode key = SanitizerCache.resultKey(policy, html);
+    try {
+      String cached = get(key);
+      if (cached != null) {
+        hitCount.incrementAndGet();
+        return cached;
+      }
+      FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+        public String call() throws IOException {
+          // Another call may have stored it since the lookup above.
+          String stored = get(key);
+          if (stored != null) {
+            hitCount.incrementAndGet();
+            return stored;
+          }
+          missCount.incrementAndGet();
+          String sanitized = policy.sanitize(html);
+          put(key, sanitized);
+          return sanitized;
+        }
+      });
+      FutureTask<String> pending = inFlight.putIfAbsent(key, task);
+      if (pending != null) {
+        // Wait for the call that is sanitizing the same input.
+        String shared = getUnchecked(pending);
+        hitCount.incrementAndGet();
+        return shared;
+      }
+      try {
+        task.run();
+      } finally {
+        inFlight.remove(key, task);
+      }
+      return getUnchecked(task);
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  private static String getUnchecked(FutureTask<String> task)
+      throws IOException {
+    try {
+      return Uninterruptibles.getUninterruptibly(task);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      Throwables.throwIfInstanceOf(cause, IOException.class);
+      Throwables.throwIfUnchecked(cause);
+      throw new AssertionError(null, cause);
+    }
+  }
+
+  /**
+   * The number of calls to sanitize that were served from the store or by
+   * waiting for a concurrent call with the same input.
+   */
+  public long hitCount() {
+    return hitCount.get();
+  }
+
+  /** The number of calls to sanitize that had to sanitize. */
+  public long missCount() {
+    return missCount.get();
+  }
+
+  /** The number of stored results. */
+  public synchronized int size() {
+    checkOpen();
+    return count;
+  }
+
+  /** Syncs the store to disk and releases its files. */
+  public synchronized void close() throws IOException {
+    if (closed) { return; }
+    closed = true;
+    try {
+      if (indexChannel != null) { indexChannel.force(false); }
+      if (segment != null) { segment.force(true); }
+    } finally {
+      try {
+        if (indexChannel != null) { indexChannel.close(); }
+      } finally {
+        try {
+          if (segment != null) { segment.close(); }
+        } finally {
+          // Closing the channel releases the lock.
+          lockChannel.close();
+        }
+      }
+    }
+  }
+
+  @Nullable synchronized String get(HashCode key) throws IOException {
+    checkOpen();
+    int pos = slotPosition(probe(key.asLong()));
+    long offset = index.getLong(pos + 8);
+    if (offset == 0) { return null; }
+    Record record = readRecord(offset);
+    if (record == null || !Arrays.equals(record.key, key.asBytes())) {
+      return null;
+    }
+    return new String(record.payload, StandardCharsets.UTF_8);
+  }
+
+  synchronized void put(HashCode key, String value) throws IOException {
+    checkOpen();
+    int payloadLength;
+    try {
+      payloadLength = Utf8.encodedLength(value);
+    } catch (IllegalArgumentException ex) {
+      // Unpaired surrogates would not survive encoding.
+      return;
+    }
+    long size = recordSize(payloadLength);
+    if (SEGMENT_HEADER_BYTES + size > maxSegmentBytes / 2) {
+      // Storing it would leave no room for anything else.
+      return;
+    }
+    if (segmentEnd + size > maxSegmentBytes) {
+      compact(maxSegmentBytes / 2 - size);
+    }
+    byte[] payload = value.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer record = ByteBuffer.allocate((int) size);
+    record.putInt(RECORD_MAGIC).put(key.asBytes()).putInt(payload.length)
+        .put(payload);
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), 4, record.position() - 4);
+    record.putInt((int) crc.getValue());
+    record.flip();
+    long offset = segmentEnd;
+    writeFully(segment, record, offset);
+    segmentEnd = offset + size;
+    // The record is written before the index points to it.
+    int oldCount = count;
+    int pos = slotPosition(insert(key.asLong(), offset));
+    if (2 * count > capacity) {
+      growIndex();
+    } else {
+      writeIndex(pos, SLOT_BYTES);
+      if (count != oldCount) { writeIndex(INDEX_COUNT_POS, 4); }
+    }
+  }
+
+  private void checkOpen() {
+    if (closed) { throw new IllegalStateException("closed"); }
+  }
+
+  private void load() throws IOException {
+    segment = FileChannel.open(
+        segmentPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTES);
+    boolean valid = readFully(segment, header, 0)
+        && header.getInt(0) == SEGMENT_MAGIC
+        && Arrays.equals(
+            Arrays.copyOfRange(
+                header.array(), SEGMENT_HEADER_BYTES - KEY_BYTES,
+                SEGMENT_HEADER_BYTES),
+            fingerprint);
+    if (!valid) {
+      // A new store, or one for a different policy.
+      segment.truncate(0);
+      generation = ThreadLocalRandom.current().nextLong();
+      writeFully(segment, segmentHeader(generation), 0);
+      segmentEnd = SEGMENT_HEADER_BYTES;
+      replaceIndex(MIN_INDEX_CAPACITY, new long[0], 0);
+      return;
+    }
+    generation = header.getLong(4);
+    segmentEnd = segment.size();
+    if (!loadIndex()) {
+      rebuildIndex();
+    }
+  }
+
+  /** Reads the existing index if it describes the segment. */
+  private boolean loadIndex() throws IOException {
+    if (!Files.exists(indexPath)) { return false; }
+    FileChannel channel = FileChannel.open(
+        indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    boolean loaded = false;
+    try {
+      ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_BYTES);
+      if (!readFully(channel, header, 0)
+          || header.getInt(0) != INDEX_MAGIC
+          || header.getLong(INDEX_GENERATION_POS) != generation) {
+        return false;
+      }
+      int indexCapacity = header.getInt(INDEX_CAPACITY_POS);
+      long indexBytes = INDEX_HEADER_BYTES + (long) indexCapacity * SLOT_BYTES;
+      if (indexCapacity < MIN_INDEX_CAPACITY
+          || Integer.bitCount(indexCapacity) != 1
+          || indexBytes > Integer.MAX_VALUE
+          || channel.size() != indexBytes) {
+        return false;
+      }
+      ByteBuffer contents = ByteBuffer.allocate((int) indexBytes);
+      if (!readFully(channel, contents, 0)) { return false; }
+      index = contents;
+      indexChannel = channel;
+      capacity = indexCapacity;
+      // The stored count may be stale after a crash.
+      count = 0;
+      for (int i = 0; i < capacity; ++i) {
+        if (index.getLong(slotPosition(i) + 8) != 0) { ++count; }
+      }
+      index.putInt(INDEX_COUNT_POS, count);
+      writeIndex(INDEX_COUNT_POS, 4);
+      loaded = true;
+      return true;
+    } finally {
+      if (!loaded) { channel.close(); }
+    }
+  }
+
+  /**
+   * Indexes the records in the segment, truncating it before the first
+   * record that is not intact.
+   */
+  private void rebuildIndex() throws IOException {
+    long[] entries = new long[16];
+    int n = 0;
+    long offset = SEGMENT_HEADER_BYTES;
+    while (offset < segmentEnd) {
+      Record record = readRecord(offset);
+      if (record == null) {
+        segment.truncate(offset);
+        segmentEnd = offset;
+        break;
+      }
+      if (n == entries.length) {
+        entries = Arrays.copyOf(entries, n * 2);
+      }
+      entries[n++] = HashCode.fromBytes(record.key).asLong();
+      entries[n++] = offset;
+      offset += recordSize(record.payload.length);
+    }
+    replaceIndex(capacityFor(n / 2), entries, n);
+  }
+
+  /**
+   * Copies the most recently added results that fit in budget bytes to a new
+   * segment that replaces the current one.
+   */
+  private void compact(long budget) throws IOException {
+    long[] offsets = new long[count];
+    int n = 0;
+    for (int i = 0; i < capacity; ++i) {
+      long offset = index.getLong(slotPosition(i) + 8);
+      if (offset != 0) { offsets[n++] = offset; }
+    }
+    Arrays.sort(offsets, 0, n);
+
+    // Find the oldest record to keep.
+    int first = n;
+    long keptBytes = SEGMENT_HEADER_BYTES;
+    long[] sizes = new long[n];
+    long[] prefixes = new long[n];
+    while (first > 0) {
+      Record record = readRecord(offsets[first - 1]);
+      if (record != null) {
+        long size = recordSize(record.payload.length);
+        if (keptBytes + size > budget) { break; }
+        keptBytes += size;
+        sizes[first - 1] = size;
+        prefixes[first - 1] = HashCode.fromBytes(record.key).asLong();
+      }
+      --first;
+    }
+
+    long newGeneration = ThreadLocalRandom.current().nextLong();
+    Path tempPath = tempPath(segmentPath);
+    Files.deleteIfExists(tempPath);
+    FileChannel newSegment = FileChannel.open(
+        tempPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    long[] entries = new long[2 * (n - first)];
+    int nEntries = 0;
+    long newEnd;
+    try {
+      writeFully(newSegment, segmentHeader(newGeneration), 0);
+      newEnd = SEGMENT_HEADER_BYTES;
+      for (int i = first; i < n; ++i) {
+        long size = sizes[i];
+        if (size == 0) { continue; }  // Not intact.
+        long copied = 0;
+        while (copied < size) {
+          copied += segment.transferTo(
+              offsets[i] + copied, size - copied,
+              newSegment.position(newEnd + copied));
+        }
+        entries[nEntries++] = prefixes[i];
+        entries[nEntries++] = newEnd;
+        newEnd += size;
+      }
+      newSegment.force(true);
+      Files.move(tempPath, segmentPath, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException ex) {
+      newSegment.close();
+      throw ex;
+    }
+    // From here on, the old index does not match the segment's generation,
+    // so a crash before the new index is in place leads to a rebuild.
+    segment.close();
+    segment = newSegment;
+    segmentEnd = newEnd;
+    generation = newGeneration;
+    replaceIndex(capacityFor(nEntries / 2), entries, nEntries);
+  }
+
+  /**
+   * Replaces the index file with one for the current generation with the
+   * given entries.
+   *
+   * @param entries key prefix and segment offset pairs, in the order the
+   *     records were added.
+   */
+  private void replaceIndex(int newCapacity, long[] entries, int nEntries)
+      throws IOException {
+    Path tempPath = tempPath(indexPath);
+    Files.deleteIfExists(tempPath);
+    FileChannel channel = FileChannel.open(
+        tempPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    try {
+      ByteBuffer newIndex = ByteBuffer.allocate(
+          Ints.checkedCast(
+              INDEX_HEADER_BYTES + (long) newCapacity * SLOT_BYTES));
+      newIndex.putInt(0, INDEX_MAGIC);
+      newIndex.putLong(INDEX_GENERATION_POS, generation);
+      newIndex.putInt(INDEX_CAPACITY_POS, newCapacity);
+      index = newIndex;
+      capacity = newCapacity;
+      count = 0;
+      for (int i = 0; i < nEntries; i += 2) {
+        insert(entries[i], entries[i + 1]);
+      }
+      writeFully(channel, index.duplicate(), 0);
+      channel.force(false);
+      // Nothing is mapped, and Java opens files with FILE_SHARE_DELETE, so
+      // this rename works on Windows too.
+      Files.move(tempPath, indexPath, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException ex) {
+      channel.close();
+      throw ex;
+    }
+    if (indexChannel != null) { indexChannel.close(); }
+    indexChannel = channel;
+  }
+
+  /**
+   * Points the slot for prefix at offset in memory.
+   * The caller writes the change to the index file or grows the index.
+   *
+   * @return the slot.
+   */
+  private int insert(long prefix, long offset) {
+    int slot = probe(prefix);
+    int pos = slotPosition(slot);
+    boolean isNew = index.getLong(pos + 8) == 0;
+    // Results whose keys share a prefix displace one another.
+    index.putLong(pos, prefix);
+    index.putLong(pos + 8, offset);
+    if (isNew) {
+      index.putInt(INDEX_COUNT_POS, ++count);
+    }
+    return slot;
+  }
+
+  /** Replaces the index with one with twice the capacity. */
+  private void growIndex() throws IOException {
+    long[] entries = new long[2 * count];
+    int n = 0;
+    for (int i = 0; i < capacity; ++i) {
+      int p = slotPosition(i);
+      long o = index.getLong(p + 8);
+      if (o != 0) {
+        entries[n++] = index.getLong(p);
+        entries[n++] = o;
+      }
+    }
+    replaceIndex(capacity * 2, entries, n);
+  }
+
+  /** Writes length bytes of the index at pos through to the index file. */
+  private void writeIndex(int pos, int length) throws IOException {
+    ByteBuffer bytes = index.duplicate();
+    bytes.limit(pos + length).position(pos);
+    writeFully(indexChannel, bytes, pos);
+  }
+
+  /** The slot that holds prefix, or the empty slot where it belongs. */
+  private int probe(long prefix) {
+    int mask = capacity - 1;
+    int hash = (int) (prefix ^ (prefix >>> 32));
+    for (int i = hash & mask; ; i = (i + 1) & mask) {
+      int pos = slotPosition(i);
+      if (index.getLong(pos + 8) == 0 || index.getLong(pos) == prefix) {
+        return i;
+      }
+    }
+  }
+
+  /** The intact record at offset or null. */
+  private @Nullable Record readRecord(long offset) throws IOException {
+    if (offset < SEGMENT_HEADER_BYTES
+        || offset + RECORD_HEADER_BYTES + RECORD_TRAILER_BYTES > segmentEnd) {
+      return null;
+    }
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+    if (!readFully(segment, header, offset)
+        || header.getInt(0) != RECORD_MAGIC) {
+      return null;
+    }
+    int length = header.getInt(4 + KEY_BYTES);
+    if (length < 0 || offset + recordSize(length) > segmentEnd) {
+      return null;
+    }
+    ByteBuffer body = ByteBuffer.allocate(length + RECORD_TRAILER_BYTES);
+    if (!readFully(segment, body, offset + RECORD_HEADER_BYTES)) {
+      return null;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(header.array(), 4, RECORD_HEADER_BYTES - 4);
+    crc.update(body.array(), 0, length);
+    if ((int) crc.getValue() != body.getInt(length)) { return null; }
+    return new Record(
+        Arrays.copyOfRange(header.array(), 4, 4 + KEY_BYTES),
+        Arrays.copyOf(body.array(), length));
+  }
+
+  private ByteBuffer segmentHeader(long segmentGeneration) {
+    ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTES);
+    header.putInt(SEGMENT_MAGIC).putLong(segmentGeneration).put(fingerprint);
+    header.flip();
+    return header;
+  }
+
+  private static long recordSize(int payloadLength) {
+    return RECORD_HEADER_BYTES + (long) payloadLength + RECORD_TRAILER_BYTES;
+  }
+
+  private static int capacityFor(int nEntries) {
+    int indexCapacity = MIN_INDEX_CAPACITY;
+    while (indexCapacity < 2 * nEntries) { indexCapacity <<= 1; }
+    return indexCapacity;
+  }
+
+  private static int slotPosition(int slot) {
+    return INDEX_HEADER_BYTES + slot * SLOT_BYTES;
+  }
+
+  private static Path tempPath(Path path) {
+    return path.resolveSibling(path.getFileName() + TEMP_SUFFIX);
+  }
+
+  /** False if the channel ends before buf is full. */
+  private static boolean readFully(
+      FileChannel channel, ByteBuffer buf, long position) throws IOException {
+    while (buf.hasRemaining()) {
+      int n = channel.read(buf, position + buf.position());
+      if (n < 0) { return false; }
+    }
+    return true;
+  }
+
+  private static void writeFully(
+      FileChannel channel, ByteBuffer buf, long position) throws IOException {
+    long start = position - buf.position();
+    while (buf.hasRemaining()) {
+      channel.write(buf, start + buf.position());
+    }
+  }
+
+  private static final class Record {
+    final byte[] key;
+    final byte[] payload;
+
+    Record(byte[] key, byte[] payload) {
+      this.key = key;
+      this.payload = payload;
+    }
+  }
+}
@@ -0,0 +1,166 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Sanitizes successive documents with one policy, reusing the lexer, tag
+ * balancer, policy, renderer, and output buffer from one document to the next
+ * so that sanitizing many documents on one thread produces little garbage
+ * beyond the sanitized strings themselves.
+ * <p>
+ * Pre- and post-processors may keep state, so as with
+ * {@link PolicyFactory#sanitize(String)}, each document gets fresh wrappers
+ * from them.  When there is a post-processor, that means a fresh policy and
+ * tag balancer too.
+ * <p>
+ * Sessions are created by {@link PolicyFactory#newSession} and must not be
+ * shared between threads, though a thread may keep a session, e.g. in a
+ * {@link ThreadLocal}, for as long as it likes.
+ */
+@NotThreadSafe
+public final class SanitizerSession {
+  /**
+   * The initial capacity of the output buffer, and the capacity to which it
+   * is trimmed after a document that grows it past
+   * {@link #OUTPUT_HIGH_WATER_MARK}.
+   */
+  static final int INITIAL_OUTPUT_CAPACITY = 1 << 12;
+  /**
+   * The output buffer capacity past which the buffer is trimmed so that one
+   * large document does not pin memory for the life of the session.
+   */
+  static final int OUTPUT_HIGH_WATER_MARK = 1 << 20;
+
+  private final PolicyFactory factory;
+  private final HtmlStreamEventProcessor preprocessor;
+  private final SanitizerBudget budget;
+  private final SanitizerBudget.Meter meter = new SanitizerBudget.Meter();
+  private final StringBuilder out =
+      new StringBuilder(INITIAL_OUTPUT_CAPACITY);
+  private final HtmlStreamRenderer renderer;
+  /** The renderer, possibly wrapped to count output for the budget. */
+  private final HtmlStreamEventReceiver output;
+  /**
+   * The balancer and policy reused for each document, or null if the policy
+   * has a post-processor, so must be created afresh for each document.
+   */
+  private final @Nullable TagBalancingHtmlStreamEventReceiver balancer;
+  private final HtmlLexer lexer;
+  private final AttributeList attrs = new AttributeList();
+
+  SanitizerSession(
+      PolicyFactory factory, HtmlStreamEventProcessor preprocessor,
+      boolean canReusePolicy, SanitizerBudget budget,
+      NameTable elementNames, NameTable attributeNames) {
+    this.factory = factory;
+    this.preprocessor = preprocessor;
+    this.budget = budget;
+    meter.start(budget);
+    this.renderer = HtmlStreamRenderer.create(
+        meter.countOutput(out), Handler.PROPAGATE, Handler.DO_NOTHING);
+    this.output = meter.countText(renderer);
+    this.balancer = canReusePolicy
+        ? HtmlSanitizer.initializeBalancer(factory.apply(output))
+        : null;
+    this.lexer = new HtmlLexer("", elementNames, attributeNames);
+  }
+
+  /**
+   * Sanitizes a string of HTML.
+   * Equivalent to {@link PolicyFactory#sanitize(String)} for the factory that
+   * created this session.
+   */
+  public String sanitize(@Nullable String html) {
+    return sanitize(html, null, null);
+  }
+
+  /**
+   * Sanitizes a string of HTML and reports the names of rejected element and
+   * attributes to listener.
+   * Equivalent to
+   * {@link PolicyFactory#sanitize(String, HtmlChangeListener, Object)} for the
+   * factory that created this session.
+   * Reporting changes requires some per-document allocation, so pass a null
+   * listener when changes need not be reported.
+   */
+  public <CTX> String sanitize(
+      @Nullable String html,
+      @Nullable HtmlChangeListener<CTX> listener, @Nullable CTX context) {
+    if (html == null) { return ""; }
+    reset();
+    lexer.reset(html);
+    meter.start(budget);
+    if (listener == null) {
+      TagBalancingHtmlStreamEventReceiver docBalancer = balancer != null
+          ? balancer
+          : HtmlSanitizer.initializeBalancer(factory.apply(output));
+      HtmlSanitizer.sanitize(
+          lexer, docBalancer, preprocessor.wrap(docBalancer), attrs, meter);
+    } else {
+      TagBalancingHtmlStreamEventReceiver reportingBalancer =
+          HtmlSanitizer.initializeBalancer(
+              factory.apply(output, listener, context));
+      SanitizerBudget.Limit exceeded = HtmlSanitizer.sanitize(
+          lexer, reportingBalancer, preprocessor.wrap(reportingBalancer),
+          attrs, meter);
+      if (exceeded != null) {
+        listener.budgetExceeded(context, exceeded);
+      }
+    }
+    String result = out.toString();
+    trimOutput();
+    return result;
+  }
+
+  /**
+   * Discards any state left over from a document that was not finished, e.g.
+   * because a listener threw an exception, and releases any unusually large
+   * buffers.
+   * {@link #sanitize} calls this before each document so callers need only
+   * call it to release memory early.
+   */
+  public void reset() {
+    renderer.reset();
+    if (balancer != null) { balancer.reset(); }
+    attrs.clear();
+    lexer.reset("");
+    trimOutput();
+  }
+
+  private void trimOutput() {
+    out.setLength(0);
+    if (out.capacity() > OUTPUT_HIGH_WATER_MARK) {
+      out.trimToSize();
+      out.ensureCapacity(INITIAL_OUTPUT_CAPACITY);
+    }
+  }
+}
@@ -96,7 +96,10 @@ public final class Sanitizers {
     .allowTextIn("table")  // WIDGY
     .toFactory();
 
-  private static final AttributePolicy INTEGER = new AttributePolicy() {
+  private static final AttributePolicy INTEGER = new IntegerAttributePolicy();
+
+  private static final class IntegerAttributePolicy
+      implements AttributePolicy, PolicyFingerprint.Fingerprintable {
     public String apply(
         String elementName, String attributeName, String value) {
       int n = value.length();
@@ -112,7 +115,11 @@ public final class Sanitizers {
       }
       return value;
     }
-  };
+
+    public void fingerprint(PolicyFingerprint fp) {
+      fp.putString("integer");
+    }
+  }
 
   /**
    * Allows {@code <img>} elements from HTTP, HTTPS, and relative sources.
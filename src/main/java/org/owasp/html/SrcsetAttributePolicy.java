@@ -48,7 +48,8 @@ package org.owasp.html;
  * This policy applies the given attribute policy to URLs and emits metadata
  * as given, but normalizing spaces.
  */
-final class SrcsetAttributePolicy implements AttributePolicy {
+final class SrcsetAttributePolicy
+    implements AttributePolicy, PolicyFingerprint.Fingerprintable {
 
   private final AttributePolicy srcPolicy;
 
@@ -131,4 +132,8 @@ final class SrcsetAttributePolicy implements AttributePolicy {
     return sb.toString();
   }
 
+  public void fingerprint(PolicyFingerprint fp) {
+    fp.putString("srcset");
+    fp.putAttributePolicy(srcPolicy);
+  }
 }
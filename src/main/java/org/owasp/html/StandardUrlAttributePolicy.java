@@ -33,7 +33,8 @@ package org.owasp.html;
  * {@code http}, {@code https}, {@code mailto}.
  */
 @TCB
-final class StandardUrlAttributePolicy implements AttributePolicy {
+final class StandardUrlAttributePolicy
+    implements AttributePolicy, PolicyFingerprint.Fingerprintable {
 
   static final StandardUrlAttributePolicy INSTANCE
       = new StandardUrlAttributePolicy();
@@ -73,4 +74,8 @@ final class StandardUrlAttributePolicy implements AttributePolicy {
     return FilterUrlByProtocolAttributePolicy.normalizeUri(url);
   }
 
+  public void fingerprint(PolicyFingerprint fp) {
+    fp.putString("standard-urls");
+  }
+
 }
\ No newline at end of file
@@ -29,15 +29,23 @@
 package org.owasp.html;
 
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
 
 import org.owasp.html.AttributePolicy.JoinableAttributePolicy;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
 
 /**
  * An HTML sanitizer policy that tries to preserve simple CSS by white-listing
@@ -45,14 +53,48 @@ import com.google.common.collect.Lists;
  * ones to reduce the attack-surface.
  */
 @TCB
-final class StylingPolicy implements JoinableAttributePolicy {
+final class StylingPolicy
+    implements JoinableAttributePolicy, PolicyFingerprint.Fingerprintable {
 
   final CssSchema cssSchema;
   final Function<String, String> urlRewriter;
+  /** The bound on {@link #sharedCache}'s retained memory or 0 for none. */
+  final long sharedCacheBytes;
+  /**
+   * Sanitized styles by raw value, shared by all documents that this policy
+   * sanitizes, or null to only memoize within a document.
+   * A dropped style is cached as the empty string.
+   */
+  private final @Nullable Cache<String, String> sharedCache;
 
   StylingPolicy(CssSchema cssSchema, Function<String, String> urlRewriter) {
+    this(cssSchema, urlRewriter, 0);
+  }
+
+  /**
+   * @param sharedCacheBytes a bound on the memory retained by styles cached
+   *     across documents, estimated like {@link SanitizerCache}'s entries,
+   *     or 0 to only memoize styles within a document.
+   */
+  StylingPolicy(
+      CssSchema cssSchema, Function<String, String> urlRewriter,
+      long sharedCacheBytes) {
+    Preconditions.checkArgument(sharedCacheBytes >= 0);
     this.cssSchema = cssSchema;
     this.urlRewriter = urlRewriter;
+    this.sharedCacheBytes = sharedCacheBytes;
+    this.sharedCache = sharedCacheBytes != 0
+        ? CacheBuilder.newBuilder()
+            .maximumWeight(sharedCacheBytes)
+            .weigher(new Weigher<String, String>() {
+              public int weigh(String style, String sanitized) {
+                return Ints.saturatedCast(
+                    SanitizerCache.ENTRY_OVERHEAD_BYTES
+                    + 2L * (style.length() + sanitized.length()));
+              }
+            })
+            .build()
+        : null;
   }
 
   public @Nullable String apply(
@@ -60,6 +102,43 @@ final class StylingPolicy implements JoinableAttributePolicy {
     return value != null ? sanitizeCssProperties(value) : null;
   }
 
+  /**
+   * Like {@link #apply(String, String, String)} but reuses the result for a
+   * value already sanitized in the same document or, when this policy has a
+   * shared cache, in an earlier one.
+   * Like {@link SanitizerCache}, this assumes that the URL policy returns
+   * the same result for the same URL.
+   *
+   * @param memo the styles sanitized so far in the current document.
+   */
+  @Nullable String apply(String value, StyleMemo memo) {
+    if (value.length() > StyleMemo.MAX_VALUE_LENGTH) {
+      return sanitizeCssProperties(value);
+    }
+    String sanitized = memo.get(this, value);
+    if (sanitized == null) {
+      if (sharedCache != null) {
+        sanitized = sharedCache.getIfPresent(value);
+      }
+      if (sanitized == null) {
+        String css = sanitizeCssProperties(value);
+        // No kept style is empty, so "" can stand for a dropped one.
+        sanitized = css != null ? css : "";
+        if (sharedCache != null) {
+          sharedCache.put(value, sanitized);
+        }
+      }
+      memo.put(this, value, sanitized);
+    }
+    return sanitized.isEmpty() ? null : sanitized;
+  }
+
+  /** The number of styles in the shared cache, for tests. */
+  @VisibleForTesting
+  long sharedCacheSize() {
+    return sharedCache != null ? sharedCache.size() : 0;
+  }
+
   /**
    * Lossy filtering of CSS properties that allows textual styling that affects
    * layout, but does not allow breaking out of a clipping region, absolute
@@ -267,6 +346,76 @@ final class StylingPolicy implements JoinableAttributePolicy {
     return StylingPolicyJoinStrategy.INSTANCE;
   }
 
+  public void fingerprint(PolicyFingerprint fp) {
+    fp.putString("styling");
+    cssSchema.fingerprint(fp);
+    fp.putObject(urlRewriter);
+  }
+
+  /**
+   * The styles sanitized so far in one document, by raw value.
+   * HTML email from templating tools often repeats one style on many
+   * elements, e.g. on every cell of a table, so a document usually has few
+   * distinct styles.
+   */
+  @NotThreadSafe
+  static final class StyleMemo {
+    /** Bounds the memory that a document's memo retains. */
+    static final int MAX_ENTRIES = 256;
+    /** Longer values are rarely repeated, and costly to hash and retain. */
+    static final int MAX_VALUE_LENGTH = 1024;
+
+    /** The policy that sanitized the memoized styles. */
+    private StylingPolicy policy;
+    private final Map<String, String> sanitized = Maps.newHashMap();
+
+    @Nullable String get(StylingPolicy p, String value) {
+      return p == policy ? sanitized.get(value) : null;
+    }
+
+    void put(StylingPolicy p, String value, String css) {
+      if (p != policy) {
+        clear();
+        policy = p;
+      }
+      if (sanitized.size() < MAX_ENTRIES) {
+        sanitized.put(value, css);
+      }
+    }
+
+    int size() {
+      return sanitized.size();
+    }
+
+    void clear() {
+      policy = null;
+      sanitized.clear();
+    }
+  }
+
+  /**
+   * Rewrites URLs in CSS using a URL attribute policy, as if each were the
+   * source of an image.
+   */
+  static final class UrlPolicyRewriter
+      implements Function<String, String>, PolicyFingerprint.Fingerprintable {
+    final AttributePolicy urlPolicy;
+
+    UrlPolicyRewriter(AttributePolicy urlPolicy) {
+      this.urlPolicy = urlPolicy;
+    }
+
+    public String apply(String url) {
+      return urlPolicy.apply(
+          "img", "src", url != null ? url : "about:invalid");
+    }
+
+    public void fingerprint(PolicyFingerprint fp) {
+      fp.putString("style-urls");
+      fp.putAttributePolicy(urlPolicy);
+    }
+  }
+
   static final class StylingPolicyJoinStrategy
   implements Joinable.JoinStrategy<JoinableAttributePolicy> {
     static final StylingPolicyJoinStrategy INSTANCE =
@@ -277,8 +426,10 @@ final class StylingPolicy implements JoinableAttributePolicy {
       Function<String, String> identity = Functions.<String>identity();
       CssSchema cssSchema = null;
       Function<String, String> urlRewriter = identity;
+      long sharedCacheBytes = 0;
       for (JoinableAttributePolicy p : toJoin) {
         StylingPolicy sp = (StylingPolicy) p;
+        sharedCacheBytes = Math.max(sharedCacheBytes, sp.sharedCacheBytes);
         cssSchema = cssSchema == null
             ? sp.cssSchema : CssSchema.union(cssSchema, sp.cssSchema);
         urlRewriter = urlRewriter.equals(identity)
@@ -286,7 +437,8 @@ final class StylingPolicy implements JoinableAttributePolicy {
             ? sp.urlRewriter
             : Functions.compose(urlRewriter, sp.urlRewriter);
       }
-      return new StylingPolicy(cssSchema, urlRewriter);
+      // The joined policy sanitizes differently, so gets its own cache.
+      return new StylingPolicy(cssSchema, urlRewriter, sharedCacheBytes);
     }
 
   }
@@ -56,6 +56,9 @@ public class TagBalancingHtmlStreamEventReceiver
   private static final int A_TAG = METADATA.indexForName("a");
   private static final int BODY_TAG = METADATA.indexForName("body");
 
+  /** Holds decoded entities for {@link #isEncodedInterElementWhitespace}. */
+  private final StringBuilder decodeBuffer = new StringBuilder();
+
   private static final boolean DEBUG = false;
 
   /**
@@ -78,6 +81,39 @@ public class TagBalancingHtmlStreamEventReceiver
     this.nestingLimit = limit;
   }
 
+  /**
+   * Forgets any open elements, e.g. those left by a document that was not
+   * closed because of an exception, so this can be reused for another
+   * document.
+   */
+  void reset() {
+    openElements.clear();
+    toResumeInReverse.clear();
+  }
+
+  void saveState(SanitizerCheckpoint checkpoint) {
+    checkpoint.openElements = toArray(openElements);
+    checkpoint.toResumeInReverse = toArray(toResumeInReverse);
+  }
+
+  void restoreState(SanitizerCheckpoint checkpoint) {
+    reset();
+    for (int elIndex : checkpoint.openElements) {
+      openElements.add(elIndex);
+    }
+    for (int elIndex : checkpoint.toResumeInReverse) {
+      toResumeInReverse.add(elIndex);
+    }
+  }
+
+  private static int[] toArray(IntVector v) {
+    int[] arr = new int[v.size()];
+    for (int i = 0; i < arr.length; ++i) {
+      arr[i] = v.get(i);
+    }
+    return arr;
+  }
+
   public void openDocument() {
     underlying.openDocument();
   }
@@ -335,11 +371,63 @@ public class TagBalancingHtmlStreamEventReceiver
     return true;
   }
 
+  /**
+   * True if text received before the next tag will neither change the element
+   * stack nor reach the underlying receiver, so need not be sent at all.
+   */
+  boolean isSkippingText() {
+    int nOpen = openElements.size();
+    if (nOpen == 0 || !toResumeInReverse.isEmpty()) {
+      return false;
+    }
+    // Make sure prepareForContent(TEXT_NODE) would do nothing.
+    int top = openElements.get(nOpen - 1);
+    if (METADATA.impliedElements(top, HtmlElementTables.TEXT_NODE).length != 0
+        || !canContain(HtmlElementTables.TEXT_NODE, top, nOpen - 1)) {
+      return false;
+    }
+    return nOpen >= nestingLimit
+        || (underlying instanceof TextSkippingReceiver
+            && ((TextSkippingReceiver) underlying).isSkippingText());
+  }
+
   public void text(String text) {
     if (DEBUG) {
       dumpState("text `" + text.replace("\n", "\\n") + "`");
     }
-    boolean isInterElementWhitespace = isInterElementWhitespace(text);
+    if (prepareForText(isInterElementWhitespace(text))) {
+      underlying.text(text);
+    }
+  }
+
+  /**
+   * Like {@code text(Encoding.decodeHtml(html.substring(start, end), false))}
+   * but, when the underlying receiver is a sanitizer policy, passes the
+   * undecoded text through so that it can be decoded and encoded in one pass.
+   *
+   * @param html text/html that contains the text to decode at [start, end).
+   */
+  void encodedText(String html, int start, int end) {
+    if (!(underlying
+          instanceof ElementAndAttributePolicyBasedSanitizerPolicy)) {
+      text(Encoding.decodeHtml(html.substring(start, end), false));
+      return;
+    }
+    if (DEBUG) {
+      dumpState(
+          "text `" + html.substring(start, end).replace("\n", "\\n") + "`");
+    }
+    if (prepareForText(isEncodedInterElementWhitespace(html, start, end))) {
+      ((ElementAndAttributePolicyBasedSanitizerPolicy) underlying)
+          .encodedText(html, start, end);
+    }
+  }
+
+  /**
+   * Opens any elements needed to contain a text node.
+   * @return true if the text should be passed to the underlying receiver.
+   */
+  private boolean prepareForText(boolean isInterElementWhitespace) {
     if (isInterElementWhitespace) {
       int nOpenElements = openElements.size();
       if (nOpenElements != 0) {
@@ -349,16 +437,58 @@ public class TagBalancingHtmlStreamEventReceiver
             // needed.  If it is, then skip the inter-element space and don't
             // manufacture a node.
             || METADATA.impliedElements(top, A_TAG).length != 0) {
-          return;
+          return false;
         }
       }
     } else {
       prepareForContent(HtmlElementTables.TEXT_NODE);
     }
 
-    if (openElements.size() < nestingLimit) {
-      underlying.text(text);
+    return openElements.size() < nestingLimit;
+  }
+
+  /**
+   * {@code isInterElementWhitespace(Encoding.decodeHtml(html.substring(start, end), false))}
+   * but without decoding more than the entities at the front of the text
+   * in the common case where the text is not all whitespace.
+   */
+  private boolean isEncodedInterElementWhitespace(
+      String html, int start, int end) {
+    for (int i = start; i < end;) {
+      char ch = html.charAt(i);
+      if (Strings.isHtmlSpace(ch)) {
+        ++i;
+      } else if (ch == '&') {
+        decodeBuffer.setLength(0);
+        i = HtmlEntities.appendDecodedEntity(
+            html, i, end, false, decodeBuffer);
+        for (int j = 0, n = decodeBuffer.length(); j < n; ++j) {
+          char decoded = decodeBuffer.charAt(j);
+          if (!Strings.isHtmlSpace(decoded)) {
+            if (isKeptCodeunit(decoded)) { return false; }
+            // Decoding may strip the char, so decode it all to be sure.
+            return isInterElementWhitespace(
+                Encoding.decodeHtml(html.substring(start, end), false));
+          }
+        }
+      } else if (isKeptCodeunit(ch)
+                 || (i + 1 < end
+                     && Character.isSurrogatePair(ch, html.charAt(i + 1)))) {
+        return false;
+      } else {
+        return isInterElementWhitespace(
+            Encoding.decodeHtml(html.substring(start, end), false));
+      }
     }
+    return true;
+  }
+
+  /**
+   * True for code-units that {@link Encoding#decodeHtml} never strips
+   * regardless of what surrounds them.
+   */
+  private static boolean isKeptCodeunit(char ch) {
+    return ch >= 0x20 && (ch < 0xd800 || (0xe000 <= ch && ch < 0xfffe));
   }
 
   private static boolean isHeaderElement(int elIndex) {
@@ -1,4 +1,4 @@
-// Copyright (c) 2011, Mike Samuel
+// Copyright (c) 2019, Mike Samuel
 // All rights reserved.
 //
 // Redistribution and use in source and binary forms, with or without
@@ -28,7 +28,14 @@
 
 package org.owasp.html;
 
-interface TokenStream {
-  HtmlToken next();
-  boolean hasNext();
+/**
+ * A receiver that can tell the sanitizer that it will ignore text, so that
+ * the lexer can scan past text that would be dropped instead of lexing and
+ * decoding it.
+ */
+interface TextSkippingReceiver extends HtmlStreamEventReceiver {
+  /**
+   * True if all text received before the next tag event will be ignored.
+   */
+  boolean isSkippingText();
 }
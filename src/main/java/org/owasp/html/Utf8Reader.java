@@ -0,0 +1,179 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Decodes UTF-8 bytes straight from a buffer into the lexer's window so that
+ * sanitizing bytes needs neither a decoded copy of the whole input nor the
+ * intermediate byte buffer that an {@link java.io.InputStreamReader} keeps.
+ * <p>
+ * Malformed input is replaced with U+FFFD exactly as
+ * {@code new String(bytes, UTF_8)} would.
+ * <p>
+ * A file is read by mapping it into memory one region at a time, so only
+ * the page cache, not the heap, holds the input.
+ */
+final class Utf8Reader extends Reader {
+  /**
+   * The size of the regions of a file that are mapped at one time.
+   * Large enough that mapping overhead is negligible, and small enough that
+   * address space is not a concern.
+   */
+  static final int DEFAULT_MAP_SIZE = 1 << 26;
+
+  /** The bytes being decoded. */
+  private ByteBuffer bytes;
+  /** Null or the file from which bytes are mapped. */
+  private final @Nullable FileChannel file;
+  private final long fileSize;
+  private final int mapSize;
+  /** The offset in file of the start of bytes. */
+  private long mappedStart;
+  private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  /**
+   * Holds the second half of a surrogate pair that did not fit in the
+   * caller's buffer.
+   */
+  private final CharBuffer pending = CharBuffer.allocate(2);
+  private boolean flushed;
+
+  /**
+   * @param utf8 the bytes between its position and limit are read.
+   *     Its position is not changed.
+   */
+  Utf8Reader(ByteBuffer utf8) {
+    this.bytes = utf8.slice();
+    this.file = null;
+    this.fileSize = 0;
+    this.mapSize = 0;
+    pending.flip();
+  }
+
+  /**
+   * @param file read from its current position to its end.  It is not
+   *     closed.
+   * @param mapSize the size of the regions mapped at one time.
+   */
+  Utf8Reader(FileChannel file, int mapSize) throws IOException {
+    // Leave room for the bytes of an incomplete sequence carried over from
+    // the previous region plus at least one more.
+    Preconditions.checkArgument(mapSize >= 4);
+    this.file = file;
+    this.fileSize = file.size();
+    this.mapSize = mapSize;
+    this.mappedStart = file.position();
+    this.bytes = ByteBuffer.allocate(0);
+    pending.flip();
+  }
+
+  /** True if there are no bytes after the end of {@link #bytes}. */
+  private boolean isLastRegion() {
+    return file == null || mappedStart + bytes.limit() >= fileSize;
+  }
+
+  /**
+   * Maps the next region of the file, starting with any bytes of an
+   * incomplete sequence at the end of the current region.
+   */
+  private void mapNextRegion() throws IOException {
+    mappedStart += bytes.position();
+    bytes = file.map(
+        FileChannel.MapMode.READ_ONLY, mappedStart,
+        Math.min(mapSize, fileSize - mappedStart));
+  }
+
+  /**
+   * Decodes as much as fits into out, mapping more of the file as needed.
+   * @return the result of the last decode, which is never an underflow
+   *     unless the input is exhausted.
+   */
+  private CoderResult decode(CharBuffer out) throws IOException {
+    while (true) {
+      boolean endOfInput = isLastRegion();
+      CoderResult result = decoder.decode(bytes, out, endOfInput);
+      if (!result.isUnderflow() || endOfInput) {
+        return result;
+      }
+      mapNextRegion();
+    }
+  }
+
+  @Override
+  public int read(char[] cbuf, int off, int len) throws IOException {
+    if (len == 0) { return 0; }
+    CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+    if (pending.hasRemaining()) {
+      out.put(pending.get());
+    }
+    while (out.hasRemaining() && !flushed) {
+      CoderResult result = decode(out);
+      if (result.isUnderflow()) {
+        if (decoder.flush(out).isUnderflow()) {
+          flushed = true;
+        }
+      } else if (result.isOverflow()) {
+        if (out.hasRemaining()) {
+          // A supplementary code-point needs two chars but there is room for
+          // only one, so decode it on the side.
+          pending.clear();
+          decode(pending);
+          pending.flip();
+          out.put(pending.get());
+        }
+        break;
+      } else {
+        // Errors are replaced, so this should not happen.
+        throw new IllegalStateException(result.toString());
+      }
+    }
+    int nRead = out.position() - off;
+    return nRead == 0 ? -1 : nRead;
+  }
+
+  @Override
+  public void close() {
+    // Nothing to release.
+  }
+}
@@ -0,0 +1,251 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import javax.annotation.Nullable;
+import javax.annotation.WillCloseWhenClosed;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An output buffer for {@link HtmlStreamRenderer} that encodes sanitized HTML
+ * as UTF-8 straight into a byte buffer, and writes the bytes to an output
+ * stream or channel whenever the buffer fills and when flushed.
+ * <p>
+ * This lets sanitized HTML be written to an HTTP response or a blob store
+ * without first building a {@code String} and then encoding that.
+ * <pre>
+ * try (Utf8Sink sink = new Utf8Sink(response.getOutputStream())) {
+ *   policyFactory.sanitize(new StringReader(html), sink);
+ * }
+ * </pre>
+ * <p>
+ * Orphaned surrogates are encoded as {@code '?'} just as
+ * {@code String.getBytes(UTF_8)} does.
+ */
+@NotThreadSafe
+public final class Utf8Sink implements Appendable, Flushable, Closeable {
+  /** The size of buffers allocated when the caller does not supply one. */
+  static final int DEFAULT_BUFFER_SIZE = 8192;
+
+  private final @Nullable OutputStream stream;
+  private final @Nullable WritableByteChannel channel;
+  /** Holds encoded bytes that have not yet been written. */
+  private final ByteBuffer buffer;
+  /** A high surrogate whose low surrogate has not been appended yet, or 0. */
+  private char pendingHighSurrogate;
+
+  /** A sink that writes to out. */
+  public Utf8Sink(@WillCloseWhenClosed OutputStream out) {
+    this(out, new byte[DEFAULT_BUFFER_SIZE]);
+  }
+
+  /**
+   * A sink that writes to out and buffers in the given array, e.g. one
+   * borrowed from a pool.
+   * @param buffer at least 4 bytes long.  The sink owns it until closed.
+   */
+  public Utf8Sink(@WillCloseWhenClosed OutputStream out, byte[] buffer) {
+    this(Preconditions.checkNotNull(out), null, ByteBuffer.wrap(buffer));
+  }
+
+  /** A sink that writes to out via a direct buffer. */
+  public Utf8Sink(@WillCloseWhenClosed WritableByteChannel out) {
+    this(out, ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE));
+  }
+
+  /**
+   * A sink that writes to out and buffers in the given buffer, e.g. a
+   * direct buffer borrowed from a pool.
+   * @param buffer with at least 4 bytes of capacity.  It is cleared before
+   *     use, and the sink owns it until closed.
+   */
+  public Utf8Sink(
+      @WillCloseWhenClosed WritableByteChannel out, ByteBuffer buffer) {
+    this(null, Preconditions.checkNotNull(out), buffer);
+  }
+
+  private Utf8Sink(
+      @Nullable OutputStream stream, @Nullable WritableByteChannel channel,
+      ByteBuffer buffer) {
+    Preconditions.checkArgument(buffer.capacity() >= 4);
+    this.stream = stream;
+    this.channel = channel;
+    this.buffer = buffer;
+    buffer.clear();
+  }
+
+  public Utf8Sink append(@Nullable CharSequence csq) throws IOException {
+    if (csq == null) { csq = "null"; }
+    return append(csq, 0, csq.length());
+  }
+
+  public Utf8Sink append(@Nullable CharSequence csq, int start, int end)
+      throws IOException {
+    if (csq == null) { csq = "null"; }
+    ByteBuffer buf = buffer;
+    int i = start;
+    if (pendingHighSurrogate != 0 && i < end) {
+      encodePendingSurrogate(csq.charAt(i));
+      if (Character.isLowSurrogate(csq.charAt(i))) { ++i; }
+    }
+    while (i < end) {
+      // Markup and most text is ASCII, so copy runs of it with one check
+      // per char.
+      int asciiEnd = Math.min(end, i + buf.remaining());
+      if (buf.hasArray()) {
+        int pos = buf.position();
+        int n = AsciiRuns.copyAscii(
+            csq, i, buf.array(), buf.arrayOffset() + pos, asciiEnd - i);
+        buf.position(pos + n);
+        i += n;
+      } else {
+        while (i < asciiEnd) {
+          char c = csq.charAt(i);
+          if (c >= 0x80) { break; }
+          buf.put((byte) c);
+          ++i;
+        }
+      }
+      if (i == end) { break; }
+      if (buf.remaining() < 4) {
+        drain();
+        continue;
+      }
+      char c = csq.charAt(i++);
+      if (c < 0x80) {
+        buf.put((byte) c);
+      } else if (c < 0x800) {
+        buf.put((byte) (0xc0 | (c >>> 6)));
+        buf.put((byte) (0x80 | (c & 0x3f)));
+      } else if (Character.isHighSurrogate(c)) {
+        if (i == end) {
+          // The low surrogate may come in the next append.
+          pendingHighSurrogate = c;
+        } else {
+          char d = csq.charAt(i);
+          if (Character.isLowSurrogate(d)) {
+            encodeCodePoint(Character.toCodePoint(c, d));
+            ++i;
+          } else {
+            buf.put((byte) '?');
+          }
+        }
+      } else if (Character.isLowSurrogate(c)) {
+        buf.put((byte) '?');
+      } else {
+        buf.put((byte) (0xe0 | (c >>> 12)));
+        buf.put((byte) (0x80 | ((c >>> 6) & 0x3f)));
+        buf.put((byte) (0x80 | (c & 0x3f)));
+      }
+    }
+    return this;
+  }
+
+  public Utf8Sink append(char c) throws IOException {
+    if (c < 0x80 && pendingHighSurrogate == 0 && buffer.hasRemaining()) {
+      buffer.put((byte) c);
+      return this;
+    }
+    return append(String.valueOf(c), 0, 1);
+  }
+
+  /** Encodes the pending high surrogate given the char that follows it. */
+  private void encodePendingSurrogate(char next) throws IOException {
+    if (buffer.remaining() < 4) { drain(); }
+    char high = pendingHighSurrogate;
+    pendingHighSurrogate = 0;
+    if (Character.isLowSurrogate(next)) {
+      encodeCodePoint(Character.toCodePoint(high, next));
+    } else {
+      buffer.put((byte) '?');
+    }
+  }
+
+  private void encodeCodePoint(int cp) {
+    buffer.put((byte) (0xf0 | (cp >>> 18)));
+    buffer.put((byte) (0x80 | ((cp >>> 12) & 0x3f)));
+    buffer.put((byte) (0x80 | ((cp >>> 6) & 0x3f)));
+    buffer.put((byte) (0x80 | (cp & 0x3f)));
+  }
+
+  /** Writes buffered bytes to the output. */
+  private void drain() throws IOException {
+    buffer.flip();
+    if (stream != null) {
+      stream.write(
+          buffer.array(), buffer.arrayOffset() + buffer.position(),
+          buffer.remaining());
+    } else {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+    buffer.clear();
+  }
+
+  /**
+   * Writes all buffered bytes to the output, and flushes the output if it is
+   * an output stream.
+   * A high surrogate at the end of the last append is held back in case the
+   * next append starts with its low surrogate.
+   */
+  public void flush() throws IOException {
+    drain();
+    if (stream != null) {
+      stream.flush();
+    }
+  }
+
+  /** Flushes and closes the output. */
+  public void close() throws IOException {
+    try {
+      if (pendingHighSurrogate != 0) {
+        pendingHighSurrogate = 0;
+        if (!buffer.hasRemaining()) { drain(); }
+        buffer.put((byte) '?');
+      }
+      flush();
+    } finally {
+      if (stream != null) {
+        stream.close();
+      } else {
+        channel.close();
+      }
+    }
+  }
+}
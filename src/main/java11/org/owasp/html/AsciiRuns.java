@@ -0,0 +1,76 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+/**
+ * Copies runs of ASCII text in bulk where the JDK allows.
+ * <p>
+ * This is the JDK 11 version, which the multi-release jar uses in place of
+ * the Java 8 version in {@code src/main/java}.
+ * Since JDK 9, a string whose chars are all Latin-1 stores them as bytes, so
+ * once the run of ASCII chars is known, {@link String#getBytes(int, int,
+ * byte[], int)} copies it with {@link System#arraycopy}.
+ * On Java 8 that method copies a char at a time, so the extra pass to find
+ * the end of the run would only cost time.
+ * The two must have the same API and behave the same.
+ */
+final class AsciiRuns {
+
+  private AsciiRuns() {
+    // Static API.
+  }
+
+  /**
+   * Copies chars from src to dst as bytes until a char is not ASCII.
+   *
+   * @param start the index in src of the first char to copy.
+   * @param off the index in dst of the first byte to write.
+   * @param len the most chars to copy.
+   * @return the number of chars copied, which is less than len only if
+   *     {@code src.charAt(start + result) >= 0x80}.
+   */
+  @SuppressWarnings("deprecation")  // getBytes is exact for ASCII.
+  static int copyAscii(
+      CharSequence src, int start, byte[] dst, int off, int len) {
+    if (src instanceof String) {
+      String s = (String) src;
+      int n = 0;
+      while (n < len && s.charAt(start + n) < 0x80) { ++n; }
+      s.getBytes(start, start + n, dst, off);
+      return n;
+    }
+    int i = 0;
+    for (; i < len; ++i) {
+      char c = src.charAt(start + i);
+      if (c >= 0x80) { break; }
+      dst[off + i] = (byte) c;
+    }
+    return i;
+  }
+}
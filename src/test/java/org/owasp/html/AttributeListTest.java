@@ -0,0 +1,228 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Random;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class AttributeListTest extends TestCase {
+
+  @Test
+  public static void testAttributeList() {
+    Random r = new Random(0x5E3D0C9A7B2F4411L);
+
+    AttributeList al = new AttributeList();
+    List<String> ad = new ArrayList<String>();
+
+    for (int i = 0; i < 200000; ++i) {
+      switch (r.nextInt(6)) {
+        case 0: case 1: {
+          String el = "v" + r.nextInt(100);
+          int ix = r.nextInt(ad.size() + 1);
+          al.add(ix, el);
+          ad.add(ix, el);
+          break;
+        }
+        case 2:
+          if (ad.isEmpty()) {
+            assertTrue(al.isEmpty());
+          } else {
+            int ix = r.nextInt(ad.size());
+            assertEquals(ad.remove(ix), al.remove(ix));
+          }
+          break;
+        case 3:
+          if (!ad.isEmpty()) {
+            int ix = r.nextInt(ad.size());
+            String el = "s" + r.nextInt(100);
+            assertEquals(ad.set(ix, el), al.set(ix, el));
+          }
+          break;
+        case 4: {
+          int start = r.nextInt(ad.size() + 1);
+          int end = start + r.nextInt(ad.size() - start + 1);
+          if (r.nextInt(8) == 0) {
+            ad.subList(start, end).clear();
+            al.subList(start, end).clear();
+          }
+          break;
+        }
+        case 5:
+          if (r.nextInt(1000) == 0) {
+            ad.clear();
+            al.clear();
+          }
+          break;
+      }
+      assertEquals(ad.size(), al.size());
+      if (!ad.isEmpty()) {
+        int ix = r.nextInt(ad.size());
+        assertEquals(ad.get(ix), al.get(ix));
+      }
+    }
+    assertEquals(ad, al);
+  }
+
+  @Test
+  public static void testFilteringWithListIterator() {
+    AttributeList attrs = new AttributeList();
+    for (int run = 0; run < 3; ++run) {
+      // The list is reused from one tag to the next.
+      attrs.clear();
+      for (int i = 0; i < 100; ++i) {
+        attrs.addAttribute("n" + i, "v" + i);
+      }
+      // Remove attributes the way ElementAndAttributePolicyBasedSanitizerPolicy
+      // does.
+      for (ListIterator<String> it = attrs.listIterator(); it.hasNext();) {
+        String name = it.next();
+        int i = Integer.parseInt(name.substring(1));
+        if (i % 3 == 0) {
+          it.remove();
+          it.next();
+          it.remove();
+        } else if (i % 3 == 1) {
+          it.next();
+          it.remove();
+          it.previous();
+          it.remove();
+        } else {
+          it.next();
+          it.set("w" + i);
+        }
+      }
+      assertEquals(33, attrs.getAttributeCount());
+      for (int i = 0; i < 33; ++i) {
+        int j = 3 * i + 2;
+        assertEquals("n" + j, attrs.getName(i));
+        assertEquals("w" + j, attrs.getValue(i));
+      }
+    }
+  }
+
+  @Test
+  public static void testRawValues() {
+    AttributeList attrs = new AttributeList();
+    for (int i = 0; i < 40; ++i) {
+      attrs.add("title");
+      attrs.addRawValue("\"" + i + "&amp;&lt;\"");
+    }
+    attrs.add("alt");
+    attrs.addRawValue("x&quot;y");
+    attrs.add("class");
+    attrs.addRawValue("foo'");
+    // Moving the gap around must keep track of which values are raw.
+    attrs.subList(2, 78).clear();
+    attrs.add(2, "id");
+    attrs.add(3, "'bar'");
+    assertEquals(
+        "[title, 0&<, id, 'bar', title, 39&<, alt, x\"y, class, foo]",
+        attrs.toString());
+  }
+
+  @Test
+  public static void testListIteratorLikeArrayList() {
+    Random r = new Random(0x17e7a7025L);
+    AttributeList al = new AttributeList();
+    List<String> ad = new ArrayList<String>();
+    for (int i = 0; i < 50; ++i) {
+      if (r.nextBoolean()) {
+        al.addRawValue("'" + i + "&amp;'");
+        ad.add(i + "&");
+      } else {
+        al.add("v" + i);
+        ad.add("v" + i);
+      }
+    }
+    ListIterator<String> ait = al.listIterator(r.nextInt(al.size() + 1));
+    ListIterator<String> dit = ad.listIterator(ait.nextIndex());
+    boolean canModify = false;
+    for (int i = 0; i < 20000; ++i) {
+      assertEquals(dit.nextIndex(), ait.nextIndex());
+      assertEquals(dit.hasNext(), ait.hasNext());
+      assertEquals(dit.hasPrevious(), ait.hasPrevious());
+      switch (r.nextInt(5)) {
+        case 0:
+          if (dit.hasNext()) {
+            assertEquals(dit.next(), ait.next());
+            canModify = true;
+          }
+          break;
+        case 1:
+          if (dit.hasPrevious()) {
+            assertEquals(dit.previous(), ait.previous());
+            canModify = true;
+          }
+          break;
+        case 2:
+          if (canModify) {
+            dit.remove();
+            ait.remove();
+            canModify = false;
+          }
+          break;
+        case 3:
+          if (canModify) {
+            dit.set("s" + i);
+            ait.set("s" + i);
+          }
+          break;
+        default:
+          dit.add("a" + i);
+          ait.add("a" + i);
+          canModify = false;
+          break;
+      }
+    }
+    assertEquals(ad, al);
+    try {
+      ait.remove();
+      ait.remove();
+      fail();
+    } catch (IllegalStateException ex) {
+      // Expected.
+    }
+    ListIterator<String> stale = al.listIterator();
+    al.add("x");
+    try {
+      stale.next();
+      fail();
+    } catch (ConcurrentModificationException ex) {
+      // Expected.
+    }
+  }
+}
@@ -0,0 +1,163 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class BatchSanitizerTest extends TestCase {
+
+  private static final PolicyFactory POLICY = Sanitizers.FORMATTING
+      .and(Sanitizers.LINKS)
+      .and(Sanitizers.BLOCKS);
+
+  private static List<String> documents() {
+    Random rnd = new Random(0x5eed);
+    String[] parts = {
+      "<b>", "</b>", "<i>", "<p>", "</p>", "text", " & ", "<script>x</script>",
+      "<a href=http://example.com/ onclick=evil()>", "</a>", "<div>",
+    };
+    List<String> docs = new ArrayList<String>();
+    for (int i = 0; i < 200; ++i) {
+      // Mostly small documents with the occasional giant.
+      int nParts = i % 37 == 5 ? 5000 : rnd.nextInt(50);
+      StringBuilder sb = new StringBuilder("doc" + i);
+      for (int j = 0; j < nParts; ++j) {
+        sb.append(parts[rnd.nextInt(parts.length)]);
+      }
+      docs.add(sb.toString());
+    }
+    docs.add(null);
+    return docs;
+  }
+
+  private static List<String> sanitizeSerially(List<String> docs) {
+    List<String> expected = new ArrayList<String>();
+    for (String doc : docs) {
+      expected.add(POLICY.sanitize(doc));
+    }
+    return expected;
+  }
+
+  @Test
+  public static final void testCommonPool() {
+    List<String> docs = documents();
+    assertEquals(sanitizeSerially(docs), POLICY.sanitizeAll(docs));
+    assertEquals(
+        Collections.emptyList(),
+        POLICY.sanitizeAll(Collections.<String>emptyList()));
+  }
+
+  @Test
+  public static final void testExecutorWithListener() {
+    List<String> docs = documents();
+    List<List<String>> expectedChanges = new ArrayList<List<String>>();
+    List<List<String>> actualChanges = new ArrayList<List<String>>();
+    List<String> expected = new ArrayList<String>();
+    for (String doc : docs) {
+      List<String> changes = Lists.newArrayList();
+      expected.add(POLICY.sanitize(doc, new RecordingListener(), changes));
+      expectedChanges.add(changes);
+      actualChanges.add(Lists.<String>newArrayList());
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      assertEquals(
+          expected,
+          POLICY.sanitizeAll(
+              docs, new RecordingListener(), actualChanges, executor));
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(expectedChanges, actualChanges);
+  }
+
+  @Test
+  public static final void testExecutorFailure() {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    HtmlChangeListener<Object> throwingListener =
+        new HtmlChangeListener<Object>() {
+          public void discardedTag(Object context, String elementName) {
+            throw new IllegalStateException(elementName);
+          }
+
+          public void discardedAttributes(
+              Object context, String tagName, String... attributeNames) {
+            // Ignored
+          }
+        };
+    try {
+      POLICY.sanitizeAll(
+          documents(), throwingListener, null, executor);
+      fail();
+    } catch (IllegalStateException ex) {
+      assertEquals("script", ex.getMessage());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public static final void testSpliterator() {
+    List<String> docs = documents();
+    docs.remove(null);
+    assertEquals(
+        sanitizeSerially(docs),
+        StreamSupport.stream(POLICY.sanitizeAll(docs.spliterator()), true)
+        .collect(Collectors.toList()));
+  }
+
+  private static final class RecordingListener
+      implements HtmlChangeListener<List<String>> {
+    public void discardedTag(List<String> context, String elementName) {
+      context.add(elementName);
+    }
+
+    public void discardedAttributes(
+        List<String> context, String tagName, String... attributeNames) {
+      context.add(tagName);
+      for (String attributeName : attributeNames) {
+        context.add(tagName + "." + attributeName);
+      }
+    }
+  }
+}
@@ -29,6 +29,7 @@
 package org.owasp.html;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.StringReader;
 import java.util.List;
 import java.util.ListIterator;
@@ -37,6 +38,8 @@ import org.w3c.dom.Node;
 import org.xml.sax.InputSource;
 
 import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
 import com.google.common.io.Files;
 
 import nu.validator.htmlparser.dom.HtmlDocumentBuilder;
@@ -55,8 +58,23 @@ public class Benchmark {
 
   /**
    * By default times all alternatives.
-   * If there is an input of the form {@code /[hsp]+/} then each letter
+   * If there is an input of the form {@code /[hspkldecfuw]+/} then each letter
    * specifies a benchmark to run and unspecified ones are not run.
+   * The lexer-only benchmarks, {@code k} and {@code l}, compare
+   * {@link LegacyHtmlInputSplitter} with {@link HtmlInputSplitter}.
+   * The decode-only benchmarks, {@code d} and {@code e}, compare
+   * {@link LegacyHtmlEntities} with {@link HtmlEntities}, and are most
+   * telling on entity-dense inputs like
+   * {@code src/test/resources/benchmark-data/entities.html}.
+   * The encode-only benchmarks, {@code c} and {@code f}, compare
+   * {@link LegacyEncoding} with {@link Encoding}.
+   * The UTF-8 output benchmark, {@code u}, writes the input to a
+   * {@link Utf8Sink}.  To compare the Java 8 and JDK 11 versions of
+   * {@link AsciiRuns}, run it from the multi-release jar on JDK 11 or later
+   * with and without {@code -Djdk.util.jar.enableMultiRelease=false}.
+   * The long tag benchmark, {@code w}, ignores the input and lexes tags with
+   * unquoted attribute values of 8K and 64K words, which should take about
+   * eight times as long, not 64.
    */
   public static void main(String[] args) throws Exception {
     String html = Files.asCharSource(new File(args[0]), Charsets.UTF_8).read();
@@ -64,12 +82,28 @@ public class Benchmark {
     boolean timeLibhtmlparser = true;
     boolean timeSanitize = true;
     boolean timePolicyBuilder = true;
+    boolean timeLegacySplitter = true;
+    boolean timeSplitter = true;
+    boolean timeLegacyDecoder = true;
+    boolean timeDecoder = true;
+    boolean timeLegacyEncoder = true;
+    boolean timeEncoder = true;
+    boolean timeUtf8Sink = true;
+    boolean timeLongTags = true;
 
     if (args.length > 1) {
       String s = args[1];
       timeLibhtmlparser = s.contains("h");
       timeSanitize = s.contains("s");
       timePolicyBuilder = s.contains("p");
+      timeLegacySplitter = s.contains("k");
+      timeSplitter = s.contains("l");
+      timeLegacyDecoder = s.contains("d");
+      timeDecoder = s.contains("e");
+      timeLegacyEncoder = s.contains("c");
+      timeEncoder = s.contains("f");
+      timeUtf8Sink = s.contains("u");
+      timeLongTags = s.contains("w");
     }
 
     int n = 0;  // Defeat optimizations.
@@ -92,6 +126,56 @@ public class Benchmark {
       }
     }
 
+    if (timeLegacySplitter) {
+      for (int i = 100; --i >= 0;) {
+        n += splitUsingLegacySplitter(html);
+      }
+    }
+
+    if (timeSplitter) {
+      for (int i = 100; --i >= 0;) {
+        n += split(html);
+      }
+    }
+
+    if (timeLegacyDecoder) {
+      for (int i = 100; --i >= 0;) {
+        n += decode(html, true);
+      }
+    }
+
+    if (timeDecoder) {
+      for (int i = 100; --i >= 0;) {
+        n += decode(html, false);
+      }
+    }
+
+    if (timeLegacyEncoder) {
+      for (int i = 100; --i >= 0;) {
+        n += encode(html, true);
+      }
+    }
+
+    if (timeEncoder) {
+      for (int i = 100; --i >= 0;) {
+        n += encode(html, false);
+      }
+    }
+
+    if (timeUtf8Sink) {
+      for (int i = 100; --i >= 0;) {
+        n += writeUtf8(html);
+      }
+    }
+
+    String smallTag = tagWithWords(1 << 13);
+    String largeTag = tagWithWords(1 << 16);
+    if (timeLongTags) {
+      for (int i = 100; --i >= 0;) {
+        n += lex(smallTag) + lex(largeTag);
+      }
+    }
+
     long t0 = 0, t1 = -1;
     if (timeLibhtmlparser) {
       t0 = System.nanoTime();
@@ -119,6 +203,82 @@ public class Benchmark {
       t5 = System.nanoTime();
     }
 
+    long t6 = 0, t7 = -1;
+    if (timeLegacySplitter) {
+      t6 = System.nanoTime();
+      for (int i = 100; --i >= 0;) {
+        n += splitUsingLegacySplitter(html);
+      }
+      t7 = System.nanoTime();
+    }
+
+    long t8 = 0, t9 = -1;
+    if (timeSplitter) {
+      t8 = System.nanoTime();
+      for (int i = 100; --i >= 0;) {
+        n += split(html);
+      }
+      t9 = System.nanoTime();
+    }
+
+    long t10 = 0, t11 = -1;
+    if (timeLegacyDecoder) {
+      t10 = System.nanoTime();
+      for (int i = 100; --i >= 0;) {
+        n += decode(html, true);
+      }
+      t11 = System.nanoTime();
+    }
+
+    long t12 = 0, t13 = -1;
+    if (timeDecoder) {
+      t12 = System.nanoTime();
+      for (int i = 100; --i >= 0;) {
+        n += decode(html, false);
+      }
+      t13 = System.nanoTime();
+    }
+
+    long t14 = 0, t15 = -1;
+    if (timeLegacyEncoder) {
+      t14 = System.nanoTime();
+      for (int i = 100; --i >= 0;) {
+        n += encode(html, true);
+      }
+      t15 = System.nanoTime();
+    }
+
+    long t16 = 0, t17 = -1;
+    if (timeEncoder) {
+      t16 = System.nanoTime();
+      for (int i = 100; --i >= 0;) {
+        n += encode(html, false);
+      }
+      t17 = System.nanoTime();
+    }
+
+    long t18 = 0, t19 = -1;
+    if (timeUtf8Sink) {
+      t18 = System.nanoTime();
+      for (int i = 100; --i >= 0;) {
+        n += writeUtf8(html);
+      }
+      t19 = System.nanoTime();
+    }
+
+    long t20 = 0, t21 = -1, t22 = -1;
+    if (timeLongTags) {
+      t20 = System.nanoTime();
+      for (int i = 100; --i >= 0;) {
+        n += lex(smallTag);
+      }
+      t21 = System.nanoTime();
+      for (int i = 100; --i >= 0;) {
+        n += lex(largeTag);
+      }
+      t22 = System.nanoTime();
+    }
+
     // Defeat optimization by using n.
     if (n < 0) {
       throw new AssertionError("Oh noes underflow");
@@ -136,6 +296,40 @@ public class Benchmark {
       System.err.println(String.format(
           "Full sanitize w/ PB  : %12d", (t5 - t4)));
     }
+    if (timeLegacySplitter) {
+      System.err.println(String.format(
+          "Lex only legacy      : %12d", (t7 - t6)));
+    }
+    if (timeSplitter) {
+      System.err.println(String.format(
+          "Lex only             : %12d", (t9 - t8)));
+    }
+    if (timeLegacyDecoder) {
+      System.err.println(String.format(
+          "Decode only legacy   : %12d", (t11 - t10)));
+    }
+    if (timeDecoder) {
+      System.err.println(String.format(
+          "Decode only          : %12d", (t13 - t12)));
+    }
+    if (timeLegacyEncoder) {
+      System.err.println(String.format(
+          "Encode only legacy   : %12d", (t15 - t14)));
+    }
+    if (timeEncoder) {
+      System.err.println(String.format(
+          "Encode only          : %12d", (t17 - t16)));
+    }
+    if (timeUtf8Sink) {
+      System.err.println(String.format(
+          "UTF-8 output only    : %12d", (t19 - t18)));
+    }
+    if (timeLongTags) {
+      System.err.println(String.format(
+          "Lex 8K word tag      : %12d", (t21 - t20)));
+      System.err.println(String.format(
+          "Lex 64K word tag     : %12d", (t22 - t21)));
+    }
   }
 
   private static int parseUsingLibhtmlparser(String html) throws Exception {
@@ -144,6 +338,71 @@ public class Benchmark {
     return System.identityHashCode(node) >> 24;
   }
 
+  private static int splitUsingLegacySplitter(String html) {
+    LegacyHtmlInputSplitter splitter = new LegacyHtmlInputSplitter(html);
+    int nTokens = 0;
+    while (splitter.nextToken() >= 0) { ++nTokens; }
+    return nTokens;
+  }
+
+  private static String tagWithWords(int nWords) {
+    StringBuilder sb = new StringBuilder("<a title=");
+    for (int i = 0; i < nWords; ++i) {
+      sb.append("x ");
+    }
+    return sb.append(">").toString();
+  }
+
+  private static int lex(String html) {
+    HtmlLexer lexer = new HtmlLexer(html);
+    int nTokens = 0;
+    while (lexer.advance()) { ++nTokens; }
+    return nTokens;
+  }
+
+  private static int split(String html) {
+    HtmlInputSplitter splitter = new HtmlInputSplitter(
+        html, NameTable.ELEMENTS);
+    int nTokens = 0;
+    while (splitter.nextToken() >= 0) { ++nTokens; }
+    return nTokens;
+  }
+
+  private static int decode(String html, boolean legacy) {
+    StringBuilder sb = new StringBuilder(html.length());
+    for (int i = 0, n = html.length(); i < n;) {
+      char ch = html.charAt(i);
+      if (ch != '&') {
+        sb.append(ch);
+        ++i;
+      } else if (legacy) {
+        i = LegacyHtmlEntities.appendDecodedEntity(html, i, n, false, sb);
+      } else {
+        i = HtmlEntities.appendDecodedEntity(html, i, n, false, sb);
+      }
+    }
+    return sb.length();
+  }
+
+  private static int encode(String html, boolean legacy) throws IOException {
+    StringBuilder sb = new StringBuilder(html.length() * 2);
+    if (legacy) {
+      LegacyEncoding.encodePcdataOnto(html, sb);
+    } else {
+      Encoding.encodePcdataOnto(html, sb);
+    }
+    return sb.length();
+  }
+
+  private static int writeUtf8(String html) throws IOException {
+    CountingOutputStream bytes = new CountingOutputStream(
+        ByteStreams.nullOutputStream());
+    try (Utf8Sink sink = new Utf8Sink(bytes)) {
+      sink.append(html);
+    }
+    return (int) bytes.getCount();
+  }
+
   private static String sanitize(String html) {
     StringBuilder sb = new StringBuilder(html.length());
 
@@ -0,0 +1,138 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * Checks that a {@link DoubleArrayTrie} finds the same states as a
+ * {@link Trie} built from the same keys.
+ * The random key sets are stochastic; to repeat a failure, set the system
+ * property "junit.seed" to the seed in the failure message.
+ */
+@SuppressWarnings("javadoc")
+public class DoubleArrayTrieTest extends FuzzyTestCase {
+
+  @Test
+  public final void testSmallTrie() {
+    DoubleArrayTrie<String> t = new DoubleArrayTrie<String>(ImmutableMap.of(
+        "a", "A", "ab", "AB", "abc", "ABC", "b", "B", "ba;", "BA"));
+    int a = t.next(DoubleArrayTrie.ROOT, 'a');
+    assertTrue(a >= 0);
+    assertTrue(t.isTerminal(a));
+    assertEquals("A", t.getValue(a));
+    int ab = t.next(a, 'b');
+    assertEquals("AB", t.getValue(ab));
+    assertEquals("ABC", t.getValue(t.next(ab, 'c')));
+    assertEquals(-1, t.next(ab, 'd'));
+    assertEquals(-1, t.next(ab, 'a'));
+    assertEquals(-1, t.next(ab, '\u00e9'));
+    int ba = t.next(t.next(DoubleArrayTrie.ROOT, 'b'), 'a');
+    assertFalse(t.isTerminal(ba));
+    assertNull(t.getValue(ba));
+    assertEquals("BA", t.getValue(t.next(ba, ';')));
+    assertEquals(-1, t.next(DoubleArrayTrie.ROOT, 'c'));
+  }
+
+  @Test
+  public final void testEmptyTrie() {
+    DoubleArrayTrie<String> t = new DoubleArrayTrie<String>(
+        ImmutableMap.<String, String>of());
+    assertEquals(-1, t.next(DoubleArrayTrie.ROOT, 'a'));
+    assertFalse(t.isTerminal(DoubleArrayTrie.ROOT));
+    assertTrue(t.toMap().isEmpty());
+
+    DoubleArrayTrie<String> withEmptyKey = new DoubleArrayTrie<String>(
+        ImmutableMap.of("", "empty"));
+    assertEquals("empty", withEmptyKey.getValue(DoubleArrayTrie.ROOT));
+  }
+
+  @Test
+  public final void testEntityTrie() {
+    Map<String, String> entities = HtmlEntities.ENTITY_TRIE.toMap();
+    assertEquals(2231, entities.size());
+    assertEquals("\u00a0", entities.get("nbsp;"));
+    assertEquals("\u00a0", entities.get("nbsp"));
+    assertEquals("\ud835\udd37", entities.get("zfr;"));
+    assertDescendsLikeTrie(entities, HtmlEntities.ENTITY_TRIE);
+  }
+
+  @Test
+  public final void testRandomTries() {
+    String alphabet = "abcdeAB01;-";
+    for (int run = 0; run < 200; ++run) {
+      Map<String, Integer> keys = Maps.newHashMap();
+      for (int i = rnd.nextInt(300); --i >= 0;) {
+        StringBuilder key = new StringBuilder();
+        for (int n = rnd.nextInt(8); --n >= 0;) {
+          key.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+        }
+        keys.put(key.toString(), i);
+      }
+      if (keys.isEmpty()) { continue; }
+      DoubleArrayTrie<Integer> t = new DoubleArrayTrie<Integer>(keys);
+      assertEquals("seed=" + seed, keys, t.toMap());
+      assertDescendsLikeTrie(keys, t);
+    }
+  }
+
+  /**
+   * Checks that every key's prefixes, and each prefix followed by a char
+   * from a small alphabet, lead to corresponding states in both tries.
+   */
+  private <T> void assertDescendsLikeTrie(
+      Map<String, T> keys, DoubleArrayTrie<T> dat) {
+    Trie<T> trie = new Trie<T>(keys);
+    String probes = "aAzZ09;-\u00e9";
+    for (String key : keys.keySet()) {
+      Trie<T> t = trie;
+      int state = DoubleArrayTrie.ROOT;
+      for (int i = 0; i <= key.length(); ++i) {
+        String prefix = key.substring(0, i);
+        assertEquals(prefix, t.isTerminal(), dat.isTerminal(state));
+        assertEquals(prefix, t.getValue(), dat.getValue(state));
+        for (int j = 0; j < probes.length(); ++j) {
+          char ch = probes.charAt(j);
+          assertEquals(
+              prefix + ch + " seed=" + seed,
+              t.lookup(ch) != null, dat.next(state, ch) >= 0);
+        }
+        if (i < key.length()) {
+          t = t.lookup(key.charAt(i));
+          state = dat.next(state, key.charAt(i));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,99 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class ElementAndAttributePolicyTableTest extends TestCase {
+
+  @Test
+  public static final void testNameIndex() {
+    ElementAndAttributePolicyTable.NameIndex index =
+        new ElementAndAttributePolicyTable.NameIndex(
+            new String[] { "href", null, "title", "src" });
+    assertEquals(0, index.indexOf("href"));
+    assertEquals(2, index.indexOf("title"));
+    assertEquals(3, index.indexOf("src"));
+    // Names need not be the same instances.
+    assertEquals(2, index.indexOf(new String("title")));
+    assertEquals(-1, index.indexOf("alt"));
+    assertEquals(-1, index.indexOf(""));
+  }
+
+  @Test
+  public static final void testElementIndex() {
+    HtmlElementTables metadata = HtmlElementTables.get();
+    assertEquals(
+        metadata.indexForName("p"),
+        ElementAndAttributePolicyTable.elementIndex("p"));
+    assertEquals(
+        metadata.indexForName("table"),
+        ElementAndAttributePolicyTable.elementIndex(new String("table")));
+    // Custom elements share an element index, so are looked up by name.
+    assertEquals(-1, ElementAndAttributePolicyTable.elementIndex("my-tag"));
+    assertEquals(
+        -1,
+        ElementAndAttributePolicyTable.elementIndex(
+            HtmlElementTables.HtmlElementNames.CUSTOM_ELEMENT_NAME));
+  }
+
+  @Test
+  public static final void testKnownAndCustomElements() {
+    PolicyFactory f = new HtmlPolicyBuilder()
+        .allowElements("p", "my-tag", "other-tag")
+        .allowAttributes("title").onElements("p", "my-tag")
+        .allowAttributes("lang").onElements("other-tag")
+        .toFactory();
+    assertEquals(
+        "<p title=\"a\">A</p>"
+        + "<my-tag title=\"b\">B</my-tag>"
+        + "<other-tag lang=\"en\">C</other-tag>"
+        + "D",
+        f.sanitize(
+            "<p title=a lang=en>A</p>"
+            + "<my-tag title=b lang=en>B</my-tag>"
+            + "<other-tag title=c lang=en>C</other-tag>"
+            + "<third-tag title=d>D</third-tag>"));
+  }
+
+  @Test
+  public static final void testSkippableContent() {
+    PolicyFactory f = new HtmlPolicyBuilder()
+        .allowElements("b", "my-tag")
+        .toFactory();
+    assertEquals(
+        "<b>bold</b><my-tag>custom</my-tag>",
+        f.sanitize(
+            "<b>bold</b><script>alert(1)</script>"
+            + "<my-tag>custom</my-tag><noscript>hidden</noscript>"));
+  }
+}
@@ -28,8 +28,17 @@
 
 package org.owasp.html;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Random;
+
 import org.junit.Test;
 
+import com.google.common.base.Charsets;
+
 import junit.framework.TestCase;
 
 @SuppressWarnings("javadoc")
@@ -188,6 +197,150 @@ public final class EncodingTest extends TestCase {
     assertEquals("{<!-- -->{angularVariable}}", sb.toString());
   }
 
+  @Test
+  public static final void testTranscodeMatchesDecodeThenEncode()
+      throws Exception {
+    String[] fragments = {
+        "a", " ", "\t\n", "caf\u00e9", "\u00a0", "&", "&#", "<", "\"", "=",
+        "&amp;", "&lt", "&nbsp;", "&NotEqualTilde;", "&#123;", "&#x7B;",
+        "{", "{{", "}", "\u200c", "\u093f", "&#x200C;", "&#x93F;",
+        "\ud83d\ude00", "&#x1F600;", "\ud800", "\udc00", "&#xD800;",
+        "\u0000", "\u0001", "&#1;", "&#0;", "\ufffe", "&#xFFFF;", "\uff1c",
+        "\u1fef", "&#x1FEF;", "\ufe60",
+    };
+    Random rnd = new Random(0x5eed);
+    StringBuilder html = new StringBuilder();
+    StringBuilder want = new StringBuilder();
+    StringBuilder got = new StringBuilder();
+    StringBuilder scratch = new StringBuilder();
+    for (int run = 0; run < 20000; ++run) {
+      html.setLength(0);
+      for (int n = rnd.nextInt(8); --n >= 0;) {
+        html.append(fragments[rnd.nextInt(fragments.length)]);
+      }
+      // Transcode a range that does not span the whole string.
+      int start = rnd.nextInt(html.length() + 1);
+      int end = start + rnd.nextInt(html.length() - start + 1);
+      String s = html.toString();
+      // A ZWNJ at the end of the output might be dropped before a vowel.
+      String prefix = rnd.nextBoolean() ? "x" : "\u200c";
+      boolean rcdata = rnd.nextBoolean();
+
+      want.setLength(0);
+      want.append(prefix);
+      got.setLength(0);
+      got.append(prefix);
+      String plainText = Encoding.decodeHtml(s.substring(start, end), false);
+      if (rcdata) {
+        Encoding.encodeRcdataOnto(plainText, want);
+        Encoding.transcodeRcdataOnto(s, start, end, scratch, got);
+      } else {
+        Encoding.encodePcdataOnto(plainText, want);
+        Encoding.transcodePcdataOnto(s, start, end, scratch, got);
+      }
+      assertEquals(
+          s + " [" + start + ", " + end + ")", want.toString(), got.toString());
+    }
+  }
+
+  @Test
+  public static final void testEncodeEachCharLikeLegacyEncoder()
+      throws Exception {
+    StringBuilder want = new StringBuilder();
+    StringBuilder got = new StringBuilder();
+    for (int ch = 0; ch <= 0xffff; ++ch) {
+      // Follow each char with a brace and a ZWNJ so that the context
+      // sensitive cases see a neighbour.
+      for (String s : new String[] {
+              String.valueOf((char) ch), (char) ch + "{",
+              "\u200c" + (char) ch, (char) ch + "\udc00",
+          }) {
+        want.setLength(0);
+        got.setLength(0);
+        LegacyEncoding.encodePcdataOnto(s, want);
+        Encoding.encodePcdataOnto(s, got);
+        assertEquals(Integer.toHexString(ch), want.toString(), got.toString());
+      }
+    }
+  }
+
+  @Test
+  public static final void testEncodeLikeLegacyEncoder() throws Exception {
+    String[] fragments = {
+        "a", "foo bar", "\t\n", "caf\u00e9", "\u00a0", "&", "<", "\"", "=",
+        "{", "{{", "}", "\u200c", "\u093f", "\u0c48", "\u09cc",
+        "\ud83d\ude00", "\ud800", "\udc00", "\u0000", "\u0001", "\ufffe",
+        "\uff1c", "\ufeff", "\u1fef", "\ufe60", "\u4e2d\u6587",
+    };
+    Random rnd = new Random(0x5eed);
+    StringBuilder sb = new StringBuilder();
+    for (int run = 0; run < 20000; ++run) {
+      sb.setLength(0);
+      for (int n = rnd.nextInt(8); --n >= 0;) {
+        sb.append(fragments[rnd.nextInt(fragments.length)]);
+      }
+      String s = sb.toString();
+      // A ZWNJ at the end of the output might be dropped before a vowel.
+      String prefix = rnd.nextBoolean() ? "x" : "\u200c";
+      int mode = rnd.nextInt(3);
+      // Appendables that the encoder treats differently.
+      for (int target = 0; target < 3; ++target) {
+        assertEquals(
+            "mode=" + mode + ", target=" + target + ": " + s,
+            encode(true, mode, target, prefix, s),
+            encode(false, mode, target, prefix, s));
+      }
+    }
+  }
+
+  private static String encode(
+      boolean legacy, int mode, int target, String prefix, String s)
+      throws IOException {
+    StringBuilder sb = new StringBuilder();
+    StringWriter sw = new StringWriter();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Appendable out;
+    switch (target) {
+      case 0:  out = sb; break;
+      case 1:  out = new BufferedWriter(sw, 4); break;
+      default: out = new Utf8Sink(bytes); break;
+    }
+    out.append(prefix);
+    switch (mode) {
+      case 0:
+        if (legacy) {
+          LegacyEncoding.encodePcdataOnto(s, out);
+        } else {
+          Encoding.encodePcdataOnto(s, out);
+        }
+        break;
+      case 1:
+        if (legacy) {
+          LegacyEncoding.encodeRcdataOnto(s, out);
+        } else {
+          Encoding.encodeRcdataOnto(s, out);
+        }
+        break;
+      default:
+        if (legacy) {
+          LegacyEncoding.encodeHtmlAttribOnto(s, out);
+        } else {
+          Encoding.encodeHtmlAttribOnto(s, out);
+        }
+        break;
+    }
+    switch (target) {
+      case 0:
+        return sb.toString();
+      case 1:
+        ((Writer) out).flush();
+        return sw.toString();
+      default:
+        ((Utf8Sink) out).flush();
+        return new String(bytes.toByteArray(), Charsets.UTF_8);
+    }
+  }
+
   private static final void assertStripped(String stripped, String orig) {
     String actual = Encoding.stripBannedCodeunits(orig);
     assertEquals(orig, stripped, actual);
@@ -0,0 +1,124 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.util.Locale;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+
+/**
+ * Checks that {@link HtmlEntities} decodes character references exactly as
+ * the trie-based implementation it replaced, preserved as
+ * {@link LegacyHtmlEntities}.
+ * The fuzzed cases are stochastic; to repeat a failure, set the system
+ * property "junit.seed" to the seed in the failure message.
+ */
+@SuppressWarnings("javadoc")
+public class HtmlEntitiesTest extends FuzzyTestCase {
+
+  /** Pieces of named and numeric references and the text around them. */
+  private static final String[] PIECES = {
+    "&", "&", "&", "#", "#x", "#X", ";", ";", "=", "-", " ", "\u00e9",
+    "nbsp", "NBSP", "amp", "AMP", "Amp", "lt", "para", "param", "not",
+    "notin", "noti", "zfr", "Aacute", "AAcute", "ThickSpace",
+    "0", "1", "9", "12", "a", "f", "F", "g", "z", "x",
+  };
+
+  @Test
+  public final void testFuzzedReferences() {
+    for (int run = 0; run < 20000; ++run) {
+      StringBuilder sb = new StringBuilder();
+      for (int n = 1 + rnd.nextInt(8); --n >= 0;) {
+        sb.append(PIECES[rnd.nextInt(PIECES.length)]);
+      }
+      assertDecodesLikeLegacy(sb.toString());
+    }
+  }
+
+  @Test
+  public final void testAllEntityNames() {
+    for (String name : HtmlEntities.ENTITY_TRIE.toMap().keySet()) {
+      assertDecodesLikeLegacy("&" + name);
+      assertDecodesLikeLegacy("&" + name + "x");
+      assertDecodesLikeLegacy("&" + name + "=");
+      assertDecodesLikeLegacy("&" + name.toUpperCase(Locale.ROOT));
+    }
+  }
+
+  @Test
+  public final void testBenchmarkData() throws Exception {
+    String html = Resources.toString(
+        Resources.getResource("benchmark-data/entities.html"), Charsets.UTF_8);
+    assertDecodesLikeLegacy(html);
+  }
+
+  @Test
+  public static final void testLongNumericReferences() {
+    // The legacy decoder overflowed and decoded these as "A".
+    assertEquals("\ufffd", Encoding.decodeHtml("&#x100000000041;", false));
+    assertEquals("\ufffd", Encoding.decodeHtml("&#4294967361;", false));
+    assertEquals("\ufffd", Encoding.decodeHtml("&#x110000;", false));
+    assertEquals(
+        "\udbff\udfff", Encoding.decodeHtml("&#x10ffff;", false));
+    assertEquals(
+        "\ud83d\ude00&#x", Encoding.decodeHtml("&#x1F600;&#x", false));
+    assertEquals("{", Encoding.decodeHtml("&#00000000000000000123;", false));
+  }
+
+  private void assertDecodesLikeLegacy(String html) {
+    for (int k = 0; k < 2; ++k) {
+      boolean inAttribute = k == 1;
+      String message = "seed=" + seed + ", inAttribute=" + inAttribute
+          + ", html=" + html;
+      assertEquals(
+          message,
+          decode(html, inAttribute, true), decode(html, inAttribute, false));
+    }
+  }
+
+  /** Decodes each reference, marking where each one ends. */
+  static String decode(String html, boolean inAttribute, boolean legacy) {
+    StringBuilder sb = new StringBuilder();
+    int n = html.length();
+    for (int i = 0; i < n;) {
+      if (html.charAt(i) != '&') {
+        sb.append(html.charAt(i++));
+        continue;
+      }
+      i = legacy
+          ? LegacyHtmlEntities.appendDecodedEntity(html, i, n, inAttribute, sb)
+          : HtmlEntities.appendDecodedEntity(html, i, n, inAttribute, sb);
+      sb.append('|');
+    }
+    return sb.toString();
+  }
+}
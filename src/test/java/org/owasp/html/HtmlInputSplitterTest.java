@@ -0,0 +1,137 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Resources;
+
+/**
+ * Checks that {@link HtmlInputSplitter} splits inputs exactly as the
+ * switch-based implementation it replaced, preserved as
+ * {@link LegacyHtmlInputSplitter}.
+ * The fuzzed cases are stochastic; to repeat a failure, set the system
+ * property "junit.seed" to the seed in the failure message.
+ */
+@SuppressWarnings("javadoc")
+public class HtmlInputSplitterTest extends FuzzyTestCase {
+
+  /** Chars that are significant to the splitter in some state. */
+  private static final String INTERESTING_CHARS =
+      "<>/!?%-=\"' \t\n\u000b\u001fAzb\u00e9\u2028\u3000\ud800\udc00";
+
+  private static final String[] SNIPPETS = {
+    "<div", "</div", "<div\n", "</div\n",
+    "<script>w('</b')</script>",
+    "<a href=http://foo.com/>Clicky</a>",
+    "<p<a href=\"/\">first part of the text</> second part",
+    "<p/b/", "<p<b>", "<a href=", "<!-- foo -", "<!---->", "<!-->",
+    "<!DOCTYPE html>", "<? pi ?>", "<% if (x) { %>y<% } %>", "<%%>",
+    "<a title=\" >\">", "<a title=' x>y'>", "<a b=c'd e'f>", "<a b=\"c\"/>",
+    "<textarea></b></TEXTAREA >", "<xmp><!-- </xmp>", "<plaintext></plaintext>",
+    "<title>&amp;<b></title>", "</\u00e9>", "<\u00e9>", "a<<b", "< b",
+    "<script><!--</script>", "<style>p{}</style >", "<b\u2028c=d\u3000e>",
+    "<!-- a-b-> c -->", "<!--->", "<!---->-->", "<!-- - ->", "<!-- -- >",
+    "<!----->", "-", "->", "<!-- ->-->",
+  };
+
+  @Test
+  public final void testLexerInput() throws Exception {
+    assertSplitsLikeLegacy(Resources.toString(
+        Resources.getResource(getClass(), "htmllexerinput1.html"),
+        Charsets.UTF_8));
+    for (String snippet : SNIPPETS) {
+      assertSplitsLikeLegacy(snippet);
+    }
+  }
+
+  @Test
+  public final void testRandomInputs() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    for (int run = 0; run < 2000; ++run) {
+      sb.setLength(0);
+      for (int n = rnd.nextInt(40); --n >= 0;) {
+        if (rnd.nextInt(4) == 0) {
+          sb.append(SNIPPETS[rnd.nextInt(SNIPPETS.length)]);
+        } else {
+          sb.append(INTERESTING_CHARS.charAt(
+              rnd.nextInt(INTERESTING_CHARS.length())));
+        }
+      }
+      assertSplitsLikeLegacy(sb.toString());
+    }
+  }
+
+  @Test
+  public final void testFuzzedDocument() throws Exception {
+    String html = Resources.toString(
+        Resources.getResource("benchmark-data/Yahoo!.html"), Charsets.UTF_8);
+    char[] fuzzyHtml = new char[html.length()];
+    for (int run = 0; run < 50; ++run) {
+      html.getChars(0, html.length(), fuzzyHtml, 0);
+      for (int fuzz = 1 + rnd.nextInt(25); --fuzz >= 0;) {
+        fuzzyHtml[rnd.nextInt(fuzzyHtml.length)] = rnd.nextBoolean()
+            ? (char) rnd.nextInt(0x10000)
+            : INTERESTING_CHARS.charAt(
+                rnd.nextInt(INTERESTING_CHARS.length()));
+      }
+      assertSplitsLikeLegacy(new String(fuzzyHtml));
+    }
+  }
+
+  private void assertSplitsLikeLegacy(String html) {
+    List<Long> golden = Lists.newArrayList();
+    LegacyHtmlInputSplitter legacy = new LegacyHtmlInputSplitter(html);
+    for (long token; (token = legacy.nextToken()) >= 0;) {
+      golden.add(token);
+    }
+
+    String message = "seed=" + seed + "L, input=<<<" + html + ">>>";
+    assertEquals(message, golden, split(
+        new HtmlInputSplitter(html, NameTable.ELEMENTS)));
+    // Window boundaries must not change how input is split.
+    int chunkSize = 1 + rnd.nextInt(16);
+    assertEquals(message + ", chunkSize=" + chunkSize, golden, split(
+        new HtmlInputSplitter(
+            new HtmlLexerTest.ChunkedReader(html, chunkSize),
+            NameTable.ELEMENTS)));
+  }
+
+  private static List<Long> split(HtmlInputSplitter splitter) {
+    List<Long> tokens = Lists.newArrayList();
+    for (long token; (token = splitter.nextToken()) >= 0;) {
+      tokens.add(token);
+    }
+    return tokens;
+  }
+}
@@ -30,6 +30,9 @@ package org.owasp.html;
 
 import junit.framework.TestCase;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.Arrays;
 import java.util.List;
 
@@ -121,36 +124,151 @@ public class HtmlLexerTest extends TestCase {
         "TAGEND: >");
   }
 
+  @Test
+  public static final void testCommentEndsAtArrowAfterDash() {
+    // After the first dash in a comment, "->" is enough to end it.
+    assertTokens(
+        "<!-- a-b-> <b>hi</b> -->after",
+        "COMMENT: <!-- a-b->",
+        "TEXT:  ",
+        "TAGBEGIN: <b",
+        "TAGEND: >",
+        "TEXT: hi",
+        "TAGBEGIN: </b",
+        "TAGEND: >",
+        "TEXT:  -->after");
+    assertTokens("<!--->-->x", "COMMENT: <!--->-->", "TEXT: x");
+    assertTokens("<!-->x-->y", "COMMENT: <!-->x-->", "TEXT: y");
+    assertStreamedTokens(
+        "<!-- a-b-> c", "COMMENT: <!-- a-b->", "TEXT:  c");
+  }
+
+  @Test
+  public static final void testLongUnquotedAttributeValue() {
+    // More words than fit in the initial lookahead.
+    StringBuilder value = new StringBuilder("w0");
+    for (int i = 1; i < 40; ++i) {
+      value.append(' ').append('w').append(i);
+    }
+    assertTokens(
+        "<a title=" + value + " checked href=x>",
+        "TAGBEGIN: <a",
+        "ATTRNAME: title",
+        "ATTRVALUE: " + value,
+        "ATTRNAME: checked",
+        "ATTRNAME: href",
+        "ATTRVALUE: x",
+        "TAGEND: >");
+  }
+
+  @Test
+  public static final void testLongUnquotedAttributeValueLookaheadIsBounded() {
+    // Buffering every word of the value before merging them made lexing
+    // quadratic in the number of words.  Words are now merged as they are
+    // lexed, so the lookahead stays small.  Benchmark mode w times this.
+    StringBuilder sb = new StringBuilder("<a title=");
+    for (int i = 0; i < 1 << 13; ++i) {
+      sb.append("x ");
+    }
+    HtmlLexer lexer = new HtmlLexer(sb.append(">").toString());
+    int nTokens = 0;
+    while (lexer.advance()) { ++nTokens; }
+    assertEquals(4, nTokens);
+    assertEquals(
+        HtmlLexer.INITIAL_LOOKAHEAD_CAPACITY, lexer.lookaheadCapacity());
+  }
+
+  @Test
+  public final void testStreamingHtmlLexer() throws Exception {
+    String input = Resources.toString(
+        Resources.getResource(getClass(), "htmllexerinput1.html"),
+        Charsets.UTF_8);
+    String golden = Resources.toString(
+        Resources.getResource(getClass(), "htmllexergolden1.txt"),
+        Charsets.UTF_8);
+    // Vary the chunk size so that window boundaries fall inside every kind of
+    // token.
+    for (int chunkSize : new int[] { 1, 2, 3, 7, 64, 1000 }) {
+      StringBuilder actual = new StringBuilder();
+      lex(new HtmlLexer(new ChunkedReader(input, chunkSize)), actual);
+      assertEquals("chunkSize=" + chunkSize, golden, actual.toString());
+    }
+  }
+
+  @Test
+  public static final void testStreamingEofInTag() {
+    assertStreamedTokens("<div", "TAGBEGIN: <div");
+    assertStreamedTokens("</div\n", "TAGBEGIN: </div");
+    assertStreamedTokens("<a href=", "TAGBEGIN: <a", "ATTRNAME: href");
+    assertStreamedTokens(
+        "<!-- foo -", "COMMENT: <!-- foo -");
+  }
+
   private static void lex(String input, Appendable out) throws Exception {
-    HtmlLexer lexer = new HtmlLexer(input);
+    lex(new HtmlLexer(input), out);
+  }
+
+  private static void lex(HtmlLexer lexer, Appendable out) throws Exception {
     int maxTypeLength = 0;
     for (HtmlTokenType t : HtmlTokenType.values()) {
       maxTypeLength = Math.max(maxTypeLength, t.name().length());
     }
 
-    while (lexer.hasNext()) {
-      HtmlToken t = lexer.next();
+    while (lexer.advance()) {
+      int start = lexer.getTokenStart();
+      int end = lexer.getTokenEnd();
       // Do C style escaping of the token text so that each token in the golden
       // file can fit on one line.
-      String escaped = input.substring(t.start, t.end)
+      String escaped = lexer.substring(start, end)
           .replace("\\", "\\\\").replace("\n", "\\n");
-      String type = t.type.toString();
+      String type = lexer.getTokenType().toString();
       int nPadding = maxTypeLength - type.length();
       out.append(type);
       while (--nPadding >= 0) { out.append(' '); }
       out.append(" [").append(escaped).append("]  :  ")
-          .append(String.valueOf(t.start)).append('-')
-          .append(String.valueOf(t.end))
+          .append(String.valueOf(start)).append('-')
+          .append(String.valueOf(end))
           .append("\n");
     }
   }
 
+  private static void assertStreamedTokens(String markup, String... golden) {
+    HtmlLexer lexer = new HtmlLexer(new ChunkedReader(markup, 1));
+    List<String> actual = Lists.newArrayList();
+    while (lexer.advance()) {
+      actual.add(lexer.getTokenType() + ": " + lexer.substring(
+          lexer.getTokenStart(), lexer.getTokenEnd()));
+    }
+    assertEquals(Arrays.asList(golden), actual);
+  }
+
+  /** A reader that yields at most a fixed number of chars per read. */
+  static final class ChunkedReader extends Reader {
+    private final StringReader underlying;
+    private final int chunkSize;
+
+    ChunkedReader(String content, int chunkSize) {
+      this.underlying = new StringReader(content);
+      this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+      return underlying.read(cbuf, off, Math.min(len, chunkSize));
+    }
+
+    @Override
+    public void close() {
+      underlying.close();
+    }
+  }
+
   private static void assertTokens(String markup, String... golden) {
     HtmlLexer lexer = new HtmlLexer(markup);
     List<String> actual = Lists.newArrayList();
-    while (lexer.hasNext()) {
-      HtmlToken t = lexer.next();
-      actual.add(t.type + ": " + markup.substring(t.start, t.end));
+    while (lexer.advance()) {
+      actual.add(lexer.getTokenType() + ": " + markup.substring(
+          lexer.getTokenStart(), lexer.getTokenEnd()));
     }
     assertEquals(Arrays.asList(golden), actual);
   }
@@ -36,6 +36,9 @@ import javax.annotation.Nullable;
 
 import org.junit.Test;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+
 
 @SuppressWarnings("javadoc")
 public class HtmlSanitizerTest extends TestCase {
@@ -111,6 +114,12 @@ public class HtmlSanitizerTest extends TestCase {
         sanitize("<b title=\"a<b && c>b\">bar</b>"));
   }
 
+  @Test
+  public static final void testCommentEndsAtArrowAfterDash() {
+    assertEquals(" <b>hi</b> --&gt;after",
+                 sanitize("<!-- a-b-> <b>hi</b> -->after"));
+  }
+
   @Test
   public static final void testUnclosedTags() {
     assertEquals("<div id=\"p-foo\">Bar<br />Baz</div>",
@@ -447,6 +456,106 @@ public class HtmlSanitizerTest extends TestCase {
     assertEquals(want, sanitize(input));
   }
 
+  @Test
+  public static final void testSkippedElementContent() throws Exception {
+    PolicyFactory factory = new HtmlPolicyBuilder()
+        .allowElements(
+            "b", "p", "select", "option", "table", "tr", "td", "textarea")
+        .toFactory();
+    String[] inputs = {
+        "<script>a</b>c</script>d",
+        "<script>if (a <b) { x = '</scr' + 'ipt>'; }</SCRIPT >after",
+        "<style><% </style> %>p { }</style>x",
+        "<style>a<%</style>b",
+        "<title>a &amp; </titles></title/>b",
+        "<textarea>a</textArea>b</textarea>c",
+        "<select><script>x</script>y</select>z",
+        "<table><style>td {}</style><tr><td>1</table>",
+        "<b><script>unterminated </scrip",
+        "<script></script",
+        "<script><</script>x",
+        "<script></ script></script>x",
+        "<iframe><p>a</iframe><p>b",
+        "<!-- a -- > b -->c<!---->d<!--->e-->f<!-- unterminated",
+        "<!-- a-b-> <b>hi</b> -->after",
+        "<xmp><script></xmp>q",
+    };
+    for (String input : inputs) {
+      // Wrapping the balancer in a preprocessor turns off skipping.
+      StringBuilder want = new StringBuilder();
+      HtmlSanitizer.sanitize(
+          input,
+          factory.apply(HtmlStreamRenderer.create(want, Handler.DO_NOTHING)),
+          new HtmlStreamEventProcessor() {
+            public HtmlStreamEventReceiver wrap(HtmlStreamEventReceiver sink) {
+              return new HtmlStreamEventReceiverWrapper(sink) {
+                // Just forward everything.
+              };
+            }
+          });
+      assertEquals(input, want.toString(), factory.sanitize(input));
+      for (int chunkSize : new int[] { 1, 2, 3, 7 }) {
+        StringBuilder got = new StringBuilder();
+        factory.sanitize(
+            new HtmlLexerTest.ChunkedReader(input, chunkSize), got);
+        assertEquals(
+            "chunkSize=" + chunkSize + ", input=" + input,
+            want.toString(), got.toString());
+      }
+    }
+  }
+
+  @Test
+  public static final void testTextDecodedAndEncodedInOnePass()
+      throws Exception {
+    PolicyFactory factory = new HtmlPolicyBuilder()
+        .allowElements("b", "p", "textarea", "title")
+        .toFactory();
+    String[] inputs = {
+        "a &amp; b &lt;c&gt; &nbsp;&nbsp;d",
+        "<p>&nbsp;</p>\n&nbsp;<p> \n </p>&#32;&#9;<b> &#1; </b>",
+        "<p>{{x}} {&#123;y}} &#123;{z}} {</p>{",
+        "<textarea>&lt;/textarea&gt;{{x}}</textarea><title>a&amp;b{</title>",
+        "\u0915\u094d\u0930\u200c\u093f &#x200C;&#x93F; \u200c&#x93F;",
+        "\ud83d\ude00 &#x1F600; &#xD800;\ud800 \udc00 \ufffe&#xFFFF;\uff1c",
+        "a\u0000b&#0;c\u0001&#1;d\u1fef&#x1FEF;e&#x7F;f",
+        "&NotEqualTilde; &amp &ampx &#; &#x; &nosuch; & &#65 &#x41x",
+        "&#34;&#39;&#43;&#61;&#64;&#96;\"'+=@`",
+    };
+    for (String input : inputs) {
+      assertTranscodedLikeDecodedThenEncoded(factory, input);
+    }
+    for (String resource
+         : new String[] { "Yahoo!.html", "entities.html" }) {
+      assertTranscodedLikeDecodedThenEncoded(
+          factory,
+          Resources.toString(
+              Resources.getResource("benchmark-data/" + resource),
+              Charsets.UTF_8));
+    }
+  }
+
+  private static void assertTranscodedLikeDecodedThenEncoded(
+      PolicyFactory factory, String input) throws Exception {
+    // Wrapping the balancer in a preprocessor means text reaches the renderer
+    // decoded.
+    StringBuilder want = new StringBuilder();
+    HtmlSanitizer.sanitize(
+        input,
+        factory.apply(HtmlStreamRenderer.create(want, Handler.DO_NOTHING)),
+        new HtmlStreamEventProcessor() {
+          public HtmlStreamEventReceiver wrap(HtmlStreamEventReceiver sink) {
+            return new HtmlStreamEventReceiverWrapper(sink) {
+              // Just forward everything.
+            };
+          }
+        });
+    assertEquals(input, want.toString(), factory.sanitize(input));
+    StringBuilder got = new StringBuilder();
+    factory.sanitize(new HtmlLexerTest.ChunkedReader(input, 3), got);
+    assertEquals(input, want.toString(), got.toString());
+  }
+
   private static String sanitize(@Nullable String html) {
     StringBuilder sb = new StringBuilder();
     HtmlStreamRenderer renderer = HtmlStreamRenderer.create(
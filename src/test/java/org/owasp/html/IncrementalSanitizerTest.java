@@ -0,0 +1,196 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class IncrementalSanitizerTest extends TestCase {
+
+  private static final PolicyFactory POLICY = new HtmlPolicyBuilder()
+      .allowElements(
+          "a", "b", "i", "p", "div", "textarea", "style", "table", "tr", "td",
+          "ul", "li")
+      .allowTextIn("style")
+      .allowAttributes("title").globally()
+      .allowAttributes("href").onElements("a")
+      .allowStandardUrlProtocols()
+      .toFactory();
+
+  private static final String[] FRAGMENTS = {
+    "<b>", "</b>", "<i>", "</i>", "<p>", "<div title='t'>", "</div>", "text",
+    " ", "&amp;", "&am", "<script>alert(1)</script>", "<script>", "</script>",
+    "<style>p { color: red }</style>", "<textarea>", "</textarea>", "<!--",
+    "-->", "<", ">", "'", "\"", "=", "<a href=", "http://example.com/",
+    "</a>", "<table><tr><td>", "</table>", "<ul><li>", "<li>", "\u00e9",
+    "<xmp>", "</xmp>", "<![CDATA[", "]]>",
+  };
+
+  @Test
+  public static final void testMatchesFullSanitization() {
+    Random rnd = new Random(0x1cc);
+    IncrementalSanitizer sparse = POLICY.newIncrementalSanitizer();
+    IncrementalSanitizer dense = new IncrementalSanitizer(
+        POLICY, HtmlStreamEventProcessor.Processors.IDENTITY, true, true,
+        SanitizerBudget.UNLIMITED, NameTable.ELEMENTS, NameTable.ATTRIBUTES,
+        1);
+    StringBuilder draft = new StringBuilder();
+    for (int i = 0; i < 2000; ++i) {
+      draft.append(FRAGMENTS[rnd.nextInt(FRAGMENTS.length)]);
+    }
+    for (int edit = 0; edit < 300; ++edit) {
+      // Edits mostly happen near the end of a draft.
+      int n = draft.length();
+      int pos = rnd.nextInt(4) == 0
+          ? rnd.nextInt(n + 1) : Math.max(0, n - rnd.nextInt(200));
+      switch (rnd.nextInt(3)) {
+        case 0:
+          draft.insert(pos, FRAGMENTS[rnd.nextInt(FRAGMENTS.length)]);
+          break;
+        case 1:
+          draft.delete(pos, Math.min(n, pos + rnd.nextInt(10)));
+          break;
+        default:
+          draft.setCharAt(
+              Math.min(pos, n - 1), "<>/ab=&'\"".charAt(rnd.nextInt(9)));
+          break;
+      }
+      String html = draft.toString();
+      String expected = POLICY.sanitize(html);
+      assertEquals(html, expected, sparse.sanitize(html));
+      assertEquals(html, expected, dense.sanitize(html));
+    }
+    assertTrue(sparse.getCheckpointCount() > 0);
+    assertTrue(dense.getCheckpointCount() > sparse.getCheckpointCount());
+  }
+
+  @Test
+  public static final void testResumesFromCheckpoint() {
+    IncrementalSanitizer s = POLICY.newIncrementalSanitizer();
+    StringBuilder sb = new StringBuilder("<div><ul>");
+    int interval = IncrementalSanitizer.DEFAULT_CHECKPOINT_INTERVAL;
+    while (sb.length() < 10 * interval) {
+      sb.append("<li><b>item</b> &amp; more");
+    }
+    String html = sb.toString();
+    assertEquals(POLICY.sanitize(html), s.sanitize(html));
+    int nCheckpoints = s.getCheckpointCount();
+    assertTrue(nCheckpoints >= 9);
+    // Appending keeps all checkpoints.
+    String appended = html + "<p>new";
+    assertEquals(POLICY.sanitize(appended), s.sanitize(appended));
+    assertTrue(s.getCheckpointCount() >= nCheckpoints);
+    // Editing near the start discards later ones.
+    String edited = "<p>" + html;
+    assertEquals(POLICY.sanitize(edited), s.sanitize(edited));
+    assertEquals(POLICY.sanitize(html), s.sanitize(html));
+    s.reset();
+    assertEquals(0, s.getCheckpointCount());
+    assertEquals(POLICY.sanitize(html), s.sanitize(html));
+  }
+
+  @Test
+  public static final void testProcessorsPreventCheckpoints() {
+    PolicyFactory f = POLICY.and(new HtmlPolicyBuilder()
+        .withPostprocessor(new HtmlStreamEventProcessor() {
+          public HtmlStreamEventReceiver wrap(HtmlStreamEventReceiver r) {
+            return r;
+          }
+        })
+        .toFactory());
+    IncrementalSanitizer s = f.newIncrementalSanitizer();
+    StringBuilder sb = new StringBuilder();
+    while (sb.length() < 4 * IncrementalSanitizer.DEFAULT_CHECKPOINT_INTERVAL) {
+      sb.append("<p><b>item</b></p>");
+    }
+    String html = sb.toString();
+    assertEquals(f.sanitize(html), s.sanitize(html));
+    assertEquals(0, s.getCheckpointCount());
+    assertEquals(f.sanitize(html + "x"), s.sanitize(html + "x"));
+  }
+
+  @Test
+  public static final void testBudgetsMatchSanitize() {
+    SanitizerBudget[] budgets = {
+      SanitizerBudget.UNLIMITED.withMaxTextChars(5),
+      SanitizerBudget.UNLIMITED.withMaxOutputChars(12),
+      SanitizerBudget.UNLIMITED.withMaxTextChars(8).withMaxOutputChars(30),
+    };
+    String[] versions = {
+      "<p>Hello <b>world</b> this is long</p>",
+      "<p>Hello <b>world</b> this is longer</p>",
+      "<p>Hi</p>",
+      "<p>Hello <i>there</i></p>",
+    };
+    for (SanitizerBudget budget : budgets) {
+      PolicyFactory f = POLICY.withBudget(budget);
+      IncrementalSanitizer s = f.newIncrementalSanitizer();
+      for (String html : versions) {
+        assertEquals(html, f.sanitize(html), s.sanitize(html));
+      }
+    }
+  }
+
+  @Test
+  public static final void testProcessorsWrapEachVersion() {
+    HtmlStreamEventProcessor firstTagsOnly = new HtmlStreamEventProcessor() {
+      public HtmlStreamEventReceiver wrap(HtmlStreamEventReceiver sink) {
+        return new HtmlStreamEventReceiverWrapper(sink) {
+          private int nTags;
+
+          @Override
+          public void openTag(String elementName, List<String> attrs) {
+            if (++nTags <= 2) {
+              underlying.openTag(elementName, attrs);
+            }
+          }
+        };
+      }
+    };
+    PolicyFactory[] policies = {
+        POLICY.and(new HtmlPolicyBuilder()
+            .withPreprocessor(firstTagsOnly).toFactory()),
+        POLICY.and(new HtmlPolicyBuilder()
+            .withPostprocessor(firstTagsOnly).toFactory()),
+    };
+    for (PolicyFactory f : policies) {
+      IncrementalSanitizer s = f.newIncrementalSanitizer();
+      String html = "<p><b>a</b></p>";
+      for (int i = 0; i < 3; ++i) {
+        html += "<i>b</i>";
+        assertEquals(f.sanitize(html), s.sanitize(html));
+      }
+    }
+  }
+}
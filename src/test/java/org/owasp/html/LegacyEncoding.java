@@ -0,0 +1,181 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.io.IOException;
+
+import javax.annotation.Nullable;
+
+/**
+ * A frozen copy of the text encoder that {@link Encoding} used before it
+ * classified chars by table, kept so that tests can check that the two
+ * encode identically and benchmarks can compare them.
+ */
+final class LegacyEncoding {
+
+  static void encodeHtmlAttribOnto(String plainText, Appendable output)
+      throws IOException {
+    encodeHtmlOnto(plainText, output, "{\u200B");
+  }
+
+  static void encodePcdataOnto(String plainText, Appendable output)
+      throws IOException {
+    encodeHtmlOnto(plainText, output, "{<!-- -->");
+  }
+
+  static void encodeRcdataOnto(String plainText, Appendable output)
+      throws IOException {
+    encodeHtmlOnto(plainText, output, "{\u200B");
+  }
+
+  private static void encodeHtmlOnto(
+      String plainText, Appendable output, @Nullable String braceReplacement)
+          throws IOException {
+    int n = plainText.length();
+    int pos = 0;
+    for (int i = 0; i < n; ++i) {
+      char ch = plainText.charAt(i);
+      if (ch < REPLACEMENTS.length) {  // Handles all ASCII.
+        String repl = REPLACEMENTS[ch];
+        if (ch == '{' && repl == null) {
+          if (i + 1 == n || plainText.charAt(i + 1) == '{') {
+            repl = braceReplacement;
+          }
+        }
+        if (repl != null) {
+          output.append(plainText, pos, i).append(repl);
+          pos = i + 1;
+        }
+      } else if ((0x93A <= ch && ch <= 0xC4C)
+          && (
+              // Devanagari vowel
+              ch <= 0x94F
+              // Benagli vowels
+              || 0x985 <= ch && ch <= 0x994
+              || 0x9BE <= ch && ch < 0x9CC  // 0x9CC (Bengali AU) is ok
+              || 0x9E0 <= ch && ch <= 0x9E3
+              // Telugu vowels
+              || 0xC05 <= ch && ch <= 0xC14
+              || 0xC3E <= ch && ch != 0xC48 /* 0xC48 (Telugu AI) is ok */)) {
+        // https://manishearth.github.io/blog/2018/02/15/picking-apart-the-crashing-ios-string/
+        // > So, ultimately, the full set of cases that cause the crash are:
+        // >   Any sequence <consonant1, virama, consonant2, ZWNJ, vowel>
+        // > in Devanagari, Bengali, and Telugu, where: ...
+
+        // TODO: This is needed as of February 2018, but hopefully not long after that.
+        // We eliminate the ZWNJ which seems the minimally damaging thing to do to
+        // Telugu rendering per the article above:
+        // > a ZWNJ before a vowel doesn’t really do anything for most Indic scripts.
+
+        if (pos < i) {
+          if (plainText.charAt(i - 1) == 0x200C /* ZWNJ */) {
+            output.append(plainText, pos, i - 1);
+            // Drop the ZWNJ on the floor.
+            pos = i;
+          }
+        } else if (output instanceof StringBuilder) {
+          StringBuilder sb = (StringBuilder) output;
+          int len = sb.length();
+          if (len != 0) {
+            if (sb.charAt(len - 1) == 0x200C /* ZWNJ */) {
+              sb.setLength(len - 1);
+            }
+          }
+        }
+      } else if (((char) 0xd800) <= ch) {
+        if (ch <= ((char) 0xdfff)) {
+          char next;
+          if (i + 1 < n
+              && Character.isSurrogatePair(
+                  ch, next = plainText.charAt(i + 1))) {
+            // Emit supplemental codepoints as entity so that they cannot
+            // be mis-encoded as UTF-8 of surrogates instead of UTF-8 proper
+            // and get involved in UTF-16/UCS-2 confusion.
+            int codepoint = Character.toCodePoint(ch, next);
+            output.append(plainText, pos, i);
+            Encoding.appendNumericEntity(codepoint, output);
+            ++i;
+            pos = i + 1;
+          } else {
+            output.append(plainText, pos, i);
+            // Elide the orphaned surrogate.
+            pos = i + 1;
+          }
+        } else if (0xfe60 <= ch) {
+          // Is a control character or possible full-width version of a
+          // special character, a BOM, or one of the FE60 block that might
+          // be elided or normalized to an HTML special character.
+          // Running
+          //   cat NormalizationText.txt \
+          //     | perl -pe 's/ ?#.*//' \
+          //     | egrep '(;003C(;|$)|003E|0026|0022|0027|0060)'
+          // dumps a list of code-points that can normalize to HTML special
+          // characters.
+          output.append(plainText, pos, i);
+          pos = i + 1;
+          if ((ch & 0xfffe) == 0xfffe) {
+            // Elide since not an the XML Character.
+          } else {
+            Encoding.appendNumericEntity(ch, output);
+          }
+        }
+      } else if (ch == '\u1FEF') {  // Normalizes to backtick.
+        output.append(plainText, pos, i).append("&#8175;");
+        pos = i + 1;
+      }
+    }
+    output.append(plainText, pos, n);
+  }
+
+  /** Maps ASCII chars that need to be encoded to an equivalent HTML entity. */
+  private static final String[] REPLACEMENTS = new String[0x80];
+  static {
+    for (int i = 0; i < ' '; ++i) {
+      // We elide control characters so that we can ensure that our output is
+      // in the intersection of valid HTML5 and XML.  According to
+      // http://www.w3.org/TR/2008/REC-xml-20081126/#charsets
+      // Char      ::=          #x9 | #xA | #xD | [#x20-#xD7FF]
+      //             |          [#xE000-#xFFFD] | [#x10000-#x10FFFF]
+      if (i != '\t' && i != '\n' && i != '\r') {
+        REPLACEMENTS[i] = "";  // Elide
+      }
+    }
+    // "&#34;" is shorter than "&quot;"
+    REPLACEMENTS['"']  = "&#" + ((int) '"')  + ";";  // Attribute delimiter.
+    REPLACEMENTS['&']  = "&amp;";                    // HTML special.
+    // We don't use &apos; since that is not in the intersection of HTML&XML.
+    REPLACEMENTS['\''] = "&#" + ((int) '\'') + ";";  // Attribute delimiter.
+    REPLACEMENTS['+']  = "&#" + ((int) '+')  + ";";  // UTF-7 special.
+    REPLACEMENTS['<']  = "&lt;";                     // HTML special.
+    REPLACEMENTS['=']  = "&#" + ((int) '=')  + ";";  // Special in attributes.
+    REPLACEMENTS['>']  = "&gt;";                     // HTML special.
+    REPLACEMENTS['@']  = "&#" + ((int) '@')  + ";";  // Conditional compilation.
+    REPLACEMENTS['`']  = "&#" + ((int) '`')  + ";";  // Attribute delimiter.
+  }
+}
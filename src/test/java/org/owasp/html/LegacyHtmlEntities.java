@@ -0,0 +1,245 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.util.Map;
+
+/**
+ * A frozen copy of the character reference decoding that {@link HtmlEntities}
+ * did before it used a {@link DoubleArrayTrie}, kept so that tests can check
+ * that the two decode identically and benchmarks can compare them.
+ * <p>
+ * Unlike {@code HtmlEntities}, this lets numeric references with many digits
+ * overflow.
+ */
+final class LegacyHtmlEntities {
+
+  private static final Trie<String> ENTITY_TRIE;
+  private static final int LONGEST_ENTITY_NAME;
+  static {
+    Map<String, String> entities = HtmlEntities.ENTITY_TRIE.toMap();
+    int longestEntityName = 0;
+    for (String name : entities.keySet()) {
+      longestEntityName = Math.max(longestEntityName, name.length());
+    }
+    ENTITY_TRIE = new Trie<String>(entities);
+    LONGEST_ENTITY_NAME = longestEntityName;
+  }
+
+  /**
+   * Decodes any HTML entity at the given location and appends it to a string
+   * builder.  This handles both named and numeric entities.
+   *
+   * @param html HTML text.
+   * @param offset the position of the sequence to decode in {@code html}.
+   * @param limit the last position that could be part of the sequence to decode
+   *    in {@code html}.
+   * @param sb string builder to append to.
+   * @return The offset after the end of the decoded sequence in {@code html}.
+   */
+  static int appendDecodedEntity(
+          String html, int offset, int limit, boolean inAttribute, StringBuilder sb) {
+    char ch = html.charAt(offset);
+    if ('&' != ch) {
+      sb.append(ch);
+      return offset + 1;
+    }
+
+    if (offset + 2 >= limit) {
+      sb.append('&');
+      return offset + 1;
+    }
+    // Cap limit to limit the amount of time spent processing inputs like
+    // &a&a&a&a&a&a&a&a&a&a&a&a&a&a&a&a&a&a&a&a&a&a&a&a&a&a&a&a&a&a&a&a&a&a&a&a
+    limit = Math.min(limit, offset + (1 + LONGEST_ENTITY_NAME));
+
+    // Now we know where the entity ends, and that there is at least one
+    // character in the entity name
+    char ch1 = html.charAt(offset + 1);
+    char ch2 = html.charAt(offset + 2);
+    int codepoint = -1;
+    int tail = limit;
+    if ('#' == ch1) {
+      // numeric entity
+      if ('x' == ch2 || 'X' == ch2) {
+        if (limit == offset + 3) {  // No digits
+          sb.append('&');
+          return offset + 1;
+        }
+        codepoint = 0;
+        // hex literal
+        digloop:
+        for (int i = offset + 3; i < limit; ++i) {
+          char digit = html.charAt(i);
+          if (!isHtmlIdContinueChar(digit)) {
+            if (i == offset + 3) {
+              codepoint = -1;
+            }
+            if (digit == ';') {
+              i += 1;
+            }
+            tail = i;
+            break;
+          }
+          switch (digit & 0xfff8) {
+            case 0x30: case 0x38: // ASCII 48-57 are '0'-'9'
+              int decDig = digit & 0xf;
+              if (decDig < 10) {
+                codepoint = (codepoint << 4) | decDig;
+              } else {
+                codepoint = -1;
+                break digloop;
+              }
+              break;
+            // ASCII 65-70 and 97-102 are 'A'-'Z' && 'a'-'z'
+            case 0x40: case 0x60:
+              int hexDig = (digit & 0x7);
+              if (hexDig != 0 && hexDig < 7) {
+                codepoint = (codepoint << 4) | (hexDig + 9);
+              } else {
+                codepoint = -1;
+                break digloop;
+              }
+              break;
+            default:
+              codepoint = -1;
+              break digloop;
+          }
+        }
+        if (codepoint > Character.MAX_CODE_POINT) {
+          codepoint = 0xfffd;  // Unknown.
+        }
+      } else {
+        codepoint = 0;
+        // decimal literal
+        digloop:
+        for (int i = offset + 2; i < limit; ++i) {
+          char digit = html.charAt(i);
+          if (!isHtmlIdContinueChar(digit)) {
+            if (i == offset + 2) {
+              codepoint = -1;
+            }
+            if (digit == ';') {
+              i += 1;
+            }
+            tail = i;
+            break;
+          }
+          switch (digit & 0xfff8) {
+            case 0x30: case 0x38: // ASCII 48-57 are '0'-'9'
+              int decDig = digit - '0';
+              if (decDig < 10) {
+                codepoint = (codepoint * 10) + decDig;
+              } else {
+                codepoint = -1;
+                break digloop;
+              }
+              break;
+            default:
+              codepoint = -1;
+              break digloop;
+          }
+        }
+        if (codepoint > Character.MAX_CODE_POINT) {
+          codepoint = 0xfffd;  // Unknown.
+        }
+      }
+    } else {
+      Trie<String> longestDecode = null;
+      Trie<String> t = ENTITY_TRIE;
+      for (int i = offset + 1; i < limit; ++i) {
+        char nameChar = html.charAt(i);
+        t = t.lookup(nameChar);
+        if (t == null) { break; }
+        if (t.isTerminal() && mayComplete(inAttribute, html, i, limit)) {
+          longestDecode = t;
+          tail = i + 1;
+        }
+      }
+      if (longestDecode == null) {
+        t = ENTITY_TRIE;
+        for (int i = offset + 1; i < limit; ++i) {
+          char nameChar = html.charAt(i);
+          if ('Z' >= nameChar && nameChar >= 'A') { nameChar |= 32; }
+          t = t.lookup(nameChar);
+          if (t == null) { break; }
+          if (t.isTerminal() && mayComplete(inAttribute, html, i, limit)) {
+            longestDecode = t;
+            tail = i + 1;
+          }
+        }
+      }
+      if (longestDecode != null) {
+        sb.append(longestDecode.getValue());
+        return tail;
+      }
+    }
+    if (codepoint < 0) {
+      sb.append('&');
+      return offset + 1;
+    } else {
+      sb.appendCodePoint(codepoint);
+      return tail;
+    }
+  }
+
+  private static boolean isHtmlIdContinueChar(char ch) {
+    int chLower = ch | 32;
+    return ('0' <= ch && ch <= '9')
+            || ('a' <= chLower && chLower <= 'z')
+            || ('-' == ch);
+  }
+
+
+  /** True if the character at i in html may complete a named character reference */
+  private static boolean mayComplete(boolean inAttribute, String html, int i, int limit) {
+    if (inAttribute && html.charAt(i) != ';' && i + 1 < limit) {
+      // See if the next character blocks treating this as a full match.
+      // This avoids problems like "&para" being treated as a decoding in
+      //     <a href="?foo&param=1">
+      if (continuesCharacterReferenceName(html.charAt(i + 1))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @see <a href="https://github.com/OWASP/java-html-sanitizer/issues/254#issuecomment-1080864368"
+   * >comments in issue 254</a>
+   */
+  private static boolean continuesCharacterReferenceName(char ch) {
+    int chLower = ch | 32;
+    return ('0' <= ch && ch <= '9')
+            || ('a' <= chLower && chLower <= 'z')
+            || (ch == '=');
+  }
+
+  private LegacyHtmlEntities() { /* uninstantiable */ }
+}
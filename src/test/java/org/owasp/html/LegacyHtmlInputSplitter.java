@@ -0,0 +1,407 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+/**
+ * A frozen copy of the switch-based token splitting that
+ * {@link HtmlInputSplitter} used before this series of lexer optimizations,
+ * changed only to produce packed tokens, kept so that tests can check that
+ * the two split every input identically.
+ * Unlike {@code HtmlInputSplitter}, this holds all of its input in memory.
+ */
+final class LegacyHtmlInputSplitter {
+  private final String input;
+  private int offset;
+  private boolean inTag;
+  private boolean inEscapeExemptBlock;
+  private String escapeExemptTagName = null;
+  private HtmlTextEscapingMode textEscapingMode;
+
+  LegacyHtmlInputSplitter(String input) {
+    this.input = input;
+  }
+
+  private static int packedEnd(long packed) {
+    return HtmlInputSplitter.packedEnd(packed);
+  }
+
+  private static int packedTypeOrdinal(long packed) {
+    return HtmlInputSplitter.packedTypeOrdinal(packed);
+  }
+
+  private static long pack(int end, HtmlTokenType type) {
+    return (((long) end) << 32) | type.ordinal();
+  }
+
+  /** Like {@link HtmlInputSplitter#nextToken}. */
+  long nextToken() {
+    int start = offset;
+    long token = parseToken();
+    if (token < 0) { return -1L; }
+
+    // Handle escape-exempt blocks.
+    // The parse() method is only dimly aware of escape-excempt blocks, so
+    // here we detect the beginning and ends of escape exempt blocks, and
+    // reclassify as UNESCAPED, any tokens that appear in the middle.
+    if (inEscapeExemptBlock) {
+      if (packedTypeOrdinal(token) != HtmlTokenType.SERVERCODE.ordinal()) {
+        // classify RCDATA as text since it can contain entities
+        token = pack(
+            packedEnd(token),
+            (this.textEscapingMode == HtmlTextEscapingMode.RCDATA
+             ? HtmlTokenType.TEXT
+             : HtmlTokenType.UNESCAPED));
+      }
+    } else {
+      switch (TOKEN_TYPES[packedTypeOrdinal(token)]) {
+        case TAGBEGIN:
+          {
+            String canonTagName = canonicalElementName(
+                start + 1, packedEnd(token));
+            if (HtmlTextEscapingMode.isTagFollowedByLiteralContent(
+                    canonTagName)) {
+              this.escapeExemptTagName = canonTagName;
+              this.textEscapingMode = HtmlTextEscapingMode.getModeForTag(
+                  canonTagName);
+            }
+            break;
+          }
+        case TAGEND:
+          this.inEscapeExemptBlock = null != this.escapeExemptTagName;
+          break;
+        default:
+          break;
+      }
+    }
+    return token;
+  }
+
+  private static final HtmlTokenType[] TOKEN_TYPES = HtmlTokenType.values();
+
+  /**
+   * States for a state machine for optimistically identifying tags and other
+   * html/xml/phpish structures.
+   */
+  private static enum State {
+    TAGNAME,
+    SLASH,
+    BANG,
+    BANG_DASH,
+    COMMENT,
+    COMMENT_DASH,
+    COMMENT_DASH_DASH,
+    DIRECTIVE,
+    DONE,
+    BOGUS_COMMENT,
+    SERVER_CODE,
+    SERVER_CODE_PCT,
+    ;
+  }
+
+  /** True if the last non-ignorable token was the text {@code "="}. */
+  private boolean lastNonIgnorableIsEq;
+
+  /**
+   * Breaks the character stream into tokens.
+   * This method returns a stream of tokens such that each token starts where
+   * the last token ended.
+   *
+   * <p>This property is useful as it allows fetch to collapse and reclassify
+   * ranges of tokens based on state that is easy to maintain there.
+   *
+   * <p>Later passes are responsible for throwing away useless tokens.
+   *
+   * @return the packed token or -1 if there are no more tokens.
+   */
+  private long parseToken() {
+    int start = offset;
+    int limit = input.length();
+    if (start == limit) { return -1L; }
+
+    int end = start + 1;
+    HtmlTokenType type;
+
+    char ch = input.charAt(start);
+    if (inTag) {
+      if ('>' == ch) {
+        type = HtmlTokenType.TAGEND;
+        inTag = false;
+      } else if ('/' == ch) {
+        if (end != limit && '>' == input.charAt(end)) {
+          type = HtmlTokenType.TAGEND;
+          inTag = false;
+          ++end;
+        } else {
+          type = HtmlTokenType.TEXT;
+        }
+      } else if ('=' == ch) {
+        type = HtmlTokenType.TEXT;
+      } else if ('"' == ch || '\'' == ch) {
+        type = HtmlTokenType.QSTRING;
+        int delim = ch;
+        boolean space = true;
+        for (; end < limit; ++end) {
+          if (input.charAt(end) == delim) {
+            ++end;
+            break;
+          } else {
+            int nextChar = input.charAt(end);
+            if (nextChar == '>' && space) {
+              break;
+            } else if (!Character.isWhitespace(nextChar)) {
+              space = false;
+            }
+          }
+        }
+      } else if (!Character.isWhitespace(ch)) {
+        type = HtmlTokenType.TEXT;
+        for (; end < limit; ++end) {
+          ch = input.charAt(end);
+          // End a text chunk before />
+          if (!lastNonIgnorableIsEq
+              && '/' == ch && end + 1 < limit
+              && '>' == input.charAt(end + 1)) {
+            break;
+          } else if ('>' == ch || '=' == ch
+                     || Character.isWhitespace(ch)) {
+            break;
+          } else if ('"' == ch || '\'' == ch) {
+            if (end + 1 < limit) {
+              char ch2 = input.charAt(end + 1);
+              if (Character.isWhitespace(ch2)
+                  || ch2 == '>' || ch2 == '/') {
+                ++end;
+                break;
+              }
+            }
+          }
+        }
+      } else {
+        // We skip whitespace tokens inside tag bodies.
+        type = HtmlTokenType.IGNORABLE;
+        while (end < limit && Character.isWhitespace(input.charAt(end))) {
+          ++end;
+        }
+      }
+    } else {
+      if (ch == '<') {
+        if (end == limit) {
+          type = HtmlTokenType.TEXT;
+        } else {
+          ch = input.charAt(end);
+          type = null;
+          State state = null;
+          switch (ch) {
+            case '/':  // close tag?
+              state = State.SLASH;
+              ++end;
+              break;
+            case '!':  // Comment or declaration
+              if (!this.inEscapeExemptBlock) {
+                state = State.BANG;
+              }
+              ++end;
+              break;
+            case '?':
+              if (!this.inEscapeExemptBlock) {
+                state = State.BOGUS_COMMENT;
+              }
+              ++end;
+              break;
+            case '%':
+              state = State.SERVER_CODE;
+              ++end;
+              break;
+            default:
+              if (isIdentStart(ch) && !this.inEscapeExemptBlock) {
+                state = State.TAGNAME;
+                ++end;
+              } else if ('<' == ch) {
+                type = HtmlTokenType.TEXT;
+              } else {
+                ++end;
+              }
+              break;
+          }
+          if (null != state) {
+            charloop:
+            while (end < limit) {
+              ch = input.charAt(end);
+              switch (state) {
+                case TAGNAME:
+                  if (Character.isWhitespace(ch)
+                      || '>' == ch || '/' == ch || '<' == ch) {
+                    // End processing of an escape exempt block when we see
+                    // a corresponding end tag.
+                    if (this.inEscapeExemptBlock
+                        && '/' == input.charAt(start + 1)
+                        && textEscapingMode != HtmlTextEscapingMode.PLAIN_TEXT
+                        && canonicalElementName(start + 2, end)
+                            .equals(escapeExemptTagName)) {
+                      this.inEscapeExemptBlock = false;
+                      this.escapeExemptTagName = null;
+                      this.textEscapingMode = null;
+                    }
+                    type = HtmlTokenType.TAGBEGIN;
+                    // Don't process content as attributes if we're inside
+                    // an escape exempt block.
+                    inTag = !this.inEscapeExemptBlock;
+                    state = State.DONE;
+                    break charloop;
+                  }
+                  break;
+                case SLASH:
+                  if (Character.isLetter(ch)) {
+                    state = State.TAGNAME;
+                  } else {
+                    if ('<' == ch) {
+                      type = HtmlTokenType.TEXT;
+                    } else {
+                      ++end;
+                    }
+                    break charloop;
+                  }
+                  break;
+                case BANG:
+                  if ('-' == ch) {
+                    state = State.BANG_DASH;
+                  } else {
+                    state = State.DIRECTIVE;
+                  }
+                  break;
+                case BANG_DASH:
+                  if ('-' == ch) {
+                    state = State.COMMENT;
+                  } else {
+                    state = State.DIRECTIVE;
+                  }
+                  break;
+                case COMMENT:
+                  if ('-' == ch) {
+                    state = State.COMMENT_DASH;
+                  }
+                  break;
+                case COMMENT_DASH:
+                  state = ('-' == ch)
+                      ? State.COMMENT_DASH_DASH
+                      : State.COMMENT_DASH;
+                  break;
+                case COMMENT_DASH_DASH:
+                  if ('>' == ch) {
+                    state = State.DONE;
+                    type = HtmlTokenType.COMMENT;
+                  } else if ('-' == ch) {
+                    state = State.COMMENT_DASH_DASH;
+                  } else {
+                    state = State.COMMENT_DASH;
+                  }
+                  break;
+                case DIRECTIVE:
+                  if ('>' == ch) {
+                    type = HtmlTokenType.DIRECTIVE;
+                    state = State.DONE;
+                  }
+                  break;
+                case BOGUS_COMMENT:
+                  if ('>' == ch) {
+                    type = HtmlTokenType.QMARKMETA;
+                    state = State.DONE;
+                  }
+                  break;
+                case SERVER_CODE:
+                  if ('%' == ch) {
+                    state = State.SERVER_CODE_PCT;
+                  }
+                  break;
+                case SERVER_CODE_PCT:
+                  if ('>' == ch) {
+                    type = HtmlTokenType.SERVERCODE;
+                    state = State.DONE;
+                  } else if ('%' != ch) {
+                    state = State.SERVER_CODE;
+                  }
+                  break;
+                case DONE:
+                  throw new AssertionError(
+                      "Unexpectedly DONE while lexing HTML token stream");
+              }
+              ++end;
+              if (State.DONE == state) { break; }
+            }
+            if (end == limit) {
+              switch (state) {
+                case DONE:
+                  break;
+                case BOGUS_COMMENT:
+                  type = HtmlTokenType.QMARKMETA;
+                  break;
+                case COMMENT:
+                case COMMENT_DASH:
+                case COMMENT_DASH_DASH:
+                  type = HtmlTokenType.COMMENT;
+                  break;
+                case DIRECTIVE:
+                case SERVER_CODE:
+                case SERVER_CODE_PCT:
+                  type = HtmlTokenType.SERVERCODE;
+                  break;
+                case TAGNAME:
+                  type = HtmlTokenType.TAGBEGIN;
+                  break;
+                default:
+                  type = HtmlTokenType.TEXT;
+                  break;
+              }
+            }
+          }
+        }
+      } else {
+        type = null;
+      }
+    }
+    if (null == type) {
+      while (end < limit && '<' != input.charAt(end)) { ++end; }
+      type = HtmlTokenType.TEXT;
+    }
+
+    offset = end;
+    if (type != HtmlTokenType.IGNORABLE) {
+      lastNonIgnorableIsEq = end - start == 1 && '=' == input.charAt(start);
+    }
+    return pack(end, type);
+  }
+
+  private String canonicalElementName(int start, int end) {
+    return HtmlLexer.canonicalElementName(input.substring(start, end));
+  }
+
+  private static boolean isIdentStart(char ch) {
+    return ch >= 'A' && ch <= 'z' && (ch <= 'Z' || ch >= 'a');
+  }
+}
@@ -0,0 +1,87 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class NameTableTest extends TestCase {
+
+  @Test
+  public static void testCanonicalizeElementNames() {
+    NameTable t = NameTable.ELEMENTS;
+    assertSame(t.canonicalize("td"), t.canonicalize("<TD>", 1, 3));
+    assertSame(t.canonicalize("td"), t.canonicalize("Td"));
+    assertEquals("font", t.canonicalize("FONT"));
+    // Mixed case foreign names are canonical as-is, but other casings are
+    // lower-cased.
+    assertEquals("clipPath", t.canonicalize("<clipPath", 1, 9));
+    assertEquals("clippath", t.canonicalize("<CLIPPATH", 1, 9));
+    // Unknown names are lower-cased.
+    assertEquals("my-widget", t.canonicalize("My-Widget"));
+    assertEquals("my-widget", t.canonicalize("<My-Widget>", 1, 10));
+    // Names with colons are left alone.
+    assertEquals("svg:Rect", t.canonicalize("svg:Rect"));
+    assertEquals("svg:Rect", t.canonicalize("<svg:Rect>", 1, 9));
+    // The element and attribute tables treat mixed case names differently.
+    assertEquals("textArea", t.canonicalize("textArea"));
+    assertEquals("textarea", NameTable.ATTRIBUTES.canonicalize("textArea"));
+  }
+
+  @Test
+  public static void testCanonicalizeAttributeNames() {
+    NameTable t = NameTable.ATTRIBUTES;
+    assertSame(t.canonicalize("face"), t.canonicalize(" FACE=", 1, 5));
+    assertEquals("viewBox", t.canonicalize("viewBox"));
+    assertEquals("viewbox", t.canonicalize("VIEWBOX"));
+    assertEquals("xlink:href", t.canonicalize("xlink:href"));
+    assertEquals("xlink:HREF", t.canonicalize("xlink:HREF"));
+  }
+
+  @Test
+  public static void testWithNames() {
+    NameTable t = NameTable.ATTRIBUTES.withNames(
+        ImmutableList.of("data-Foo", "x:Bar", "viewBox"));
+    String dataFoo = t.canonicalize("data-foo");
+    assertEquals("data-foo", dataFoo);
+    assertSame(dataFoo, t.canonicalize("<p DATA-FOO>", 3, 11));
+    assertSame(t.canonicalize("x:Bar"), t.canonicalize("<p x:Bar>", 3, 8));
+    assertEquals("x:bar", t.canonicalize("x:bar"));
+    assertEquals("viewBox", t.canonicalize("viewBox"));
+    assertEquals("viewbox", t.canonicalize("viewbox"));
+    // Names already known do not require a new table.
+    assertSame(
+        NameTable.ELEMENTS,
+        NameTable.ELEMENTS.withNames(ImmutableList.of("P", "clipPath")));
+  }
+}
@@ -0,0 +1,156 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Test;
+import org.owasp.html.examples.EbayPolicyExample;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Resources;
+
+@SuppressWarnings("javadoc")
+public final class PolicyCompilerTest extends FuzzyTestCase {
+
+  private static final AttributePolicy UPPER_CASE = new AttributePolicy() {
+    public String apply(
+        String elementName, String attributeName, String value) {
+      return value.toUpperCase(Locale.ROOT);
+    }
+  };
+
+  @Test
+  public static final void testAttributePolicy() {
+    AttributePolicy joined = AttributePolicy.Util.join(
+        new FilterUrlByProtocolAttributePolicy(
+            ImmutableList.of("http", "https")),
+        UPPER_CASE);
+    AttributePolicy compiled = PolicyCompiler.compile(joined);
+    for (String url : new String[] {
+          "http://example.com/(x)", "//example.com/", "javascript:alert(1)",
+          "/foo?bar#baz", " mailto:x@y ", "",
+        }) {
+      assertEquals(
+          url, joined.apply("a", "href", url),
+          compiled.apply("a", "href", url));
+    }
+    assertNull(compiled.apply("a", "href", "javascript:alert(1)"));
+    assertEquals(
+        "HTTP://EXAMPLE.COM/%28X%29",
+        compiled.apply("a", "href", "http://example.com/(x)"));
+  }
+
+  @Test
+  public static final void testProtocolRelativeUrls() {
+    AttributePolicy httpOnly = PolicyCompiler.compile(
+        new FilterUrlByProtocolAttributePolicy(ImmutableList.of("http")));
+    assertNull(httpOnly.apply("a", "href", "//example.com/"));
+    AttributePolicy web = PolicyCompiler.compile(
+        new FilterUrlByProtocolAttributePolicy(
+            ImmutableList.of("http", "https")));
+    assertEquals("//example.com/", web.apply("a", "href", "//example.com/"));
+    // Subclasses may override allowProtocolRelativeUrls.
+    AttributePolicy subclass = PolicyCompiler.compile(
+        new FilterUrlByProtocolAttributePolicy(ImmutableList.of("http")) {
+          @Override
+          protected boolean allowProtocolRelativeUrls() {
+            return true;
+          }
+        });
+    assertEquals(
+        "//example.com/", subclass.apply("a", "href", "//example.com/"));
+  }
+
+  @Test
+  public static final void testTrivialPolicies() {
+    assertEquals(
+        "x",
+        PolicyCompiler.compile(AttributePolicy.IDENTITY_ATTRIBUTE_POLICY)
+            .apply("a", "title", "x"));
+    assertNull(
+        PolicyCompiler.compile(AttributePolicy.REJECT_ALL_ATTRIBUTE_POLICY)
+            .apply("a", "title", "x"));
+    List<String> attrs = Lists.newArrayList();
+    assertEquals(
+        "p",
+        PolicyCompiler.compile(ElementPolicy.IDENTITY_ELEMENT_POLICY)
+            .apply("p", attrs));
+    assertNull(
+        PolicyCompiler.compile(ElementPolicy.REJECT_ALL_ELEMENT_POLICY)
+            .apply("p", attrs));
+  }
+
+  @Test
+  public static final void testCompileIsIdempotent() {
+    PolicyFactory compiled = Sanitizers.FORMATTING.compile();
+    assertSame(compiled, compiled.compile());
+    // Other factories derived from a compiled factory stay compiled.
+    PolicyFactory budgeted = compiled.withBudget(
+        SanitizerBudget.UNLIMITED.withMaxTokens(100));
+    assertSame(budgeted, budgeted.compile());
+  }
+
+  @Test
+  public final void testCompiledPoliciesSanitizeIdentically()
+      throws Exception {
+    String html = Resources.toString(
+        Resources.getResource("benchmark-data/Yahoo!.html"), Charsets.UTF_8);
+    PolicyFactory[] factories = {
+      EbayPolicyExample.POLICY_DEFINITION,
+      Sanitizers.FORMATTING.and(Sanitizers.BLOCKS).and(Sanitizers.STYLES)
+          .and(Sanitizers.LINKS).and(Sanitizers.TABLES)
+          .and(Sanitizers.IMAGES),
+      new HtmlPolicyBuilder()
+          .allowElements("a", "my-tag")
+          .allowUrlProtocols("https")
+          .allowAttributes("href", "title").onElements("a", "my-tag")
+          .requireRelsOnLinks("noopener")
+          .toFactory(),
+    };
+    char[] fuzzyHtml = new char[html.length()];
+    for (PolicyFactory factory : factories) {
+      PolicyFactory compiled = factory.compile();
+      assertEquals(factory.sanitize(html), compiled.sanitize(html));
+      for (int run = 0; run < 10; ++run) {
+        html.getChars(0, html.length(), fuzzyHtml, 0);
+        for (int fuzz = 1 + rnd.nextInt(25); --fuzz >= 0;) {
+          fuzzyHtml[rnd.nextInt(fuzzyHtml.length)] =
+              "<>\"'=/: ".charAt(rnd.nextInt(8));
+        }
+        String fuzzy = new String(fuzzyHtml);
+        assertEquals(
+            "seed=" + seed, factory.sanitize(fuzzy), compiled.sanitize(fuzzy));
+      }
+    }
+  }
+}
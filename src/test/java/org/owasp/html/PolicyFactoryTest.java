@@ -29,13 +29,16 @@
 package org.owasp.html;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Test;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
+import com.google.common.io.Resources;
 
 import junit.framework.TestCase;
 
@@ -603,6 +606,57 @@ public final class PolicyFactoryTest extends TestCase {
     assertEquals("Hi", resultString);
   }
 
+  @Test
+  public static void testSanitizeReader() throws IOException {
+    PolicyFactory policy = Sanitizers.FORMATTING.and(Sanitizers.LINKS)
+        .and(Sanitizers.BLOCKS).and(Sanitizers.IMAGES)
+        .and(Sanitizers.STYLES).and(Sanitizers.TABLES);
+    String[] inputs = {
+        "",
+        "Hello, World!",
+        "<b>Hello</b>, <i title=\"a &amp; b\">World</i>&excl;",
+        "<a href=http://foo.com/ target=_blank>Clicky</a>",
+        "<p style=\"color: red; font-weight: bold\">a<p>b<td>c",
+        "<script>alert('</b>')</script><style>p { color: red }</style>ok",
+        "<textarea>&lt;/textarea&gt;</textarea><!-- </p> -->done",
+        "<img src=foo.png alt=\"a \ud83d\ude00 b\" checked =>&#x1F600;",
+        "<div <b>unterminated",
+        Resources.toString(
+            Resources.getResource("benchmark-data/Yahoo!.html"),
+            Charsets.UTF_8),
+    };
+    for (String input : inputs) {
+      String want = policy.sanitize(input);
+      for (int chunkSize : new int[] { 1, 5, 4096 }) {
+        StringBuilder got = new StringBuilder();
+        policy.sanitize(
+            new HtmlLexerTest.ChunkedReader(input, chunkSize), got);
+        assertEquals(
+            "chunkSize=" + chunkSize + ", input=" + input,
+            want, got.toString());
+      }
+    }
+  }
+
+  @Test
+  public static void testSanitizeReaderPropagatesIOExceptions() {
+    final IOException failure = new IOException("disk on fire");
+    Reader failing = new Reader() {
+      @Override
+      public int read(char[] cbuf, int off, int len) throws IOException {
+        throw failure;
+      }
+      @Override
+      public void close() { /* nothing to close */ }
+    };
+    try {
+      Sanitizers.FORMATTING.sanitize(failing, new StringBuilder());
+      fail("Expected IOException");
+    } catch (IOException ex) {
+      assertSame(failure, ex);
+    }
+  }
+
   static final class SubstringFilter implements AttributePolicy {
     final String substr;
 
@@ -0,0 +1,280 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class SanitizerBudgetTest extends TestCase {
+
+  private static final PolicyFactory POLICY = Sanitizers.FORMATTING
+      .and(Sanitizers.LINKS)
+      .and(Sanitizers.BLOCKS);
+
+  private static final String DOC =
+      "<div><p>Hello <b title=x>World <a href=/ rel=nofollow>link</a>"
+      + " more</b></p><p>second</p></div>";
+
+  @Test
+  public static final void testUnlimited() {
+    assertSanitized(
+        POLICY.sanitize(DOC), null, SanitizerBudget.UNLIMITED, DOC);
+  }
+
+  @Test
+  public static final void testMaxInputChars() {
+    // Stops before the text token that crosses the limit.
+    assertSanitized(
+        "<div><p>Hello <b></b></p></div>",
+        SanitizerBudget.Limit.INPUT_CHARS,
+        SanitizerBudget.UNLIMITED.withMaxInputChars(DOC.indexOf("World") + 2),
+        DOC);
+    // Stops before a tag that crosses the limit.
+    assertSanitized(
+        "<div><p>Hello </p></div>",
+        SanitizerBudget.Limit.INPUT_CHARS,
+        SanitizerBudget.UNLIMITED.withMaxInputChars(DOC.indexOf("<b") + 4),
+        DOC);
+    assertSanitized(
+        POLICY.sanitize(DOC), null,
+        SanitizerBudget.UNLIMITED.withMaxInputChars(DOC.length()),
+        DOC);
+  }
+
+  @Test
+  public static final void testMaxTokens() {
+    assertSanitized(
+        "<div><p>Hello </p></div>",
+        SanitizerBudget.Limit.TOKENS,
+        // <div, >, <p, >, Hello
+        SanitizerBudget.UNLIMITED.withMaxTokens(5),
+        DOC);
+    assertSanitized(
+        "", SanitizerBudget.Limit.TOKENS,
+        SanitizerBudget.UNLIMITED.withMaxTokens(0),
+        DOC);
+  }
+
+  @Test
+  public static final void testMaxAttributesPerElement() {
+    assertSanitized(
+        "<div><p>Hello <b>World </b></p></div>",
+        SanitizerBudget.Limit.ATTRIBUTES_PER_ELEMENT,
+        SanitizerBudget.UNLIMITED.withMaxAttributesPerElement(1),
+        DOC);
+    assertSanitized(
+        POLICY.sanitize(DOC), null,
+        SanitizerBudget.UNLIMITED.withMaxAttributesPerElement(2),
+        DOC);
+  }
+
+  @Test
+  public static final void testMaxAttributeValueLength() {
+    assertSanitized(
+        "<div><p>Hello <b>World </b></p></div>",
+        SanitizerBudget.Limit.ATTRIBUTE_VALUE_LENGTH,
+        SanitizerBudget.UNLIMITED.withMaxAttributeValueLength(7),
+        DOC);
+    assertSanitized(
+        POLICY.sanitize(DOC), null,
+        SanitizerBudget.UNLIMITED.withMaxAttributeValueLength(8),
+        DOC);
+  }
+
+  @Test
+  public static final void testDeadline() {
+    String doc = "<b>" + Strings.repeat("<i>x</i>", 1000);
+    SanitizerBudget budget =
+        SanitizerBudget.UNLIMITED.withTimeout(0, TimeUnit.NANOSECONDS);
+    List<SanitizerBudget.Limit> exceeded = Lists.newArrayList();
+    String out = POLICY.withBudget(budget)
+        .sanitize(doc, new LimitListener(), exceeded);
+    assertEquals(Lists.newArrayList(SanitizerBudget.Limit.DEADLINE), exceeded);
+    assertTrue(out, out.startsWith("<b>") && out.endsWith("</b>"));
+    assertTrue(out, out.length() < doc.length());
+  }
+
+  @Test
+  public static final void testCancelOnInterrupt() {
+    String doc = "<b>" + Strings.repeat("<i>x</i>", 1000);
+    Thread.currentThread().interrupt();
+    try {
+      // Without opting in, interrupts are ignored.
+      assertSanitized(
+          POLICY.sanitize(doc), null, SanitizerBudget.UNLIMITED, doc);
+      List<SanitizerBudget.Limit> exceeded = Lists.newArrayList();
+      String out = POLICY.withBudget(
+          SanitizerBudget.UNLIMITED.withCancelOnInterrupt(true))
+          .sanitize(doc, new LimitListener(), exceeded);
+      assertEquals(
+          Lists.newArrayList(SanitizerBudget.Limit.CANCELLED), exceeded);
+      assertTrue(out, out.endsWith("</b>"));
+      assertTrue(Thread.currentThread().isInterrupted());
+    } finally {
+      Thread.interrupted();
+    }
+  }
+
+  @Test
+  public static final void testMaxTextChars() {
+    SanitizerBudget preview = SanitizerBudget.UNLIMITED.withMaxTextChars(8);
+    assertSanitized(
+        "<div><p>Hello <b>Wo</b></p></div>",
+        SanitizerBudget.Limit.TEXT_CHARS, preview, DOC);
+    // Text that fits exactly is not reported when nothing follows it.
+    assertSanitized("<b>Hello Wo</b>", null, preview, "<b>Hello Wo</b>");
+    assertSanitized(
+        "<b>Hello Wo</b>", SanitizerBudget.Limit.TEXT_CHARS,
+        preview, "<b>Hello Wo</b>r");
+    // Chars are counted after decoding and before encoding.
+    assertSanitized(
+        "&lt;&amp;&#34;&#39;&gt; &amp;&amp;", SanitizerBudget.Limit.TEXT_CHARS,
+        preview, "&lt;&amp;\"'&gt; &amp;&amp;&amp;");
+    // Surrogate pairs are not split.
+    assertSanitized(
+        "1234567", SanitizerBudget.Limit.TEXT_CHARS,
+        preview, "1234567\ud83d\ude00");
+    assertSanitized(
+        "<div><p></p></div>", SanitizerBudget.Limit.TEXT_CHARS,
+        SanitizerBudget.UNLIMITED.withMaxTextChars(0), DOC);
+  }
+
+  @Test
+  public static final void testMaxOutputChars() {
+    assertSanitized(
+        "<div><p>Hello </p></div>",
+        SanitizerBudget.Limit.OUTPUT_CHARS,
+        SanitizerBudget.UNLIMITED.withMaxOutputChars(10),
+        DOC);
+    assertSanitized(
+        "", SanitizerBudget.Limit.OUTPUT_CHARS,
+        SanitizerBudget.UNLIMITED.withMaxOutputChars(0), DOC);
+  }
+
+  @Test
+  public static final void testPreviewReadsLittleInput() throws IOException {
+    String doc = Strings.repeat(
+        "<p>Lorem ipsum <b>dolor</b> sit amet</p>", 10000);
+    final int[] charsRead = new int[1];
+    StringReader in = new StringReader(doc) {
+      @Override
+      public int read(char[] cbuf, int off, int len) throws IOException {
+        int n = super.read(cbuf, off, len);
+        if (n > 0) { charsRead[0] += n; }
+        return n;
+      }
+    };
+    StringBuilder out = new StringBuilder();
+    POLICY.withBudget(SanitizerBudget.UNLIMITED.withMaxTextChars(100))
+        .sanitize(in, out);
+    String expected = POLICY.sanitize(doc);
+    expected = expected.substring(0, expected.indexOf("ips", 1000));
+    assertTrue(out.toString(), expected.startsWith(out.toString().substring(
+        0, out.length() - "</p>".length())));
+    assertTrue(out.toString(), out.toString().endsWith("</p>"));
+    assertTrue(String.valueOf(charsRead[0]), charsRead[0] < doc.length() / 10);
+  }
+
+  @Test
+  public static final void testBudgetsCombine() {
+    PolicyFactory f = new HtmlPolicyBuilder()
+        .allowElements("b", "i")
+        .withBudget(SanitizerBudget.UNLIMITED.withMaxTokens(6))
+        .toFactory()
+        .and(POLICY.withBudget(SanitizerBudget.UNLIMITED.withMaxTokens(3)));
+    assertEquals("<b>x</b>", f.sanitize("<b>x<i>y</i></b>"));
+    assertEquals(
+        "<b>x</b>",
+        POLICY.withBudget(SanitizerBudget.UNLIMITED.withMaxTokens(6))
+        .withBudget(SanitizerBudget.UNLIMITED.withMaxTokens(3))
+        .sanitize("<b>x<i>y</i></b>"));
+  }
+
+  private static void assertSanitized(
+      String golden, SanitizerBudget.Limit goldenLimit,
+      SanitizerBudget budget, String html) {
+    PolicyFactory f = POLICY.withBudget(budget);
+    List<SanitizerBudget.Limit> expected = Lists.newArrayList();
+    if (goldenLimit != null) { expected.add(goldenLimit); }
+
+    List<SanitizerBudget.Limit> exceeded = Lists.newArrayList();
+    assertEquals(golden, f.sanitize(html, new LimitListener(), exceeded));
+    assertEquals(expected, exceeded);
+    assertEquals(golden, f.sanitize(html));
+
+    StringBuilder sb = new StringBuilder();
+    exceeded.clear();
+    try {
+      f.sanitize(new StringReader(html), sb, new LimitListener(), exceeded);
+    } catch (IOException ex) {
+      throw new AssertionError(null, ex);
+    }
+    assertEquals(golden, sb.toString());
+    assertEquals(expected, exceeded);
+
+    SanitizerSession session = f.newSession();
+    for (int i = 0; i < 2; ++i) {
+      exceeded.clear();
+      assertEquals(
+          golden, session.sanitize(html, new LimitListener(), exceeded));
+      assertEquals(expected, exceeded);
+      assertEquals(golden, session.sanitize(html));
+    }
+  }
+
+  private static final class LimitListener
+      implements HtmlChangeListener<List<SanitizerBudget.Limit>> {
+    public void discardedTag(
+        List<SanitizerBudget.Limit> context, String elementName) {
+      // Ignored
+    }
+
+    public void discardedAttributes(
+        List<SanitizerBudget.Limit> context, String tagName,
+        String... attributeNames) {
+      // Ignored
+    }
+
+    @Override
+    public void budgetExceeded(
+        List<SanitizerBudget.Limit> context, SanitizerBudget.Limit limit) {
+      context.add(limit);
+    }
+  }
+}
@@ -0,0 +1,221 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import com.google.common.base.Predicates;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class SanitizerCacheTest extends TestCase {
+
+  private static PolicyFactory linkPolicy() {
+    return new HtmlPolicyBuilder()
+        .allowElements("a", "b")
+        .allowUrlProtocols("https")
+        .allowAttributes("href").onElements("a")
+        .toFactory();
+  }
+
+  @Test
+  public static final void testHitsAndMisses() {
+    SanitizerCache cache = new SanitizerCache(1 << 20);
+    PolicyFactory policy = linkPolicy();
+    String html = "<a href=https://example.com onclick=evil()>Hi</a>";
+    String expected = policy.sanitize(html);
+    assertEquals(expected, cache.sanitize(policy, html));
+    assertEquals(expected, cache.sanitize(policy, html));
+    assertEquals("", cache.sanitize(policy, null));
+    CacheStats stats = cache.stats();
+    assertEquals(1, stats.missCount());
+    assertEquals(1, stats.hitCount());
+    assertEquals(1, cache.size());
+
+    cache.invalidateAll();
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public static final void testEquivalentPoliciesShareResults() {
+    SanitizerCache cache = new SanitizerCache(1 << 20);
+    String html = "<b>Hello</b>";
+    cache.sanitize(linkPolicy(), html);
+    // Built separately, but structurally the same.
+    cache.sanitize(linkPolicy(), html);
+    // Compiling does not change the output.
+    cache.sanitize(linkPolicy().compile(), html);
+    assertEquals(2, cache.stats().hitCount());
+    // A policy that differs does not share results.
+    PolicyFactory other = new HtmlPolicyBuilder()
+        .allowElements("a")
+        .allowUrlProtocols("https")
+        .allowAttributes("href").onElements("a")
+        .toFactory();
+    assertEquals("Hello", cache.sanitize(other, html));
+    assertEquals(2, cache.stats().missCount());
+  }
+
+  @Test
+  public static final void testBuilderPoliciesFingerprintByContent() {
+    // Separately built policies would get distinct ids for opaque parts, so
+    // matching fingerprints mean that they are digested by content alone.
+    assertEquals(stylingPolicy().fingerprint(), stylingPolicy().fingerprint());
+    assertEquals(
+        Sanitizers.IMAGES.fingerprint(),
+        new HtmlPolicyBuilder().toFactory().and(Sanitizers.IMAGES)
+            .fingerprint());
+    assertFalse(
+        stylingPolicy().fingerprint().equals(
+            new HtmlPolicyBuilder()
+                .allowElements("span")
+                .allowAttributes("class").matching(Pattern.compile("[a-y]+"))
+                .onElements("span")
+                .toFactory().and(stylingPolicy()).fingerprint()));
+    PolicyFactory predicatePolicy = new HtmlPolicyBuilder()
+        .allowElements("span")
+        .allowAttributes("class").matching(Predicates.<String>alwaysTrue())
+        .onElements("span")
+        .toFactory();
+    PolicyFactory samePredicatePolicy = new HtmlPolicyBuilder()
+        .allowElements("span")
+        .allowAttributes("class").matching(Predicates.<String>alwaysTrue())
+        .onElements("span")
+        .toFactory();
+    // Predicates are opaque.
+    assertFalse(
+        predicatePolicy.fingerprint().equals(
+            samePredicatePolicy.fingerprint()));
+  }
+
+  private static PolicyFactory stylingPolicy() {
+    return new HtmlPolicyBuilder()
+        .allowElements("a", "b", "p", "span")
+        .allowUrlProtocols("https")
+        .allowAttributes("href").onElements("a")
+        .allowAttributes("class").matching(Pattern.compile("[a-z]+"))
+            .onElements("span")
+        .allowAttributes("dir").matching(true, "ltr", "rtl").globally()
+        .requireRelsOnLinks("noopener")
+        .allowStyling()
+        .toFactory();
+  }
+
+  @Test
+  public static final void testBudgetsAffectResults() {
+    SanitizerCache cache = new SanitizerCache(1 << 20);
+    String html = "<b>Hello</b>";
+    PolicyFactory policy = linkPolicy();
+    assertEquals("<b>Hello</b>", cache.sanitize(policy, html));
+    assertEquals(
+        "<b>He</b>",
+        cache.sanitize(
+            policy.withBudget(
+                SanitizerBudget.UNLIMITED.withMaxTextChars(2)),
+            html));
+    // Results that depend on timing are not cached.
+    PolicyFactory timed = policy.withBudget(
+        SanitizerBudget.UNLIMITED.withTimeout(1, TimeUnit.MINUTES));
+    assertEquals("<b>Hello</b>", cache.sanitize(timed, html));
+    assertEquals("<b>Hello</b>", cache.sanitize(timed, html));
+    assertEquals(2, cache.stats().requestCount());
+  }
+
+  @Test
+  public static final void testRetainedSizeIsBounded() {
+    long maxBytes = 16 * (SanitizerCache.ENTRY_OVERHEAD_BYTES + 20);
+    SanitizerCache cache = new SanitizerCache(maxBytes);
+    PolicyFactory policy = linkPolicy();
+    for (int i = 0; i < 1000; ++i) {
+      cache.sanitize(policy, "<b>" + i + "</b>");
+    }
+    assertTrue(cache.size() <= 16);
+    assertTrue(cache.stats().evictionCount() >= 1000 - 16);
+  }
+
+  @Test
+  public static final void testConcurrentRequestsSanitizeOnce()
+      throws Exception {
+    final AtomicInteger nSanitized = new AtomicInteger();
+    final PolicyFactory slowPolicy = new HtmlPolicyBuilder()
+        .allowElements("b")
+        .withPreprocessor(new HtmlStreamEventProcessor() {
+          public HtmlStreamEventReceiver wrap(HtmlStreamEventReceiver r) {
+            nSanitized.incrementAndGet();
+            try {
+              Thread.sleep(100);
+            } catch (InterruptedException ex) {
+              Thread.currentThread().interrupt();
+            }
+            return r;
+          }
+        })
+        .toFactory();
+    final SanitizerCache cache = new SanitizerCache(1 << 20);
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<String> results = Lists.newArrayList();
+    List<Thread> threads = Lists.newArrayList();
+    for (int i = 0; i < 8; ++i) {
+      Thread t = new Thread(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException ex) {
+            return;
+          }
+          String result = cache.sanitize(slowPolicy, "<b>Hi</b><i>!</i>");
+          synchronized (results) {
+            results.add(result);
+          }
+        }
+      });
+      t.start();
+      threads.add(t);
+    }
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(8, results.size());
+    for (String result : results) {
+      assertEquals("<b>Hi</b>!", result);
+    }
+    assertEquals(1, nSanitized.get());
+    assertEquals(1, cache.stats().loadCount());
+  }
+}
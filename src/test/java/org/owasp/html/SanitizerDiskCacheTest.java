@@ -0,0 +1,315 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class SanitizerDiskCacheTest extends TestCase {
+
+  private Path dir;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = Files.createTempDirectory("sanitized");
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    MoreFiles.deleteRecursively(dir, RecursiveDeleteOption.ALLOW_INSECURE);
+  }
+
+  private static PolicyFactory policy() {
+    return new HtmlPolicyBuilder()
+        .allowElements("a", "b", "p", "span")
+        .allowUrlProtocols("https")
+        .allowAttributes("href").onElements("a")
+        .allowAttributes("class").matching(Pattern.compile("[a-z]+"))
+            .onElements("span")
+        .allowAttributes("dir").matching(true, "ltr", "rtl").globally()
+        .requireRelsOnLinks("noopener")
+        .allowStyling()
+        .toFactory();
+  }
+
+  private static String html(int i) {
+    return "<p dir=RTL onclick=evil()>Message " + i
+        + " <a href=https://example.com/" + i + ">link</a>"
+        + " <span class=x style=\"color:red;position:fixed\">\u00e9</span>";
+  }
+
+  @Test
+  public final void testResultsSurviveReopening() throws IOException {
+    PolicyFactory policy = policy();
+    SanitizerDiskCache store = SanitizerDiskCache.open(dir, policy, 1 << 20);
+    for (int i = 0; i < 10; ++i) {
+      assertEquals(policy.sanitize(html(i)), store.sanitize(html(i)));
+    }
+    assertEquals(0, store.hitCount());
+    assertEquals(10, store.missCount());
+    assertEquals(10, store.size());
+    store.close();
+
+    // An equivalent policy built afresh, as after a restart.
+    store = SanitizerDiskCache.open(dir, policy(), 1 << 20);
+    try {
+      assertEquals(10, store.size());
+      for (int i = 0; i < 10; ++i) {
+        assertEquals(policy.sanitize(html(i)), store.sanitize(html(i)));
+      }
+      assertEquals("", store.sanitize(null));
+      assertEquals(10, store.hitCount());
+      assertEquals(0, store.missCount());
+    } finally {
+      store.close();
+    }
+  }
+
+  @Test
+  public final void testDifferentPolicyDiscardsResults() throws IOException {
+    SanitizerDiskCache store = SanitizerDiskCache.open(dir, policy(), 1 << 20);
+    store.sanitize(html(0));
+    store.close();
+
+    PolicyFactory other = Sanitizers.FORMATTING;
+    store = SanitizerDiskCache.open(dir, other, 1 << 20);
+    try {
+      assertEquals(0, store.size());
+      assertEquals(other.sanitize(html(0)), store.sanitize(html(0)));
+      assertEquals(1, store.missCount());
+    } finally {
+      store.close();
+    }
+  }
+
+  @Test
+  public final void testCompactionBoundsSegment() throws IOException {
+    PolicyFactory policy = policy();
+    long maxSegmentBytes = 8192;
+    SanitizerDiskCache store = SanitizerDiskCache.open(
+        dir, policy, maxSegmentBytes);
+    try {
+      for (int i = 0; i < 500; ++i) {
+        assertEquals(policy.sanitize(html(i)), store.sanitize(html(i)));
+        assertTrue(
+            Files.size(dir.resolve(SanitizerDiskCache.SEGMENT_FILE_NAME))
+            <= maxSegmentBytes);
+      }
+      int size = store.size();
+      assertTrue(size > 0 && size < 500);
+      // The most recent results are kept.
+      assertEquals(policy.sanitize(html(499)), store.sanitize(html(499)));
+      assertEquals(1, store.hitCount());
+      // Large results are not stored.
+      StringBuilder large = new StringBuilder();
+      while (large.length() < maxSegmentBytes) { large.append("<b>x</b>"); }
+      assertEquals(
+          policy.sanitize(large.toString()),
+          store.sanitize(large.toString()));
+      assertEquals(size, store.size());
+    } finally {
+      store.close();
+    }
+  }
+
+  @Test
+  public final void testIndexGrows() throws IOException {
+    PolicyFactory policy = policy();
+    int n = 3 * SanitizerDiskCache.MIN_INDEX_CAPACITY;
+    SanitizerDiskCache store = SanitizerDiskCache.open(dir, policy, 1 << 24);
+    for (int i = 0; i < n; ++i) {
+      store.sanitize(html(i));
+    }
+    assertEquals(n, store.size());
+    store.close();
+
+    store = SanitizerDiskCache.open(dir, policy, 1 << 24);
+    try {
+      for (int i = 0; i < n; ++i) {
+        assertEquals(policy.sanitize(html(i)), store.sanitize(html(i)));
+      }
+      assertEquals(n, store.hitCount());
+    } finally {
+      store.close();
+    }
+  }
+
+  @Test
+  public final void testTornTailAndLostIndex() throws IOException {
+    PolicyFactory policy = policy();
+    SanitizerDiskCache store = SanitizerDiskCache.open(dir, policy, 1 << 20);
+    for (int i = 0; i < 3; ++i) {
+      store.sanitize(html(i));
+    }
+    store.close();
+
+    // Simulate a crash part way through writing a fourth record, before the
+    // index was written.
+    Path segment = dir.resolve(SanitizerDiskCache.SEGMENT_FILE_NAME);
+    long size = Files.size(segment);
+    try (FileChannel channel = FileChannel.open(
+             segment, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[] { 0x48, 0x52, 0x43 }), size);
+    }
+    Files.delete(dir.resolve(SanitizerDiskCache.INDEX_FILE_NAME));
+
+    store = SanitizerDiskCache.open(dir, policy, 1 << 20);
+    try {
+      assertEquals(3, store.size());
+      assertEquals(size, Files.size(segment));
+      for (int i = 0; i < 4; ++i) {
+        assertEquals(policy.sanitize(html(i)), store.sanitize(html(i)));
+      }
+      assertEquals(3, store.hitCount());
+      assertEquals(1, store.missCount());
+    } finally {
+      store.close();
+    }
+  }
+
+  @Test
+  public final void testCorruptRecordIsAMiss() throws IOException {
+    PolicyFactory policy = policy();
+    SanitizerDiskCache store = SanitizerDiskCache.open(dir, policy, 1 << 20);
+    store.sanitize(html(0));
+    store.close();
+
+    // Flip a bit in the last byte of the payload.
+    Path segment = dir.resolve(SanitizerDiskCache.SEGMENT_FILE_NAME);
+    try (FileChannel channel = FileChannel.open(
+             segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      long pos = channel.size() - SanitizerDiskCache.RECORD_TRAILER_BYTES - 1;
+      ByteBuffer b = ByteBuffer.allocate(1);
+      channel.read(b, pos);
+      b.put(0, (byte) (b.get(0) ^ 1));
+      b.rewind();
+      channel.write(b, pos);
+    }
+
+    store = SanitizerDiskCache.open(dir, policy, 1 << 20);
+    try {
+      assertEquals(policy.sanitize(html(0)), store.sanitize(html(0)));
+      assertEquals(0, store.hitCount());
+      assertEquals(1, store.missCount());
+      // The rewritten result is served.
+      assertEquals(policy.sanitize(html(0)), store.sanitize(html(0)));
+      assertEquals(1, store.hitCount());
+    } finally {
+      store.close();
+    }
+  }
+
+  @Test
+  public final void testDirectoryIsLocked() throws IOException {
+    SanitizerDiskCache store = SanitizerDiskCache.open(dir, policy(), 1 << 20);
+    try {
+      SanitizerDiskCache.open(dir, policy(), 1 << 20);
+      fail();
+    } catch (IOException ex) {
+      // Expected.
+    } finally {
+      store.close();
+    }
+    // Closing releases the directory.
+    SanitizerDiskCache.open(dir, policy(), 1 << 20).close();
+  }
+
+  @Test
+  public final void testConcurrentMissesSanitizeOnce() throws Exception {
+    final AtomicInteger nSanitized = new AtomicInteger();
+    final CountDownLatch release = new CountDownLatch(1);
+    PolicyFactory blockingPolicy = new HtmlPolicyBuilder()
+        .allowElements("b")
+        .withPreprocessor(new HtmlStreamEventProcessor() {
+          public HtmlStreamEventReceiver wrap(HtmlStreamEventReceiver r) {
+            nSanitized.incrementAndGet();
+            Uninterruptibles.awaitUninterruptibly(release);
+            return r;
+          }
+        })
+        .toFactory();
+    final SanitizerDiskCache store = SanitizerDiskCache.open(
+        dir, blockingPolicy, 1 << 20);
+    try {
+      final List<String> results = Lists.newArrayList();
+      List<Thread> threads = Lists.newArrayList();
+      for (int i = 0; i < 8; ++i) {
+        Thread t = new Thread(new Runnable() {
+          public void run() {
+            String result = store.sanitize("<b>Hi</b><i>!</i>");
+            synchronized (results) {
+              results.add(result);
+            }
+          }
+        });
+        t.start();
+        threads.add(t);
+      }
+      // Release the sanitizer once every thread is either sanitizing or
+      // waiting for another thread's result.
+      for (Thread t : threads) {
+        while (t.getState() != Thread.State.WAITING) {
+          Thread.sleep(1);
+        }
+      }
+      release.countDown();
+      for (Thread t : threads) {
+        t.join();
+      }
+      assertEquals(8, results.size());
+      for (String result : results) {
+        assertEquals("<b>Hi</b>!", result);
+      }
+      assertEquals(1, nSanitized.get());
+      assertEquals(1, store.missCount());
+      assertEquals(7, store.hitCount());
+      assertEquals(1, store.size());
+    } finally {
+      store.close();
+    }
+  }
+}
@@ -0,0 +1,174 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class SanitizerSessionTest extends TestCase {
+
+  private static final PolicyFactory POLICY = Sanitizers.FORMATTING
+      .and(Sanitizers.LINKS)
+      .and(Sanitizers.BLOCKS)
+      .and(new HtmlPolicyBuilder().allowElements("select", "option")
+          .toFactory());
+
+  private static final String[] DOCS = {
+    "",
+    "Hello, <b>World</b>!",
+    "<p>Unclosed <i>tags <a href='http://example.com/'>and links",
+    "<script>alert(1)</script><style>p { color: red }</style>after",
+    "<select><script>x</script><option>o</select>",
+    "<div onclick=evil() title=\"a &amp; b\">text</div></p></p>",
+    "<!-- comment --><![CDATA[ cdata ]]><xmp><b></xmp>",
+    "<a href=javascript:alert(1)>bad</a><a href=/ok rel=nofollow>ok</a>",
+  };
+
+  @Test
+  public static final void testMatchesPolicyFactory() {
+    SanitizerSession session = POLICY.newSession();
+    // Run through the documents twice so that each one follows a variety of
+    // others.
+    for (int pass = 0; pass < 2; ++pass) {
+      for (String doc : DOCS) {
+        assertEquals(doc, POLICY.sanitize(doc), session.sanitize(doc));
+      }
+    }
+    assertEquals("", session.sanitize(null));
+  }
+
+  @Test
+  public static final void testChangeListener() {
+    SanitizerSession session = POLICY.newSession();
+    for (String doc : DOCS) {
+      List<String> expected = Lists.newArrayList();
+      List<String> actual = Lists.newArrayList();
+      assertEquals(
+          doc,
+          POLICY.sanitize(doc, new RecordingListener(), expected),
+          session.sanitize(doc, new RecordingListener(), actual));
+      assertEquals(doc, expected, actual);
+      // Reporting does not disturb the unreported path.
+      assertEquals(doc, POLICY.sanitize(doc), session.sanitize(doc));
+    }
+  }
+
+  @Test
+  public static final void testRecoversFromAbandonedDocument() {
+    SanitizerSession session = POLICY.newSession();
+    HtmlChangeListener<Void> throwingListener = new HtmlChangeListener<Void>() {
+      public void discardedTag(Void context, String elementName) {
+        throw new IllegalStateException(elementName);
+      }
+
+      public void discardedAttributes(
+          Void context, String tagName, String... attributeNames) {
+        throw new IllegalStateException(tagName);
+      }
+    };
+    for (String doc : DOCS) {
+      try {
+        session.sanitize(
+            "<div><p><b>open <script>x</script>", throwingListener, null);
+        fail();
+      } catch (IllegalStateException ex) {
+        // Expected.
+      }
+      assertEquals(doc, POLICY.sanitize(doc), session.sanitize(doc));
+    }
+  }
+
+  @Test
+  public static final void testLargeOutputReleased() {
+    SanitizerSession session = POLICY.newSession();
+    StringBuilder sb = new StringBuilder();
+    while (sb.length() <= SanitizerSession.OUTPUT_HIGH_WATER_MARK) {
+      sb.append("<b>Hello</b> ");
+    }
+    String big = sb.toString();
+    assertEquals(POLICY.sanitize(big), session.sanitize(big));
+    assertEquals("<b>small</b>", session.sanitize("<b>small"));
+  }
+
+  @Test
+  public static final void testProcessorsWrapEachDocument() {
+    PolicyFactory[] policies = {
+        POLICY.and(new HtmlPolicyBuilder()
+            .withPreprocessor(new FirstTagsOnly()).toFactory()),
+        POLICY.and(new HtmlPolicyBuilder()
+            .withPostprocessor(new FirstTagsOnly()).toFactory()),
+    };
+    for (PolicyFactory policy : policies) {
+      SanitizerSession session = policy.newSession();
+      for (int pass = 0; pass < 2; ++pass) {
+        for (String doc : DOCS) {
+          assertEquals(doc, policy.sanitize(doc), session.sanitize(doc));
+        }
+      }
+    }
+  }
+
+  /** A stateful processor that drops all but the first few start tags. */
+  private static final class FirstTagsOnly
+      implements HtmlStreamEventProcessor {
+    public HtmlStreamEventReceiver wrap(HtmlStreamEventReceiver sink) {
+      return new HtmlStreamEventReceiverWrapper(sink) {
+        private int nTags;
+
+        @Override
+        public void openTag(String elementName, List<String> attrs) {
+          if (++nTags <= 2) {
+            underlying.openTag(elementName, attrs);
+          }
+        }
+      };
+    }
+  }
+
+  private static final class RecordingListener
+      implements HtmlChangeListener<List<String>> {
+    public void discardedTag(List<String> context, String elementName) {
+      context.add(elementName);
+    }
+
+    public void discardedAttributes(
+        List<String> context, String tagName, String... attributeNames) {
+      context.add(tagName);
+      for (String attributeName : attributeNames) {
+        context.add(tagName + "." + attributeName);
+      }
+    }
+  }
+}
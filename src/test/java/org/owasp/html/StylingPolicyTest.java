@@ -33,6 +33,7 @@ import javax.annotation.Nullable;
 import org.junit.Test;
 
 import com.google.common.base.Function;
+import com.google.common.base.Functions;
 
 import junit.framework.TestCase;
 
@@ -344,6 +345,102 @@ public class StylingPolicyTest extends TestCase {
     assertSanitizedCss("font-family:'a b'", "font-family: a<!--b");
   }
 
+  @Test
+  public static final void testStylesMemoizedWithinDocument() {
+    CountingUrlPolicy urls = new CountingUrlPolicy();
+    PolicyFactory policy = new HtmlPolicyBuilder()
+        .allowElements("table", "tr", "td", "p")
+        .allowStyling()
+        .allowUrlsInStyles(urls)
+        .toFactory();
+    String html = repeatedStyles();
+    String sanitized = policy.sanitize(html);
+    assertEquals(repeatedStylesSanitized(), sanitized);
+    // Once for each distinct style in the document.
+    assertEquals(1, urls.count);
+    assertEquals(sanitized, policy.sanitize(html));
+    assertEquals(2, urls.count);
+  }
+
+  @Test
+  public static final void testStyleCacheSharedAcrossDocuments() {
+    CountingUrlPolicy urls = new CountingUrlPolicy();
+    PolicyFactory policy = new HtmlPolicyBuilder()
+        .allowElements("table", "tr", "td", "p")
+        // Style guards on separate elements still share cached styles.
+        .allowAttributes("style").onElements("td", "p")
+        .allowStyling()
+        .allowUrlsInStyles(urls)
+        .withStyleCache(1 << 16)
+        .toFactory()
+        .compile();
+    String html = repeatedStyles();
+    assertEquals(repeatedStylesSanitized(), policy.sanitize(html));
+    assertEquals(repeatedStylesSanitized(), policy.sanitize(html));
+    assertEquals(1, urls.count);
+  }
+
+  @Test
+  public static final void testStyleMemoIsBounded() {
+    StylingPolicy stylingPolicy = new StylingPolicy(
+        CssSchema.DEFAULT, Functions.<String>identity(), 4096);
+    StylingPolicy.StyleMemo memo = new StylingPolicy.StyleMemo();
+    for (int i = 0; i < 2 * StylingPolicy.StyleMemo.MAX_ENTRIES; ++i) {
+      String style = "width:" + i + "px";
+      assertEquals(style, stylingPolicy.apply(style, memo));
+      assertEquals(style, stylingPolicy.apply(style, memo));
+    }
+    assertEquals(StylingPolicy.StyleMemo.MAX_ENTRIES, memo.size());
+    // Each entry is estimated at more than 160 bytes.
+    assertTrue(stylingPolicy.sharedCacheSize() <= 4096 / 160);
+
+    // Dropped styles are memoized too.
+    assertNull(stylingPolicy.apply("position:fixed", memo));
+    assertNull(stylingPolicy.apply("position:fixed", memo));
+
+    StringBuilder longStyle = new StringBuilder("font-family:");
+    while (longStyle.length() <= StylingPolicy.StyleMemo.MAX_VALUE_LENGTH) {
+      longStyle.append("a,");
+    }
+    memo.clear();
+    assertEquals(
+        stylingPolicy.sanitizeCssProperties(longStyle.toString()),
+        stylingPolicy.apply(longStyle.toString(), memo));
+    assertEquals(0, memo.size());
+  }
+
+  /** An email-like table with the same style on every cell. */
+  private static String repeatedStyles() {
+    StringBuilder html = new StringBuilder("<table>");
+    for (int i = 0; i < 20; ++i) {
+      html.append("<tr><td style=\"font-family:Arial;font-size:14px;")
+          .append("background:url(bg.png)\"><p>Cell ").append(i)
+          .append("</p></td></tr>");
+    }
+    return html.append("</table>").toString();
+  }
+
+  private static String repeatedStylesSanitized() {
+    StringBuilder html = new StringBuilder("<table>");
+    for (int i = 0; i < 20; ++i) {
+      html.append("<tr><td style=\"font-family:&#39;arial&#39;;")
+          .append("font-size:14px;background:url(&#39;bg.png&#39;)\">")
+          .append("<p>Cell ").append(i).append("</p></td></tr>");
+    }
+    return html.append("</table>").toString();
+  }
+
+  /** Allows every URL and counts them. */
+  private static final class CountingUrlPolicy implements AttributePolicy {
+    int count;
+
+    public String apply(
+        String elementName, String attributeName, String value) {
+      ++count;
+      return value;
+    }
+  }
+
   private static void assertSanitizedCss(
       @Nullable String expectedCss, String css) {
     StylingPolicy stylingPolicy = new StylingPolicy(
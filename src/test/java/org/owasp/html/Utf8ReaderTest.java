@@ -0,0 +1,175 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.io.CharStreams;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class Utf8ReaderTest extends TestCase {
+
+  @Test
+  public static final void testDecodesLikeString() throws IOException {
+    Random rnd = new Random(0x7f8);
+    String[] parts = {
+      "<p>", "plain", " ", "&amp;", "caf\u00e9", "\u20ac", "\ud83d\ude00",
+      "\u4e2d\u6587",
+    };
+    for (int run = 0; run < 200; ++run) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = rnd.nextInt(40); --i >= 0;) {
+        sb.append(parts[rnd.nextInt(parts.length)]);
+      }
+      byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+      // Corrupt some inputs so that replacement is tested too.
+      if (run % 3 == 0 && bytes.length != 0) {
+        bytes[rnd.nextInt(bytes.length)] = (byte) (0x80 | rnd.nextInt(0x80));
+      }
+      if (run % 5 == 0 && bytes.length != 0) {
+        // Truncated mid sequence.
+        bytes = Arrays.copyOf(bytes, rnd.nextInt(bytes.length));
+      }
+      String expected = new String(bytes, StandardCharsets.UTF_8);
+      assertEquals(expected, read(ByteBuffer.wrap(bytes), 1));
+      assertEquals(expected, read(ByteBuffer.wrap(bytes), 3));
+      assertEquals(
+          expected, read(ByteBuffer.wrap(bytes), Integer.MAX_VALUE));
+      ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+      direct.put(bytes).flip();
+      assertEquals(expected, read(direct, 2));
+    }
+  }
+
+  @Test
+  public static final void testPositionUnchanged() throws IOException {
+    ByteBuffer bytes = ByteBuffer.wrap(
+        "xx<b>\u00e9</b>yy".getBytes(StandardCharsets.UTF_8));
+    bytes.position(2).limit(bytes.limit() - 2);
+    assertEquals("<b>\u00e9</b>", read(bytes, 4));
+    assertEquals(2, bytes.position());
+  }
+
+  @Test
+  public static final void testSanitizeUtf8() throws IOException {
+    PolicyFactory f = Sanitizers.FORMATTING.and(Sanitizers.LINKS);
+    String html = "<b onclick=x>caf\u00e9 \ud83d\ude00</b><script>s</script>"
+        + "<a href='http://example.com/\u20ac'>\u4e2d</a>";
+    ByteBuffer bytes = ByteBuffer.wrap(html.getBytes(StandardCharsets.UTF_8));
+    assertEquals(f.sanitize(html), f.sanitizeUtf8(bytes));
+    StringBuilder sb = new StringBuilder();
+    f.sanitizeUtf8(bytes, sb);
+    assertEquals(f.sanitize(html), sb.toString());
+  }
+
+  @Test
+  public static final void testMappedFile() throws IOException {
+    Random rnd = new Random(0x3a9);
+    Path tmp = Files.createTempFile("Utf8ReaderTest", ".html");
+    try {
+      for (int run = 0; run < 50; ++run) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = rnd.nextInt(200); --i >= 0;) {
+          sb.appendCodePoint(
+              rnd.nextBoolean() ? 'a' + rnd.nextInt(26)
+              : rnd.nextBoolean() ? 0x80 + rnd.nextInt(0xd000)
+              : 0x10000 + rnd.nextInt(0x10000));
+        }
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+        if (run % 3 == 0 && bytes.length != 0) {
+          bytes[rnd.nextInt(bytes.length)] = (byte) 0xf0;
+        }
+        Files.write(tmp, bytes);
+        String expected = new String(bytes, StandardCharsets.UTF_8);
+        // Small regions put sequences across region boundaries.
+        for (int mapSize : new int[] { 4, 5, 7, 64, 1 << 20 }) {
+          try (FileChannel file = FileChannel.open(tmp)) {
+            assertEquals(
+                "mapSize=" + mapSize, expected,
+                CharStreams.toString(new Utf8Reader(file, mapSize)));
+          }
+        }
+      }
+    } finally {
+      Files.delete(tmp);
+    }
+  }
+
+  @Test
+  public static final void testSanitizeFile() throws IOException {
+    PolicyFactory f = Sanitizers.FORMATTING.and(Sanitizers.LINKS);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 2000; ++i) {
+      sb.append("<b onclick=x>caf\u00e9 \ud83d\ude00</b><script>s</script>")
+          .append("<a href='http://example.com/\u20ac'>\u4e2d</a>");
+    }
+    String html = sb.toString();
+    Path tmp = Files.createTempFile("Utf8ReaderTest", ".html");
+    try {
+      Files.write(tmp, html.getBytes(StandardCharsets.UTF_8));
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      f.sanitizeFile(tmp, Channels.newChannel(out));
+      assertEquals(
+          f.sanitize(html),
+          new String(out.toByteArray(), StandardCharsets.UTF_8));
+    } finally {
+      Files.delete(tmp);
+    }
+  }
+
+  private static String read(ByteBuffer bytes, final int chunkSize)
+      throws IOException {
+    final Utf8Reader reader = new Utf8Reader(bytes);
+    return CharStreams.toString(new Reader() {
+      @Override
+      public int read(char[] cbuf, int off, int len) throws IOException {
+        return reader.read(cbuf, off, Math.min(len, chunkSize));
+      }
+
+      @Override
+      public void close() {
+        reader.close();
+      }
+    });
+  }
+}
@@ -0,0 +1,230 @@
+// Copyright (c) 2019, Mike Samuel
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+//
+// Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+// Redistributions in binary form must reproduce the above copyright
+// notice, this list of conditions and the following disclaimer in the
+// documentation and/or other materials provided with the distribution.
+// Neither the name of the OWASP nor the names of its contributors may
+// be used to endorse or promote products derived from this software
+// without specific prior written permission.
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+// FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+// COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+// INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+// BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+// CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+// LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+// ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package org.owasp.html;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.annotation.Nullable;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+import junit.framework.TestCase;
+
+@SuppressWarnings("javadoc")
+public final class Utf8SinkTest extends TestCase {
+
+  private static final String[] PARTS = {
+    "<b>", "ascii", " ", "caf\u00e9", "\u20ac", "\ud83d\ude00", "\ud83d",
+    "\ude00", "\u4e2d\u6587", "\u07ff\u0800\uffff",
+  };
+
+  @Test
+  public static final void testEncodesLikeString() throws IOException {
+    Random rnd = new Random(0x517c);
+    for (int run = 0; run < 500; ++run) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = rnd.nextInt(30); --i >= 0;) {
+        sb.append(PARTS[rnd.nextInt(PARTS.length)]);
+      }
+      String s = sb.toString();
+      byte[] expected = s.getBytes(StandardCharsets.UTF_8);
+
+      int bufferSize = 4 + rnd.nextInt(8);
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      Utf8Sink sink;
+      if (rnd.nextBoolean()) {
+        sink = new Utf8Sink(bytes, new byte[bufferSize]);
+      } else {
+        sink = new Utf8Sink(
+            Channels.newChannel(bytes), ByteBuffer.allocateDirect(bufferSize));
+      }
+      // Split the output into appends at arbitrary points, including between
+      // the halves of surrogate pairs.
+      for (int i = 0; i < s.length();) {
+        int n = Math.min(s.length() - i, rnd.nextInt(6));
+        if (n == 1 && rnd.nextBoolean()) {
+          sink.append(s.charAt(i));
+        } else if (rnd.nextBoolean()) {
+          sink.append(s.subSequence(i, i + n));
+        } else {
+          sink.append(new StringBuilder(s), i, i + n);
+        }
+        i += n;
+      }
+      sink.close();
+      assertTrue(s, Arrays.equals(expected, bytes.toByteArray()));
+    }
+  }
+
+  @Test
+  public static final void testAsciiRuns() throws IOException {
+    // Runs of ASCII are copied in blocks where the JDK allows, so put a
+    // non-ASCII char at each offset in and around a block.
+    String ascii = "<p>The quick brown fox jumps over the lazy dog</p>";
+    for (int bufferSize : new int[] { 4, 13, 64 }) {
+      for (int i = 0; i <= ascii.length(); ++i) {
+        for (String nonAscii
+             : new String[] { "", "\u0080", "\u00ff", "\u0100" }) {
+          String s = ascii.substring(0, i) + nonAscii + ascii.substring(i);
+          ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+          try (Utf8Sink sink = new Utf8Sink(bytes, new byte[bufferSize])) {
+            sink.append(s);
+            sink.append(s, i, s.length());
+          }
+          assertTrue(
+              s, Arrays.equals(
+                  (s + s.substring(i)).getBytes(StandardCharsets.UTF_8),
+                  bytes.toByteArray()));
+        }
+      }
+    }
+  }
+
+  @Test
+  public static final void testVersionedAsciiRunsMatch() throws Exception {
+    // Tests run against the classes directory, where JDKs do not look in
+    // META-INF/versions, so load the JDK 11 version of AsciiRuns explicitly.
+    Method versioned = versionedCopyAscii();
+    if (versioned == null) { return; }
+    List<String> inputs = Lists.newArrayList();
+    Random rnd = new Random(0x517c);
+    for (int run = 0; run < 100; ++run) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = rnd.nextInt(30); --i >= 0;) {
+        sb.append(PARTS[rnd.nextInt(PARTS.length)]);
+      }
+      inputs.add(sb.toString());
+    }
+    String ascii = "<p>The quick brown fox jumps over the lazy dog</p>";
+    for (int i = 0; i <= ascii.length(); ++i) {
+      for (String nonAscii
+           : new String[] { "", "\u0080", "\u00ff", "\u0100" }) {
+        inputs.add(ascii.substring(0, i) + nonAscii + ascii.substring(i));
+      }
+    }
+    for (String s : inputs) {
+      for (CharSequence src : new CharSequence[] { s, new StringBuilder(s) }) {
+        for (int start = 0; start <= s.length(); ++start) {
+          int len = s.length() - start;
+          byte[] expected = new byte[len + 2];
+          byte[] actual = new byte[len + 2];
+          int nExpected = AsciiRuns.copyAscii(src, start, expected, 2, len);
+          int nActual = (Integer) versioned.invoke(
+              null, src, start, actual, 2, len);
+          assertEquals(s, nExpected, nActual);
+          assertTrue(s, Arrays.equals(expected, actual));
+        }
+      }
+    }
+  }
+
+  /**
+   * The JDK 11 version of AsciiRuns.copyAscii, or null if it was not built
+   * because the JDK is older.
+   */
+  private static @Nullable Method versionedCopyAscii() throws Exception {
+    String resource = "META-INF/versions/11/org/owasp/html/AsciiRuns.class";
+    byte[] bytes;
+    try (InputStream in = Utf8SinkTest.class.getClassLoader()
+             .getResourceAsStream(resource)) {
+      if (in == null) {
+        String version = System.getProperty("java.specification.version");
+        assertTrue(
+            "JDK " + version + " builds should compile " + resource,
+            version.startsWith("1.") || Integer.parseInt(version) < 11);
+        return null;
+      }
+      bytes = ByteStreams.toByteArray(in);
+    }
+    Class<?> versionedClass = new VersionedClassLoader().define(
+        AsciiRuns.class.getName(), bytes);
+    Method copyAscii = versionedClass.getDeclaredMethod(
+        "copyAscii",
+        CharSequence.class, int.class, byte[].class, int.class, int.class);
+    copyAscii.setAccessible(true);
+    return copyAscii;
+  }
+
+  /** Loads a class apart from the one in the classes directory. */
+  private static final class VersionedClassLoader extends ClassLoader {
+    VersionedClassLoader() {
+      super(null);
+    }
+
+    Class<?> define(String name, byte[] bytes) {
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+  }
+
+  @Test
+  public static final void testFlush() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Utf8Sink sink = new Utf8Sink(bytes);
+    sink.append("a\u00e9\ud83d");
+    assertEquals(0, bytes.size());
+    sink.flush();
+    // The high surrogate waits for its pair.
+    assertEquals("a\u00e9", new String(bytes.toByteArray(), "UTF-8"));
+    sink.append('\ude00');
+    sink.flush();
+    assertEquals(
+        "a\u00e9\ud83d\ude00", new String(bytes.toByteArray(), "UTF-8"));
+  }
+
+  @Test
+  public static final void testSanitizeToSink() throws IOException {
+    PolicyFactory f = Sanitizers.FORMATTING.and(Sanitizers.LINKS);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 2000; ++i) {
+      sb.append("<b onclick=x>caf\u00e9 \ud83d\ude00 &lt;").append(i)
+          .append("</b><a href='http://example.com/\u20ac'>\u4e2d</a>");
+    }
+    String html = sb.toString();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (Utf8Sink sink = new Utf8Sink(bytes)) {
+      f.sanitize(new StringReader(html), sink);
+    }
+    assertTrue(Arrays.equals(
+        f.sanitize(html).getBytes(StandardCharsets.UTF_8),
+        bytes.toByteArray()));
+  }
+}